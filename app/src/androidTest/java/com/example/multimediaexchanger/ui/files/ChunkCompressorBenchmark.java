@@ -0,0 +1,67 @@
+package com.example.multimediaexchanger.ui.files;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Скорость сжатия и распаковки чанков на одном ядре устройства. Результат пишется в logcat, время
+ * ничего не проверяет: обратимость проверяет {@code ChunkCompressorTest}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ChunkCompressorBenchmark {
+
+    private static final String TAG = "ChunkCompressorBenchmark";
+    private static final int CHUNK_SIZE = FileTransferManager.CHUNK_SIZE;
+
+    @Test
+    public void singleCoreThroughput() throws IOException {
+        byte[] data = textData(new Random(6), CHUNK_SIZE);
+        byte[] compressed = new byte[ChunkCompressor.maxCompressedLength(CHUNK_SIZE)];
+        byte[] restored = new byte[CHUNK_SIZE];
+        for (ChunkCompressor.Codec codec : ChunkCompressor.Codec.values()) {
+            ChunkCompressor compressor = ChunkCompressor.forContent(codec, "text/plain", null);
+            int length = compressor.compress(data, 0, data.length, compressed);
+            double compress = measure(() -> compressor.compress(data, 0, data.length, compressed));
+            double decompress = measure(() -> {
+                try {
+                    ChunkCompressor.decompress(compressor.codecId(), compressed, 0, length, restored, CHUNK_SIZE);
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            });
+            Log.i(TAG, String.format(Locale.US, "%s: %.0f%% размера, сжатие %.0f MB/s, распаковка %.0f MB/s",
+                    codec, 100.0 * length / CHUNK_SIZE, compress, decompress));
+            compressor.release();
+        }
+    }
+
+    /** Пропускная способность по исходным данным, МБ/с, после прогрева JIT. */
+    private static double measure(Runnable block) {
+        for (int i = 0; i < 500; i++) block.run();
+        int iterations = 2000;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) block.run();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return (double) iterations * CHUNK_SIZE / seconds / 1e6;
+    }
+
+    /** Похоже на лог: повторяющиеся поля и случайные числа. */
+    private static byte[] textData(Random random, int size) {
+        StringBuilder text = new StringBuilder(size + 64);
+        while (text.length() < size) {
+            text.append("2024-05-").append(10 + random.nextInt(20)).append(" INFO RUDP: chunk #")
+                    .append(random.nextInt(100000)).append(" acked, rtt=").append(random.nextInt(500)).append("ms\n");
+        }
+        return Arrays.copyOf(text.toString().getBytes(StandardCharsets.US_ASCII), size);
+    }
+}
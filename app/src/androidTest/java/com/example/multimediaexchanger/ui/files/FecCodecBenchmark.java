@@ -0,0 +1,74 @@
+package com.example.multimediaexchanger.ui.files;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Пропускная способность кодеров FEC на одном ядре устройства. Результат пишется в logcat, время
+ * ничего не проверяет: восстановление проверяет {@code FecCodecTest}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FecCodecBenchmark {
+
+    private static final String TAG = "FecCodecBenchmark";
+    private static final int SHARD_SIZE = FileTransferManager.CHUNK_SIZE;
+
+    @Test
+    public void singleCoreThroughput() {
+        Random random = new Random(5);
+        int dataCount = 16;
+        byte[][] data = randomBlock(random, dataCount, SHARD_SIZE);
+        int[] dataLengths = lengths(dataCount, SHARD_SIZE);
+        FecCodec[] codecs = {new XorParityCodec(SHARD_SIZE), new ReedSolomonCodec(SHARD_SIZE)};
+        for (FecCodec codec : codecs) {
+            int parityCount = Math.min(4, codec.maxParityShards());
+            byte[][] parity = new byte[parityCount][SHARD_SIZE];
+            double encode = measure(() -> codec.encode(data, dataLengths, dataCount, parity, parityCount), dataCount);
+
+            byte[][] shards = new byte[dataCount + parityCount][];
+            for (int i = 0; i < dataCount; i++) shards[i] = data[i].clone();
+            for (int p = 0; p < parityCount; p++) shards[dataCount + p] = parity[p].clone();
+            boolean[] present = new boolean[dataCount + parityCount];
+            double decode = measure(() -> {
+                Arrays.fill(present, true);
+                for (int p = 0; p < parityCount; p++) present[p * 3] = false;
+                assertTrue(codec.decode(shards, present, dataCount, parityCount));
+            }, dataCount);
+
+            Log.i(TAG, String.format(Locale.US, "%s k=%d m=%d: encode %.0f MB/s, decode %.0f MB/s",
+                    codec.getClass().getSimpleName(), dataCount, parityCount, encode, decode));
+        }
+    }
+
+    /** Пропускная способность по данным блока, МБ/с, после прогрева JIT. */
+    private static double measure(Runnable block, int dataCount) {
+        for (int i = 0; i < 200; i++) block.run();
+        int iterations = 500;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) block.run();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return (double) iterations * dataCount * SHARD_SIZE / seconds / 1e6;
+    }
+
+    private static byte[][] randomBlock(Random random, int count, int size) {
+        byte[][] block = new byte[count][size];
+        for (byte[] shard : block) random.nextBytes(shard);
+        return block;
+    }
+
+    private static int[] lengths(int count, int length) {
+        int[] lengths = new int[count];
+        Arrays.fill(lengths, length);
+        return lengths;
+    }
+}
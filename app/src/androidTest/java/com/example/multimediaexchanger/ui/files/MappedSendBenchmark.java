@@ -0,0 +1,117 @@
+package com.example.multimediaexchanger.ui.files;
+
+import android.os.Debug;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Замер процессорного времени на гигабайт отправки через loopback на устройстве: прежний путь
+ * (чтение потоком и три копии чанка в куче) против сборки заголовка и страниц файла. Получатель
+ * пакеты не читает — меряется только сторона отправителя. Результат пишется в logcat, время
+ * ничего не проверяет: то, что пакеты совпадают, проверяет {@code MappedSendTest}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MappedSendBenchmark {
+
+    private static final String TAG = "MappedSendBenchmark";
+    private static final int CHUNK_SIZE = FileTransferManager.CHUNK_SIZE;
+    private static final int HEADER_SIZE = 1 + 4 + 4 + 4;
+    private static final long FILE_SIZE = 64L * 1024 * 1024;
+
+    @Test
+    public void cpuPerGigabyte_copyingVersusMapped() throws IOException {
+        File file = createFile(FILE_SIZE);
+        try (DatagramChannel sink = DatagramChannel.open()) {
+            sink.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            InetSocketAddress target = (InetSocketAddress) sink.getLocalAddress();
+
+            // Прогрев JIT и page cache, затем замер
+            sendCopying(file, target);
+            sendMapped(file, target);
+            double copying = sendCopying(file, target);
+            double mapped = sendMapped(file, target);
+
+            Log.i(TAG, String.format(Locale.US, "CPU на 1 ГБ: копирование %.0f мс, отображение %.0f мс (%.1fx)",
+                    copying, mapped, copying / mapped));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static double sendCopying(File file, InetSocketAddress target) throws IOException {
+        long start = Debug.threadCpuTimeNanos();
+        try (InputStream input = new FileInputStream(file); DatagramSocket socket = new DatagramSocket()) {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int bytesRead;
+            int sequence = 1;
+            while ((bytesRead = input.read(buffer)) > 0) {
+                byte[] chunkData = new byte[bytesRead];
+                System.arraycopy(buffer, 0, chunkData, 0, bytesRead);
+                ByteBuffer chunkBuffer = ByteBuffer.allocate(4 + 4 + 4 + chunkData.length);
+                chunkBuffer.putInt(1).putInt(sequence++).putInt(0).put(chunkData);
+                byte[] data = chunkBuffer.array();
+                byte[] message = new byte[data.length + 1];
+                message[0] = FileTransferManager.MESSAGE_TYPE_FILE_CHUNK_RUDP;
+                System.arraycopy(data, 0, message, 1, data.length);
+                socket.send(new DatagramPacket(message, message.length, target));
+            }
+        }
+        return perGigabyte(Debug.threadCpuTimeNanos() - start);
+    }
+
+    private static double sendMapped(File file, InetSocketAddress target) throws IOException {
+        long start = Debug.threadCpuTimeNanos();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); DatagramChannel channel = DatagramChannel.open()) {
+            channel.connect(target);
+            MappedFile mapped = new MappedFile(raf.getChannel(), CHUNK_SIZE);
+            ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+            ByteBuffer[] gather = new ByteBuffer[2];
+            for (int i = 0; i < mapped.chunkCount; i++) {
+                header.clear();
+                header.put(FileTransferManager.MESSAGE_TYPE_FILE_CHUNK_RUDP).putInt(1).putInt(i + 1).putInt(0).flip();
+                gather[0] = header;
+                gather[1] = mapped.slice(i);
+                channel.write(gather);
+            }
+        }
+        return perGigabyte(Debug.threadCpuTimeNanos() - start);
+    }
+
+    private static double perGigabyte(long cpuNanos) {
+        return cpuNanos / 1e6 * (1024.0 * 1024 * 1024 / FILE_SIZE);
+    }
+
+    private static File createFile(long size) throws IOException {
+        File dir = InstrumentationRegistry.getInstrumentation().getTargetContext().getCacheDir();
+        File file = File.createTempFile("mapped", ".bin", dir);
+        Random random = new Random(2);
+        byte[] block = new byte[1024 * 1024];
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                output.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+        return file;
+    }
+}
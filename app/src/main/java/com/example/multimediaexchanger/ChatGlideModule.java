@@ -0,0 +1,43 @@
+package com.example.multimediaexchanger;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import com.bumptech.glide.GlideBuilder;
+import com.bumptech.glide.annotation.GlideModule;
+import com.bumptech.glide.load.engine.bitmap_recycle.LruBitmapPool;
+import com.bumptech.glide.load.engine.cache.InternalCacheDiskCacheFactory;
+import com.bumptech.glide.load.engine.cache.LruResourceCache;
+import com.bumptech.glide.load.engine.cache.MemorySizeCalculator;
+import com.bumptech.glide.module.AppGlideModule;
+
+/**
+ * Явные бюджеты кэшей Glide. Лента чата показывает картинки 200dp, поэтому памяти хватает
+ * на пару экранов уже уменьшенных битмапов; пул битмапов того же размера позволяет
+ * переиспользовать их при прокрутке вместо новых выделений.
+ */
+@GlideModule
+public final class ChatGlideModule extends AppGlideModule {
+
+    private static final float MEMORY_CACHE_SCREENS = 2;
+    private static final float BITMAP_POOL_SCREENS = 2;
+    private static final long DISK_CACHE_BYTES = 64L * 1024 * 1024;
+
+    @Override
+    public void applyOptions(@NonNull Context context, @NonNull GlideBuilder builder) {
+        MemorySizeCalculator calculator = new MemorySizeCalculator.Builder(context)
+                .setMemoryCacheScreens(MEMORY_CACHE_SCREENS)
+                .setBitmapPoolScreens(BITMAP_POOL_SCREENS)
+                .build();
+        builder.setMemoryCache(new LruResourceCache(calculator.getMemoryCacheSize()));
+        builder.setBitmapPool(new LruBitmapPool(calculator.getBitmapPoolSize()));
+        // Уменьшенные картинки ленты: повторный показ не декодирует исходное фото заново
+        builder.setDiskCache(new InternalCacheDiskCacheFactory(context, DISK_CACHE_BYTES));
+    }
+
+    @Override
+    public boolean isManifestParsingEnabled() {
+        return false;
+    }
+}
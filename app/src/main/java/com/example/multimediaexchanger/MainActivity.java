@@ -2,14 +2,17 @@ package com.example.multimediaexchanger;
 
 import android.Manifest;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.BatteryManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.provider.Settings;
 import android.view.WindowManager;
 
@@ -27,6 +30,7 @@ import androidx.navigation.ui.NavigationUI;
 import com.example.multimediaexchanger.databinding.ActivityMainBinding;
 import com.example.multimediaexchanger.ui.UdpViewModel;
 import com.example.multimediaexchanger.ui.UsbLogViewModel;
+import com.example.multimediaexchanger.ui.files.FileTransferService;
 import com.example.multimediaexchanger.ui.network.NetworkViewModel;
 import com.google.android.material.bottomnavigation.BottomNavigationView;
 
@@ -42,6 +46,17 @@ public class MainActivity extends AppCompatActivity {
 
     private static final int PERMISSIONS_REQUEST_CODE = 123;
 
+    // Держим сервис передачи файлов, пока открыто приложение: файлы принимаются на любой вкладке
+    private final ServiceConnection transferServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+        }
+    };
+
     private final BroadcastReceiver powerConnectionReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -92,6 +107,8 @@ public class MainActivity extends AppCompatActivity {
 
         checkAndRequestPermissions();
 
+        bindService(new Intent(this, FileTransferService.class), transferServiceConnection, Context.BIND_AUTO_CREATE);
+
         IntentFilter filter = new IntentFilter();
         filter.addAction(Intent.ACTION_POWER_CONNECTED);
         filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
@@ -125,6 +142,7 @@ public class MainActivity extends AppCompatActivity {
     protected void onDestroy() {
         super.onDestroy();
         unregisterReceiver(powerConnectionReceiver);
+        unbindService(transferServiceConnection);
         usbLogViewModel.log("----------------------------------");
         usbLogViewModel.log("             APP CLOSED             ");
         usbLogViewModel.log("----------------------------------");
@@ -141,7 +159,8 @@ public class MainActivity extends AppCompatActivity {
                     Manifest.permission.READ_MEDIA_VIDEO,
                     Manifest.permission.READ_MEDIA_AUDIO,
                     Manifest.permission.CAMERA,
-                    Manifest.permission.RECORD_AUDIO
+                    Manifest.permission.RECORD_AUDIO,
+                    Manifest.permission.POST_NOTIFICATIONS
             };
         } else {
             permissionsToRequest = new String[]{
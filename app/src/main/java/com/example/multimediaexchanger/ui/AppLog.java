@@ -0,0 +1,141 @@
+package com.example.multimediaexchanger.ui;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Журнал приложения, один на процесс. В него пишут и экраны (через {@link UsbLogViewModel}),
+ * и сервис передачи файлов, который живет дольше Activity; журнал дублируется в файл.
+ */
+public class AppLog {
+
+    private static final String LOG_FILE_NAME = "app_log.txt";
+    private static final String TAG = "AppLog";
+
+    private static AppLog instance;
+
+    private final MutableLiveData<String> logs = new MutableLiveData<>("");
+    private final StringBuilder logBuilder = new StringBuilder();
+    private final ExecutorService fileExecutor = Executors.newSingleThreadExecutor();
+    private final File logFile;
+
+    private AppLog(Context context) {
+        logFile = new File(context.getFilesDir(), LOG_FILE_NAME);
+        loadLogsFromFile();
+    }
+
+    public static synchronized AppLog get(@NonNull Context context) {
+        if (instance == null) instance = new AppLog(context.getApplicationContext());
+        return instance;
+    }
+
+    public LiveData<String> getLogs() {
+        return logs;
+    }
+
+    public void log(String message, Throwable tr) {
+        log(message + "\n" + Log.getStackTraceString(tr));
+    }
+
+    public void log(String message) {
+        StackTraceElement[] stackTrace = new Throwable().getStackTrace();
+        String callerInfo = "";
+        if (stackTrace.length > 1) {
+            for (int i = 1; i < stackTrace.length; i++) {
+                StackTraceElement element = stackTrace[i];
+                String className = element.getClassName();
+                if (!className.equals(AppLog.class.getName()) && !className.equals(UsbLogViewModel.class.getName())) {
+                    String simpleClassName = className.substring(className.lastIndexOf('.') + 1);
+                    int dollarSign = simpleClassName.indexOf('$');
+                    if (dollarSign != -1) {
+                        simpleClassName = simpleClassName.substring(0, dollarSign);
+                    }
+                    callerInfo = "[" + simpleClassName + "." + element.getMethodName() + "] ";
+                    break;
+                }
+            }
+        }
+
+        String timestamp = new SimpleDateFormat("HH:mm:ss.SSS", Locale.getDefault()).format(new Date());
+        String logMessage = timestamp + ": " + callerInfo + message;
+
+        synchronized (logBuilder) {
+            logBuilder.append(logMessage).append("\n");
+            logs.postValue(logBuilder.toString());
+        }
+
+        writeLogToFile(logMessage + "\n");
+    }
+
+    public void clearLogs() {
+        fileExecutor.execute(() -> {
+            synchronized (logBuilder) {
+                logBuilder.setLength(0);
+                logs.postValue("");
+            }
+            if (logFile.exists()) {
+                try {
+                    if (logFile.delete()) {
+                        if (logFile.createNewFile()) {
+                            Log.d(TAG, "Log file cleared and recreated.");
+                        } else {
+                             Log.e(TAG, "Failed to recreate log file.");
+                        }
+                    } else {
+                        Log.e(TAG, "Failed to delete log file.");
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Error managing log file for clearing.", e);
+                }
+            }
+        });
+    }
+
+    private void loadLogsFromFile() {
+        fileExecutor.execute(() -> {
+            if (logFile.exists()) {
+                try (BufferedReader reader = new BufferedReader(new FileReader(logFile))) {
+                    StringBuilder loaded = new StringBuilder();
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        loaded.append(line).append("\n");
+                    }
+                    synchronized (logBuilder) {
+                        logBuilder.insert(0, loaded);
+                        logs.postValue(logBuilder.toString());
+                    }
+                    Log.d(TAG, "Logs loaded from file.");
+                } catch (IOException e) {
+                    Log.e(TAG, "Error loading logs from file", e);
+                }
+            }
+        });
+    }
+
+    private void writeLogToFile(String logMessage) {
+        fileExecutor.execute(() -> {
+            try (FileOutputStream fos = new FileOutputStream(logFile, true);
+                 OutputStreamWriter writer = new OutputStreamWriter(fos)) {
+                writer.append(logMessage);
+            } catch (IOException e) {
+                Log.e(TAG, "FATAL: Error writing log to file", e);
+            }
+        });
+    }
+}
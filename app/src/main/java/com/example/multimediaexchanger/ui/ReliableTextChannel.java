@@ -0,0 +1,340 @@
+package com.example.multimediaexchanger.ui;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Надежный канал текстовых сообщений чата: у каждого собеседника свои номера, получатель
+ * выдает сообщения по порядку и без повторов, потерянные отправитель повторяет по таймауту.
+ * <p>
+ * Сообщения, отправленные подряд, собираются в один пакет до {@link #MAX_FRAME_SIZE}, а
+ * подтверждение едет в заголовке встречного пакета; отдельный пакет с одним ACK уходит, только
+ * если за {@link #ACK_DELAY_MS} встречных данных не нашлось.
+ * <p>
+ * Пакет: {@code [сессия][первый неподтвержденный][сессия собеседника][ACK][число сообщений]},
+ * затем {@code [номер][длина][UTF-8]} на каждое. Сессия — случайное число на запуск: по ней
+ * собеседник узнает, что мы перезапустились и номера начались заново.
+ * <p>
+ * Неподтвержденное сообщение повторяется с удваивающимся таймаутом; после {@link #MAX_ATTEMPTS}
+ * попыток оно выбрасывается и отдается {@link FailureListener}. Первый неподтвержденный номер в
+ * заголовке говорит получателю, что ждать выброшенные больше не нужно.
+ * <p>
+ * Все состояние живет в одном потоке канала. Поток, таймеры и часы дает {@link Scheduler}:
+ * тесты подставляют свой и двигают время сами.
+ */
+final class ReliableTextChannel {
+
+    interface Sender {
+        void send(String ip, byte[] frame);
+    }
+
+    interface Listener {
+        void onText(String ip, String text);
+    }
+
+    interface FailureListener {
+        /** Собеседник так и не подтвердил сообщение. Вызывается в потоке канала. */
+        void onUndelivered(String ip, String text);
+    }
+
+    /** Однопоточный исполнитель задач канала со своими часами. */
+    interface Scheduler {
+        long now();
+
+        void execute(Runnable task);
+
+        Cancellable schedule(Runnable task, long delayMs);
+
+        void shutdown();
+    }
+
+    interface Cancellable {
+        void cancel();
+    }
+
+    /** Боевой планировщик: отдельный поток и системные часы. */
+    private static final class ExecutorScheduler implements Scheduler {
+        private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+        @Override
+        public long now() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            executor.execute(task);
+        }
+
+        @Override
+        public Cancellable schedule(Runnable task, long delayMs) {
+            ScheduledFuture<?> future = executor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+            return () -> future.cancel(false);
+        }
+
+        @Override
+        public void shutdown() {
+            executor.shutdownNow();
+        }
+    }
+
+    static final int MAX_FRAME_SIZE = 1400; // Влезает в MTU Ethernet вместе с заголовками IP/UDP
+    private static final int FRAME_HEADER_SIZE = 4 + 4 + 4 + 4 + 1;
+    private static final int MESSAGE_HEADER_SIZE = 4 + 2;
+    // Одно сообщение в пакете вместе с байтом типа не больше полезной нагрузки UDP (65507)
+    static final int MAX_TEXT_BYTES = 65507 - 1 - FRAME_HEADER_SIZE - MESSAGE_HEADER_SIZE;
+    private static final int MAX_MESSAGES_PER_FRAME = 0xFF;
+    static final long COALESCE_DELAY_MS = 5;
+    static final long ACK_DELAY_MS = 20;
+    static final long RETRANSMIT_TIMEOUT_MS = 300;     // Первый повтор; дальше таймаут удваивается
+    static final long MAX_RETRANSMIT_TIMEOUT_MS = 5000;
+    static final int MAX_ATTEMPTS = 8;                 // ~20 с без ответа — собеседника нет
+
+    private static final class Outgoing {
+        final int seq;
+        final byte[] text;
+        long sentAt = 0; // 0 — еще не отправлялось
+        int attempts = 0;
+        long timeout;
+
+        Outgoing(int seq, byte[] text, long timeout) {
+            this.seq = seq;
+            this.text = text;
+            this.timeout = timeout;
+        }
+    }
+
+    private static final class Peer {
+        // Отправка
+        int nextSeq = 1;
+        final TreeMap<Integer, Outgoing> unacked = new TreeMap<>();
+        // Прием
+        int remoteSession = 0;
+        int expected = 1;
+        final TreeMap<Integer, String> outOfOrder = new TreeMap<>();
+        Cancellable pendingAck;
+    }
+
+    private final Sender sender;
+    private final Listener listener;
+    private final FailureListener failureListener;
+    private final long retransmitTimeoutMs;
+    private final long maxRetransmitTimeoutMs;
+    private final int session;
+    private final Map<String, Peer> peers = new HashMap<>();
+    private final Scheduler scheduler;
+    private Cancellable pendingFlush;
+    private Cancellable retransmitTimer;
+    private long retransmitAt;
+
+    ReliableTextChannel(Sender sender, Listener listener, FailureListener failureListener) {
+        this(sender, listener, failureListener, RETRANSMIT_TIMEOUT_MS, MAX_RETRANSMIT_TIMEOUT_MS, new ExecutorScheduler());
+    }
+
+    /** Таймауты и планировщик задаются явно для тестов: с боевыми отказ наступает только через ~20 с. */
+    ReliableTextChannel(Sender sender, Listener listener, FailureListener failureListener,
+                        long retransmitTimeoutMs, long maxRetransmitTimeoutMs, Scheduler scheduler) {
+        this.sender = sender;
+        this.listener = listener;
+        this.failureListener = failureListener;
+        this.retransmitTimeoutMs = retransmitTimeoutMs;
+        this.maxRetransmitTimeoutMs = maxRetransmitTimeoutMs;
+        this.scheduler = scheduler;
+        int random = new Random().nextInt();
+        this.session = random != 0 ? random : 1;
+    }
+
+    /** Ставит сообщение в очередь; уйдет вместе с соседними через {@link #COALESCE_DELAY_MS}. */
+    void send(String ip, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_TEXT_BYTES) throw new IllegalArgumentException("Сообщение длиннее " + MAX_TEXT_BYTES + " байт");
+        scheduler.execute(() -> {
+            Peer peer = peer(ip);
+            int seq = peer.nextSeq++;
+            peer.unacked.put(seq, new Outgoing(seq, bytes, retransmitTimeoutMs));
+            if (pendingFlush == null) pendingFlush = scheduler.schedule(this::flush, COALESCE_DELAY_MS);
+        });
+    }
+
+    /**
+     * Режет текст на части не длиннее {@link #MAX_TEXT_BYTES} в UTF-8, не разрывая суррогатные пары.
+     */
+    static List<String> split(String text) {
+        List<String> parts = new ArrayList<>();
+        int start = 0;
+        int bytes = 0;
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            int length = codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+            if (bytes + length > MAX_TEXT_BYTES) {
+                parts.add(text.substring(start, i));
+                start = i;
+                bytes = 0;
+            }
+            bytes += length;
+            i += Character.charCount(codePoint);
+        }
+        parts.add(text.substring(start));
+        return parts;
+    }
+
+    /** Разбирает пришедший пакет. Вызывается в потоке приема. */
+    void receive(String ip, byte[] frame) {
+        scheduler.execute(() -> handleFrame(ip, frame));
+    }
+
+    void shutdown() {
+        scheduler.shutdown();
+    }
+
+    private Peer peer(String ip) {
+        Peer peer = peers.get(ip);
+        if (peer == null) {
+            peer = new Peer();
+            peers.put(ip, peer);
+        }
+        return peer;
+    }
+
+    private void handleFrame(String ip, byte[] frame) {
+        if (frame.length < FRAME_HEADER_SIZE) return;
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        int remoteSession = buffer.getInt();
+        int remoteBase = buffer.getInt();
+        int ackSession = buffer.getInt();
+        int ack = buffer.getInt();
+        int count = buffer.get() & 0xFF;
+        Peer peer = peer(ip);
+
+        if (remoteSession != peer.remoteSession) {
+            // Новый собеседник или он перезапустился: его номера начинаются с присланной базы
+            peer.remoteSession = remoteSession;
+            peer.expected = remoteBase;
+            peer.outOfOrder.clear();
+        } else if (remoteBase - peer.expected > 0) {
+            // Отправитель бросил номера до своей базы: что из них успело прийти — выдаем, остальные не ждем
+            for (Map.Entry<Integer, String> entry : new ArrayList<>(peer.outOfOrder.headMap(remoteBase).entrySet())) {
+                peer.outOfOrder.remove(entry.getKey());
+                listener.onText(ip, entry.getValue());
+            }
+            peer.expected = remoteBase;
+        }
+        if (ackSession == session) peer.unacked.headMap(ack, true).clear();
+
+        if (count == 0) return;
+        for (int i = 0; i < count; i++) {
+            if (buffer.remaining() < MESSAGE_HEADER_SIZE) return;
+            int seq = buffer.getInt();
+            int length = buffer.getShort() & 0xFFFF;
+            if (buffer.remaining() < length) return;
+            String text = new String(frame, buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            if (seq - peer.expected >= 0) peer.outOfOrder.put(seq, text); // Меньшие — повторы уже выданных
+        }
+        // Выдаем по порядку все, что теперь идет подряд
+        String next;
+        while ((next = peer.outOfOrder.remove(peer.expected)) != null) {
+            peer.expected++;
+            listener.onText(ip, next);
+        }
+        // Подтверждаем даже повторы: значит, прошлый ACK потерялся
+        if (peer.pendingAck == null) {
+            peer.pendingAck = scheduler.schedule(() -> sendAck(ip), ACK_DELAY_MS);
+        }
+    }
+
+    private void sendAck(String ip) {
+        Peer peer = peers.get(ip);
+        if (peer == null || peer.pendingAck == null) return;
+        peer.pendingAck = null;
+        sender.send(ip, frame(peer, new ArrayList<>()));
+    }
+
+    /**
+     * Отправляет все новые сообщения и те, чей таймаут истек, пачками до MTU; исчерпавшие попытки
+     * выбрасывает.
+     */
+    private void flush() {
+        pendingFlush = null;
+        long now = scheduler.now();
+        long nextDue = Long.MAX_VALUE;
+        for (Map.Entry<String, Peer> entry : peers.entrySet()) {
+            Peer peer = entry.getValue();
+            if (peer.unacked.isEmpty()) continue;
+
+            // Сначала выбрасываем безнадежные: база в заголовке пакетов ниже уже будет за ними
+            Iterator<Outgoing> expired = peer.unacked.values().iterator();
+            while (expired.hasNext()) {
+                Outgoing message = expired.next();
+                if (message.attempts < MAX_ATTEMPTS || now - message.sentAt < message.timeout) continue;
+                expired.remove();
+                failureListener.onUndelivered(entry.getKey(), new String(message.text, StandardCharsets.UTF_8));
+            }
+
+            List<Outgoing> batch = new ArrayList<>();
+            int frameSize = FRAME_HEADER_SIZE;
+            for (Outgoing message : peer.unacked.values()) {
+                if (message.sentAt != 0 && now - message.sentAt < message.timeout) {
+                    nextDue = Math.min(nextDue, message.sentAt + message.timeout);
+                    continue;
+                }
+                if (message.attempts > 0) message.timeout = Math.min(message.timeout * 2, maxRetransmitTimeoutMs);
+                message.attempts++;
+                nextDue = Math.min(nextDue, now + message.timeout);
+                int messageSize = MESSAGE_HEADER_SIZE + message.text.length;
+                if (!batch.isEmpty() && (frameSize + messageSize > MAX_FRAME_SIZE || batch.size() == MAX_MESSAGES_PER_FRAME)) {
+                    sendFrame(entry.getKey(), peer, batch);
+                    batch = new ArrayList<>();
+                    frameSize = FRAME_HEADER_SIZE;
+                }
+                // Сообщение больше MTU уходит одно: датаграмма до MAX_TEXT_BYTES влезает в UDP, IP ее фрагментирует
+                batch.add(message);
+                frameSize += messageSize;
+                message.sentAt = now;
+            }
+            if (!batch.isEmpty()) sendFrame(entry.getKey(), peer, batch);
+        }
+        if (nextDue == Long.MAX_VALUE) return; // Все подтверждено — таймер не нужен
+        if (retransmitTimer != null) {
+            if (retransmitAt <= nextDue) return;
+            retransmitTimer.cancel();
+        }
+        retransmitAt = nextDue;
+        retransmitTimer = scheduler.schedule(() -> {
+            retransmitTimer = null;
+            flush();
+        }, Math.max(0, nextDue - now));
+    }
+
+    private void sendFrame(String ip, Peer peer, List<Outgoing> messages) {
+        // ACK едет в этом же пакете — отдельный не нужен
+        if (peer.pendingAck != null) {
+            peer.pendingAck.cancel();
+            peer.pendingAck = null;
+        }
+        sender.send(ip, frame(peer, messages));
+    }
+
+    private byte[] frame(Peer peer, List<Outgoing> messages) {
+        int size = FRAME_HEADER_SIZE;
+        for (Outgoing message : messages) size += MESSAGE_HEADER_SIZE + message.text.length;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        int base = peer.unacked.isEmpty() ? peer.nextSeq : peer.unacked.firstKey();
+        buffer.putInt(session).putInt(base).putInt(peer.remoteSession).putInt(peer.expected - 1).put((byte) messages.size());
+        for (Outgoing message : messages) {
+            buffer.putInt(message.seq).putShort((short) message.text.length).put(message.text);
+        }
+        return buffer.array();
+    }
+}
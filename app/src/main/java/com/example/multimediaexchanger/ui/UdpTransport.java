@@ -0,0 +1,306 @@
+package com.example.multimediaexchanger.ui;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * UDP сокет приложения, общий на процесс. Живет, пока его держит хотя бы один владелец
+ * ({@link #acquire}/{@link #release}): экранный {@link UdpViewModel} или сервис передачи файлов,
+ * поэтому передача не обрывается вместе с Activity.
+ * <p>
+ * Входящие пакеты сначала предлагаются обработчикам из {@link #addHandler}, а то, что они
+ * не забрали, уходит обработчику по умолчанию (его ставит UdpViewModel).
+ */
+public final class UdpTransport {
+
+    public interface PacketHandler {
+        /** Вызывается в потоке приема. true — пакет обработан и дальше не передается. */
+        boolean onPacket(UdpViewModel.UdpMessage message);
+    }
+
+    private static final int LISTEN_PORT = 12345;
+
+    private static UdpTransport instance;
+
+    private final MutableLiveData<String> socketErrorEvent = new MutableLiveData<>();
+    private final CopyOnWriteArrayList<PacketHandler> handlers = new CopyOnWriteArrayList<>();
+    private volatile PacketHandler defaultHandler;
+
+    private AppLog logger;
+    private volatile DatagramSocket socket;
+    private volatile InetAddress bindAddress;
+    private ExecutorService executorService;
+    private volatile boolean isRunning = false;
+    private int holders = 0;
+
+    private UdpTransport() {
+    }
+
+    public static synchronized UdpTransport get() {
+        if (instance == null) instance = new UdpTransport();
+        return instance;
+    }
+
+    /** Регистрирует владельца; первый владелец открывает сокет. */
+    public synchronized void acquire(@NonNull AppLog logger) {
+        this.logger = logger;
+        holders++;
+        startUdpSocket();
+    }
+
+    /** Снимает владельца; с последним сокет закрывается. */
+    public synchronized void release() {
+        if (holders == 0 || --holders > 0) return;
+        isRunning = false;
+        closeSocket();
+        executorService.shutdown();
+        executorService = null;
+        log("UDP: Executor завершён (Ethernet/USB only).");
+    }
+
+    public void addHandler(@NonNull PacketHandler handler) {
+        handlers.addIfAbsent(handler);
+    }
+
+    public void removeHandler(@NonNull PacketHandler handler) {
+        handlers.remove(handler);
+    }
+
+    public void setDefaultHandler(PacketHandler handler) {
+        defaultHandler = handler;
+    }
+
+    /** Снимает обработчик по умолчанию, только если он все еще установлен этим владельцем. */
+    public void clearDefaultHandler(PacketHandler handler) {
+        if (defaultHandler == handler) defaultHandler = null;
+    }
+
+    public LiveData<String> getSocketErrorEvent() { return socketErrorEvent; }
+
+    private void log(String message) {
+        AppLog current = logger;
+        if (current != null) current.log(message);
+        if (message.contains("ERROR: Socket недоступен")) {
+            socketErrorEvent.postValue("Socket недоступен");
+        }
+    }
+
+    private void log(String message, Throwable tr) {
+        AppLog current = logger;
+        if (current != null) current.log(message, tr);
+    }
+
+    private void startUdpSocket() {
+        if (isRunning) {
+            log("UDP: Socket listener уже запущен.");
+            return;
+        }
+        isRunning = true;
+        if (executorService == null) executorService = Executors.newCachedThreadPool();
+
+        executorService.execute(() -> {
+            DatagramSocket listenSocket = null;
+            try {
+                InetAddress address = InetAddress.getByName(findEthernetOrUsbIp());
+                listenSocket = new DatagramSocket(LISTEN_PORT, address);
+                listenSocket.setBroadcast(true);
+                bindAddress = address;
+                socket = listenSocket;
+                log("UDP: Socket создан и привязан к IP: " + address.getHostAddress() + " (порт " + LISTEN_PORT + ")");
+
+                byte[] buffer = new byte[65507];
+
+                while (isRunning && socket == listenSocket) {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    listenSocket.receive(packet);
+
+                    String senderIp = packet.getAddress().getHostAddress();
+                    int length = packet.getLength();
+                    if (length > 0) {
+                        byte messageType = packet.getData()[0];
+                        byte[] payload = new byte[length - 1];
+                        System.arraycopy(packet.getData(), 1, payload, 0, length - 1);
+
+                        if (messageType != UdpViewModel.MESSAGE_TYPE_CALL_AUDIO) {
+                            log("UDP: RX " + length + " bytes от " + senderIp +
+                                    " (тип 0x" + String.format("%02X", messageType) + ")");
+                        }
+                        dispatch(new UdpViewModel.UdpMessage(messageType, payload, senderIp));
+                    }
+                }
+
+            } catch (Exception e) {
+                if (isRunning) log("UDP: Ошибка при создании сокета", e);
+            } finally {
+                synchronized (this) {
+                    // Сокет мог уже смениться, если транспорт успели закрыть и открыть заново
+                    if (socket == listenSocket) {
+                        isRunning = false;
+                        closeSocket();
+                    } else if (listenSocket != null) {
+                        listenSocket.close();
+                    }
+                }
+            }
+        });
+    }
+
+    private void dispatch(UdpViewModel.UdpMessage message) {
+        for (PacketHandler handler : handlers) {
+            if (handler.onPacket(message)) return;
+        }
+        PacketHandler fallback = defaultHandler;
+        if (fallback != null) fallback.onPacket(message);
+    }
+
+    private String findEthernetOrUsbIp() {
+        try {
+            for (NetworkInterface intf : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                String name = intf.getName().toLowerCase();
+
+                if (name.equals("eth0")) {
+                    for (InetAddress addr : Collections.list(intf.getInetAddresses())) {
+                        if (!addr.isLoopbackAddress() && addr instanceof java.net.Inet4Address) {
+                            String ip = addr.getHostAddress();
+                            log("UDP: выбран приоритетный интерфейс eth0 → " + ip);
+                            return ip;
+                        }
+                    }
+                }
+            }
+
+            for (NetworkInterface intf : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                String name = intf.getName().toLowerCase();
+                if (name.contains("wlan") || name.contains("wifi") || name.contains("p2p") || name.contains("radio")) continue;
+                if (name.contains("rndis") || name.contains("usb") || name.contains("rnnet")) {
+                    for (InetAddress addr : Collections.list(intf.getInetAddresses())) {
+                        if (!addr.isLoopbackAddress() && addr instanceof java.net.Inet4Address) {
+                            String ip = addr.getHostAddress();
+                            log("UDP: fallback интерфейс: " + name + " → " + ip);
+                            return ip;
+                        }
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            log("UDP: Ошибка при поиске интерфейса", e);
+        }
+        return "0.0.0.0";
+    }
+
+    public void sendData(String ipAddress, byte messageType, byte[] data) {
+        ExecutorService executor;
+        synchronized (this) {
+            executor = executorService;
+        }
+        if (executor == null) {
+            log("ERROR: Socket недоступен (Ethernet/USB only).");
+            return;
+        }
+        try {
+            executor.execute(() -> sendNow(ipAddress, messageType, data));
+        } catch (RejectedExecutionException e) {
+            log("ERROR: Socket недоступен (Ethernet/USB only).");
+        }
+    }
+
+    private void sendNow(String ipAddress, byte messageType, byte[] data) {
+        try {
+            DatagramSocket current = socket;
+            if (current == null || current.isClosed()) {
+                log("ERROR: Socket недоступен (Ethernet/USB only).");
+                return;
+            }
+
+            InetAddress address = InetAddress.getByName(ipAddress);
+            byte[] message = new byte[data.length + 1];
+            message[0] = messageType;
+            System.arraycopy(data, 0, message, 1, data.length);
+
+            DatagramPacket packet = new DatagramPacket(message, message.length, address, LISTEN_PORT);
+            current.send(packet);
+
+            if (messageType != UdpViewModel.MESSAGE_TYPE_CALL_AUDIO) {
+                log("UDP: TX " + message.length + " bytes (тип 0x" +
+                        String.format("%02X", messageType) + ") → " + ipAddress);
+            }
+
+        } catch (IOException e) {
+            log("UDP: Ошибка отправки данных", e);
+        }
+    }
+
+    /**
+     * Канал только для отправки на один адрес, с того же интерфейса, что и основной сокет.
+     * Через него пакет собирается из нескольких буферов прямо в ядре, без промежуточного byte[].
+     */
+    public DirectChannel openDirectChannel(String ipAddress) throws IOException {
+        InetAddress local = bindAddress;
+        if (socket == null || local == null) throw new IOException("Socket недоступен");
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(local, 0));
+            channel.connect(new InetSocketAddress(InetAddress.getByName(ipAddress), LISTEN_PORT));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new DirectChannel(channel);
+    }
+
+    /** Пакет = тип + заголовок + данные, записанные одной сборкой. Отправки сериализуются. */
+    public static final class DirectChannel implements Closeable {
+        private static final int MAX_HEADER_SIZE = 64;
+
+        private final DatagramChannel channel;
+        // Тип и заголовок копируются в прямой буфер: байты данных не копируются вовсе
+        private final ByteBuffer prefix = ByteBuffer.allocateDirect(1 + MAX_HEADER_SIZE);
+        private final ByteBuffer[] gather = new ByteBuffer[2];
+
+        private DirectChannel(DatagramChannel channel) {
+            this.channel = channel;
+        }
+
+        /** Пакеты не пишутся в лог по одному: на этом пути лог стоил бы дороже самой отправки. */
+        public synchronized void send(byte messageType, ByteBuffer header, ByteBuffer data) throws IOException {
+            prefix.clear();
+            prefix.put(messageType).put(header).flip();
+            gather[0] = prefix;
+            gather[1] = data;
+            channel.write(gather);
+            gather[1] = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private void closeSocket() {
+        DatagramSocket current = socket;
+        if (current != null && !current.isClosed()) {
+            current.close();
+            socket = null;
+            bindAddress = null;
+            log("UDP: Socket закрыт (Ethernet/USB only).");
+        }
+    }
+}
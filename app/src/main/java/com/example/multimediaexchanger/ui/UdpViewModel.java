@@ -7,19 +7,13 @@ import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 
-import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.NetworkInterface;
-import java.net.SocketException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class UdpViewModel extends AndroidViewModel {
 
@@ -35,30 +29,52 @@ public class UdpViewModel extends AndroidViewModel {
         }
     }
 
+    /** Получатель ACK одной исходящей передачи вложения. Вызывается в потоке приема. */
+    public interface AckListener {
+        void onAck(int sequence);
+    }
+
+    /** Получатель пакетов вложений чата. Вызывается в потоке приема. */
+    public interface AttachmentListener {
+        void onAttachmentMessage(UdpMessage message);
+    }
+
+    /** Получатель звука звонка. Вызывается в потоке приема. */
+    public interface CallAudioListener {
+        void onCallAudio(UdpMessage message);
+    }
+
+    /** Получатель текстовых сообщений чата — по порядку и без повторов. Вызывается в потоке канала. */
+    public interface TextListener {
+        void onText(String senderIp, String text);
+    }
+
     private final MutableLiveData<UdpMessage> receivedMessage = new MutableLiveData<>();
 
     private final MutableLiveData<UdpMessage> callMessages = new MutableLiveData<>();
     private final MutableLiveData<UdpMessage> streamMessages = new MutableLiveData<>();
     private final MutableLiveData<String> discoveredIpEvent = new MutableLiveData<>();
     private final MutableLiveData<String> handshakeEvent = new MutableLiveData<>();
-    private final MutableLiveData<String> socketErrorEvent = new MutableLiveData<>();
 
     private static final String BROADCAST_ADDRESS = "255.255.255.255";
 
     private UsbLogViewModel logger;
 
-    private DatagramSocket socket;
-    private final ExecutorService executorService = Executors.newCachedThreadPool();
-    private volatile boolean isRunning = false;
-
-    private static final int LISTEN_PORT = 12345;
+    // Сокет общий на процесс: его же держит сервис передачи файлов
+    private final UdpTransport transport = UdpTransport.get();
+    private final UdpTransport.PacketHandler packetHandler = this::dispatch;
+    private boolean transportAcquired = false;
 
     public static final byte MESSAGE_TYPE_TEXT = 0x01;
     public static final byte MESSAGE_TYPE_FILE_HEADER = 0x02;
     public static final byte MESSAGE_TYPE_FILE_CHUNK = 0x03;
     public static final byte MESSAGE_TYPE_FILE_END = 0x04;
+    public static final byte MESSAGE_TYPE_FILE_CHUNK_COMPRESSED = 0x40; // [передача][номер][кодек][сжатые данные]
+    public static final byte MESSAGE_TYPE_CHAT = 0x41; // Пачка текстовых сообщений надежного канала, см. ReliableTextChannel
+    public static final byte MESSAGE_TYPE_FILE_PREVIEW = 0x42; // [передача][JPEG превью], до заголовка
+    public static final byte MESSAGE_TYPE_FILE_LENGTH = 0x43; // [передача][размер]: итог файла, который слали, пока он дописывался
 
-    public static final byte MESSAGE_TYPE_FILE_ACK = 0x05;
+    public static final byte MESSAGE_TYPE_FILE_ACK = 0x05; // [передача][номер]
     public static final byte MESSAGE_TYPE_DISCOVERY = 0x0A;
     public static final byte MESSAGE_TYPE_HANDSHAKE = 0x0B;
     public static final byte MESSAGE_TYPE_CALL_REQUEST = 0x10;
@@ -81,7 +97,21 @@ public class UdpViewModel extends AndroidViewModel {
     private byte[] lastVideoConfigData;
     private byte[] lastAudioConfigData;
     private final Application app;
-    private final Set<Integer> receivedAcks = new HashSet<>();
+    // ACK разбираются по номеру передачи: запоздалые подтверждения прошлой отправки новую не трогают
+    private final Map<Integer, AckListener> ackListeners = new ConcurrentHashMap<>();
+    private volatile AttachmentListener attachmentListener;
+    private volatile CallAudioListener callAudioListener;
+    private final AtomicInteger nextTransferId = new AtomicInteger(new Random().nextInt(Integer.MAX_VALUE / 2) + 1);
+
+    private static final int MAX_PENDING_TEXTS = 500;
+    // Текст, который собеседник так и не подтвердил
+    private final MutableLiveData<String> undeliveredText = new MutableLiveData<>();
+    private final ReliableTextChannel textChannel = new ReliableTextChannel(
+            (ip, frame) -> transport.sendData(ip, MESSAGE_TYPE_CHAT, frame), this::deliverText,
+            (ip, text) -> undeliveredText.postValue(text));
+    // Сообщения, пришедшие, пока экран чата закрыт; отдаются первому подписчику
+    private final ArrayDeque<String[]> pendingTexts = new ArrayDeque<>();
+    private TextListener textListener;
 
     /*private final Queue<byte[]> audioQueue = new ConcurrentLinkedQueue<>();*/
 
@@ -93,24 +123,21 @@ public class UdpViewModel extends AndroidViewModel {
     public void setLogger(UsbLogViewModel logger) {
         this.logger = logger;
         //logUsbDevices();
-        startUdpSocket();
+        transport.setDefaultHandler(packetHandler);
+        if (!transportAcquired) {
+            transportAcquired = true;
+            transport.acquire(AppLog.get(app));
+        }
     }
 
     private void log(String message) {
         if (logger != null) logger.log(message);
-        if (message.contains("ERROR: Socket недоступен")) {
-            socketErrorEvent.postValue("Socket недоступен");
-        }
-    }
-
-    private void log(String message, Throwable tr) {
-        if (logger != null) logger.log(message, tr);
     }
 
     public LiveData<UdpMessage> getReceivedMessage() { return receivedMessage; }
     public LiveData<String> getDiscoveredIpEvent() { return discoveredIpEvent; }
     public LiveData<String> getHandshakeEvent() { return handshakeEvent; }
-    public LiveData<String> getSocketErrorEvent() { return socketErrorEvent; }
+    public LiveData<String> getSocketErrorEvent() { return transport.getSocketErrorEvent(); }
     public LiveData<UdpMessage> getCallMessages() { return callMessages; }
     public LiveData<UdpMessage> getStreamMessages() { return streamMessages; }
 
@@ -125,136 +152,69 @@ public class UdpViewModel extends AndroidViewModel {
     }*/
 
     public boolean isBroadcastOn = true;
-    private void startUdpSocket() {
-        if (isRunning) {
-            log("UDP: Socket listener уже запущен.");
-            return;
-        }
-        isRunning = true;
-
-        executorService.execute(() -> {
-            try {
-                InetAddress bindAddress = InetAddress.getByName(findEthernetOrUsbIp());
-                socket = new DatagramSocket(LISTEN_PORT, bindAddress);
-                socket.setBroadcast(true);
-                log("UDP: Socket создан и привязан к IP: " + bindAddress.getHostAddress() + " (порт " + LISTEN_PORT + ")");
-
-                // Запускаем отдельную задачу для периодической отправки broadcast-пакетов
-                /*executorService.submit(() -> {
-                    while (isBroadcastOn) {
-                        try {
-                            log("UDP: Отправка broadcast-пакета для обнаружения");
-                            sendDiscoveryBroadcast();
-                            Thread.sleep(3000);
-                        } catch (InterruptedException e) {
-                            log("UDP: Поток broadcast-отправки прерван.");
-                            Thread.currentThread().interrupt(); // Восстанавливаем флаг прерывания
-                            break;
-                        }
-                    }
-                });*/
-
-
-                byte[] buffer = new byte[65507];
-
-                while (isRunning) {
-                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                    socket.receive(packet);
-
-                    String senderIp = packet.getAddress().getHostAddress();
-                    int length = packet.getLength();
-                    if (length > 0) {
-                        byte messageType = packet.getData()[0];
-                        byte[] payload = new byte[length - 1];
-                        System.arraycopy(packet.getData(), 1, payload, 0, length - 1);
-
-                        if (messageType != MESSAGE_TYPE_CALL_AUDIO) {
-                            log("UDP: RX " + length + " bytes от " + senderIp +
-                                    " (тип 0x" + String.format("%02X", messageType) + ")");
-                        }
-
-                        switch (messageType) {
-
-                            case MESSAGE_TYPE_DISCOVERY:
-                                log("UDP: Обнаружен собеседник " + senderIp);
-                                discoveredIpEvent.postValue(senderIp);
-                                break;
-
-                            case MESSAGE_TYPE_HANDSHAKE:
-                                log("UDP: Получен Handshake от " + senderIp);
-                                discoveredIpEvent.postValue(senderIp);
-                                handshakeEvent.postValue(senderIp);
-                                sendData(senderIp, MESSAGE_TYPE_TEXT,
-                                        "Ethernet/USB соединение установлено".getBytes(StandardCharsets.UTF_8));
-                                isBroadcastOn = false;
-                                break;
-
-                            case MESSAGE_TYPE_FILE_ACK:
-                                receiveAck(payload);
-                                break;
-
-                            case MESSAGE_TYPE_STREAM_VIDEO_CONFIG:
-                            case MESSAGE_TYPE_STREAM_VIDEO_DATA:
-                            case MESSAGE_TYPE_STREAM_AUDIO_CONFIG:
-                            case MESSAGE_TYPE_STREAM_AUDIO_DATA:
-                                streamMessages.postValue(new UdpMessage(messageType, payload, senderIp));
-                                break;
-
-                            case MESSAGE_TYPE_CALL_REQUEST:
-                            case MESSAGE_TYPE_CALL_ACCEPT:
-                            case MESSAGE_TYPE_CALL_REJECT:
-                            case MESSAGE_TYPE_CALL_END:
-                            case MESSAGE_TYPE_CALL_AUDIO:
-                                callMessages.postValue(new UdpMessage(messageType, payload, senderIp));
-                                break;
-
-                            default:
-                                receivedMessage.postValue(new UdpMessage(messageType, payload, senderIp));
-                        }
-                    }
-                }
 
-            } catch (Exception e) {
-                log("UDP: Ошибка при создании сокета", e);
-            } finally {
-                closeSocket();
-            }
-        });
-    }
-
-    private String findEthernetOrUsbIp() {
-        try {
-            for (NetworkInterface intf : Collections.list(NetworkInterface.getNetworkInterfaces())) {
-                String name = intf.getName().toLowerCase();
-
-                if (name.equals("eth0")) {
-                    for (InetAddress addr : Collections.list(intf.getInetAddresses())) {
-                        if (!addr.isLoopbackAddress() && addr instanceof java.net.Inet4Address) {
-                            String ip = addr.getHostAddress();
-                            log("UDP: выбран приоритетный интерфейс eth0 → " + ip);
-                            return ip;
-                        }
-                    }
-                }
-            }
-
-            for (NetworkInterface intf : Collections.list(NetworkInterface.getNetworkInterfaces())) {
-                String name = intf.getName().toLowerCase();
-                if (name.contains("wlan") || name.contains("wifi") || name.contains("p2p") || name.contains("radio")) continue;
-                if (name.contains("rndis") || name.contains("usb") || name.contains("rnnet")) {
-                    for (InetAddress addr : Collections.list(intf.getInetAddresses())) {
-                        if (!addr.isLoopbackAddress() && addr instanceof java.net.Inet4Address) {
-                            String ip = addr.getHostAddress();
-                            log("UDP: fallback интерфейс: " + name + " → " + ip);
-                            return ip;
-                        }
-                    }
-                }
-            }
-        } catch (SocketException e) {
-            log("UDP: Ошибка при поиске интерфейса", e);
+    /** Разбирает пакеты, которые не забрали другие обработчики транспорта. Вызывается в потоке приема. */
+    private boolean dispatch(UdpMessage message) {
+        switch (message.type) {
+
+            case MESSAGE_TYPE_DISCOVERY:
+                log("UDP: Обнаружен собеседник " + message.senderIp);
+                discoveredIpEvent.postValue(message.senderIp);
+                break;
+
+            case MESSAGE_TYPE_HANDSHAKE:
+                log("UDP: Получен Handshake от " + message.senderIp);
+                discoveredIpEvent.postValue(message.senderIp);
+                handshakeEvent.postValue(message.senderIp);
+                sendText(message.senderIp, "Ethernet/USB соединение установлено");
+                isBroadcastOn = false;
+                break;
+
+            case MESSAGE_TYPE_FILE_ACK:
+                receiveAck(message.payload);
+                break;
+
+            case MESSAGE_TYPE_CHAT:
+                textChannel.receive(message.senderIp, message.payload);
+                break;
+
+            case MESSAGE_TYPE_FILE_PREVIEW:
+            case MESSAGE_TYPE_FILE_HEADER:
+            case MESSAGE_TYPE_FILE_CHUNK:
+            case MESSAGE_TYPE_FILE_CHUNK_COMPRESSED:
+            case MESSAGE_TYPE_FILE_LENGTH:
+            case MESSAGE_TYPE_FILE_END:
+                // Чанки идут окном, пачками: postValue оставил бы только последний из пачки
+                AttachmentListener listener = attachmentListener;
+                if (listener != null) listener.onAttachmentMessage(message);
+                else receivedMessage.postValue(message);
+                break;
+
+            case MESSAGE_TYPE_STREAM_VIDEO_CONFIG:
+            case MESSAGE_TYPE_STREAM_VIDEO_DATA:
+            case MESSAGE_TYPE_STREAM_AUDIO_CONFIG:
+            case MESSAGE_TYPE_STREAM_AUDIO_DATA:
+                streamMessages.postValue(message);
+                break;
+
+            case MESSAGE_TYPE_CALL_REQUEST:
+            case MESSAGE_TYPE_CALL_ACCEPT:
+            case MESSAGE_TYPE_CALL_REJECT:
+            case MESSAGE_TYPE_CALL_END:
+                callMessages.postValue(message);
+                break;
+
+            case MESSAGE_TYPE_CALL_AUDIO:
+                // Каждые 20 мс по пакету, а джиттер-буферу нужно время прихода: мимо postValue и главного потока.
+                // Без слушателя звонка нет — звук выбрасываем
+                CallAudioListener audioListener = callAudioListener;
+                if (audioListener != null) audioListener.onCallAudio(message);
+                break;
+
+            default:
+                receivedMessage.postValue(message);
         }
-        return "0.0.0.0";
+        return true;
     }
 
     /*private void logUsbDevices() {
@@ -280,30 +240,7 @@ public class UdpViewModel extends AndroidViewModel {
     }*/
 
     public void sendData(String ipAddress, byte messageType, byte[] data) {
-        executorService.execute(() -> {
-            try {
-                if (socket == null || socket.isClosed()) {
-                    log("ERROR: Socket недоступен (Ethernet/USB only).");
-                    return;
-                }
-
-                InetAddress address = InetAddress.getByName(ipAddress);
-                byte[] message = new byte[data.length + 1];
-                message[0] = messageType;
-                System.arraycopy(data, 0, message, 1, data.length);
-
-                DatagramPacket packet = new DatagramPacket(message, message.length, address, LISTEN_PORT);
-                socket.send(packet);
-
-                if (messageType != MESSAGE_TYPE_CALL_AUDIO) {
-                    log("UDP: TX " + message.length + " bytes (тип 0x" +
-                            String.format("%02X", messageType) + ") → " + ipAddress);
-                }
-
-            } catch (IOException e) {
-                log("UDP: Ошибка отправки данных", e);
-            }
-        });
+        transport.sendData(ipAddress, messageType, data);
     }
 
     public void sendHandshake(String ipAddress) {
@@ -315,34 +252,76 @@ public class UdpViewModel extends AndroidViewModel {
         sendData(BROADCAST_ADDRESS, MESSAGE_TYPE_DISCOVERY, new byte[0]);
     }
 
-    public synchronized void receiveAck(byte[] payload) {
-        if (payload.length >= 4) {
-            int chunkIndex = ByteBuffer.wrap(payload).getInt();
-            receivedAcks.add(chunkIndex);
-            log("UDP: Получен ACK для чанка " + chunkIndex);
-        }
+    /**
+     * Отправляет текст надежным каналом: дойдет по порядку, соседние сообщения уйдут одним пакетом.
+     * Текст не длиннее одной части {@link #splitText}.
+     */
+    public void sendText(String ipAddress, String text) {
+        textChannel.send(ipAddress, text);
     }
 
-    public synchronized boolean isAckReceived(int chunkIndex) {
-        return receivedAcks.contains(chunkIndex);
+    /** Режет текст на части, каждая из которых влезает в одну датаграмму. */
+    public static List<String> splitText(String text) {
+        return ReliableTextChannel.split(text);
     }
 
-    private void closeSocket() {
-        if (socket != null && !socket.isClosed()) {
-            socket.close();
-            socket = null;
-            log("UDP: Socket закрыт (Ethernet/USB only).");
+    public LiveData<String> getUndeliveredText() { return undeliveredText; }
+
+    public void setTextListener(TextListener listener) {
+        synchronized (pendingTexts) {
+            textListener = listener;
+            if (listener == null) return;
+            String[] pending;
+            while ((pending = pendingTexts.poll()) != null) listener.onText(pending[0], pending[1]);
+        }
+    }
+
+    private void deliverText(String senderIp, String text) {
+        synchronized (pendingTexts) {
+            if (textListener != null) {
+                textListener.onText(senderIp, text);
+                return;
+            }
+            if (pendingTexts.size() == MAX_PENDING_TEXTS) pendingTexts.poll();
+            pendingTexts.add(new String[]{senderIp, text});
         }
     }
 
+    public void setAttachmentListener(AttachmentListener listener) {
+        attachmentListener = listener;
+    }
+
+    public void setCallAudioListener(CallAudioListener listener) {
+        callAudioListener = listener;
+    }
+
+    public int nextTransferId() {
+        return nextTransferId.getAndIncrement();
+    }
+
+    public void registerAckListener(int transferId, AckListener listener) {
+        ackListeners.put(transferId, listener);
+    }
+
+    public void unregisterAckListener(int transferId) {
+        ackListeners.remove(transferId);
+    }
+
+    public void receiveAck(byte[] payload) {
+        if (payload.length < 8) return; // ACK старого формата без номера передачи
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        AckListener listener = ackListeners.get(buffer.getInt());
+        if (listener != null) listener.onAck(buffer.getInt());
+    }
+
     @Override
     protected void onCleared() {
         super.onCleared();
-        isRunning = false;
-        closeSocket();
-        if (!executorService.isShutdown()) {
-            executorService.shutdown();
-            log("UDP: Executor завершён (Ethernet/USB only).");
+        transport.clearDefaultHandler(packetHandler);
+        textChannel.shutdown();
+        if (transportAcquired) {
+            transportAcquired = false;
+            transport.release();
         }
     }
 }
@@ -2,6 +2,7 @@ package com.example.multimediaexchanger.ui.calls;
 
 import android.Manifest;
 import android.annotation.SuppressLint;
+import android.app.Activity;
 import android.content.pm.PackageManager;
 import android.media.AudioAttributes;
 import android.media.AudioFormat;
@@ -10,6 +11,7 @@ import android.media.AudioRecord;
 import android.media.AudioTrack;
 import android.media.MediaRecorder;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -29,14 +31,11 @@ import com.example.multimediaexchanger.ui.UdpViewModel;
 import com.example.multimediaexchanger.ui.UsbLogViewModel;
 import com.example.multimediaexchanger.ui.network.NetworkViewModel;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.Arrays;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.io.IOException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class CallsFragment extends Fragment {
 
@@ -50,19 +49,20 @@ public class CallsFragment extends Fragment {
     private volatile double currentGainFactor = 2.0;
     private ExecutorService callExecutor = Executors.newCachedThreadPool();
 
-    // Хорошее значение для начала - от 5 до 10.
-    private static final int JITTER_BUFFER_START_THRESHOLD = 8;
+    // Сколько ждать кадр из джиттер-буфера, прежде чем снова проверить, не закончен ли звонок
+    private static final long PLAYOUT_WAIT_MS = 100;
+    private static final long STATS_INTERVAL_MS = 1000;      // Метрики буфера на экране
+    private static final long STATS_LOG_INTERVAL_MS = 10_000; // и в логе
 
-    // Минимальное количество пакетов, которое мы стараемся поддерживать в буфере.
-    private static final int JITTER_BUFFER_MIN_THRESHOLD = 4;
-
-
-    // PCM params (stereo, 44.1kHz, 16-bit)
-    private static final int SAMPLE_RATE = 44100;
-    private static final int CHANNEL_IN_CONFIG = AudioFormat.CHANNEL_IN_STEREO;
-    private static final int CHANNEL_OUT_CONFIG = AudioFormat.CHANNEL_OUT_STEREO;
+    // Частоту и каналы задает кодек звонка, сэмплы всегда 16-битные
     private static final int AUDIO_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
 
+    // Кодеки, которые предложил звонящий (пусто — его версия кодеков не знает), и кодек текущего звонка
+    private volatile byte[] offeredCodecs = new byte[0];
+    private volatile VoiceCodec voiceCodec;
+    // С согласованным кодеком у пакетов звука есть заголовок с номером и меткой времени (JitterBuffer.frame)
+    private volatile boolean framedAudio;
+
     // Audio devices
     private AudioRecord audioRecord;
     private AudioTrack audioTrack;
@@ -72,8 +72,14 @@ public class CallsFragment extends Fragment {
     private volatile boolean captureLoopRunning = false;
     private volatile boolean playbackLoopRunning = false;
 
-    // queue for playback
-    private final LinkedBlockingQueue<short[]> playbackQueue = new LinkedBlockingQueue<>();
+    // Буфер воспроизведения текущего звонка: пакеты кодека, декодируются в потоке воспроизведения
+    private volatile JitterBuffer jitterBuffer;
+    // Старая версия шлет PCM без заголовка: номер — порядок прихода, метка — сколько сэмплов пришло раньше.
+    // Трогает только поток приема
+    private int legacySequence;
+    private long legacyTimestamp;
+
+    private final UdpViewModel.CallAudioListener callAudioListener = this::receiveAudio;
 
     private final ActivityResultLauncher<String> requestPermissionLauncher =
             registerForActivityResult(new ActivityResultContracts.RequestPermission(), isGranted -> {
@@ -103,6 +109,7 @@ public class CallsFragment extends Fragment {
         setupVolumeControl();
         checkPermissions();
         observeUdpMessages();
+        udpViewModel.setCallAudioListener(callAudioListener);
         updateUiForState(CallState.IDLE);
     }
 
@@ -154,6 +161,7 @@ public class CallsFragment extends Fragment {
                     case UdpViewModel.MESSAGE_TYPE_CALL_REQUEST:
                         if (currentCallState == CallState.IDLE) {
                             networkViewModel.setTargetIpAddress(message.senderIp);
+                            offeredCodecs = message.payload != null ? message.payload : new byte[0];
 
                             usbLogViewModel.log("Call: incoming CALL_REQUEST from " + message.senderIp);
                             updateUiForState(CallState.INCOMING);
@@ -165,7 +173,8 @@ public class CallsFragment extends Fragment {
                         usbLogViewModel.log("Call: CALL_ACCEPT received from " + message.senderIp);
                         if (currentCallState == CallState.OUTGOING) {
                             updateUiForState(CallState.IN_CALL);
-                            startAudioStreaming();
+                            boolean negotiated = message.payload != null && message.payload.length > 0;
+                            startAudioStreaming(openCodec(VoiceCodecs.accepted(message.payload)), negotiated);
                         }
                         break;
                     case UdpViewModel.MESSAGE_TYPE_CALL_REJECT:
@@ -182,14 +191,6 @@ public class CallsFragment extends Fragment {
                             updateUiForState(CallState.IDLE);
                         }
                         break;
-                    case UdpViewModel.MESSAGE_TYPE_CALL_AUDIO:
-                        if (message.payload != null && message.payload.length > 0) {
-                            // Превращаем байты в short'ы ПЕРЕД добавлением в очередь
-                            short[] audioShorts = new short[message.payload.length / 2];
-                            ByteBuffer.wrap(message.payload).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(audioShorts);
-                            playbackQueue.offer(audioShorts);
-                        }
-                        break;
                     default:
                         usbLogViewModel.log("Call: received message type 0x" + String.format("%02X", message.type));
                 }
@@ -199,6 +200,20 @@ public class CallsFragment extends Fragment {
         });
     }
 
+    /** Поток приема: пакет звука сразу в джиттер-буфер, вместе со временем прихода. */
+    private void receiveAudio(UdpViewModel.UdpMessage message) {
+        JitterBuffer buffer = jitterBuffer;
+        VoiceCodec codec = voiceCodec;
+        if (buffer == null || codec == null || message.payload == null || message.payload.length == 0) return;
+        long now = SystemClock.elapsedRealtime();
+        if (framedAudio) {
+            buffer.putFramed(message.payload, now);
+        } else {
+            buffer.put(legacySequence++, legacyTimestamp, message.payload, now);
+            legacyTimestamp += message.payload.length / 2 / codec.channels();
+        }
+    }
+
     private void handleCallAction() {
         String targetIp = networkViewModel.getTargetIpAddress().getValue();
         if (targetIp == null || targetIp.isEmpty()) {
@@ -208,7 +223,8 @@ public class CallsFragment extends Fragment {
 
         switch (currentCallState) {
             case IDLE:
-                udpViewModel.sendData(targetIp, UdpViewModel.MESSAGE_TYPE_CALL_REQUEST, new byte[0]);
+                // Предлагаем свои кодеки; собеседник выберет и ответит выбранным в CALL_ACCEPT
+                udpViewModel.sendData(targetIp, UdpViewModel.MESSAGE_TYPE_CALL_REQUEST, VoiceCodecs.supported());
                 usbLogViewModel.log("Call: sent CALL_REQUEST → " + targetIp);
                 updateUiForState(CallState.OUTGOING);
                 break;
@@ -225,10 +241,13 @@ public class CallsFragment extends Fragment {
     private void handleAnswer() {
         String targetIp = networkViewModel.getTargetIpAddress().getValue();
         if (targetIp != null && !targetIp.isEmpty() && currentCallState == CallState.INCOMING) {
-            udpViewModel.sendData(targetIp, UdpViewModel.MESSAGE_TYPE_CALL_ACCEPT, new byte[0]);
+            // Кодек открываем до ответа: если выбранный не запустился, звонящему уйдет тот, что работает
+            VoiceCodec codec = openCodec(VoiceCodecs.choose(VoiceCodecs.supported(), offeredCodecs));
+            byte[] accept = offeredCodecs.length > 0 ? new byte[]{codec.id()} : new byte[0];
+            udpViewModel.sendData(targetIp, UdpViewModel.MESSAGE_TYPE_CALL_ACCEPT, accept);
             usbLogViewModel.log("Call: sent CALL_ACCEPT → " + targetIp);
             updateUiForState(CallState.IN_CALL);
-            startAudioStreaming();
+            startAudioStreaming(codec, offeredCodecs.length > 0);
         }
     }
 
@@ -278,19 +297,35 @@ public class CallsFragment extends Fragment {
                     binding.incomingCallActions.setVisibility(View.GONE);
                     break;
             }
+            binding.callStatsText.setVisibility(showVolumeControl ? View.VISIBLE : View.GONE);
+            binding.callStatsText.setText("");
         });
     }
 
+    /** Открывает согласованный кодек; если он не запустился — PCM, который есть всегда. */
+    private VoiceCodec openCodec(byte id) {
+        try {
+            return VoiceCodecs.create(id);
+        } catch (IOException e) {
+            usbLogViewModel.log("Call: Кодек " + id + " не запустился, звоним без сжатия", e);
+            return new PcmVoiceCodec();
+        }
+    }
+
     // Добавляем SuppressLint для разрешения, так как мы его проверяем
     // УДАЛИТЕ СТАРЫЙ МЕТОД applySoftGain, он больше не нужен.
 
     @SuppressLint("MissingPermission")
-    private void startAudioStreaming() {
-        if (isStreaming) return;
+    private void startAudioStreaming(VoiceCodec codec, boolean framed) {
+        if (isStreaming) {
+            codec.release();
+            return;
+        }
 
         if (ContextCompat.checkSelfPermission(requireContext(), Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
             usbLogViewModel.log("ERROR: startAudioStreaming called without RECORD_AUDIO permission.");
             Toast.makeText(getContext(), "Нет разрешения на использование микрофона", Toast.LENGTH_SHORT).show();
+            codec.release();
             updateUiForState(CallState.IDLE);
             return;
         }
@@ -304,29 +339,27 @@ public class CallsFragment extends Fragment {
         }
 
         isStreaming = true;
+        framedAudio = framed;
+        legacySequence = 0;
+        legacyTimestamp = 0;
+        JitterBuffer buffer = new JitterBuffer(codec.sampleRate(), codec.frameSamples() / codec.channels());
+        voiceCodec = codec;
+        jitterBuffer = buffer;
         callExecutor = Executors.newFixedThreadPool(2);
 
         try {
-            // --- НАЧАЛО: ФИНАЛЬНАЯ СИНХРОНИЗАЦИЯ БУФЕРОВ ---
-            // 1. Получаем минимально допустимый системой размер буфера
-            int minBufferSize = AudioRecord.getMinBufferSize(SAMPLE_RATE, CHANNEL_IN_CONFIG, AUDIO_FORMAT);
-
-            // 2. Выбираем наш рабочий размер блока. Он должен быть НЕ МЕНЬШЕ минимального.
-            //    Если minBufferSize = 1920, а мы выберем 1280, ничего не заработает.
-            //    Поэтому наш буфер должен быть либо равен minBufferSize, либо больше и кратен ему.
-            //    Самый простой и надежный вариант - просто использовать minBufferSize.
-            final int BUFFER_SIZE = minBufferSize;
+            int sampleRate = codec.sampleRate();
+            boolean stereo = codec.channels() == 2;
+            int channelIn = stereo ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+            int channelOut = stereo ? AudioFormat.CHANNEL_OUT_STEREO : AudioFormat.CHANNEL_OUT_MONO;
+            // Читаем кадрами кодека (20 мс); буфер устройства — не меньше двух кадров и не меньше минимума системы
+            int frameBytes = codec.frameSamples() * 2;
+            int recordBufferSize = Math.max(AudioRecord.getMinBufferSize(sampleRate, channelIn, AUDIO_FORMAT), 2 * frameBytes);
+            int trackBufferSize = Math.max(AudioTrack.getMinBufferSize(sampleRate, channelOut, AUDIO_FORMAT), 2 * frameBytes);
+
+            audioRecord = new AudioRecord(MediaRecorder.AudioSource.VOICE_COMMUNICATION, sampleRate,
+                    channelIn, AUDIO_FORMAT, recordBufferSize);
 
-            // --- КОНЕЦ: ФИНАЛЬНАЯ СИНХРОНИЗАЦИЯ БУФЕРОВ ---
-
-            // Создаем AudioRecord с буфером, РАВНЫМ размеру нашего блока чтения.
-            // Это заставит read() почти всегда возвращать ровно BUFFER_SIZE байт.
-            audioRecord = new AudioRecord(MediaRecorder.AudioSource.VOICE_COMMUNICATION, SAMPLE_RATE,
-                    CHANNEL_IN_CONFIG, AUDIO_FORMAT, BUFFER_SIZE);
-
-
-
-            // Для AudioTrack размер буфера может быть больше, это не так критично.
             audioTrack = new AudioTrack.Builder()
                     .setAudioAttributes(new AudioAttributes.Builder()
                             .setUsage(AudioAttributes.USAGE_VOICE_COMMUNICATION)
@@ -334,53 +367,88 @@ public class CallsFragment extends Fragment {
                             .build())
                     .setAudioFormat(new AudioFormat.Builder()
                             .setEncoding(AUDIO_FORMAT)
-                            .setSampleRate(SAMPLE_RATE)
-                            .setChannelMask(CHANNEL_OUT_CONFIG)
+                            .setSampleRate(sampleRate)
+                            .setChannelMask(channelOut)
                             .build())
-                    .setBufferSizeInBytes(BUFFER_SIZE)
+                    .setBufferSizeInBytes(trackBufferSize)
                     .build();
 
             audioRecord.startRecording();
             audioTrack.play();
-            usbLogViewModel.log("Call: Audio streaming started successfully with buffer size: " + BUFFER_SIZE);
+            usbLogViewModel.log("Call: Audio streaming started: " + codec.name() + ", " + sampleRate + " Hz, "
+                    + codec.channels() + " ch, " + codec.bitrate() / 1000 + " kbit/s, buffer " + recordBufferSize);
 
-            // Capture Loop
+            // Capture Loop: копим кадр кодека целиком, каждый готовый пакет — отдельная датаграмма
             callExecutor.execute(() -> {
                 Thread.currentThread().setName("AudioCaptureThread");
-                byte[] buffer = new byte[BUFFER_SIZE];
+                short[] frame = new short[codec.frameSamples()];
+                int frameDuration = codec.frameSamples() / codec.channels(); // Шаг метки времени на пакет
+                AtomicInteger sequence = new AtomicInteger();
+                int filled = 0;
                 while (isStreaming && !Thread.currentThread().isInterrupted()) {
-                    int read = audioRecord.read(buffer, 0, buffer.length);
-                    // Теперь read почти всегда будет равен BUFFER_SIZE
-                    if (read > 0) {
-                        String targetIp = networkViewModel.getTargetIpAddress().getValue();
-                        if (targetIp != null && !targetIp.isEmpty()) {
-                            // Если прочитали меньше, чем ожидали, отправляем урезанный пакет.
-                            // Главное - не терять данные.
-                            if (read < BUFFER_SIZE) {
-                                byte[] smallerChunk = Arrays.copyOf(buffer, read);
-                                udpViewModel.sendData(targetIp, UdpViewModel.MESSAGE_TYPE_CALL_AUDIO, smallerChunk);
-                            } else {
-                                udpViewModel.sendData(targetIp, UdpViewModel.MESSAGE_TYPE_CALL_AUDIO, buffer);
-                            }
-                        }
-                    } else if (read < 0) {
+                    int read = audioRecord.read(frame, filled, frame.length - filled);
+                    if (read < 0) {
                         usbLogViewModel.log("ERROR: AudioRecord read failed with code: " + read);
+                        continue;
+                    }
+                    filled += read;
+                    if (filled < frame.length) continue;
+                    filled = 0;
+                    String targetIp = networkViewModel.getTargetIpAddress().getValue();
+                    if (targetIp == null || targetIp.isEmpty()) continue;
+                    try {
+                        codec.encode(frame, packet -> {
+                            if (framed) {
+                                int number = sequence.getAndIncrement();
+                                packet = JitterBuffer.frame(number, (long) number * frameDuration, packet);
+                            }
+                            udpViewModel.sendData(targetIp, UdpViewModel.MESSAGE_TYPE_CALL_AUDIO, packet);
+                        });
+                    } catch (IOException e) {
+                        usbLogViewModel.log("ERROR in Capture loop", e);
                     }
                 }
                 usbLogViewModel.log("Call: Capture loop finished.");
             });
 
-            // Playback Loop
+            // Playback Loop: темп задает audioTrack.write, кадры берем из джиттер-буфера по одному
             callExecutor.execute(() -> {
                 Thread.currentThread().setName("AudioPlaybackThread");
+                short[] decoded = new short[codec.maxDecodedSamples()];
+                short[] stretched = new short[(int) Math.ceil(decoded.length * JitterBuffer.STRETCH) + codec.channels()];
+                short[] silence = new short[codec.frameSamples()];
+                long nextStats = SystemClock.elapsedRealtime() + STATS_INTERVAL_MS;
+                long nextStatsLog = SystemClock.elapsedRealtime() + STATS_LOG_INTERVAL_MS;
                 while (isStreaming && !Thread.currentThread().isInterrupted()) {
                     try {
-                        short[] frame = playbackQueue.take();
-                        for (int i = 0; i < frame.length; i++) {
-                            int newSample = (int) (frame[i] * currentGainFactor);
-                            frame[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, newSample));
+                        JitterBuffer.Playout playout = buffer.take(PLAYOUT_WAIT_MS);
+                        if (playout != null) {
+                            short[] frame = silence; // Потерянный пакет — кадр тишины, чтобы не съехал темп
+                            int samples = silence.length;
+                            if (playout.payload != null) {
+                                frame = decoded;
+                                samples = codec.decode(playout.payload, 0, playout.payload.length, decoded);
+                                if (playout.stretch != 1.0) {
+                                    samples = JitterBuffer.stretch(decoded, samples, codec.channels(), playout.stretch, stretched);
+                                    frame = stretched;
+                                }
+                                for (int i = 0; i < samples; i++) {
+                                    int newSample = (int) (frame[i] * currentGainFactor);
+                                    frame[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, newSample));
+                                }
+                            }
+                            audioTrack.write(frame, 0, samples);
+                        }
+
+                        long now = SystemClock.elapsedRealtime();
+                        if (now >= nextStats) {
+                            nextStats = now + STATS_INTERVAL_MS;
+                            showCallStats(buffer.stats());
+                        }
+                        if (now >= nextStatsLog) {
+                            nextStatsLog = now + STATS_LOG_INTERVAL_MS;
+                            usbLogViewModel.log("Call: " + buffer.stats().summary());
                         }
-                        audioTrack.write(frame, 0, frame.length);
                     } catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
                         break;
@@ -388,7 +456,7 @@ public class CallsFragment extends Fragment {
                         usbLogViewModel.log("ERROR in Playback loop", e);
                     }
                 }
-                usbLogViewModel.log("Call: Playback loop finished.");
+                usbLogViewModel.log("Call: Playback loop finished. " + buffer.stats().summary());
             });
 
         } catch (Exception e) {
@@ -407,6 +475,9 @@ public class CallsFragment extends Fragment {
     private void stopAudioStreaming() {
         if (!isStreaming) return;
         isStreaming = false;
+        VoiceCodec codec = voiceCodec; // Новый звонок может начаться раньше, чем закончится уборка этого
+        voiceCodec = null;
+        jitterBuffer = null; // Поток воспроизведения держит свою ссылку, прием сюда больше не пишет
 
         // Это инициирует корректную остановку
         if (callExecutor != null && !callExecutor.isShutdown()) {
@@ -440,7 +511,7 @@ public class CallsFragment extends Fragment {
                         audioTrack = null;
                         usbLogViewModel.log("Call: AudioTrack released.");
                     }
-                    playbackQueue.clear();
+                    if (codec != null) codec.release(); // Потоки остановлены — кодек больше никто не трогает
 
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
@@ -455,6 +526,15 @@ public class CallsFragment extends Fragment {
 
 
 
+    /** Из потока воспроизведения; экран мог уже закрыться. */
+    private void showCallStats(JitterBuffer.Stats stats) {
+        Activity activity = getActivity();
+        if (activity == null) return;
+        activity.runOnUiThread(() -> {
+            if (binding != null) binding.callStatsText.setText(stats.summary());
+        });
+    }
+
     /*private void applySoftGain(byte[] buffer) {
         // Если усиление не требуется (коэффициент равен 1.0), выходим раньше для экономии ресурсов
         if (Math.abs(currentGainFactor - 1.0) < 0.01) {
@@ -488,6 +568,7 @@ public class CallsFragment extends Fragment {
     @Override
     public void onDestroyView() {
         super.onDestroyView();
+        udpViewModel.setCallAudioListener(null);
         stopAudioStreaming();
         binding = null;
     }
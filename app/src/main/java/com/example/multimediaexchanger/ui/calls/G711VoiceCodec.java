@@ -0,0 +1,94 @@
+package com.example.multimediaexchanger.ui.calls;
+
+/**
+ * G.711 µ-law: 8 кГц моно, байт на сэмпл — 64 кбит/с вместо 1.4 Мбит/с у PCM. Сэмплы
+ * кодируются независимо, состояния у кодека нет.
+ */
+final class G711VoiceCodec implements VoiceCodec {
+
+    static final int SAMPLE_RATE = 8000;
+    private static final int FRAME_SAMPLES = SAMPLE_RATE / 50; // 20 мс
+    private static final int BIAS = 0x84;
+    private static final int CLIP = 32635;
+
+    private static final short[] DECODE_TABLE = new short[256];
+
+    static {
+        for (int i = 0; i < 256; i++) DECODE_TABLE[i] = expand((byte) i);
+    }
+
+    @Override
+    public byte id() {
+        return G711_ULAW;
+    }
+
+    @Override
+    public String name() {
+        return "G.711 µ-law";
+    }
+
+    @Override
+    public int sampleRate() {
+        return SAMPLE_RATE;
+    }
+
+    @Override
+    public int channels() {
+        return 1;
+    }
+
+    @Override
+    public int frameSamples() {
+        return FRAME_SAMPLES;
+    }
+
+    @Override
+    public int bitrate() {
+        return SAMPLE_RATE * 8;
+    }
+
+    @Override
+    public int maxDecodedSamples() {
+        return FRAME_SAMPLES;
+    }
+
+    @Override
+    public void encode(short[] frame, PacketSink sink) {
+        byte[] packet = new byte[FRAME_SAMPLES];
+        for (int i = 0; i < FRAME_SAMPLES; i++) packet[i] = compress(frame[i]);
+        sink.accept(packet);
+    }
+
+    @Override
+    public int decode(byte[] packet, int offset, int length, short[] out) {
+        int samples = Math.min(length, out.length);
+        for (int i = 0; i < samples; i++) out[i] = DECODE_TABLE[packet[offset + i] & 0xFF];
+        return samples;
+    }
+
+    @Override
+    public void release() {
+    }
+
+    static byte compress(short sample) {
+        int value = sample;
+        int sign = (value >> 8) & 0x80;
+        if (sign != 0) value = -value;
+        if (value > CLIP) value = CLIP;
+        value += BIAS;
+        // Сегмент — позиция старшего бита над смещением; в байт идут 4 бита мантиссы за ним
+        int exponent = 7;
+        for (int mask = 0x4000; (value & mask) == 0 && exponent > 0; mask >>= 1) exponent--;
+        int mantissa = (value >> (exponent + 3)) & 0x0F;
+        return (byte) ~(sign | (exponent << 4) | mantissa);
+    }
+
+    static short expand(byte encoded) {
+        int value = ~encoded & 0xFF;
+        int sign = value & 0x80;
+        int exponent = (value >> 4) & 0x07;
+        int mantissa = value & 0x0F;
+        int sample = (((mantissa << 3) + BIAS) << exponent) - BIAS;
+        return (short) (sign != 0 ? -sample : sample);
+    }
+}
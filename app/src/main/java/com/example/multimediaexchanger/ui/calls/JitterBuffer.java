@@ -0,0 +1,228 @@
+package com.example.multimediaexchanger.ui.calls;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.TreeMap;
+
+/**
+ * Джиттер-буфер звонка: пакеты кодека раскладываются по номеру, поток воспроизведения забирает
+ * по одному на кадр в порядке номеров.
+ * <p>
+ * Сколько кадров копить до начала воспроизведения, решает измеренный по меткам времени джиттер
+ * (оценка как в RFC 3550): на ровной линии буфер мелкий, на рваной — глубже. Пакет, чей номер
+ * уже сыгран, выбрасывается как опоздавший. Задержку, накопленную пачкой пакетов, буфер не держит
+ * до конца звонка: пока кадров заметно больше цели, {@link #take} советует играть их чуть
+ * быстрее ({@link #SHRINK}), пока меньше — чуть медленнее ({@link #STRETCH}).
+ * <p>
+ * {@link #put} вызывает поток приема, {@link #take} — поток воспроизведения.
+ */
+final class JitterBuffer {
+
+    // Заголовок пакета звука: [номер u16][метка времени u32 в сэмплах кодека], big-endian
+    static final int HEADER_SIZE = 6;
+
+    static final int START_DEPTH = 4; // Кадров до начала воспроизведения, пока джиттер не измерен
+    static final int MIN_DEPTH = 2;   // Меньше не держим даже на идеальной линии
+    static final int MAX_DEPTH = 15;  // 300 мс при кадре 20 мс: дальше звонок превращается в рацию
+    static final int CAPACITY = 50;   // Сверх этого самые старые кадры выбрасываются
+    private static final double JITTER_MULTIPLIER = 4; // Цель покрывает почти весь разброс задержки
+    private static final double DEPTH_SMOOTHING = 1.0 / 16;
+
+    // Кадр на 5% короче или длиннее: темп и тон сдвигаются так же, на речи это почти не слышно
+    static final double SHRINK = 0.95;
+    static final double STRETCH = 1.05;
+
+    static final class Playout {
+        final byte[] payload; // null — пакет потерян, вместо кадра играем тишину
+        final double stretch; // Длительность кадра относительно исходной
+
+        Playout(byte[] payload, double stretch) {
+            this.payload = payload;
+            this.stretch = stretch;
+        }
+    }
+
+    static final class Stats {
+        final int depth;          // Кадров в буфере
+        final int target;         // Кадров, к которым буфер стремится
+        final double jitterMs;
+        final int delayMs;        // Задержка, которую буфер добавляет сейчас
+        final long late;          // Пришли, когда их номер уже сыгран
+        final long lost;          // Так и не пришли к своему кадру
+        final long underruns;     // Буфер опустел посреди разговора
+        final long overflow;      // Выброшены сверх CAPACITY
+        final long adjusted;      // Кадров сыграно ускоренными или замедленными
+
+        Stats(int depth, int target, double jitterMs, int delayMs, long late, long lost, long underruns,
+              long overflow, long adjusted) {
+            this.depth = depth;
+            this.target = target;
+            this.jitterMs = jitterMs;
+            this.delayMs = delayMs;
+            this.late = late;
+            this.lost = lost;
+            this.underruns = underruns;
+            this.overflow = overflow;
+            this.adjusted = adjusted;
+        }
+
+        String summary() {
+            return String.format(Locale.US,
+                    "Буфер %d/%d кадров, +%d мс, джиттер %.1f мс, опоздали %d, потеряны %d, выброшены %d, провалов %d, подстроено %d",
+                    depth, target, delayMs, jitterMs, late, lost, overflow, underruns, adjusted);
+        }
+    }
+
+    private final int clockRate;
+    private final double frameMs;
+
+    private final TreeMap<Long, byte[]> packets = new TreeMap<>();
+    private long highestSequence = -1; // Номера разворачиваются из u16 в long по самому большому пришедшему
+    private long nextSequence = -1;    // Чей кадр играть следующим; -1 — еще ничего не играли
+    private boolean buffering = true;
+    private int targetDepth = START_DEPTH;
+    private double averageDepth = 0;
+
+    private boolean hasTransit = false;
+    private double lastTransitMs;
+    private double jitterMs = 0;
+
+    private long late;
+    private long lost;
+    private long underruns;
+    private long overflow;
+    private long adjusted;
+
+    /**
+     * @param clockRate   частота меток времени — частота кодека
+     * @param frameSamples сэмплов одного канала в пакете
+     */
+    JitterBuffer(int clockRate, int frameSamples) {
+        this.clockRate = clockRate;
+        this.frameMs = 1000.0 * frameSamples / clockRate;
+    }
+
+    static byte[] frame(int sequence, long timestamp, byte[] payload) {
+        return ByteBuffer.allocate(HEADER_SIZE + payload.length)
+                .putShort((short) sequence)
+                .putInt((int) timestamp)
+                .put(payload)
+                .array();
+    }
+
+    /** Разбирает заголовок {@link #frame}; false — пакет короче заголовка. */
+    boolean putFramed(byte[] packet, long arrivalMs) {
+        if (packet.length <= HEADER_SIZE) return false;
+        ByteBuffer header = ByteBuffer.wrap(packet, 0, HEADER_SIZE);
+        int sequence = header.getShort() & 0xFFFF;
+        long timestamp = header.getInt() & 0xFFFFFFFFL;
+        byte[] payload = new byte[packet.length - HEADER_SIZE];
+        System.arraycopy(packet, HEADER_SIZE, payload, 0, payload.length);
+        put(sequence, timestamp, payload, arrivalMs);
+        return true;
+    }
+
+    synchronized void put(int sequence, long timestamp, byte[] payload, long arrivalMs) {
+        long extended = unwrap(sequence & 0xFFFF);
+
+        // Джиттер — сглаженный разброс «время в пути»: часы сторон не сравниваем, только разности
+        double transitMs = arrivalMs - timestamp * 1000.0 / clockRate;
+        if (hasTransit) jitterMs += (Math.abs(transitMs - lastTransitMs) - jitterMs) / 16;
+        lastTransitMs = transitMs;
+        hasTransit = true;
+        targetDepth = Math.max(MIN_DEPTH, Math.min(MAX_DEPTH, (int) Math.ceil(JITTER_MULTIPLIER * jitterMs / frameMs) + 1));
+
+        if (nextSequence >= 0 && extended < nextSequence) {
+            late++;
+            return;
+        }
+        if (packets.putIfAbsent(extended, payload) != null) return; // Дубликат
+        while (packets.size() > CAPACITY) {
+            packets.pollFirstEntry();
+            overflow++;
+        }
+        // Выброшенные кадры не ждем: играем с самого старого оставшегося
+        if (nextSequence >= 0 && nextSequence < packets.firstKey()) nextSequence = packets.firstKey();
+        notifyAll();
+    }
+
+    /**
+     * Следующий кадр или null, если за {@code timeoutMs} играть нечего: буфер копит кадры до цели
+     * (в начале звонка и после провала).
+     */
+    synchronized Playout take(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (buffering) {
+            if (!packets.isEmpty() && packets.size() >= targetDepth) {
+                buffering = false;
+                // После провала номера могли уйти вперед: пропавшие между ними уже не дождаться
+                if (nextSequence < packets.firstKey()) nextSequence = packets.firstKey();
+                averageDepth = packets.size() - 1;
+                break;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return null;
+            wait(remaining);
+        }
+
+        if (packets.isEmpty()) {
+            underruns++;
+            buffering = true;
+            return null;
+        }
+        byte[] payload = packets.remove(nextSequence);
+        if (payload == null) lost++;
+        nextSequence++;
+
+        // Сразу после кадра в буфере остается цель минус один; решаем по среднему, а не по всплеску
+        averageDepth += (packets.size() - averageDepth) * DEPTH_SMOOTHING;
+        double stretch = 1.0;
+        if (averageDepth > targetDepth) stretch = SHRINK;
+        else if (averageDepth < targetDepth - 2) stretch = STRETCH;
+        if (payload != null && stretch != 1.0) adjusted++;
+        return new Playout(payload, stretch);
+    }
+
+    synchronized Stats stats() {
+        int depth = packets.size();
+        return new Stats(depth, targetDepth, jitterMs, (int) Math.round(depth * frameMs), late, lost, underruns,
+                overflow, adjusted);
+    }
+
+    private long unwrap(int sequence) {
+        if (highestSequence < 0) {
+            highestSequence = sequence;
+            return sequence;
+        }
+        long extended = highestSequence + (short) (sequence - (highestSequence & 0xFFFF));
+        if (extended > highestSequence) highestSequence = extended;
+        return extended;
+    }
+
+    /**
+     * Меняет длительность кадра в {@code ratio} раз линейной интерполяцией по каждому каналу.
+     * Крайние сэмплы сохраняются, поэтому стыки с соседними кадрами не щелкают.
+     *
+     * @return сэмплов записано в {@code out}
+     */
+    static int stretch(short[] in, int samples, int channels, double ratio, short[] out) {
+        int frames = samples / channels;
+        int outFrames = (int) Math.round(frames * ratio);
+        if (frames < 2 || outFrames < 2) {
+            System.arraycopy(in, 0, out, 0, samples);
+            return samples;
+        }
+        double step = (double) (frames - 1) / (outFrames - 1);
+        for (int i = 0; i < outFrames; i++) {
+            double position = i * step;
+            int base = Math.min((int) position, frames - 2);
+            double fraction = position - base;
+            for (int c = 0; c < channels; c++) {
+                int from = in[base * channels + c];
+                int to = in[(base + 1) * channels + c];
+                out[i * channels + c] = (short) Math.round(from + (to - from) * fraction);
+            }
+        }
+        return outFrames * channels;
+    }
+}
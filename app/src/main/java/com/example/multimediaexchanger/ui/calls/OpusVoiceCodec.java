@@ -0,0 +1,186 @@
+package com.example.multimediaexchanger.ui.calls;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Opus через MediaCodec: 48 кГц моно, 24 кбит/с. Кодер Opus в Android есть с 10-й версии, и
+ * не на всех устройствах, поэтому кодек предлагается только там, где нашлись и кодер, и
+ * декодер ({@link #isSupported()}).
+ * <p>
+ * Кодеки работают синхронно в потоках захвата и воспроизведения. Кодер отдает пакет с
+ * задержкой на кадр-другой, поэтому за один {@link #encode} пакетов бывает 0, 1 или больше.
+ */
+final class OpusVoiceCodec implements VoiceCodec {
+
+    static final int SAMPLE_RATE = 48000;
+    private static final int FRAME_SAMPLES = SAMPLE_RATE / 50; // 20 мс
+    private static final int BITRATE = 24_000;
+    private static final long CODEC_TIMEOUT_US = 5_000;
+    private static final long FRAME_US = 20_000;
+    private static final int PRE_SKIP_SAMPLES = 312; // Задержка кодера libopus при 48 кГц
+    private static final long SEEK_PREROLL_NS = 80_000_000L;
+    private static final int MAX_DECODED_FRAMES = 4; // Декодер может отдать несколько кадров разом
+
+    private final MediaCodec encoder;
+    private final MediaCodec decoder;
+    private final MediaCodec.BufferInfo encodeInfo = new MediaCodec.BufferInfo();
+    private final MediaCodec.BufferInfo decodeInfo = new MediaCodec.BufferInfo();
+    private long encodePtsUs = 0;
+    private long decodePtsUs = 0;
+
+    static boolean isSupported() {
+        MediaCodecList codecs = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_OPUS, SAMPLE_RATE, 1);
+        return codecs.findEncoderForFormat(format) != null && codecs.findDecoderForFormat(format) != null;
+    }
+
+    OpusVoiceCodec() throws IOException {
+        MediaFormat encoderFormat = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_OPUS, SAMPLE_RATE, 1);
+        encoderFormat.setInteger(MediaFormat.KEY_BIT_RATE, BITRATE);
+        encoderFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, FRAME_SAMPLES * 2);
+        encoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_OPUS);
+        MediaCodec createdDecoder = null;
+        try {
+            encoder.configure(encoderFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+
+            // Декодеру нужен заголовок OpusHead и задержки — в потоке их нет, собираем сами
+            MediaFormat decoderFormat = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_OPUS, SAMPLE_RATE, 1);
+            decoderFormat.setByteBuffer("csd-0", opusHead());
+            decoderFormat.setByteBuffer("csd-1", nanos(PRE_SKIP_SAMPLES * 1_000_000_000L / SAMPLE_RATE));
+            decoderFormat.setByteBuffer("csd-2", nanos(SEEK_PREROLL_NS));
+            createdDecoder = MediaCodec.createDecoderByType(MediaFormat.MIMETYPE_AUDIO_OPUS);
+            createdDecoder.configure(decoderFormat, null, null, 0);
+
+            encoder.start();
+            createdDecoder.start();
+        } catch (IOException | RuntimeException e) {
+            encoder.release();
+            if (createdDecoder != null) createdDecoder.release();
+            throw e instanceof IOException ? (IOException) e : new IOException("Opus недоступен", e);
+        }
+        decoder = createdDecoder;
+    }
+
+    @Override
+    public byte id() {
+        return OPUS;
+    }
+
+    @Override
+    public String name() {
+        return "Opus";
+    }
+
+    @Override
+    public int sampleRate() {
+        return SAMPLE_RATE;
+    }
+
+    @Override
+    public int channels() {
+        return 1;
+    }
+
+    @Override
+    public int frameSamples() {
+        return FRAME_SAMPLES;
+    }
+
+    @Override
+    public int bitrate() {
+        return BITRATE;
+    }
+
+    @Override
+    public int maxDecodedSamples() {
+        return FRAME_SAMPLES * MAX_DECODED_FRAMES;
+    }
+
+    @Override
+    public void encode(short[] frame, PacketSink sink) throws IOException {
+        try {
+            int input = encoder.dequeueInputBuffer(CODEC_TIMEOUT_US);
+            if (input >= 0) {
+                ByteBuffer buffer = encoder.getInputBuffer(input);
+                buffer.clear();
+                buffer.order(ByteOrder.nativeOrder()).asShortBuffer().put(frame, 0, FRAME_SAMPLES);
+                encoder.queueInputBuffer(input, 0, FRAME_SAMPLES * 2, encodePtsUs, 0);
+            }
+            encodePtsUs += FRAME_US; // Не принятый кодером кадр пропадает, а время идет дальше
+
+            int output;
+            while ((output = encoder.dequeueOutputBuffer(encodeInfo, 0)) != MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (output < 0) continue; // Смена формата: заголовок кодера нам не нужен
+                if ((encodeInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && encodeInfo.size > 0) {
+                    ByteBuffer buffer = encoder.getOutputBuffer(output);
+                    byte[] packet = new byte[encodeInfo.size];
+                    buffer.position(encodeInfo.offset);
+                    buffer.get(packet);
+                    sink.accept(packet);
+                }
+                encoder.releaseOutputBuffer(output, false);
+            }
+        } catch (IllegalStateException e) {
+            throw new IOException("Кодер Opus сломался", e);
+        }
+    }
+
+    @Override
+    public int decode(byte[] packet, int offset, int length, short[] out) throws IOException {
+        try {
+            int input = decoder.dequeueInputBuffer(CODEC_TIMEOUT_US);
+            if (input >= 0) {
+                ByteBuffer buffer = decoder.getInputBuffer(input);
+                buffer.clear();
+                buffer.put(packet, offset, length);
+                decoder.queueInputBuffer(input, 0, length, decodePtsUs, 0);
+                decodePtsUs += FRAME_US;
+            }
+
+            int total = 0;
+            int output;
+            // Первого выхода немного ждем, остальное забираем без ожидания
+            while ((output = decoder.dequeueOutputBuffer(decodeInfo, total == 0 ? CODEC_TIMEOUT_US : 0))
+                    != MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (output < 0) continue;
+                ByteBuffer buffer = decoder.getOutputBuffer(output);
+                buffer.position(decodeInfo.offset).limit(decodeInfo.offset + decodeInfo.size);
+                int samples = Math.min(decodeInfo.size / 2, out.length - total);
+                buffer.order(ByteOrder.nativeOrder()).asShortBuffer().get(out, total, samples);
+                total += samples;
+                decoder.releaseOutputBuffer(output, false);
+            }
+            return total;
+        } catch (IllegalStateException e) {
+            throw new IOException("Декодер Opus сломался", e);
+        }
+    }
+
+    @Override
+    public void release() {
+        encoder.release();
+        decoder.release();
+    }
+
+    /** Заголовок OpusHead (RFC 7845): моно, без усиления, семейство каналов 0. */
+    private static ByteBuffer opusHead() {
+        ByteBuffer head = ByteBuffer.allocate(19).order(ByteOrder.LITTLE_ENDIAN);
+        head.put(new byte[]{'O', 'p', 'u', 's', 'H', 'e', 'a', 'd'});
+        head.put((byte) 1).put((byte) 1).putShort((short) PRE_SKIP_SAMPLES).putInt(SAMPLE_RATE)
+                .putShort((short) 0).put((byte) 0);
+        head.flip();
+        return head;
+    }
+
+    private static ByteBuffer nanos(long value) {
+        ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+        buffer.putLong(value).flip();
+        return buffer;
+    }
+}
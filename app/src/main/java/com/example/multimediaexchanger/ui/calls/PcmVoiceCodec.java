@@ -0,0 +1,72 @@
+package com.example.multimediaexchanger.ui.calls;
+
+/**
+ * Без сжатия: 16 бит, little-endian, 44.1 кГц стерео — как звонки слали до согласования
+ * кодека. Остается для собеседника старой версии, который кодеков не предлагает.
+ */
+final class PcmVoiceCodec implements VoiceCodec {
+
+    static final int SAMPLE_RATE = 44100;
+    static final int CHANNELS = 2;
+    private static final int FRAME_SAMPLES = SAMPLE_RATE / 50 * CHANNELS; // 20 мс
+    private static final int MAX_PACKET_SAMPLES = 65507 / 2; // Старая версия шлет блоками getMinBufferSize
+
+    @Override
+    public byte id() {
+        return PCM;
+    }
+
+    @Override
+    public String name() {
+        return "PCM";
+    }
+
+    @Override
+    public int sampleRate() {
+        return SAMPLE_RATE;
+    }
+
+    @Override
+    public int channels() {
+        return CHANNELS;
+    }
+
+    @Override
+    public int frameSamples() {
+        return FRAME_SAMPLES;
+    }
+
+    @Override
+    public int bitrate() {
+        return SAMPLE_RATE * CHANNELS * 16;
+    }
+
+    @Override
+    public int maxDecodedSamples() {
+        return MAX_PACKET_SAMPLES;
+    }
+
+    @Override
+    public void encode(short[] frame, PacketSink sink) {
+        byte[] packet = new byte[FRAME_SAMPLES * 2];
+        for (int i = 0; i < FRAME_SAMPLES; i++) {
+            packet[2 * i] = (byte) frame[i];
+            packet[2 * i + 1] = (byte) (frame[i] >> 8);
+        }
+        sink.accept(packet);
+    }
+
+    @Override
+    public int decode(byte[] packet, int offset, int length, short[] out) {
+        int samples = Math.min(length / 2, out.length);
+        for (int i = 0; i < samples; i++) {
+            int position = offset + 2 * i;
+            out[i] = (short) ((packet[position] & 0xFF) | (packet[position + 1] << 8));
+        }
+        return samples;
+    }
+
+    @Override
+    public void release() {
+    }
+}
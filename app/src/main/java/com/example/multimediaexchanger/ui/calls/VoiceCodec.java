@@ -0,0 +1,50 @@
+package com.example.multimediaexchanger.ui.calls;
+
+import java.io.IOException;
+
+/**
+ * Кодек голоса в звонке. Кодек задает формат захвата и воспроизведения (частота, каналы,
+ * размер кадра): захват читает ровно {@link #frameSamples()} сэмплов и отдает их
+ * {@link #encode}, каждый пакет уходит отдельной датаграммой.
+ * <p>
+ * Пакеты самодостаточны: потерянный пакет не ломает декодирование следующих. Кодирование и
+ * декодирование идут в разных потоках (захват и воспроизведение) и друг друга не трогают.
+ */
+interface VoiceCodec {
+
+    // Номера кодеков в согласовании звонка; порядок в предложении — по предпочтению
+    byte PCM = 0;
+    byte G711_ULAW = 1;
+    byte IMA_ADPCM = 2;
+    byte OPUS = 3;
+
+    interface PacketSink {
+        /** Массив пакета переходит получателю. */
+        void accept(byte[] packet);
+    }
+
+    byte id();
+
+    String name();
+
+    int sampleRate();
+
+    int channels();
+
+    /** Сэмплов в кадре, всех каналов вместе. */
+    int frameSamples();
+
+    /** Номинальный битрейт без заголовков UDP, бит/с. */
+    int bitrate();
+
+    /** Сколько сэмплов может вернуть один {@link #decode}: под это выделяется буфер. */
+    int maxDecodedSamples();
+
+    /** Кодирует кадр из {@link #frameSamples()} сэмплов; аппаратный кодек может отдать пакет позже. */
+    void encode(short[] frame, PacketSink sink) throws IOException;
+
+    /** Декодирует пакет в {@code out}; возвращает число сэмплов (0 — у кодека еще нет выхода). */
+    int decode(byte[] packet, int offset, int length, short[] out) throws IOException;
+
+    void release();
+}
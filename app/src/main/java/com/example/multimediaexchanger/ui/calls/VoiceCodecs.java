@@ -0,0 +1,62 @@
+package com.example.multimediaexchanger.ui.calls;
+
+import java.io.IOException;
+
+/**
+ * Согласование кодека на звонок. Звонящий кладет в CALL_REQUEST номера своих кодеков по
+ * предпочтению, отвечающий выбирает и возвращает выбранный в CALL_ACCEPT. Пустое предложение
+ * или пустой ответ — собеседник старой версии: говорим PCM, как раньше.
+ */
+final class VoiceCodecs {
+
+    // Сжатые — по убыванию выигрыша; PCM всегда последним
+    private static final byte[] PREFERENCE = {VoiceCodec.OPUS, VoiceCodec.IMA_ADPCM, VoiceCodec.G711_ULAW, VoiceCodec.PCM};
+
+    private static byte[] supported;
+
+    private VoiceCodecs() {
+    }
+
+    /** Кодеки этого устройства по предпочтению; Opus — только если MediaCodec его умеет. */
+    static synchronized byte[] supported() {
+        if (supported == null) supported = OpusVoiceCodec.isSupported() ? PREFERENCE : without(PREFERENCE, VoiceCodec.OPUS);
+        return supported.clone();
+    }
+
+    /** Первый из наших кодеков, который предложил собеседник; PCM, если общих нет. */
+    static byte choose(byte[] ours, byte[] offered) {
+        for (byte codec : ours) {
+            for (byte candidate : offered) {
+                if (candidate == codec) return codec;
+            }
+        }
+        return VoiceCodec.PCM;
+    }
+
+    /** Кодек из ответа на звонок; пустой ответ — собеседник старой версии. */
+    static byte accepted(byte[] acceptPayload) {
+        return acceptPayload != null && acceptPayload.length > 0 ? acceptPayload[0] : VoiceCodec.PCM;
+    }
+
+    static VoiceCodec create(byte id) throws IOException {
+        switch (id) {
+            case VoiceCodec.PCM:
+                return new PcmVoiceCodec();
+            case VoiceCodec.G711_ULAW:
+                return new G711VoiceCodec();
+            case VoiceCodec.IMA_ADPCM:
+                return new ImaAdpcmVoiceCodec();
+            case VoiceCodec.OPUS:
+                return new OpusVoiceCodec();
+            default:
+                throw new IOException("Неизвестный кодек " + id);
+        }
+    }
+
+    private static byte[] without(byte[] codecs, byte excluded) {
+        byte[] result = new byte[codecs.length - 1];
+        int count = 0;
+        for (byte codec : codecs) if (codec != excluded) result[count++] = codec;
+        return result;
+    }
+}
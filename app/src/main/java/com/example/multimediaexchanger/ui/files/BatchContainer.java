@@ -0,0 +1,272 @@
+package com.example.multimediaexchanger.ui.files;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Пакет файлов, который уходит одной RUDP передачей: много маленьких файлов или дерево каталога
+ * идут одним потоком без заголовка, хвоста и END на каждый файл, и окно не простаивает на границах.
+ * <p>
+ * Формат потока (все числа big-endian): magic, версия, затем записи
+ * [тип 1][длина пути 2][путь UTF-8][размер 8][время изменения 8][данные] и запись конца [тип 0].
+ * Пути относительные, разделитель '/'. Размеры известны заранее, поэтому весь размер пакета
+ * считается до отправки и попадает в обычный заголовок передачи.
+ */
+final class BatchContainer {
+
+    static final int MAGIC = 0x52424154; // "RBAT"
+    static final int VERSION = 1;
+    static final byte ENTRY_END = 0;
+    static final byte ENTRY_FILE = 1;
+    static final int STREAM_HEADER_SIZE = 4 + 4;
+    static final int MAX_PATH_BYTES = 1024;
+    static final String FILE_SUFFIX = ".rbatch";
+
+    /** Один файл пакета. */
+    static final class Entry {
+        final String path;
+        final Uri uri;
+        final long size;
+        final long lastModified;
+
+        Entry(String path, Uri uri, long size, long lastModified) {
+            this.path = path; this.uri = uri; this.size = size; this.lastModified = lastModified;
+        }
+    }
+
+    final String name;
+    final List<Entry> entries;
+    final long totalSize;
+
+    private BatchContainer(String name, List<Entry> entries) {
+        this.name = name;
+        this.entries = entries;
+        long size = STREAM_HEADER_SIZE + 1;
+        for (Entry entry : entries) size += entryHeaderSize(entry.path) + entry.size;
+        this.totalSize = size;
+    }
+
+    static int entryHeaderSize(String path) {
+        return 1 + 2 + path.getBytes(StandardCharsets.UTF_8).length + 8 + 8;
+    }
+
+    static void writeStreamHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    static void writeEntryHeader(DataOutputStream out, String path, long size, long lastModified) throws IOException {
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        if (pathBytes.length > MAX_PATH_BYTES) throw new IOException("Слишком длинный путь в пакете: " + path);
+        out.writeByte(ENTRY_FILE);
+        out.writeShort(pathBytes.length);
+        out.write(pathBytes);
+        out.writeLong(size);
+        out.writeLong(lastModified);
+    }
+
+    /**
+     * Пакет из отдельно выбранных файлов. Имя пакета зависит только от набора файлов, чтобы
+     * повторная отправка того же выбора докачивалась по журналу получателя.
+     */
+    static BatchContainer fromDocuments(ContentResolver resolver, List<Uri> uris) {
+        List<Entry> entries = new ArrayList<>();
+        Set<String> usedPaths = new HashSet<>();
+        for (Uri uri : uris) {
+            Entry entry = queryEntry(resolver, uri);
+            if (entry == null) continue;
+            entries.add(new Entry(uniquePath(usedPaths, entry.path), uri, entry.size, entry.lastModified));
+        }
+        return new BatchContainer("batch-" + Integer.toHexString(uris.hashCode()) + FILE_SUFFIX, entries);
+    }
+
+    /** Пакет из дерева каталога, выбранного через ACTION_OPEN_DOCUMENT_TREE. Корневой каталог входит в пути. */
+    static BatchContainer fromTree(ContentResolver resolver, Uri treeUri) {
+        String rootId = DocumentsContract.getTreeDocumentId(treeUri);
+        String rootName = queryDisplayName(resolver, DocumentsContract.buildDocumentUriUsingTree(treeUri, rootId));
+        rootName = rootName != null ? sanitizeName(rootName) : "folder";
+        List<Entry> entries = new ArrayList<>();
+        collectTree(resolver, treeUri, rootId, rootName, entries);
+        return new BatchContainer(rootName + FILE_SUFFIX, entries);
+    }
+
+    private static void collectTree(ContentResolver resolver, Uri treeUri, String documentId, String path, List<Entry> out) {
+        Uri children = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, documentId);
+        String[] projection = {
+                DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+                DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+                DocumentsContract.Document.COLUMN_MIME_TYPE,
+                DocumentsContract.Document.COLUMN_SIZE,
+                DocumentsContract.Document.COLUMN_LAST_MODIFIED
+        };
+        List<String[]> directories = new ArrayList<>();
+        try (Cursor cursor = resolver.query(children, projection, null, null, null)) {
+            if (cursor == null) return;
+            while (cursor.moveToNext()) {
+                String childId = cursor.getString(0);
+                String childPath = path + "/" + sanitizeName(cursor.getString(1));
+                if (DocumentsContract.Document.MIME_TYPE_DIR.equals(cursor.getString(2))) {
+                    directories.add(new String[]{childId, childPath});
+                } else {
+                    long size = cursor.isNull(3) ? 0 : cursor.getLong(3);
+                    long lastModified = cursor.isNull(4) ? 0 : cursor.getLong(4);
+                    out.add(new Entry(childPath, DocumentsContract.buildDocumentUriUsingTree(treeUri, childId), size, lastModified));
+                }
+            }
+        }
+        // Подкаталоги обходим после закрытия курсора, чтобы не держать их открытыми по всей глубине
+        for (String[] directory : directories) collectTree(resolver, treeUri, directory[0], directory[1], out);
+    }
+
+    private static Entry queryEntry(ContentResolver resolver, Uri uri) {
+        String name = null;
+        long size = -1;
+        long lastModified = 0;
+        try (Cursor cursor = resolver.query(uri, null, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                int nameIndex = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
+                if (nameIndex != -1) name = cursor.getString(nameIndex);
+                int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+                if (sizeIndex != -1 && !cursor.isNull(sizeIndex)) size = cursor.getLong(sizeIndex);
+                int modifiedIndex = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+                if (modifiedIndex != -1 && !cursor.isNull(modifiedIndex)) lastModified = cursor.getLong(modifiedIndex);
+            }
+        } catch (RuntimeException e) {
+            return null; // Провайдер не отдал метаданные — файл пропускаем
+        }
+        if (name == null) name = uri.getLastPathSegment();
+        if (name == null || size < 0) return null;
+        return new Entry(sanitizeName(name), uri, size, lastModified);
+    }
+
+    private static String queryDisplayName(ContentResolver resolver, Uri uri) {
+        try (Cursor cursor = resolver.query(uri, new String[]{OpenableColumns.DISPLAY_NAME}, null, null, null)) {
+            return cursor != null && cursor.moveToFirst() ? cursor.getString(0) : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static String sanitizeName(String name) {
+        String clean = name.replace('/', '_').replace('\\', '_').trim();
+        return clean.isEmpty() || clean.equals(".") || clean.equals("..") ? "_" : clean;
+    }
+
+    private static String uniquePath(Set<String> usedPaths, String path) {
+        String candidate = path;
+        int dot = path.lastIndexOf('.');
+        String base = dot > 0 ? path.substring(0, dot) : path;
+        String extension = dot > 0 ? path.substring(dot) : "";
+        for (int n = 2; !usedPaths.add(candidate); n++) candidate = base + " (" + n + ")" + extension;
+        return candidate;
+    }
+
+    /** Поток пакета: файлы открываются по очереди, по мере чтения. */
+    InputStream open(@NonNull ContentResolver resolver) {
+        return new ContainerStream(resolver, entries);
+    }
+
+    private static final class ContainerStream extends InputStream {
+        private final ContentResolver resolver;
+        private final List<Entry> entries;
+        private final ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        private byte[] header;
+        private int headerPosition;
+        private int nextEntry = 0;
+        private Entry current;
+        private InputStream currentStream;
+        private long currentRemaining;
+        private boolean endWritten = false;
+
+        ContainerStream(ContentResolver resolver, List<Entry> entries) {
+            this.resolver = resolver;
+            this.entries = Collections.unmodifiableList(entries);
+            try {
+                writeStreamHeader(new DataOutputStream(headerBytes));
+            } catch (IOException e) {
+                throw new IllegalStateException(e); // ByteArrayOutputStream не бросает
+            }
+            takeHeader();
+        }
+
+        private void takeHeader() {
+            header = headerBytes.toByteArray();
+            headerPosition = 0;
+            headerBytes.reset();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            while (true) {
+                if (headerPosition < header.length) {
+                    int count = Math.min(length, header.length - headerPosition);
+                    System.arraycopy(header, headerPosition, buffer, offset, count);
+                    headerPosition += count;
+                    return count;
+                }
+                if (currentRemaining > 0) {
+                    int read = currentStream.read(buffer, offset, (int) Math.min(length, currentRemaining));
+                    if (read == -1) throw new IOException("Файл '" + current.path + "' изменился во время отправки пакета");
+                    currentRemaining -= read;
+                    return read;
+                }
+                if (!nextEntry()) return -1;
+            }
+        }
+
+        /** Закрывает текущий файл и готовит заголовок следующей записи; false — пакет закончился. */
+        private boolean nextEntry() throws IOException {
+            closeCurrent();
+            DataOutputStream out = new DataOutputStream(headerBytes);
+            if (nextEntry < entries.size()) {
+                current = entries.get(nextEntry++);
+                currentStream = resolver.openInputStream(current.uri);
+                if (currentStream == null) throw new IOException("Не удалось открыть поток для URI: " + current.uri);
+                currentRemaining = current.size;
+                writeEntryHeader(out, current.path, current.size, current.lastModified);
+            } else if (!endWritten) {
+                endWritten = true;
+                out.writeByte(ENTRY_END);
+            } else {
+                return false;
+            }
+            takeHeader();
+            return true;
+        }
+
+        private void closeCurrent() throws IOException {
+            if (currentStream != null) {
+                currentStream.close();
+                currentStream = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeCurrent();
+        }
+    }
+}
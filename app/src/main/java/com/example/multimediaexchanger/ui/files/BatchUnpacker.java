@@ -0,0 +1,166 @@
+package com.example.multimediaexchanger.ui.files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Распаковка {@link BatchContainer} на стороне получателя по мере прихода: как только запись
+ * целиком попала в непрерывно принятое начало .part файла, она копируется в каталог staging.
+ * В папку полученных файлов записи переносятся только после проверки корня Меркла всего пакета.
+ * <p>
+ * Если проверка Меркла сняла уже принятый чанк, {@link #rewind} откатывает распаковку к записи,
+ * которая его содержит; она будет распакована заново, когда чанк придет повторно.
+ */
+final class BatchUnpacker {
+
+    final File stagingDir;
+
+    private final FileChannel source;
+    private final long containerSize;
+    private final AtomicLong rewindTo = new AtomicLong(Long.MAX_VALUE);
+    // Начало каждой распакованной записи -> ее путь, по порядку в пакете
+    private final TreeMap<Long, String> unpacked = new TreeMap<>();
+    private final ByteBuffer header = ByteBuffer.allocate(1 + 2 + BatchContainer.MAX_PATH_BYTES + 8 + 8);
+    private long position = 0; // Начало следующей записи; 0 — заголовок потока еще не проверен
+    private boolean done = false;
+
+    BatchUnpacker(FileChannel source, long containerSize, File stagingDir) {
+        this.source = source;
+        this.containerSize = containerSize;
+        this.stagingDir = stagingDir;
+    }
+
+    /**
+     * Распаковывает записи, которые целиком лежат в первых {@code available} байтах пакета.
+     * Возвращает число распакованных за вызов записей.
+     */
+    synchronized int advance(long available) throws IOException {
+        int count = 0;
+        applyRewind();
+        if (position == 0) {
+            if (available < BatchContainer.STREAM_HEADER_SIZE) return 0;
+            ByteBuffer streamHeader = read(0, BatchContainer.STREAM_HEADER_SIZE);
+            if (streamHeader.getInt() != BatchContainer.MAGIC || streamHeader.getInt() != BatchContainer.VERSION) {
+                throw new IOException("неизвестный формат пакета");
+            }
+            position = BatchContainer.STREAM_HEADER_SIZE;
+        }
+        while (!done && position < available) {
+            byte type = read(position, 1).get();
+            if (type == BatchContainer.ENTRY_END) {
+                if (position + 1 != containerSize) throw new IOException("данные после конца пакета");
+                done = true;
+                break;
+            }
+            if (type != BatchContainer.ENTRY_FILE) throw new IOException("неизвестная запись пакета: " + type);
+            if (position + 3 > available) break;
+            int pathLength = read(position + 1, 2).getShort() & 0xFFFF;
+            if (pathLength > BatchContainer.MAX_PATH_BYTES) throw new IOException("слишком длинный путь в пакете");
+            int headerSize = 1 + 2 + pathLength + 8 + 8;
+            if (position + headerSize > available) break;
+
+            ByteBuffer entryHeader = read(position + 3, headerSize - 3);
+            byte[] pathBytes = new byte[pathLength];
+            entryHeader.get(pathBytes);
+            String path = new String(pathBytes, StandardCharsets.UTF_8);
+            long size = entryHeader.getLong();
+            long lastModified = entryHeader.getLong();
+            long dataStart = position + headerSize;
+            if (size < 0 || dataStart + size >= containerSize) throw new IOException("запись '" + path + "' выходит за пакет");
+            if (dataStart + size > available) break;
+
+            File target = resolve(stagingDir, path);
+            extract(dataStart, size, target);
+            if (lastModified > 0) target.setLastModified(lastModified);
+            unpacked.put(position, path);
+            position = dataStart + size;
+            count++;
+            applyRewind(); // Чанк мог быть снят, пока мы копировали
+        }
+        return count;
+    }
+
+    /** Отмечает, что байты начиная с {@code offset} больше не проверены. Не блокирует распаковку. */
+    void rewind(long offset) {
+        rewindTo.accumulateAndGet(offset, Math::min);
+    }
+
+    synchronized boolean isDone() {
+        return done;
+    }
+
+    /** Пути распакованных записей в порядке пакета. */
+    synchronized List<String> entries() {
+        return new ArrayList<>(unpacked.values());
+    }
+
+    private void applyRewind() {
+        long offset = rewindTo.getAndSet(Long.MAX_VALUE);
+        if (offset == Long.MAX_VALUE || offset >= position) {
+            if (offset != Long.MAX_VALUE) done = false;
+            return;
+        }
+        done = false;
+        Long entryStart = unpacked.floorKey(offset);
+        if (entryStart == null) {
+            unpacked.clear();
+            position = 0;
+        } else {
+            unpacked.tailMap(entryStart, true).clear();
+            position = entryStart;
+        }
+    }
+
+    private ByteBuffer read(long offset, int length) throws IOException {
+        header.clear().limit(length);
+        while (header.hasRemaining()) {
+            if (source.read(header, offset + header.position()) < 0) throw new IOException("пакет оборван");
+        }
+        header.flip();
+        return header;
+    }
+
+    private void extract(long offset, long size, File target) throws IOException {
+        File parent = target.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("не удалось создать каталог " + parent.getName());
+        }
+        try (FileOutputStream out = new FileOutputStream(target)) {
+            FileChannel channel = out.getChannel();
+            long copied = 0;
+            while (copied < size) {
+                long transferred = source.transferTo(offset + copied, size - copied, channel);
+                if (transferred <= 0) throw new IOException("пакет оборван");
+                copied += transferred;
+            }
+        }
+    }
+
+    /** Путь записи внутри {@code root}. Абсолютные пути и выход через ".." отклоняются. */
+    static File resolve(File root, String path) throws IOException {
+        File file = root;
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..") || segment.indexOf('\\') >= 0) {
+                throw new IOException("недопустимый путь в пакете: " + path);
+            }
+            file = new File(file, segment);
+        }
+        return file;
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteRecursively(child);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.multimediaexchanger.ui.files;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Сжатие чанков одной передачи. Уже сжатые форматы (фото, видео, архивы) отсекаются по MIME
+ * и расширению; для остальных первые {@link #PROBE_CHUNKS} чанков служат пробой, и если они
+ * почти не сжимаются, сжатие до конца передачи выключается. Чанк, который не стал меньше,
+ * уходит как есть. Статистика — сэкономленные байты и время, потраченное на сжатие.
+ */
+public final class ChunkCompressor {
+
+    public enum Codec {
+        LZ4((byte) 1),
+        DEFLATE((byte) 2);
+
+        final byte id;
+
+        Codec(byte id) {
+            this.id = id;
+        }
+    }
+
+    static final int PROBE_CHUNKS = 4;
+    private static final double PROBE_MAX_RATIO = 0.9; // Хуже — сжатие не окупает CPU
+    private static final int MIN_SAVING = 64;
+
+    private static final Set<String> COMPRESSED_MIME_TYPES = new HashSet<>(Arrays.asList(
+            "application/zip", "application/gzip", "application/x-gzip", "application/x-7z-compressed",
+            "application/x-rar-compressed", "application/vnd.rar", "application/x-xz", "application/x-bzip2",
+            "application/zstd", "application/pdf", "application/vnd.android.package-archive",
+            "application/java-archive", "application/epub+zip", "font/woff2"));
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "heif", "avif", "mp4", "mkv", "webm", "mov", "avi", "3gp",
+            "mp3", "aac", "m4a", "ogg", "opus", "flac", "zip", "gz", "tgz", "7z", "rar", "xz", "bz2", "zst",
+            "apk", "jar", "pdf", "docx", "xlsx", "pptx", "odt", "ods", "epub", "woff2"));
+
+    // Без заголовка zlib, как и Deflater отправителя
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final Codec codec;
+    private final Lz4BlockCodec lz4;
+    private final Deflater deflater;
+    private boolean enabled = true;
+    private int probed = 0;
+    private long probeIn = 0;
+    private long probeOut = 0;
+
+    // Статистика передачи
+    private long bytesIn = 0;
+    private long bytesOut = 0;
+    private int compressedChunks = 0;
+    private int totalChunks = 0;
+    private long nanos = 0;
+
+    private ChunkCompressor(Codec codec) {
+        this.codec = codec;
+        this.lz4 = codec == Codec.LZ4 ? new Lz4BlockCodec() : null;
+        this.deflater = codec == Codec.DEFLATE ? new Deflater(Deflater.BEST_SPEED, true) : null;
+    }
+
+    /** Компрессор для файла или null, если сжатие выключено или формат уже сжат. */
+    @Nullable
+    public static ChunkCompressor forContent(@Nullable Codec codec, @Nullable String mimeType, @Nullable String fileName) {
+        if (codec == null || isPrecompressed(mimeType, fileName)) return null;
+        return new ChunkCompressor(codec);
+    }
+
+    static boolean isPrecompressed(@Nullable String mimeType, @Nullable String fileName) {
+        if (mimeType != null) {
+            String mime = mimeType.toLowerCase(Locale.US);
+            if (mime.startsWith("video/") || COMPRESSED_MIME_TYPES.contains(mime)) return true;
+            // BMP, SVG и WAV хранятся без сжатия, остальные картинки и звук — сжаты
+            if (mime.startsWith("image/")) return !mime.equals("image/bmp") && !mime.equals("image/svg+xml");
+            if (mime.startsWith("audio/")) return !mime.equals("audio/wav") && !mime.equals("audio/x-wav");
+            if (mime.startsWith("application/vnd.openxmlformats") || mime.startsWith("application/vnd.oasis.opendocument")) return true;
+        }
+        if (fileName != null) {
+            int dot = fileName.lastIndexOf('.');
+            if (dot >= 0 && COMPRESSED_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.US))) return true;
+        }
+        return false;
+    }
+
+    public static int maxCompressedLength(int length) {
+        return Lz4BlockCodec.maxCompressedLength(length);
+    }
+
+    public byte codecId() {
+        return codec.id;
+    }
+
+    /**
+     * Сжимает чанк в {@code out} (не меньше {@link #maxCompressedLength}). Возвращает длину
+     * сжатых данных или -1, если чанк надо отправить как есть.
+     */
+    public synchronized int compress(byte[] data, int offset, int length, byte[] out) {
+        totalChunks++;
+        if (!enabled) return -1;
+        long start = System.nanoTime();
+        int compressedLength;
+        if (lz4 != null) {
+            compressedLength = lz4.compress(data, offset, length, out);
+        } else {
+            deflater.reset();
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            compressedLength = deflater.deflate(out, 0, out.length);
+            if (!deflater.finished()) compressedLength = Integer.MAX_VALUE;
+        }
+        nanos += System.nanoTime() - start;
+
+        if (probed < PROBE_CHUNKS) {
+            probed++;
+            probeIn += length;
+            probeOut += Math.min(compressedLength, length);
+            if (probed == PROBE_CHUNKS && probeOut > probeIn * PROBE_MAX_RATIO) enabled = false;
+        }
+        if (compressedLength > length - MIN_SAVING) return -1;
+        bytesIn += length;
+        bytesOut += compressedLength;
+        compressedChunks++;
+        return compressedLength;
+    }
+
+    /** Распаковывает чанк, сжатый кодеком {@code codecId}. Возвращает длину исходных данных. */
+    public static int decompress(byte codecId, byte[] in, int offset, int length, byte[] out, int outLength) throws IOException {
+        if (codecId == Codec.LZ4.id) return Lz4BlockCodec.decompress(in, offset, length, out, outLength);
+        if (codecId != Codec.DEFLATE.id) throw new IOException("Неизвестный кодек сжатия: " + codecId);
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(in, offset, length);
+        try {
+            int total = 0;
+            while (total < outLength && !inflater.finished()) {
+                int inflated = inflater.inflate(out, total, outLength - total);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                total += inflated;
+            }
+            return total;
+        } catch (DataFormatException e) {
+            throw new IOException("Deflate: испорченный чанк", e);
+        }
+    }
+
+    public synchronized long bytesSaved() {
+        return bytesIn - bytesOut;
+    }
+
+    public synchronized long cpuMillis() {
+        return nanos / 1_000_000;
+    }
+
+    /** Строка для лога передачи: что решили, сколько сэкономили и во что это обошлось. */
+    public synchronized String stats() {
+        String decision = enabled ? "" : " (выключено после пробы: данные не сжимаются)";
+        return String.format(Locale.US, "%s%s: сжато %d из %d чанков, сэкономлено %d байт (%.0f%%), сжатие %d мс",
+                codec, decision, compressedChunks, totalChunks, bytesIn - bytesOut,
+                bytesIn == 0 ? 0.0 : 100.0 * (bytesIn - bytesOut) / bytesIn, nanos / 1_000_000);
+    }
+
+    /** Освобождает нативный буфер Deflater. */
+    public synchronized void release() {
+        if (deflater != null) deflater.end();
+    }
+}
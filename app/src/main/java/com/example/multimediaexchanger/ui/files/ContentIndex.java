@@ -0,0 +1,108 @@
+package com.example.multimediaexchanger.ui.files;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Какие целиком принятые файлы у нас лежат, по корню Меркла. По нему другие узлы находят
+ * источники для роевой загрузки: если файл с тем же корнем уже есть у нас, мы раздаем его чанки.
+ * <p>
+ * Хранится текстом: корень (hex), размер, время изменения, путь. Запись считается живой, пока
+ * файл на месте и его размер и время изменения не поменялись.
+ */
+final class ContentIndex {
+
+    private static final int MAX_ENTRIES = 512;
+
+    private static final class Entry {
+        final long size;
+        final long lastModified;
+        final File file;
+
+        Entry(long size, long lastModified, File file) {
+            this.size = size; this.lastModified = lastModified; this.file = file;
+        }
+    }
+
+    private final File indexFile;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private boolean loaded = false;
+
+    ContentIndex(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    synchronized void register(byte[] root, File file) throws IOException {
+        load();
+        entries.put(hex(root), new Entry(file.length(), file.lastModified(), file));
+        while (entries.size() > MAX_ENTRIES) {
+            Iterator<String> eldest = entries.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+        save();
+    }
+
+    /** Файл с этим корнем и размером или null, если его нет или он с тех пор менялся. */
+    synchronized File lookup(byte[] root, long size) {
+        try {
+            load();
+        } catch (IOException e) {
+            return null;
+        }
+        String key = hex(root);
+        Entry entry = entries.get(key);
+        if (entry == null || entry.size != size) return null;
+        if (!entry.file.isFile() || entry.file.length() != entry.size || entry.file.lastModified() != entry.lastModified) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.file;
+    }
+
+    private void load() throws IOException {
+        if (loaded) return;
+        loaded = true;
+        if (!indexFile.exists()) return;
+        try (BufferedReader reader = new BufferedReader(new FileReader(indexFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length < 4) continue;
+                try {
+                    entries.put(fields[0], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), new File(fields[3])));
+                } catch (NumberFormatException ignored) {
+                    // Испорченную строку пропускаем
+                }
+            }
+        }
+    }
+
+    private void save() throws IOException {
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(tmp))) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                Entry value = entry.getValue();
+                writer.write(entry.getKey() + "\t" + value.size + "\t" + value.lastModified + "\t" + value.file.getAbsolutePath());
+                writer.newLine();
+            }
+        }
+        if (!tmp.renameTo(indexFile)) {
+            tmp.delete();
+            throw new IOException("Не удалось сохранить индекс содержимого");
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return builder.toString();
+    }
+}
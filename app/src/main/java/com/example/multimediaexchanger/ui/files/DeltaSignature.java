@@ -0,0 +1,254 @@
+package com.example.multimediaexchanger.ui.files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Сигнатура файла для дельта-передачи: файл режется на куски по содержимому (gear rolling hash),
+ * для каждого куска хранится длина и усеченный SHA-256. Границы зависят только от соседних байт,
+ * поэтому вставка или дописывание в файл меняет лишь куски рядом с правкой, а остальные
+ * находятся у получателя по хешу на любом смещении.
+ * <p>
+ * Формат кэша на диске: magic, версия, размер и время изменения файла, число записей, записи.
+ */
+final class DeltaSignature {
+
+    static final int STRONG_HASH_SIZE = 16;
+    static final int ENTRY_SIZE = 4 + STRONG_HASH_SIZE; // длина + хеш
+
+    private static final int MIN_CHUNK = 2 * 1024;
+    private static final int MAX_CHUNK = 64 * 1024;
+    // 13 старших бит: граница в среднем раз в 8KB после MIN_CHUNK
+    private static final long BOUNDARY_MASK = 0xFFF8_0000_0000_0000L;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // 20 МБ записей в памяти — файлы порядка 10 ГБ; больше сигнатуру не принимаем
+    static final int MAX_ENTRIES = 1 << 20;
+
+    private static final int CACHE_MAGIC = 0x52534947; // "RSIG"
+    private static final int CACHE_VERSION = 1;
+    private static final String CACHE_SUFFIX = ".sig";
+
+    // Таблица gear hash обязана совпадать на обеих сторонах, поэтому генерируется из фиксированного seed
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x5EED_C0DEL);
+        for (int i = 0; i < GEAR.length; i++) GEAR[i] = random.nextLong();
+    }
+
+    long fileSize;
+    private int count;
+    private int[] lengths;
+    private byte[] hashes;
+
+    private DeltaSignature(long fileSize, int capacity) {
+        this.fileSize = fileSize;
+        this.lengths = new int[Math.max(capacity, 16)];
+        this.hashes = new byte[lengths.length * STRONG_HASH_SIZE];
+    }
+
+    /** Пустая сигнатура на {@code count} записей, которую заполняют страницы от собеседника. */
+    static DeltaSignature forPages(long fileSize, int count) {
+        DeltaSignature signature = new DeltaSignature(fileSize, count);
+        signature.count = count;
+        return signature;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * Может ли сигнатура файла размера {@code fileSize} состоять из {@code count} записей: все куски,
+     * кроме последнего, не короче MIN_CHUNK. Число приходит из сети или кэша и проверяется до
+     * выделения памяти под записи.
+     */
+    static boolean isPlausible(long fileSize, int count) {
+        return fileSize >= 0 && count >= 0 && count <= MAX_ENTRIES && count <= (fileSize + MIN_CHUNK - 1) / MIN_CHUNK;
+    }
+
+    void writeEntries(ByteBuffer out, int from, int entryCount) {
+        for (int i = from; i < from + entryCount; i++) {
+            out.putInt(lengths[i]).put(hashes, i * STRONG_HASH_SIZE, STRONG_HASH_SIZE);
+        }
+    }
+
+    void readEntries(ByteBuffer in, int from, int entryCount) {
+        for (int i = from; i < from + entryCount; i++) {
+            lengths[i] = in.getInt();
+            in.get(hashes, i * STRONG_HASH_SIZE, STRONG_HASH_SIZE);
+        }
+    }
+
+    /**
+     * Для каждого чанка передачи размера {@code chunkSize}, который целиком собирается из кусков
+     * {@code basis}, возвращает инструкции копирования: пары (смещение в basis, длина) по порядку.
+     * Чанки, которых нет в плане, нужно передавать данными.
+     */
+    Map<Integer, long[]> planCopies(DeltaSignature basis, int chunkSize) {
+        Map<ByteBuffer, Long> basisOffsets = new HashMap<>();
+        long offset = 0;
+        for (int i = 0; i < basis.count; i++) {
+            basisOffsets.putIfAbsent(ByteBuffer.wrap(basis.hashes, i * STRONG_HASH_SIZE, STRONG_HASH_SIZE), offset);
+            offset += basis.lengths[i];
+        }
+
+        // Совпавшие куски этого файла: {смещение здесь, смещение в basis, длина}, смежные склеены
+        List<long[]> segments = new ArrayList<>();
+        offset = 0;
+        for (int i = 0; i < count; i++) {
+            Long basisOffset = basisOffsets.get(ByteBuffer.wrap(hashes, i * STRONG_HASH_SIZE, STRONG_HASH_SIZE));
+            if (basisOffset != null) {
+                long[] last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+                if (last != null && last[0] + last[2] == offset && last[1] + last[2] == basisOffset) {
+                    last[2] += lengths[i];
+                } else {
+                    segments.add(new long[]{offset, basisOffset, lengths[i]});
+                }
+            }
+            offset += lengths[i];
+        }
+
+        Map<Integer, long[]> plan = new HashMap<>();
+        int first = 0;
+        int totalChunks = (int) ((fileSize + chunkSize - 1) / chunkSize);
+        long[] parts = new long[2 * (chunkSize / MIN_CHUNK + 2)];
+        for (int chunkIndex = 0; chunkIndex < totalChunks; chunkIndex++) {
+            long start = (long) chunkIndex * chunkSize;
+            long end = Math.min(start + chunkSize, fileSize);
+            while (first < segments.size() && segments.get(first)[0] + segments.get(first)[2] <= start) first++;
+
+            long position = start;
+            int partCount = 0;
+            for (int s = first; s < segments.size() && position < end && partCount < parts.length; s++) {
+                long[] segment = segments.get(s);
+                if (segment[0] > position) break; // Дыра: этот участок у получателя отсутствует
+                long take = Math.min(segment[0] + segment[2], end) - position;
+                parts[partCount++] = segment[1] + (position - segment[0]);
+                parts[partCount++] = take;
+                position += take;
+            }
+            if (position == end) plan.put(chunkIndex, Arrays.copyOf(parts, partCount));
+        }
+        return plan;
+    }
+
+    /** Режет поток на куски по содержимому и хеширует их за один проход. */
+    static DeltaSignature compute(InputStream inputStream) throws IOException {
+        MessageDigest digest = sha256();
+        DeltaSignature signature = new DeltaSignature(0, 0);
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        long total = 0;
+        long hash = 0;
+        int chunkLength = 0;
+        int read;
+        while ((read = inputStream.read(buffer)) > 0) {
+            int start = 0;
+            for (int i = 0; i < read; i++) {
+                hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+                chunkLength++;
+                if (chunkLength >= MIN_CHUNK && ((hash & BOUNDARY_MASK) == 0 || chunkLength >= MAX_CHUNK)) {
+                    digest.update(buffer, start, i + 1 - start);
+                    signature.add(chunkLength, digest.digest());
+                    start = i + 1;
+                    chunkLength = 0;
+                    hash = 0;
+                }
+            }
+            digest.update(buffer, start, read - start);
+            total += read;
+        }
+        if (chunkLength > 0) signature.add(chunkLength, digest.digest());
+        signature.fileSize = total;
+        return signature;
+    }
+
+    /** Берет сигнатуру из кэша, если файл с тех пор не менялся, иначе считает и сохраняет заново. */
+    static DeltaSignature loadOrCompute(File file, File cacheDir) throws IOException {
+        File cacheFile = new File(cacheDir, file.getName() + CACHE_SUFFIX);
+        DeltaSignature cached = readCache(cacheFile, file);
+        if (cached != null) return cached;
+
+        DeltaSignature signature;
+        try (InputStream inputStream = new FileInputStream(file)) {
+            signature = compute(inputStream);
+        }
+        writeCache(cacheFile, file, signature);
+        return signature;
+    }
+
+    private static DeltaSignature readCache(File cacheFile, File file) {
+        if (!cacheFile.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            if (in.readInt() != CACHE_MAGIC || in.readInt() != CACHE_VERSION) return null;
+            long fileSize = in.readLong();
+            long lastModified = in.readLong();
+            if (fileSize != file.length() || lastModified != file.lastModified()) return null;
+            int count = in.readInt();
+            if (!isPlausible(fileSize, count)) return null;
+            DeltaSignature signature = forPages(fileSize, count);
+            for (int i = 0; i < count; i++) {
+                signature.lengths[i] = in.readInt();
+                in.readFully(signature.hashes, i * STRONG_HASH_SIZE, STRONG_HASH_SIZE);
+            }
+            return signature;
+        } catch (IOException e) {
+            return null; // Поврежденный кэш просто пересчитываем
+        }
+    }
+
+    private static void writeCache(File cacheFile, File file, DeltaSignature signature) throws IOException {
+        File dir = cacheFile.getParentFile();
+        if (dir != null && !dir.exists()) dir.mkdirs();
+        File tmp = new File(cacheFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(CACHE_MAGIC);
+            out.writeInt(CACHE_VERSION);
+            out.writeLong(signature.fileSize);
+            out.writeLong(file.lastModified());
+            out.writeInt(signature.count);
+            for (int i = 0; i < signature.count; i++) {
+                out.writeInt(signature.lengths[i]);
+                out.write(signature.hashes, i * STRONG_HASH_SIZE, STRONG_HASH_SIZE);
+            }
+        }
+        if (!tmp.renameTo(cacheFile)) {
+            tmp.delete();
+            throw new IOException("Не удалось сохранить кэш сигнатуры " + cacheFile.getName());
+        }
+    }
+
+    private void add(int length, byte[] digest) {
+        if (count == lengths.length) {
+            lengths = Arrays.copyOf(lengths, count * 2);
+            hashes = Arrays.copyOf(hashes, count * 2 * STRONG_HASH_SIZE);
+        }
+        lengths[count] = length;
+        System.arraycopy(digest, 0, hashes, count * STRONG_HASH_SIZE, STRONG_HASH_SIZE);
+        count++;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.multimediaexchanger.ui.files;
+
+/**
+ * Систематический код коррекции ошибок для блока из {@code dataCount} чанков и {@code parityCount}
+ * чанков четности одинакового размера {@link #shardSize()}. Данные короче shardSize считаются
+ * дополненными нулями.
+ * <p>
+ * Реализации держат все рабочие буферы с момента создания, поэтому encode/decode не выделяют
+ * память. Экземпляр не потокобезопасен — по одному на передачу.
+ */
+interface FecCodec {
+
+    int shardSize();
+
+    int maxDataShards();
+
+    int maxParityShards();
+
+    /**
+     * Считает {@code parityCount} чанков четности по {@code dataCount} чанкам данных.
+     *
+     * @param data        чанки данных
+     * @param dataLengths реальные длины чанков данных, хвост до shardSize — нули
+     * @param parity      буферы размером не меньше shardSize для результата
+     */
+    void encode(byte[][] data, int[] dataLengths, int dataCount, byte[][] parity, int parityCount);
+
+    /**
+     * Восстанавливает недостающие чанки данных на месте.
+     *
+     * @param shards  сначала dataCount чанков данных, затем parityCount чанков четности, все размером shardSize
+     * @param present какие из shards получены
+     * @return false, если потерь больше, чем пришло чанков четности
+     */
+    boolean decode(byte[][] shards, boolean[] present, int dataCount, int parityCount);
+}
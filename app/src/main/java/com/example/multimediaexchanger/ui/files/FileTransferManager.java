@@ -0,0 +1,2160 @@
+package com.example.multimediaexchanger.ui.files;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.example.multimediaexchanger.ui.UdpTransport;
+import com.example.multimediaexchanger.ui.UdpViewModel;
+import com.example.multimediaexchanger.ui.AppLog;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * RUDP движок передачи файлов. Каждая передача имеет свой идентификатор, который идет
+ * первым полем в каждом RUDP пакете, поэтому одновременно может идти несколько отправок
+ * и несколько приемов от одного или нескольких собеседников.
+ * <p>
+ * Отправки выполняются не более чем по {@link #MAX_CONCURRENT_SENDS} одновременно, остальные
+ * ждут в очереди. Окно {@link #RUDP_WINDOW_SIZE} делится поровну между активными отправками.
+ * <p>
+ * Целостность: каждый чанк несет CRC32C, а заголовок — корень дерева Меркла над чанками.
+ * Получатель проверяет CRC до записи и считает листья параллельно по мере прихода, поэтому
+ * второго прохода по файлу нет. Передача завершается только после ACK {@link #COMPLETE_SEQUENCE}.
+ * <p>
+ * FEC: после каждого блока из k чанков отправитель шлет m чанков четности ({@link FecMode}).
+ * k и m подбираются по измеренной доле потерь, так что одиночная потеря чинится у получателя
+ * без ожидания таймаута и повторной отправки.
+ * <p>
+ * Дельта: если у получателя уже есть файл с тем же именем, он отдает его сигнатуру
+ * ({@link DeltaSignature}), и чанки, которые в нем уже есть, уходят инструкциями копирования.
+ * <p>
+ * Пакеты: много файлов или дерево каталога уходят одной передачей в формате {@link BatchContainer},
+ * а получатель распаковывает записи ({@link BatchUnpacker}) по мере того, как они принимаются целиком.
+ * <p>
+ * Рой: получив заголовок большого файла, получатель широковещательно спрашивает по корню Меркла,
+ * у кого еще есть этот файл ({@link ContentIndex}), и параллельно тянет у них диапазоны чанков
+ * с конца файла ({@link SwarmScheduler}), пока отправитель шлет с начала. Полученное от пиров
+ * подтверждается отправителю обычными ACK, и он эти чанки пропускает.
+ */
+public class FileTransferManager {
+
+    /** Режим прямой коррекции ошибок для чанков файла. */
+    public enum FecMode {
+        OFF,
+        /** Один XOR чанк на блок; включается, только когда есть потери. */
+        XOR,
+        /** Рид–Соломон: несколько чанков четности на блок, всегда включен. */
+        REED_SOLOMON
+    }
+
+    public interface Listener {
+        void onSendStateChanged(boolean hasActiveSends);
+        void onFileSent(String fileName);
+        void onReceiveStarted(String fileName, boolean resumed);
+        void onFileReceived(File file);
+        void onReceiveFailed(String fileName, String reason);
+    }
+
+    // --- RUDP Константы ---
+    static final int CHUNK_SIZE = 1024 * 32; // 32KB
+    private static final int RUDP_WINDOW_SIZE = 16; // Общее окно на все активные отправки
+    private static final int RUDP_TIMEOUT_MS = 1000;
+    private static final int MAX_CONCURRENT_SENDS = 3;
+    private static final int MAX_CONCURRENT_RECEIVES = 8;
+    private static final int MAX_FILE_NAME_BYTES = 1024;
+    private static final long RECEIVE_IDLE_TIMEOUT_MS = 60_000;
+    private static final long COMPLETION_TIMEOUT_MS = 30_000;
+    private static final int END_REPEAT_INTERVAL_MS = 500;
+    private static final int MERKLE_PAGE_SIZE = 1024; // Листьев в одном ответе (32KB)
+    private static final int MAX_NACKS_PER_PACKET = 256;
+    private static final int MAX_COMPLETED_RECEIVES = 64;
+    private static final String PARTIAL_DIR_NAME = ".partial";
+    private static final String STAGING_DIR_SUFFIX = ".d";
+    private static final byte HEADER_FLAG_BATCH = 1;
+
+    // --- FEC Константы ---
+    private static final double FEC_MIN_LOSS_RATE = 0.005; // Ниже этого XOR четность не шлем
+    private static final double LOSS_RATE_SMOOTHING = 0.2;
+    private static final int LOSS_SAMPLE_MIN_CHUNKS = 16;
+    private static final int FEC_MIN_BLOCK = 4;
+    private static final int RS_BLOCK = 16;
+    private static final int MAX_FEC_BLOCKS = 32; // Блоков с ожидающей четностью на один прием
+    private static final int PARITY_HEADER_SIZE = 4 + 4 + 4 + 4; // tid, seq, k/m/index/mode, crc
+    private static final byte FEC_CODE_XOR = 1;
+    private static final byte FEC_CODE_REED_SOLOMON = 2;
+    // Флаг после номера в ACK чанка: чанк потерялся и был восстановлен из четности
+    private static final byte ACK_FLAG_FEC_RECOVERED = 1;
+
+    // --- Дельта Константы ---
+    private static final int DELTA_MIN_CHUNKS = 4; // Маленькие файлы дешевле отправить целиком
+    private static final int SIGNATURE_PAGE_SIZE = 1024; // Записей в одной странице сигнатуры (20KB)
+    private static final int DELTA_PROBE_ATTEMPTS = 3;
+    private static final long DELTA_SIGNATURE_TIMEOUT_MS = 30_000;
+    private static final int SIGNATURE_PENDING = -1; // В ответе: сигнатура еще считается
+    private static final int BASIS_UNKNOWN = -2;
+    private static final String SIGNATURE_CACHE_DIR_NAME = "signatures";
+
+    // Рой
+    private static final int SWARM_MIN_CHUNKS = 64; // Для файлов меньше 2MB искать пиров дольше, чем качать
+    private static final int SWARM_SENDER_GUARD_CHUNKS = 2 * RUDP_WINDOW_SIZE; // Ближайшие чанки оставляем отправителю
+    private static final long SWARM_TICK_MS = 50;
+    private static final long SWARM_QUERY_INTERVAL_MS = 5000;
+    private static final int SWARM_MAX_REQUEST_CHUNKS = 32;
+    private static final String BROADCAST_ADDRESS = "255.255.255.255";
+    private static final String CONTENT_INDEX_FILE_NAME = "content_index";
+
+    // ACK с этим номером: файл собран и сверен с корнем Меркла
+    private static final int COMPLETE_SEQUENCE = -1;
+
+    // Типы сообщений для RUDP протокола. Первое поле payload — int идентификатор передачи.
+    public static final byte MESSAGE_TYPE_FILE_HEADER_RUDP = 0x0F;
+    public static final byte MESSAGE_TYPE_FILE_CHUNK_RUDP = 0x0E;
+    public static final byte MESSAGE_TYPE_FILE_END_RUDP = 0x0C;
+    public static final byte MESSAGE_TYPE_FILE_ACK = 0x0D;
+    public static final byte MESSAGE_TYPE_FILE_NACK = 0x09;
+    public static final byte MESSAGE_TYPE_FILE_MERKLE_REQUEST = 0x08;
+    public static final byte MESSAGE_TYPE_FILE_MERKLE_LEAVES = 0x07;
+    public static final byte MESSAGE_TYPE_FILE_PARITY_RUDP = 0x06;
+    public static final byte MESSAGE_TYPE_FILE_SIGNATURE_REQUEST = 0x30;
+    public static final byte MESSAGE_TYPE_FILE_SIGNATURE = 0x31;
+    public static final byte MESSAGE_TYPE_FILE_COPY_RUDP = 0x32;
+    public static final byte MESSAGE_TYPE_SWARM_QUERY = 0x33;
+    public static final byte MESSAGE_TYPE_SWARM_HAVE = 0x34;
+    public static final byte MESSAGE_TYPE_SWARM_REQUEST = 0x35;
+    public static final byte MESSAGE_TYPE_SWARM_CHUNK = 0x36;
+    public static final byte MESSAGE_TYPE_FILE_CHUNK_COMPRESSED = 0x37;
+
+    private final Context context;
+    private final UdpTransport transport;
+    private final AppLog appLog;
+    private final Listener listener;
+    private final ExecutorService fileExecutor = Executors.newCachedThreadPool(); // Используем CachedThreadPool для RUDP
+    // Хеширование листьев Меркла раскладывается по всем ядрам
+    private final ExecutorService hashExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+    // Отправитель
+    private final AtomicInteger nextTransferId = new AtomicInteger(new Random().nextInt(Integer.MAX_VALUE / 2) + 1);
+    private final ArrayDeque<OutgoingTransfer> pendingSends = new ArrayDeque<>();
+    private final ConcurrentHashMap<Integer, OutgoingTransfer> activeSends = new ConcurrentHashMap<>();
+    private volatile FecMode fecMode = FecMode.XOR;
+    // Сглаженная доля потерянных чанков (повторы по таймауту, NACK и починенные FEC) по IP получателя:
+    // потери на одной линии не должны раздувать FEC на другой
+    private final ConcurrentHashMap<String, Double> lossRates = new ConcurrentHashMap<>();
+    private volatile boolean deltaEnabled = true;
+    private volatile boolean swarmEnabled = true;
+    // null — чанки всегда уходят несжатыми
+    private volatile ChunkCompressor.Codec compressionCodec = ChunkCompressor.Codec.LZ4;
+    private final ContentIndex contentIndex;
+    private final ReceivedFilesIndex receivedFilesIndex;
+    // Приемы, которые тянут чанки у пиров, по номеру сессии роя
+    private final ConcurrentHashMap<Integer, IncomingTransfer> swarmSessions = new ConcurrentHashMap<>();
+
+    // Получатель: ключ — IP отправителя + идентификатор передачи
+    private final ConcurrentHashMap<String, IncomingTransfer> activeReceives = new ConcurrentHashMap<>();
+    // Недавно завершенные приемы: на повторный END отвечаем COMPLETE, а не молчим
+    private final Set<String> completedReceives = Collections.synchronizedSet(Collections.newSetFromMap(
+            new LinkedHashMap<String, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > MAX_COMPLETED_RECEIVES;
+                }
+            }));
+
+    private static class FileDetails {
+        final String name; final long size;
+        FileDetails(String n, long s) { name = n; size = s; }
+    }
+
+    /** Чанки отправляемого файла: в куче (поток, пакет) или отображением локального файла. CRC32C посчитаны заранее. */
+    private static class FileChunks {
+        final List<byte[]> chunks; // null — файл отображен в память
+        final MappedFile mapped;
+        final byte[][] leaves; final int[] crcs; final byte[] merkleRoot;
+        FileChunks(List<byte[]> c, MappedFile m, byte[][] l, int[] crc, byte[] r) { chunks = c; mapped = m; leaves = l; crcs = crc; merkleRoot = r; }
+
+        int count() {
+            return chunks != null ? chunks.size() : mapped.chunkCount;
+        }
+
+        /** Данные чанка; у отображенного файла — копия в куче. */
+        byte[] chunk(int index) {
+            return chunks != null ? chunks.get(index) : mapped.copy(index);
+        }
+
+        InputStream openStream() {
+            if (mapped != null) return mapped.openStream();
+            List<InputStream> streams = new ArrayList<>(chunks.size());
+            for (byte[] chunk : chunks) streams.add(new ByteArrayInputStream(chunk));
+            return new SequenceInputStream(Collections.enumeration(streams));
+        }
+    }
+
+    // Метка в sendingChunkBuffer: пакет не хранится, чанк заново собирается из отображения файла
+    private static final byte[] MAPPED_PAYLOAD = new byte[0];
+
+    /** Состояние одной исходящей передачи. */
+    private static class OutgoingTransfer {
+        final int id;
+        final String targetIp;
+        final Uri uri;
+        final BatchContainer batch; // Не null — отправляется пакет файлов, а не uri
+        final Runnable onFinished; // Не null — вызывается один раз, когда отправка закончится, сорвется или будет отменена
+        final AtomicBoolean active = new AtomicBoolean(true);
+        final AtomicBoolean headerAckReceived = new AtomicBoolean(false);
+        final AtomicBoolean completed = new AtomicBoolean(false);
+        volatile FileChunks fileChunks;
+        final ConcurrentHashMap<Integer, byte[]> sendingChunkBuffer = new ConcurrentHashMap<>();
+        // Не null — файл отображен в память и чанки пишутся в этот канал без копирования
+        UdpTransport.DirectChannel directChannel;
+        final ConcurrentHashMap<Integer, Long> chunkSentTimestamp = new ConcurrentHashMap<>();
+        final ConcurrentSkipListSet<Integer> ackedChunks = new ConcurrentSkipListSet<>();
+        // Замер потерь с последнего пересчета lossRates
+        final AtomicInteger sentSinceSample = new AtomicInteger();
+        final AtomicInteger lostSinceSample = new AtomicInteger();
+        // Кодер FEC и его буферы живут всю передачу, чтобы не выделять память на каждый блок
+        FecCodec fecCodec;
+        final byte[][] fecData = new byte[ReedSolomonCodec.MAX_DATA_SHARDS][];
+        final int[] fecLengths = new int[ReedSolomonCodec.MAX_DATA_SHARDS];
+        final byte[][] fecParity = new byte[ReedSolomonCodec.MAX_PARITY_SHARDS][];
+        int fecBlockSize;
+        int fecParityCount;
+        // Дельта: сигнатура версии файла у получателя (guarded by this) и план копирования по номеру чанка
+        int basisEntries = BASIS_UNKNOWN;
+        DeltaSignature basisSignature;
+        final BitSet basisPages = new BitSet();
+        final ConcurrentHashMap<Integer, long[]> copyPlan = new ConcurrentHashMap<>();
+        // Сжатие: null — формат уже сжат или сжатие выключено; номера чанков, ушедших сжатыми
+        ChunkCompressor compressor;
+        byte[] compressBuffer;
+        final Set<Integer> compressedChunks = ConcurrentHashMap.newKeySet();
+        // Телеметрия для экрана: байты считаем по подтвержденным чанкам
+        volatile TransferStats stats;
+        volatile long fileSize;
+
+        OutgoingTransfer(int id, String targetIp, Uri uri, BatchContainer batch, Runnable onFinished) {
+            this.id = id;
+            this.targetIp = targetIp;
+            this.uri = uri;
+            this.batch = batch;
+            this.onFinished = onFinished;
+        }
+
+        int chunkLength(int sequenceNumber) {
+            return (int) Math.max(0, Math.min(CHUNK_SIZE, fileSize - (long) (sequenceNumber - 1) * CHUNK_SIZE));
+        }
+    }
+
+    /**
+     * Состояние одного входящего файла. Чанки пишутся по смещению в .part файл, прогресс
+     * ведется в журнале, поэтому порядок прихода не важен, а оборванную передачу можно продолжить.
+     */
+    private static class IncomingTransfer {
+        final String key;
+        final int id;
+        final String senderIp;
+        final String fileName;
+        final long fileSize;
+        final int chunkSize;
+        final File partFile;
+        final RandomAccessFile partRandomAccessFile;
+        final FileChannel channel;
+        final TransferJournal journal;
+        final byte[][] leafHashes;
+        final ConcurrentHashMap<Integer, Future<?>> pendingHashes = new ConcurrentHashMap<>();
+        final CRC32C crc = new CRC32C();
+        // Блоки FEC, для которых пришла четность, но еще не все данные: ключ — индекс первого чанка
+        final TreeMap<Integer, FecBlock> fecBlocks = new TreeMap<>();
+        FecCodec fecCodec;
+        byte[][] fecShards; // Рабочие буферы декодера, выделяются при первом восстановлении
+        final boolean[] fecPresent = new boolean[ReedSolomonCodec.MAX_DATA_SHARDS + ReedSolomonCodec.MAX_PARITY_SHARDS];
+        // Наша прошлая версия файла, из которой собираются чанки по инструкциям копирования
+        volatile boolean basisReady = false;
+        volatile DeltaSignature basisSignature;
+        RandomAccessFile basisRandomAccessFile;
+        volatile FileChannel basisChannel;
+        // Пакет: распаковщик и непрерывно принятое начало файла (guarded by this), до которого можно распаковывать
+        BatchUnpacker unpacker;
+        int contiguousChunks = 0;
+        final AtomicLong unpackAvailable = new AtomicLong();
+        final AtomicBoolean unpackRunning = new AtomicBoolean(false);
+        // Рой: планировщик диапазонов у пиров и номер сессии, по которому пиры отвечают
+        SwarmScheduler swarm;
+        int swarmSession;
+        final AtomicBoolean swarmRunning = new AtomicBoolean(false);
+        // Сжатые чанки (guarded by this): сколько байт не пришлось передавать и время распаковки
+        long compressedBytesSaved = 0;
+        long decompressNanos = 0;
+        TransferStats stats; // Задается до публикации в activeReceives
+        volatile long lastActivity = System.currentTimeMillis();
+        boolean finished = false;
+
+        IncomingTransfer(String key, int id, String senderIp, String fileName, long fileSize, int chunkSize,
+                         File partFile, TransferJournal journal) throws IOException {
+            this.key = key; this.id = id; this.senderIp = senderIp; this.fileName = fileName;
+            this.fileSize = fileSize; this.chunkSize = chunkSize; this.partFile = partFile; this.journal = journal;
+            this.leafHashes = new byte[journal.totalChunks][];
+            this.partRandomAccessFile = new RandomAccessFile(partFile, "rw");
+            this.channel = partRandomAccessFile.getChannel();
+        }
+
+        int chunkLength(int chunkIndex) {
+            return (int) Math.min(chunkSize, fileSize - (long) chunkIndex * chunkSize);
+        }
+    }
+
+    /** Полученная четность одного блока. Пакеты храним целиком, данные четности в них — после заголовка. */
+    private static class FecBlock {
+        final int firstIndex;
+        final int dataCount;
+        final int parityCount;
+        final byte code;
+        final byte[][] parityPackets;
+        int parityReceived;
+
+        FecBlock(int firstIndex, int dataCount, int parityCount, byte code) {
+            this.firstIndex = firstIndex; this.dataCount = dataCount; this.parityCount = parityCount; this.code = code;
+            this.parityPackets = new byte[parityCount][];
+        }
+    }
+
+    public FileTransferManager(Context context, UdpTransport transport, AppLog appLog, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.transport = transport;
+        this.appLog = appLog;
+        this.listener = listener;
+        this.contentIndex = new ContentIndex(new File(this.context.getFilesDir(), CONTENT_INDEX_FILE_NAME));
+        this.receivedFilesIndex = ReceivedFilesIndex.get(this.context);
+    }
+
+    public void setFecMode(@NonNull FecMode mode) {
+        fecMode = mode;
+        appLog.log("RUDP: Режим FEC: " + mode);
+    }
+
+    public void setDeltaEnabled(boolean enabled) {
+        deltaEnabled = enabled;
+    }
+
+    public void setSwarmEnabled(boolean enabled) {
+        swarmEnabled = enabled;
+    }
+
+    /** Кодек сжатия чанков; null — отправлять без сжатия. Принимаются сжатые чанки в любом случае. */
+    public void setCompressionCodec(@Nullable ChunkCompressor.Codec codec) {
+        compressionCodec = codec;
+        appLog.log("RUDP: Сжатие чанков: " + (codec != null ? codec : "выключено"));
+    }
+
+    public boolean hasActiveSends() {
+        return getActiveSendCount() > 0;
+    }
+
+    /** Отправки в работе и в очереди. */
+    public int getActiveSendCount() {
+        synchronized (pendingSends) {
+            return activeSends.size() + pendingSends.size();
+        }
+    }
+
+    /** Живые приемы; зависшие дольше RECEIVE_IDLE_TIMEOUT_MS закрываются, прогресс остается в журнале. */
+    public int getActiveReceiveCount() {
+        synchronized (activeReceives) {
+            dropIdleReceives();
+            return activeReceives.size();
+        }
+    }
+
+    // --- RUDP: Логика Отправки ---
+
+    /** Ставит файл в очередь отправки. Одновременно выполняется не больше MAX_CONCURRENT_SENDS передач. */
+    public void enqueueSend(String targetIp, Uri fileUri) {
+        enqueueSend(targetIp, fileUri, null);
+    }
+
+    /**
+     * Как {@link #enqueueSend(String, Uri)}, но по окончании передачи — успешном, с ошибкой или
+     * отменой — вызывает {@code onFinished}, например чтобы удалить временную копию файла.
+     */
+    public void enqueueSend(String targetIp, Uri fileUri, @Nullable Runnable onFinished) {
+        OutgoingTransfer transfer = new OutgoingTransfer(nextTransferId.getAndIncrement(), targetIp, fileUri, null, onFinished);
+        appLog.log("RUDP: [#" + transfer.id + "] Файл поставлен в очередь: " + fileUri);
+        enqueue(transfer);
+    }
+
+    /** Ставит в очередь несколько файлов одной передачей-пакетом. */
+    public void enqueueBatch(String targetIp, List<Uri> fileUris) {
+        List<Uri> uris = new ArrayList<>(fileUris);
+        fileExecutor.execute(() -> enqueueContainer(targetIp, BatchContainer.fromDocuments(context.getContentResolver(), uris)));
+    }
+
+    /** Ставит в очередь все дерево каталога, выбранного через ACTION_OPEN_DOCUMENT_TREE, одной передачей. */
+    public void enqueueDirectory(String targetIp, Uri treeUri) {
+        fileExecutor.execute(() -> {
+            try {
+                enqueueContainer(targetIp, BatchContainer.fromTree(context.getContentResolver(), treeUri));
+            } catch (RuntimeException e) {
+                appLog.log("RUDP ERROR: Не удалось прочитать каталог " + treeUri, e);
+            }
+        });
+    }
+
+    private void enqueueContainer(String targetIp, BatchContainer batch) {
+        if (batch.entries.isEmpty()) {
+            appLog.log("RUDP: Пакет '" + batch.name + "' пуст, отправлять нечего.");
+            return;
+        }
+        OutgoingTransfer transfer = new OutgoingTransfer(nextTransferId.getAndIncrement(), targetIp, null, batch, null);
+        appLog.log("RUDP: [#" + transfer.id + "] Пакет поставлен в очередь: " + batch.name + " ("
+                + batch.entries.size() + " файлов, " + batch.totalSize + " байт)");
+        enqueue(transfer);
+    }
+
+    private void enqueue(OutgoingTransfer transfer) {
+        synchronized (pendingSends) {
+            pendingSends.add(transfer);
+        }
+        listener.onSendStateChanged(true);
+        startPendingSends();
+    }
+
+    public void cancelAllSends() {
+        List<OutgoingTransfer> dropped;
+        synchronized (pendingSends) {
+            dropped = new ArrayList<>(pendingSends);
+            pendingSends.clear();
+            for (OutgoingTransfer transfer : activeSends.values()) transfer.active.set(false);
+        }
+        // Не начатые передачи до finishSend не дойдут
+        for (OutgoingTransfer transfer : dropped) {
+            if (transfer.onFinished != null) transfer.onFinished.run();
+        }
+        appLog.log("RUDP: Все отправки файлов остановлены.");
+    }
+
+    private void startPendingSends() {
+        synchronized (pendingSends) {
+            while (activeSends.size() < MAX_CONCURRENT_SENDS && !pendingSends.isEmpty()) {
+                OutgoingTransfer transfer = pendingSends.poll();
+                activeSends.put(transfer.id, transfer);
+                fileExecutor.execute(() -> runSend(transfer));
+            }
+        }
+    }
+
+    private void finishSend(OutgoingTransfer transfer) {
+        transfer.active.set(false);
+        transfer.sendingChunkBuffer.clear();
+        transfer.chunkSentTimestamp.clear();
+        TransferTelemetry.get().unregister(transfer.stats);
+        if (transfer.compressor != null) transfer.compressor.release();
+        if (transfer.directChannel != null) {
+            try {
+                transfer.directChannel.close();
+            } catch (IOException ignored) {
+                // Канал только для отправки, терять нечего
+            }
+        }
+        if (transfer.onFinished != null) transfer.onFinished.run();
+        boolean hasMore;
+        synchronized (pendingSends) {
+            activeSends.remove(transfer.id);
+            hasMore = !activeSends.isEmpty() || !pendingSends.isEmpty();
+        }
+        startPendingSends();
+        if (!hasMore) listener.onSendStateChanged(false);
+    }
+
+    /** Доля общего окна, доступная одной передаче: окно делится поровну между активными отправками. */
+    private int windowShare() {
+        return Math.max(1, RUDP_WINDOW_SIZE / Math.max(1, activeSends.size()));
+    }
+
+    private void runSend(OutgoingTransfer transfer) {
+        String targetIp = transfer.targetIp;
+        FileDetails fileDetails = transfer.batch != null
+                ? new FileDetails(transfer.batch.name, transfer.batch.totalSize)
+                : getFileDetailsFromUri(transfer.uri);
+        if (fileDetails == null) {
+            appLog.log("RUDP: [#" + transfer.id + "] Не удалось получить информацию о файле: " + transfer.uri);
+            finishSend(transfer);
+            return;
+        }
+
+        try {
+            appLog.log("RUDP: [#" + transfer.id + "] Начало отправки: " + fileDetails.name + " (" + fileDetails.size + " байт)");
+
+            // 1. Локальный файл отображаем в память, остальное читаем списком чанков
+            //    (параллельно считаем листья дерева Меркла и CRC чанков)
+            FileChunks fileChunks = readFileIntoChunks(transfer);
+            transfer.fileChunks = fileChunks;
+            if (fileChunks.mapped != null) {
+                fileDetails = new FileDetails(fileDetails.name, fileChunks.mapped.size);
+                openDirectChannel(transfer);
+            }
+            int totalChunks = fileChunks.count();
+            transfer.fileSize = fileDetails.size;
+            transfer.stats = TransferTelemetry.get().register(TransferStats.Scope.FILES, fileDetails.name, true, fileDetails.size);
+            if (totalChunks == 0) {
+                transport.sendData(targetIp, MESSAGE_TYPE_FILE_END_RUDP, ByteBuffer.allocate(4).putInt(transfer.id).array());
+                appLog.log("RUDP: [#" + transfer.id + "] Файл пуст, отправлен только END.");
+                return;
+            }
+            appLog.log("RUDP: [#" + transfer.id + "] Файл разделен на " + totalChunks + " чанков.");
+            startCompression(transfer, fileDetails);
+
+            // 2. Отправка заголовка, пока не получим подтверждение (ACK).
+            //    В ACK получатель сообщает, какие чанки у него уже есть.
+            sendHeaderAndWaitForAck(transfer, fileDetails, totalChunks, fileChunks.merkleRoot);
+
+            if (!transfer.active.get()) return; // Проверка, не была ли отправка отменена
+            if (!transfer.ackedChunks.isEmpty()) {
+                appLog.log("RUDP: [#" + transfer.id + "] Докачка: у получателя уже есть " + transfer.ackedChunks.size() + " из " + totalChunks + " чанков.");
+            } else if (deltaEnabled && transfer.batch == null && totalChunks >= DELTA_MIN_CHUNKS) {
+                planDelta(transfer);
+                if (!transfer.active.get()) return;
+            }
+
+            // 3. Запуск фонового потока для повторной отправки неподтвержденных чанков
+            fileExecutor.execute(() -> resendLoop(transfer));
+
+            // 4. Основной цикл отправки чанков со 'скользящим окном'.
+            //    После каждого блока из fecBlockSize чанков шлем его четность.
+            int currentChunkIndex = 0;
+            int blockStart = 0;
+            boolean blockSent = false;
+            chooseFecParameters(transfer);
+            while (currentChunkIndex < totalChunks && transfer.active.get()) {
+                if (!transfer.ackedChunks.contains(currentChunkIndex + 1)) { // Иначе уже есть у получателя
+                    int window = windowShare();
+                    transfer.stats.setWindow(window);
+                    if (transfer.chunkSentTimestamp.size() >= window) {
+                        Thread.sleep(10); // Наша доля окна заполнена, ждем ACK
+                        continue;
+                    }
+                    sendChunk(transfer, currentChunkIndex + 1);
+                    transfer.sentSinceSample.incrementAndGet();
+                    transfer.stats.onPacket(false);
+                    // Четность нужна только блокам с данными: инструкции копирования дешевле переслать
+                    if (!transfer.copyPlan.containsKey(currentChunkIndex + 1)) blockSent = true;
+                }
+                currentChunkIndex++;
+                if (currentChunkIndex - blockStart == transfer.fecBlockSize || currentChunkIndex == totalChunks) {
+                    if (blockSent && transfer.fecParityCount > 0) sendParity(transfer, blockStart, currentChunkIndex - blockStart);
+                    blockStart = currentChunkIndex;
+                    blockSent = false;
+                    updateLossRate(transfer);
+                    chooseFecParameters(transfer);
+                }
+            }
+
+            // 5. Ожидание подтверждения всех отправленных чанков
+            while (transfer.ackedChunks.size() < totalChunks && transfer.active.get()) {
+                Thread.sleep(100);
+            }
+
+            // 6. Повторяем END, пока получатель не сверит файл с корнем Меркла и не ответит COMPLETE.
+            //    Пока ждем, обслуживаем его запросы листьев и NACK на испорченные чанки.
+            if (transfer.active.get()) {
+                appLog.log("RUDP: [#" + transfer.id + "] Все чанки подтверждены. Отправка завершения.");
+                byte[] endPayload = ByteBuffer.allocate(4).putInt(transfer.id).array();
+                long deadline = System.currentTimeMillis() + COMPLETION_TIMEOUT_MS;
+                while (!transfer.completed.get() && transfer.active.get() && System.currentTimeMillis() < deadline) {
+                    if (transfer.ackedChunks.size() >= totalChunks) {
+                        transport.sendData(targetIp, MESSAGE_TYPE_FILE_END_RUDP, endPayload);
+                    } else {
+                        deadline = System.currentTimeMillis() + COMPLETION_TIMEOUT_MS; // Идет перезапрос чанков
+                    }
+                    Thread.sleep(END_REPEAT_INTERVAL_MS);
+                }
+            }
+
+            if (transfer.compressor != null) {
+                appLog.log("RUDP: [#" + transfer.id + "] Сжатие " + transfer.compressor.stats());
+            }
+            if (transfer.completed.get()) {
+                appLog.log("RUDP: [#" + transfer.id + "] Получатель подтвердил целостность файла.");
+                listener.onFileSent(fileDetails.name);
+            } else if (transfer.active.get()) {
+                appLog.log("RUDP ERROR: [#" + transfer.id + "] Получатель не подтвердил сборку файла.");
+            } else {
+                appLog.log("RUDP: [#" + transfer.id + "] Отправка файла остановлена.");
+            }
+        } catch (Exception e) {
+            appLog.log("RUDP: [#" + transfer.id + "] КРИТИЧЕСКАЯ ОШИБКА при отправке: " + e.getMessage() + "\n" + Arrays.toString(e.getStackTrace()));
+        } finally {
+            finishSend(transfer);
+        }
+    }
+
+    private void sendHeaderAndWaitForAck(OutgoingTransfer transfer, FileDetails fileDetails, int totalChunks, byte[] merkleRoot) throws InterruptedException {
+        byte[] fileNameBytes = fileDetails.name.getBytes(StandardCharsets.UTF_8);
+        byte flags = transfer.batch != null ? HEADER_FLAG_BATCH : 0;
+        ByteBuffer headerBuffer = ByteBuffer.allocate(4 + 8 + 4 + 4 + 4 + merkleRoot.length + 4 + fileNameBytes.length + 1);
+        headerBuffer.putInt(transfer.id).putLong(fileDetails.size).putInt(totalChunks).putInt(CHUNK_SIZE)
+                .putInt(merkleRoot.length).put(merkleRoot)
+                .putInt(fileNameBytes.length).put(fileNameBytes)
+                .put(flags);
+        byte[] headerPayload = headerBuffer.array();
+
+        while (!transfer.headerAckReceived.get() && transfer.active.get()) {
+            appLog.log("RUDP: [#" + transfer.id + "] Отправка заголовка...");
+            transport.sendData(transfer.targetIp, MESSAGE_TYPE_FILE_HEADER_RUDP, headerPayload);
+            Thread.sleep(RUDP_TIMEOUT_MS);
+        }
+    }
+
+    /** Решает, сжимать ли чанки передачи: пакет и файлы без известного типа проверяет проба. */
+    private void startCompression(OutgoingTransfer transfer, FileDetails fileDetails) {
+        String mimeType = transfer.batch == null ? context.getContentResolver().getType(transfer.uri) : null;
+        transfer.compressor = ChunkCompressor.forContent(compressionCodec, mimeType, fileDetails.name);
+        if (transfer.compressor != null) {
+            transfer.compressBuffer = new byte[ChunkCompressor.maxCompressedLength(CHUNK_SIZE)];
+        } else if (compressionCodec != null) {
+            appLog.log("RUDP: [#" + transfer.id + "] Сжатие пропущено: формат уже сжат (" + mimeType + ").");
+        }
+    }
+
+    private void sendChunk(OutgoingTransfer transfer, int sequenceNumber) {
+        if (transfer.ackedChunks.contains(sequenceNumber)) return; // Не отправлять уже подтвержденный
+
+        FileChunks fileChunks = transfer.fileChunks;
+        int crc = fileChunks.crcs[sequenceNumber - 1];
+        long[] copy = transfer.copyPlan.get(sequenceNumber);
+        byte[] payload;
+        if (copy != null) {
+            // CRC чанка идет и в инструкции: получатель проверит, что собрал из своей версии то же самое
+            ByteBuffer copyBuffer = ByteBuffer.allocate(4 + 4 + 4 + 4 + copy.length / 2 * 12);
+            copyBuffer.putInt(transfer.id).putInt(sequenceNumber).putInt(crc).putInt(copy.length / 2);
+            for (int i = 0; i < copy.length; i += 2) copyBuffer.putLong(copy[i]).putInt((int) copy[i + 1]);
+            payload = copyBuffer.array();
+        } else if ((payload = compressChunk(transfer, sequenceNumber, crc)) != null) {
+            transfer.compressedChunks.add(sequenceNumber);
+        } else {
+            transfer.compressedChunks.remove(sequenceNumber); // Повтор по NACK мог уйти уже несжатым
+            if (transfer.directChannel != null) {
+                payload = MAPPED_PAYLOAD;
+            } else {
+                byte[] chunkData = fileChunks.chunk(sequenceNumber - 1);
+                ByteBuffer chunkBuffer = ByteBuffer.allocate(4 + 4 + 4 + chunkData.length);
+                chunkBuffer.putInt(transfer.id).putInt(sequenceNumber).putInt(crc).put(chunkData);
+                payload = chunkBuffer.array();
+            }
+        }
+
+        transfer.sendingChunkBuffer.put(sequenceNumber, payload);
+        transfer.chunkSentTimestamp.put(sequenceNumber, System.currentTimeMillis());
+
+        if (payload == MAPPED_PAYLOAD) {
+            sendMappedChunk(transfer, sequenceNumber);
+        } else {
+            transport.sendData(transfer.targetIp, chunkMessageType(transfer, sequenceNumber), payload);
+        }
+    }
+
+    /** Заголовок и страницы файла уходят в сокет одной сборкой: байты чанка в куче не копируются. */
+    private void sendMappedChunk(OutgoingTransfer transfer, int sequenceNumber) {
+        ByteBuffer header = ByteBuffer.allocate(4 + 4 + 4);
+        header.putInt(transfer.id).putInt(sequenceNumber).putInt(transfer.fileChunks.crcs[sequenceNumber - 1]).flip();
+        try {
+            transfer.directChannel.send(MESSAGE_TYPE_FILE_CHUNK_RUDP, header, transfer.fileChunks.mapped.slice(sequenceNumber - 1));
+        } catch (IOException e) {
+            // Чанк уйдет повтором по таймауту
+            appLog.log("RUDP WARN: [#" + transfer.id + "] Чанк #" + sequenceNumber + " не отправлен: " + e.getMessage());
+        }
+    }
+
+    private void openDirectChannel(OutgoingTransfer transfer) {
+        try {
+            transfer.directChannel = transport.openDirectChannel(transfer.targetIp);
+            appLog.log("RUDP: [#" + transfer.id + "] Файл отображен в память, чанки уходят в сокет без копирования.");
+        } catch (IOException e) {
+            appLog.log("RUDP WARN: [#" + transfer.id + "] Прямой канал недоступен, отправка через общий сокет: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Сжатый пакет чанка или null, если сжимать не стоит. CRC считается по исходным данным,
+     * поэтому получатель проверяет чанк уже после распаковки.
+     */
+    @Nullable
+    private static byte[] compressChunk(OutgoingTransfer transfer, int sequenceNumber, int crc) {
+        ChunkCompressor compressor = transfer.compressor;
+        if (compressor == null) return null;
+        byte[] chunkData = transfer.fileChunks.chunk(sequenceNumber - 1);
+        // Буфер сжатия один на передачу, а чанки шлют и основной цикл, и обработчик NACK
+        synchronized (compressor) {
+            int compressedLength = compressor.compress(chunkData, 0, chunkData.length, transfer.compressBuffer);
+            if (compressedLength < 0) return null;
+            ByteBuffer chunkBuffer = ByteBuffer.allocate(4 + 4 + 4 + 1 + compressedLength);
+            chunkBuffer.putInt(transfer.id).putInt(sequenceNumber).putInt(crc)
+                    .put(compressor.codecId()).put(transfer.compressBuffer, 0, compressedLength);
+            return chunkBuffer.array();
+        }
+    }
+
+    private static byte chunkMessageType(OutgoingTransfer transfer, int sequenceNumber) {
+        if (transfer.copyPlan.containsKey(sequenceNumber)) return MESSAGE_TYPE_FILE_COPY_RUDP;
+        return transfer.compressedChunks.contains(sequenceNumber) ? MESSAGE_TYPE_FILE_CHUNK_COMPRESSED : MESSAGE_TYPE_FILE_CHUNK_RUDP;
+    }
+
+    /** Подбирает размер блока и число чанков четности под текущую долю потерь. */
+    private void chooseFecParameters(OutgoingTransfer transfer) {
+        FecMode mode = fecMode;
+        double loss = lossRates.getOrDefault(transfer.targetIp, 0.0);
+        int blockSize;
+        int parityCount;
+        switch (mode) {
+            case REED_SOLOMON:
+                // Запас в три раза к ожидаемому числу потерь в блоке
+                blockSize = RS_BLOCK;
+                parityCount = clamp((int) Math.ceil(RS_BLOCK * loss * 3), 1, ReedSolomonCodec.MAX_PARITY_SHARDS);
+                break;
+            case XOR:
+                // Блок такой, чтобы потеря в нем в среднем была не больше одной на два блока
+                blockSize = loss < FEC_MIN_LOSS_RATE ? XorParityCodec.MAX_DATA_SHARDS
+                        : clamp((int) (0.5 / loss), FEC_MIN_BLOCK, XorParityCodec.MAX_DATA_SHARDS);
+                parityCount = loss < FEC_MIN_LOSS_RATE ? 0 : 1;
+                break;
+            default:
+                blockSize = XorParityCodec.MAX_DATA_SHARDS;
+                parityCount = 0;
+                break;
+        }
+
+        if (parityCount > 0 && (transfer.fecCodec == null || codeOf(transfer.fecCodec) != codeOf(mode))) {
+            transfer.fecCodec = mode == FecMode.REED_SOLOMON ? new ReedSolomonCodec(CHUNK_SIZE) : new XorParityCodec(CHUNK_SIZE);
+        }
+        if (blockSize != transfer.fecBlockSize || parityCount != transfer.fecParityCount) {
+            appLog.log("RUDP: [#" + transfer.id + "] FEC " + mode + ": блок " + blockSize + ", четность " + parityCount
+                    + " (потери ~" + String.format(Locale.US, "%.1f", loss * 100) + "%)");
+        }
+        transfer.fecBlockSize = blockSize;
+        transfer.fecParityCount = parityCount;
+    }
+
+    private void updateLossRate(OutgoingTransfer transfer) {
+        int sent = transfer.sentSinceSample.get();
+        if (sent < LOSS_SAMPLE_MIN_CHUNKS) return; // Слишком мало чанков для оценки
+        transfer.sentSinceSample.addAndGet(-sent);
+        int lost = transfer.lostSinceSample.getAndSet(0);
+        double sample = Math.min(1.0, (double) lost / sent);
+        // Атомарно: одновременные передачи тому же получателю не теряют замеры друг друга
+        lossRates.merge(transfer.targetIp, LOSS_RATE_SMOOTHING * sample,
+                (rate, ignored) -> rate + LOSS_RATE_SMOOTHING * (sample - rate));
+    }
+
+    /** Считает и отправляет четность для чанков [firstIndex, firstIndex + count). */
+    private void sendParity(OutgoingTransfer transfer, int firstIndex, int count) {
+        FecCodec codec = transfer.fecCodec;
+        int parityCount = Math.min(transfer.fecParityCount, codec.maxParityShards());
+        for (int i = 0; i < count; i++) {
+            byte[] chunk = transfer.fileChunks.chunk(firstIndex + i);
+            transfer.fecData[i] = chunk;
+            transfer.fecLengths[i] = chunk.length;
+        }
+        for (int p = 0; p < parityCount; p++) {
+            if (transfer.fecParity[p] == null) transfer.fecParity[p] = new byte[CHUNK_SIZE];
+        }
+        codec.encode(transfer.fecData, transfer.fecLengths, count, transfer.fecParity, parityCount);
+
+        byte code = codeOf(codec);
+        CRC32C crc = new CRC32C();
+        for (int p = 0; p < parityCount; p++) {
+            crc.reset();
+            crc.update(transfer.fecParity[p], 0, CHUNK_SIZE);
+            ByteBuffer parityBuffer = ByteBuffer.allocate(PARITY_HEADER_SIZE + CHUNK_SIZE);
+            parityBuffer.putInt(transfer.id).putInt(firstIndex + 1)
+                    .put((byte) count).put((byte) parityCount).put((byte) p).put(code)
+                    .putInt((int) crc.getValue()).put(transfer.fecParity[p]);
+            transport.sendData(transfer.targetIp, MESSAGE_TYPE_FILE_PARITY_RUDP, parityBuffer.array());
+        }
+        Arrays.fill(transfer.fecData, null); // Не держим ссылки на чанки дольше нужного
+    }
+
+    private static byte codeOf(FecMode mode) {
+        return mode == FecMode.REED_SOLOMON ? FEC_CODE_REED_SOLOMON : FEC_CODE_XOR;
+    }
+
+    private static byte codeOf(FecCodec codec) {
+        return codec instanceof ReedSolomonCodec ? FEC_CODE_REED_SOLOMON : FEC_CODE_XOR;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private void resendLoop(OutgoingTransfer transfer) {
+        while (transfer.active.get()) {
+            try {
+                long now = System.currentTimeMillis();
+                for (Integer seq : transfer.chunkSentTimestamp.keySet()) {
+                    if (now - transfer.chunkSentTimestamp.getOrDefault(seq, now) > RUDP_TIMEOUT_MS) {
+                        if (!transfer.ackedChunks.contains(seq)) {
+                            byte[] payload = transfer.sendingChunkBuffer.get(seq);
+                            if (payload != null) {
+                                appLog.log("RUDP: [#" + transfer.id + "] ПОВТОРНАЯ ОТПРАВКА чанка #" + seq + " из-за таймаута.");
+                                if (payload == MAPPED_PAYLOAD) {
+                                    sendMappedChunk(transfer, seq);
+                                } else {
+                                    transport.sendData(transfer.targetIp, chunkMessageType(transfer, seq), payload);
+                                }
+                                transfer.chunkSentTimestamp.put(seq, now);
+                                transfer.lostSinceSample.incrementAndGet();
+                                transfer.stats.onPacket(true);
+                            }
+                        }
+                    }
+                }
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                appLog.log("RUDP: [#" + transfer.id + "] Ошибка в цикле повторной отправки", e);
+            }
+        }
+    }
+
+    // --- RUDP: Логика Приема ---
+
+    /** Разбирает входящее RUDP сообщение. Возвращает false, если тип не относится к передаче файлов. */
+    public boolean handleMessage(UdpViewModel.UdpMessage message) {
+        switch (message.type) {
+            case MESSAGE_TYPE_FILE_ACK:
+                // ACK обрабатываем немедленно
+                handleAck(message.payload);
+                return true;
+            case MESSAGE_TYPE_FILE_HEADER_RUDP:
+                fileExecutor.execute(() -> handleFileHeader(message.payload, message.senderIp));
+                return true;
+            case MESSAGE_TYPE_FILE_CHUNK_RUDP:
+                fileExecutor.execute(() -> handleFileChunk(message.payload, message.senderIp));
+                return true;
+            case MESSAGE_TYPE_FILE_CHUNK_COMPRESSED:
+                fileExecutor.execute(() -> handleFileCompressedChunk(message.payload, message.senderIp));
+                return true;
+            case MESSAGE_TYPE_FILE_END_RUDP:
+                fileExecutor.execute(() -> handleFileEnd(message.payload, message.senderIp));
+                return true;
+            case MESSAGE_TYPE_FILE_NACK:
+                fileExecutor.execute(() -> handleNack(message.payload));
+                return true;
+            case MESSAGE_TYPE_FILE_MERKLE_REQUEST:
+                fileExecutor.execute(() -> handleMerkleRequest(message.payload, message.senderIp));
+                return true;
+            case MESSAGE_TYPE_FILE_MERKLE_LEAVES:
+                fileExecutor.execute(() -> handleMerkleLeaves(message.payload, message.senderIp));
+                return true;
+            case MESSAGE_TYPE_FILE_PARITY_RUDP:
+                fileExecutor.execute(() -> handleFileParity(message.payload, message.senderIp));
+                return true;
+            case MESSAGE_TYPE_FILE_SIGNATURE_REQUEST:
+                fileExecutor.execute(() -> handleSignatureRequest(message.payload, message.senderIp));
+                return true;
+            case MESSAGE_TYPE_FILE_SIGNATURE:
+                fileExecutor.execute(() -> handleSignature(message.payload));
+                return true;
+            case MESSAGE_TYPE_FILE_COPY_RUDP:
+                fileExecutor.execute(() -> handleFileCopy(message.payload, message.senderIp));
+                return true;
+            case MESSAGE_TYPE_SWARM_QUERY:
+                fileExecutor.execute(() -> handleSwarmQuery(message.payload, message.senderIp));
+                return true;
+            case MESSAGE_TYPE_SWARM_HAVE:
+                fileExecutor.execute(() -> handleSwarmHave(message.payload, message.senderIp));
+                return true;
+            case MESSAGE_TYPE_SWARM_REQUEST:
+                fileExecutor.execute(() -> handleSwarmRequest(message.payload, message.senderIp));
+                return true;
+            case MESSAGE_TYPE_SWARM_CHUNK:
+                fileExecutor.execute(() -> handleSwarmChunk(message.payload, message.senderIp));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void handleAck(byte[] payload) {
+        if (payload.length < 8) return;
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        OutgoingTransfer transfer = activeSends.get(buffer.getInt());
+        if (transfer == null || !transfer.active.get()) return;
+
+        int ackedSeq = buffer.getInt();
+        if (ackedSeq == 0) { // ACK для заголовка
+            if (transfer.headerAckReceived.get()) return;
+            // После номера идет битовая карта чанков, которые уже есть у получателя
+            if (buffer.hasRemaining()) {
+                BitSet alreadyReceived = BitSet.valueOf(Arrays.copyOfRange(payload, 8, payload.length));
+                for (int i = alreadyReceived.nextSetBit(0); i >= 0; i = alreadyReceived.nextSetBit(i + 1)) {
+                    if (transfer.ackedChunks.add(i + 1)) transfer.stats.addDone(transfer.chunkLength(i + 1));
+                }
+            }
+            transfer.headerAckReceived.set(true);
+            return;
+        }
+        if (ackedSeq == COMPLETE_SEQUENCE) {
+            transfer.completed.set(true);
+            return;
+        }
+        if (transfer.ackedChunks.add(ackedSeq)) { // Если это новый ACK
+            transfer.stats.addDone(transfer.chunkLength(ackedSeq));
+            transfer.sendingChunkBuffer.remove(ackedSeq);
+            transfer.chunkSentTimestamp.remove(ackedSeq);
+            // Чанк потерялся, но получатель собрал его из четности — это тоже потеря для оценки
+            if (buffer.hasRemaining() && buffer.get() == ACK_FLAG_FEC_RECOVERED) transfer.lostSinceSample.incrementAndGet();
+        }
+    }
+
+    /** Получатель отверг чанки (CRC или лист Меркла не сошлись) — отправляем их заново, не дожидаясь таймаута. */
+    private void handleNack(byte[] payload) {
+        if (payload.length < 8) return;
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        OutgoingTransfer transfer = activeSends.get(buffer.getInt());
+        if (transfer == null || !transfer.active.get() || transfer.fileChunks == null) return;
+
+        int totalChunks = transfer.fileChunks.count();
+        while (buffer.remaining() >= 4) {
+            int seq = buffer.getInt();
+            if (seq < 1 || seq > totalChunks) continue;
+            if (transfer.ackedChunks.remove(seq)) transfer.stats.addDone(-transfer.chunkLength(seq));
+            transfer.copyPlan.remove(seq); // Собрать из версии получателя не вышло — шлем данные
+            transfer.lostSinceSample.incrementAndGet();
+            appLog.log("RUDP: [#" + transfer.id + "] NACK для чанка #" + seq + ", отправляем заново.");
+            sendChunk(transfer, seq);
+            transfer.stats.onPacket(true);
+        }
+    }
+
+    /** Отдает получателю страницу листьев дерева Меркла, чтобы он нашел испорченные чанки. */
+    private void handleMerkleRequest(byte[] payload, String senderIp) {
+        if (payload.length < 12) return;
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        OutgoingTransfer transfer = activeSends.get(buffer.getInt());
+        if (transfer == null || transfer.fileChunks == null) return;
+
+        byte[][] leaves = transfer.fileChunks.leaves;
+        int from = buffer.getInt();
+        int count = Math.min(buffer.getInt(), MERKLE_PAGE_SIZE);
+        if (from < 0 || from >= leaves.length) return;
+        count = Math.min(count, leaves.length - from);
+
+        ByteBuffer response = ByteBuffer.allocate(12 + count * MerkleTree.HASH_SIZE);
+        response.putInt(transfer.id).putInt(from).putInt(count);
+        for (int i = from; i < from + count; i++) response.put(leaves[i]);
+        transport.sendData(senderIp, MESSAGE_TYPE_FILE_MERKLE_LEAVES, response.array());
+    }
+
+    private void sendNack(String senderIp, int transferId, int[] chunkIndexes) {
+        for (int start = 0; start < chunkIndexes.length; start += MAX_NACKS_PER_PACKET) {
+            int count = Math.min(MAX_NACKS_PER_PACKET, chunkIndexes.length - start);
+            ByteBuffer nack = ByteBuffer.allocate(4 + 4 * count).putInt(transferId);
+            for (int i = start; i < start + count; i++) nack.putInt(chunkIndexes[i] + 1);
+            transport.sendData(senderIp, MESSAGE_TYPE_FILE_NACK, nack.array());
+        }
+    }
+
+    /** ACK с необязательным хвостом: карта чанков для ACK #0 или флаг для ACK чанка. */
+    private void sendAck(String senderIp, int transferId, int sequenceNumber, @Nullable byte[] extra) {
+        int extraLength = extra != null ? extra.length : 0;
+        ByteBuffer ackBuffer = ByteBuffer.allocate(8 + extraLength).putInt(transferId).putInt(sequenceNumber);
+        if (extra != null) ackBuffer.put(extra);
+        transport.sendData(senderIp, MESSAGE_TYPE_FILE_ACK, ackBuffer.array());
+    }
+
+    private static String receiveKey(String senderIp, int transferId) {
+        return senderIp + "#" + transferId;
+    }
+
+    private void handleFileHeader(byte[] payload, String senderIp) {
+        IncomingTransfer transfer = null;
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            int transferId = buffer.getInt();
+            long fileSize = buffer.getLong();
+            int totalChunks = buffer.getInt(); // Теперь мы знаем, сколько чанков ожидать
+            int chunkSize = buffer.getInt();
+            // Размеры из сети идут в журнал и массивы приема: проверяем до любых выделений памяти
+            if (fileSize < 0 || chunkSize <= 0 || chunkSize > CHUNK_SIZE
+                    || totalChunks != (fileSize + chunkSize - 1) / chunkSize) {
+                appLog.log("RUDP WARN: [#" + transferId + "] Заголовок отброшен: размер " + fileSize
+                        + ", чанков " + totalChunks + " по " + chunkSize + " байт.");
+                return;
+            }
+            int rootLength = buffer.getInt();
+            // Корня нет (отправитель старой версии) или это ровно SHA-256: другая длина — мусор в заголовке
+            if (rootLength != 0 && rootLength != MerkleTree.HASH_SIZE) {
+                appLog.log("RUDP WARN: [#" + transferId + "] Заголовок отброшен: длина корня Меркла " + rootLength + ".");
+                return;
+            }
+            byte[] merkleRoot = new byte[rootLength];
+            buffer.get(merkleRoot);
+            int nameLength = buffer.getInt();
+            if (nameLength < 0 || nameLength > MAX_FILE_NAME_BYTES || nameLength > buffer.remaining()) {
+                appLog.log("RUDP WARN: [#" + transferId + "] Заголовок отброшен: длина имени " + nameLength + ".");
+                return;
+            }
+            byte[] fileNameBytes = new byte[nameLength];
+            buffer.get(fileNameBytes);
+            String fileName = new File(new String(fileNameBytes, StandardCharsets.UTF_8)).getName();
+            if (fileName.isEmpty() || fileName.equals(".") || fileName.equals("..")) {
+                appLog.log("RUDP WARN: [#" + transferId + "] Заголовок отброшен: недопустимое имя файла.");
+                return;
+            }
+            // Флаги добавлены в конец заголовка позже, у старых отправителей их нет
+            boolean batch = buffer.hasRemaining() && (buffer.get() & HEADER_FLAG_BATCH) != 0;
+            String key = receiveKey(senderIp, transferId);
+
+            synchronized (activeReceives) {
+                transfer = activeReceives.get(key);
+                if (transfer != null) {
+                    // Повтор заголовка текущей передачи (наш ACK потерялся) — состояние не сбрасываем
+                    sendAck(senderIp, transferId, 0, transfer.journal.bitmap());
+                    return;
+                }
+
+                dropIdleReceives();
+                if (activeReceives.size() >= MAX_CONCURRENT_RECEIVES || isReceivingFileName(fileName)) {
+                    // Не подтверждаем: отправитель повторит заголовок, когда освободится место
+                    appLog.log("RUDP: [#" + transferId + "] Прием '" + fileName + "' отложен: занято.");
+                    return;
+                }
+
+                File partialDir = getPartialDir();
+                if (fileSize > partialDir.getUsableSpace()) {
+                    // Такой файл все равно не поместится, а журнал и массивы под него уже выделили бы память
+                    appLog.log("RUDP WARN: [#" + transferId + "] Прием '" + fileName + "' отклонен: недостаточно места.");
+                    return;
+                }
+                TransferJournal journal = TransferJournal.openOrCreate(new File(partialDir, fileName + ".journal"),
+                        fileSize, merkleRoot, chunkSize, totalChunks);
+                File partFile = new File(partialDir, fileName + ".part");
+                if (!journal.isResumed() && partFile.exists()) partFile.delete();
+                transfer = new IncomingTransfer(key, transferId, senderIp, fileName, fileSize, chunkSize, partFile, journal);
+                if (batch) {
+                    File stagingDir = new File(partialDir, fileName + STAGING_DIR_SUFFIX);
+                    if (!journal.isResumed()) BatchUnpacker.deleteRecursively(stagingDir);
+                    transfer.unpacker = new BatchUnpacker(transfer.channel, fileSize, stagingDir);
+                }
+                transfer.stats = TransferTelemetry.get().register(TransferStats.Scope.FILES, fileName, false, fileSize);
+                // При докачке уже принятое считаем сделанным; последний чанк может быть короче
+                transfer.stats.setDone(Math.min(fileSize, (long) journal.receivedCount() * chunkSize));
+                activeReceives.put(key, transfer);
+            }
+
+            // При докачке листья для уже принятых чанков считаем с диска — один раз и только для них
+            if (transfer.journal.isResumed()) {
+                hashStoredChunks(transfer);
+                transfer.basisReady = true; // При докачке дельту не строим
+            } else if (transfer.unpacker != null) {
+                transfer.basisReady = true; // Пакет целиком у нас не хранится, дельте не с чем сравнивать
+            } else {
+                prepareBasis(transfer);
+            }
+            if (transfer.unpacker != null) {
+                synchronized (transfer) {
+                    scheduleUnpack(transfer); // При докачке распаковываем то, что уже принято
+                }
+            } else if (swarmEnabled && totalChunks >= SWARM_MIN_CHUNKS && merkleRoot.length == MerkleTree.HASH_SIZE) {
+                startSwarm(transfer);
+            }
+
+            // Отправляем подтверждение (ACK) для заголовка вместе с картой уже принятых чанков
+            sendAck(senderIp, transferId, 0, transfer.journal.bitmap());
+
+            if (transfer.journal.isResumed()) {
+                appLog.log("RUDP: [#" + transferId + "] Заголовок получен для '" + fileName + "'. Докачка: уже есть "
+                        + transfer.journal.receivedCount() + " из " + totalChunks + " чанков. Отправлен ACK #0.");
+            } else {
+                appLog.log("RUDP: [#" + transferId + "] Заголовок получен для '" + fileName + "'. Ожидается " + totalChunks + " чанков. Отправлен ACK #0.");
+            }
+            listener.onReceiveStarted(fileName, transfer.journal.isResumed());
+
+        } catch (Exception e) {
+            appLog.log("RUDP ERROR: Не удалось обработать заголовок", e);
+            if (transfer != null) closeReceive(transfer);
+        }
+    }
+
+    private boolean isReceivingFileName(String fileName) {
+        for (IncomingTransfer transfer : activeReceives.values()) {
+            if (transfer.fileName.equals(fileName)) return true;
+        }
+        return false;
+    }
+
+    /** Закрывает приемы, от которых давно ничего не приходило. Журнал остается для докачки. */
+    private void dropIdleReceives() {
+        long now = System.currentTimeMillis();
+        for (IncomingTransfer transfer : new ArrayList<>(activeReceives.values())) {
+            if (now - transfer.lastActivity > RECEIVE_IDLE_TIMEOUT_MS) {
+                appLog.log("RUDP: [#" + transfer.id + "] Прием '" + transfer.fileName + "' прерван по таймауту, прогресс сохранен.");
+                closeReceive(transfer);
+            }
+        }
+    }
+
+    private void handleFileChunk(byte[] payload, String senderIp) {
+        if (payload.length < 8) return;
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int transferId = buffer.getInt();
+        IncomingTransfer transfer = activeReceives.get(receiveKey(senderIp, transferId));
+        if (transfer == null) return;
+
+        synchronized (transfer) {
+            if (transfer.finished) return;
+            try {
+                transfer.lastActivity = System.currentTimeMillis();
+                int sequenceNumber = buffer.getInt();
+                int chunkIndex = sequenceNumber - 1;
+                if (chunkIndex < 0 || chunkIndex >= transfer.journal.totalChunks) return;
+
+                if (!transfer.journal.isReceived(chunkIndex)) {
+                    int expectedCrc = buffer.getInt();
+                    if (!storeChunk(transfer, chunkIndex, payload, buffer.position(), buffer.remaining(), expectedCrc)) return;
+                } else {
+                    transfer.stats.onPacket(true); // Дубликат
+                }
+                acknowledgeChunk(transfer, chunkIndex);
+            } catch (Exception e) {
+                appLog.log("RUDP ERROR: [#" + transferId + "] Не удалось обработать чанк", e);
+            }
+        }
+    }
+
+    /** Сжатый чанк: распаковываем и дальше обрабатываем как обычный, CRC сверяется по исходным данным. */
+    private void handleFileCompressedChunk(byte[] payload, String senderIp) {
+        if (payload.length < 13) return;
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int transferId = buffer.getInt();
+        IncomingTransfer transfer = activeReceives.get(receiveKey(senderIp, transferId));
+        if (transfer == null) return;
+
+        synchronized (transfer) {
+            if (transfer.finished) return;
+            try {
+                transfer.lastActivity = System.currentTimeMillis();
+                int sequenceNumber = buffer.getInt();
+                int chunkIndex = sequenceNumber - 1;
+                if (chunkIndex < 0 || chunkIndex >= transfer.journal.totalChunks) return;
+
+                if (!transfer.journal.isReceived(chunkIndex)) {
+                    int expectedCrc = buffer.getInt();
+                    byte codec = buffer.get();
+                    int chunkLength = transfer.chunkLength(chunkIndex);
+                    // Свой массив на чанк: по нему асинхронно считается лист Меркла
+                    byte[] chunk = new byte[chunkLength];
+                    long start = System.nanoTime();
+                    int length;
+                    try {
+                        length = ChunkCompressor.decompress(codec, payload, buffer.position(), buffer.remaining(), chunk, chunkLength);
+                    } catch (IOException e) {
+                        appLog.log("RUDP WARN: [#" + transfer.id + "] Чанк #" + sequenceNumber + " не распаковался, запрошен повторно.");
+                        sendNack(senderIp, transferId, new int[]{chunkIndex});
+                        return;
+                    }
+                    transfer.decompressNanos += System.nanoTime() - start;
+                    if (!storeChunk(transfer, chunkIndex, chunk, 0, length, expectedCrc)) return;
+                    transfer.compressedBytesSaved += chunkLength - buffer.remaining();
+                } else {
+                    transfer.stats.onPacket(true); // Дубликат
+                }
+                acknowledgeChunk(transfer, chunkIndex);
+            } catch (Exception e) {
+                appLog.log("RUDP ERROR: [#" + transferId + "] Не удалось обработать сжатый чанк", e);
+            }
+        }
+    }
+
+    /**
+     * Проверяет CRC32C и длину, пишет чанк по смещению и отмечает его в журнале.
+     * false — чанк испорчен и уже перезапрошен. Вызывается под synchronized (transfer).
+     */
+    private boolean storeChunk(IncomingTransfer transfer, int chunkIndex, byte[] data, int offset, int length, int expectedCrc) throws IOException {
+        // Проверяем CRC32C до записи: испорченный чанк сразу перезапрашиваем
+        transfer.crc.reset();
+        transfer.crc.update(data, offset, length);
+        if ((int) transfer.crc.getValue() != expectedCrc || length != transfer.chunkLength(chunkIndex)) {
+            appLog.log("RUDP WARN: [#" + transfer.id + "] Чанк #" + (chunkIndex + 1) + " поврежден (CRC32C), запрошен повторно.");
+            sendNack(transfer.senderIp, transfer.id, new int[]{chunkIndex});
+            return false;
+        }
+
+        // Пишем по смещению: порядок прихода чанков не важен
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+        long position = (long) chunkIndex * transfer.chunkSize;
+        while (buffer.hasRemaining()) {
+            position += transfer.channel.write(buffer, position);
+        }
+        transfer.journal.markReceived(chunkIndex);
+        transfer.stats.onPacket(false);
+        transfer.stats.addDone(length);
+        // Лист Меркла считаем в пуле по данным, которые уже в памяти
+        transfer.pendingHashes.put(chunkIndex, hashExecutor.submit(() ->
+                transfer.leafHashes[chunkIndex] = MerkleTree.leafHash(data, offset, length)));
+        if (transfer.journal.shouldSync()) syncJournal(transfer);
+        if (transfer.unpacker != null) scheduleUnpack(transfer);
+        if (transfer.swarm != null) transfer.swarm.onChunk(transfer.senderIp, chunkIndex, System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * Пакет: сдвигает непрерывно принятое начало файла и, если распаковка не идет, запускает ее
+     * в фоне. Вызывается под synchronized (transfer); сама распаковка блокировку не держит.
+     */
+    private void scheduleUnpack(IncomingTransfer transfer) {
+        while (transfer.contiguousChunks < transfer.journal.totalChunks && transfer.journal.isReceived(transfer.contiguousChunks)) {
+            transfer.contiguousChunks++;
+        }
+        transfer.unpackAvailable.set(Math.min(transfer.fileSize, (long) transfer.contiguousChunks * transfer.chunkSize));
+        if (transfer.unpackRunning.compareAndSet(false, true)) fileExecutor.execute(() -> runUnpack(transfer));
+    }
+
+    private void runUnpack(IncomingTransfer transfer) {
+        while (true) {
+            long available = transfer.unpackAvailable.get();
+            try {
+                if (!transfer.finished) {
+                    int count = transfer.unpacker.advance(available);
+                    if (count > 0) {
+                        appLog.log("RUDP: [#" + transfer.id + "] Пакет: распаковано записей: " + count
+                                + " (" + available + " из " + transfer.fileSize + " байт)");
+                    }
+                }
+            } catch (IOException e) {
+                // Повторим при следующем чанке; окончательную ошибку покажет сборка в handleFileEnd
+                if (!transfer.finished) appLog.log("RUDP WARN: [#" + transfer.id + "] Не удалось распаковать запись пакета", e);
+            }
+            transfer.unpackRunning.set(false);
+            // Пока распаковывали, могли прийти новые чанки — тогда продолжаем сами
+            if (transfer.unpackAvailable.get() == available || !transfer.unpackRunning.compareAndSet(false, true)) return;
+        }
+    }
+
+    /** Пакет: дораспаковывает хвост и переносит записи из staging в папку полученных файлов. */
+    private List<File> finishBatch(IncomingTransfer transfer) throws IOException {
+        BatchUnpacker unpacker = transfer.unpacker;
+        unpacker.advance(transfer.fileSize);
+        if (!unpacker.isDone()) throw new IOException("пакет оборван");
+
+        File storageDir = context.getExternalFilesDir(null);
+        List<File> files = new ArrayList<>();
+        for (String path : unpacker.entries()) {
+            File staged = BatchUnpacker.resolve(unpacker.stagingDir, path);
+            File target = BatchUnpacker.resolve(storageDir, path);
+            File parent = target.getParentFile();
+            if (parent != null && !parent.isDirectory()) parent.mkdirs();
+            if (target.exists()) target.delete();
+            if (!staged.renameTo(target)) throw new IOException("не удалось переместить '" + path + "'");
+            files.add(target);
+        }
+        BatchUnpacker.deleteRecursively(unpacker.stagingDir);
+        return files;
+    }
+
+    private void acknowledgeChunk(IncomingTransfer transfer, int chunkIndex) {
+        // ACK отправляем и на дубликаты: значит, наш прошлый ACK потерялся
+        sendAck(transfer.senderIp, transfer.id, chunkIndex + 1, null);
+
+        // Запоздавший чанк мог стать последним недостающим для восстановления блока
+        Map.Entry<Integer, FecBlock> block = transfer.fecBlocks.floorEntry(chunkIndex);
+        if (block != null && chunkIndex < block.getKey() + block.getValue().dataCount) {
+            tryRecoverBlock(transfer, block.getValue());
+        }
+    }
+
+    private void handleFileEnd(byte[] payload, String senderIp) {
+        if (payload.length < 4) return;
+        int transferId = ByteBuffer.wrap(payload).getInt();
+        String key = receiveKey(senderIp, transferId);
+        if (completedReceives.contains(key)) {
+            // Наш COMPLETE потерялся — подтверждаем еще раз
+            sendAck(senderIp, transferId, COMPLETE_SEQUENCE, null);
+            return;
+        }
+        IncomingTransfer transfer = activeReceives.get(key);
+        if (transfer == null) return;
+
+        synchronized (transfer) {
+            if (transfer.finished) return;
+            transfer.lastActivity = System.currentTimeMillis();
+
+            // Чанки, снятые проверкой Меркла, еще не пришли заново — напоминаем о них
+            if (!transfer.journal.isComplete()) {
+                sendNack(senderIp, transferId, transfer.journal.missingChunks(MAX_NACKS_PER_PACKET));
+                return;
+            }
+
+            byte[] root;
+            try {
+                root = MerkleTree.root(awaitLeafHashes(transfer));
+            } catch (Exception e) {
+                appLog.log("RUDP ERROR: [#" + transferId + "] Не удалось посчитать корень Меркла", e);
+                return;
+            }
+            if (!Arrays.equals(root, transfer.journal.fileHash)) {
+                // Сверяем листья с отправителем постранично; ответы обработает handleMerkleLeaves
+                appLog.log("RUDP WARN: [#" + transferId + "] Корень Меркла не совпал, сверяем листья с отправителем.");
+                for (int from = 0; from < transfer.leafHashes.length; from += MERKLE_PAGE_SIZE) {
+                    ByteBuffer request = ByteBuffer.allocate(12).putInt(transferId).putInt(from).putInt(MERKLE_PAGE_SIZE);
+                    transport.sendData(senderIp, MESSAGE_TYPE_FILE_MERKLE_REQUEST, request.array());
+                }
+                return;
+            }
+
+            transfer.finished = true;
+            appLog.log("RUDP: [#" + transfer.id + "] Получен сигнал о завершении передачи, корень Меркла совпал.");
+
+            File receivedFile = new File(context.getExternalFilesDir(null), transfer.fileName);
+            String failReason = null;
+
+            try {
+                transfer.channel.force(false);
+            } catch (IOException e) {
+                appLog.log("RUDP WARN: Не удалось сбросить файл на диск", e);
+            }
+
+            if (transfer.partFile.length() != transfer.fileSize) {
+                failReason = "неверный итоговый размер (ожидалось: " + transfer.fileSize + ", по факту: " + transfer.partFile.length() + ")";
+            }
+
+            List<File> batchFiles = null;
+            if (failReason == null && transfer.unpacker != null) {
+                try {
+                    batchFiles = finishBatch(transfer);
+                } catch (IOException e) {
+                    failReason = "не удалось распаковать пакет: " + e.getMessage();
+                }
+            }
+
+            closeFile(transfer);
+            if (failReason == null && batchFiles != null) {
+                transfer.partFile.delete();
+            } else if (failReason == null) {
+                if (receivedFile.exists()) receivedFile.delete();
+                if (!transfer.partFile.renameTo(receivedFile)) {
+                    failReason = "не удалось переместить файл из " + transfer.partFile.getName();
+                }
+            }
+
+            activeReceives.remove(transfer.key);
+            TransferTelemetry.get().unregister(transfer.stats);
+            if (failReason == null) {
+                transfer.journal.delete();
+                completedReceives.add(key);
+                sendAck(senderIp, transferId, COMPLETE_SEQUENCE, null);
+                if (batchFiles != null) {
+                    appLog.log("RUDP: [#" + transfer.id + "] Пакет '" + transfer.fileName + "' распакован: " + batchFiles.size() + " файлов.");
+                    for (File file : batchFiles) {
+                        indexReceivedFile(transfer, file, null);
+                        listener.onFileReceived(file);
+                    }
+                } else {
+                    appLog.log("RUDP: [#" + transfer.id + "] Файл '" + transfer.fileName + "' собран успешно!");
+                    registerContent(transfer, receivedFile);
+                    indexReceivedFile(transfer, receivedFile, transfer.journal.fileHash);
+                    listener.onFileReceived(receivedFile);
+                }
+                if (transfer.swarm != null) logSwarmStats(transfer);
+                if (transfer.compressedBytesSaved > 0) {
+                    appLog.log("RUDP: [#" + transfer.id + "] Сжатие сэкономило " + transfer.compressedBytesSaved
+                            + " байт, распаковка " + transfer.decompressNanos / 1_000_000 + " мс.");
+                }
+            } else {
+                appLog.log("RUDP ERROR: [#" + transfer.id + "] Сборка файла '" + transfer.fileName + "' не удалась. Причина: " + failReason);
+                transfer.journal.delete();
+                if (transfer.partFile.exists()) transfer.partFile.delete();
+                if (transfer.unpacker != null) BatchUnpacker.deleteRecursively(transfer.unpacker.stagingDir);
+                listener.onReceiveFailed(transfer.fileName, failReason);
+            }
+        }
+    }
+
+    /** Принимает чанк четности и, если потерь в блоке не больше, чем четности, восстанавливает их. */
+    private void handleFileParity(byte[] payload, String senderIp) {
+        if (payload.length < PARITY_HEADER_SIZE) return;
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int transferId = buffer.getInt();
+        IncomingTransfer transfer = activeReceives.get(receiveKey(senderIp, transferId));
+        if (transfer == null) return;
+
+        synchronized (transfer) {
+            if (transfer.finished) return;
+            transfer.lastActivity = System.currentTimeMillis();
+            int firstIndex = buffer.getInt() - 1;
+            int dataCount = buffer.get() & 0xFF;
+            int parityCount = buffer.get() & 0xFF;
+            int parityIndex = buffer.get() & 0xFF;
+            byte code = buffer.get();
+            int expectedCrc = buffer.getInt();
+            if (code != FEC_CODE_XOR && code != FEC_CODE_REED_SOLOMON) return;
+            FecCodec codec = receiveCodec(transfer, code);
+            if (dataCount < 1 || dataCount > codec.maxDataShards()
+                    || parityCount < 1 || parityCount > codec.maxParityShards() || parityIndex >= parityCount
+                    || firstIndex < 0 || firstIndex + dataCount > transfer.journal.totalChunks
+                    || buffer.remaining() != transfer.chunkSize) return;
+            transfer.crc.reset();
+            transfer.crc.update(payload, PARITY_HEADER_SIZE, transfer.chunkSize);
+            if ((int) transfer.crc.getValue() != expectedCrc) return; // Испорченную четность просто не используем
+
+            FecBlock block = transfer.fecBlocks.get(firstIndex);
+            if (block == null || block.dataCount != dataCount || block.parityCount != parityCount || block.code != code) {
+                block = new FecBlock(firstIndex, dataCount, parityCount, code);
+                transfer.fecBlocks.put(firstIndex, block);
+                // Старые блоки без шанса на восстановление досылаются по таймауту отправителя
+                if (transfer.fecBlocks.size() > MAX_FEC_BLOCKS) transfer.fecBlocks.pollFirstEntry();
+            }
+            if (block.parityPackets[parityIndex] == null) {
+                block.parityPackets[parityIndex] = payload;
+                block.parityReceived++;
+            }
+            tryRecoverBlock(transfer, block);
+        }
+    }
+
+    /** Собирает недостающие чанки блока из четности, если ее хватает. Вызывается под synchronized (transfer). */
+    private void tryRecoverBlock(IncomingTransfer transfer, FecBlock block) {
+        int missing = 0;
+        for (int i = 0; i < block.dataCount; i++) {
+            if (!transfer.journal.isReceived(block.firstIndex + i)) missing++;
+        }
+        if (missing == 0) {
+            transfer.fecBlocks.remove(block.firstIndex);
+            return;
+        }
+        if (missing > block.parityReceived) return; // Ждем еще четность или повтор чанков
+
+        FecCodec codec = receiveCodec(transfer, block.code);
+        byte[][] shards = transfer.fecShards;
+        boolean[] present = transfer.fecPresent;
+        try {
+            // Полученные чанки читаем с диска, хвост короткого чанка дополняется нулями
+            for (int i = 0; i < block.dataCount; i++) {
+                int chunkIndex = block.firstIndex + i;
+                present[i] = transfer.journal.isReceived(chunkIndex);
+                if (present[i]) readChunk(transfer, chunkIndex, shards[i]);
+            }
+            for (int p = 0; p < block.parityCount; p++) {
+                byte[] packet = block.parityPackets[p];
+                present[block.dataCount + p] = packet != null;
+                if (packet != null) System.arraycopy(packet, PARITY_HEADER_SIZE, shards[block.dataCount + p], 0, transfer.chunkSize);
+            }
+            if (!codec.decode(shards, present, block.dataCount, block.parityCount)) return;
+
+            List<Integer> recovered = new ArrayList<>();
+            for (int i = 0; i < block.dataCount; i++) {
+                int chunkIndex = block.firstIndex + i;
+                if (transfer.journal.isReceived(chunkIndex)) continue;
+                int length = transfer.chunkLength(chunkIndex);
+                ByteBuffer data = ByteBuffer.wrap(shards[i], 0, length);
+                long position = (long) chunkIndex * transfer.chunkSize;
+                while (data.hasRemaining()) {
+                    position += transfer.channel.write(data, position);
+                }
+                transfer.journal.markReceived(chunkIndex);
+                transfer.stats.addDone(length);
+                if (transfer.unpacker != null) scheduleUnpack(transfer);
+                if (transfer.swarm != null) transfer.swarm.onChunk(transfer.senderIp, chunkIndex, System.currentTimeMillis());
+                // Буфер декодера переиспользуется, поэтому лист считаем сразу, а не в пуле
+                transfer.leafHashes[chunkIndex] = MerkleTree.leafHash(shards[i], 0, length);
+                sendAck(transfer.senderIp, transfer.id, chunkIndex + 1, new byte[]{ACK_FLAG_FEC_RECOVERED});
+                recovered.add(chunkIndex + 1);
+            }
+            transfer.fecBlocks.remove(block.firstIndex);
+            if (transfer.journal.shouldSync()) syncJournal(transfer);
+            appLog.log("RUDP: [#" + transfer.id + "] FEC восстановил чанки " + recovered + " без повторной отправки.");
+        } catch (IOException e) {
+            appLog.log("RUDP ERROR: [#" + transfer.id + "] Не удалось восстановить блок FEC", e);
+        }
+    }
+
+    /** Декодер и его буферы создаются при первой четности и живут до конца приема. */
+    private static FecCodec receiveCodec(IncomingTransfer transfer, byte code) {
+        if (transfer.fecCodec == null || codeOf(transfer.fecCodec) != code) {
+            transfer.fecCodec = code == FEC_CODE_REED_SOLOMON
+                    ? new ReedSolomonCodec(transfer.chunkSize) : new XorParityCodec(transfer.chunkSize);
+        }
+        if (transfer.fecShards == null) transfer.fecShards = new byte[transfer.fecPresent.length][];
+        int shardCount = transfer.fecCodec.maxDataShards() + transfer.fecCodec.maxParityShards();
+        for (int i = 0; i < shardCount; i++) {
+            if (transfer.fecShards[i] == null) transfer.fecShards[i] = new byte[transfer.chunkSize];
+        }
+        return transfer.fecCodec;
+    }
+
+    private static void readChunk(IncomingTransfer transfer, int chunkIndex, byte[] target) throws IOException {
+        int length = transfer.chunkLength(chunkIndex);
+        ByteBuffer data = ByteBuffer.wrap(target, 0, length);
+        long position = (long) chunkIndex * transfer.chunkSize;
+        while (data.hasRemaining()) {
+            if (transfer.channel.read(data, position + data.position()) < 0) {
+                throw new IOException("Чанк #" + (chunkIndex + 1) + " короче ожидаемого");
+            }
+        }
+        Arrays.fill(target, length, target.length, (byte) 0);
+    }
+
+    /** Сравнивает страницу листьев отправителя со своими и перезапрашивает только несовпавшие чанки. */
+    private void handleMerkleLeaves(byte[] payload, String senderIp) {
+        if (payload.length < 12) return;
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int transferId = buffer.getInt();
+        IncomingTransfer transfer = activeReceives.get(receiveKey(senderIp, transferId));
+        if (transfer == null) return;
+
+        synchronized (transfer) {
+            if (transfer.finished) return;
+            int from = buffer.getInt();
+            int count = buffer.getInt();
+            if (from < 0 || count < 0 || from + count > transfer.leafHashes.length
+                    || buffer.remaining() < count * MerkleTree.HASH_SIZE) return;
+
+            List<Integer> corrupted = new ArrayList<>();
+            byte[] expected = new byte[MerkleTree.HASH_SIZE];
+            for (int i = from; i < from + count; i++) {
+                buffer.get(expected);
+                byte[] actual = transfer.leafHashes[i];
+                if (transfer.journal.isReceived(i) && actual != null && !Arrays.equals(actual, expected)) {
+                    transfer.journal.markMissing(i);
+                    transfer.stats.addDone(-transfer.chunkLength(i));
+                    transfer.leafHashes[i] = null;
+                    corrupted.add(i);
+                    if (transfer.unpacker != null) {
+                        // Распакованное из этого чанка уже не проверено: распакуем заново, когда он придет
+                        transfer.contiguousChunks = Math.min(transfer.contiguousChunks, i);
+                        transfer.unpacker.rewind((long) i * transfer.chunkSize);
+                    }
+                    if (transfer.swarm != null) transfer.swarm.onChunkLost(i);
+                }
+            }
+            if (corrupted.isEmpty()) return;
+
+            appLog.log("RUDP WARN: [#" + transferId + "] Испорчены чанки " + corrupted + ", запрошены повторно.");
+            int[] indexes = new int[corrupted.size()];
+            for (int i = 0; i < indexes.length; i++) indexes[i] = corrupted.get(i);
+            sendNack(senderIp, transferId, indexes);
+        }
+    }
+
+    /** Считает листья для чанков, принятых в прошлой сессии (при докачке их данных нет в памяти). */
+    private void hashStoredChunks(IncomingTransfer transfer) {
+        for (int i = 0; i < transfer.leafHashes.length; i++) {
+            if (!transfer.journal.isReceived(i) || transfer.pendingHashes.containsKey(i)) continue;
+            final int chunkIndex = i;
+            transfer.pendingHashes.put(chunkIndex, hashExecutor.submit(() -> {
+                ByteBuffer data = ByteBuffer.allocate(transfer.chunkLength(chunkIndex));
+                long position = (long) chunkIndex * transfer.chunkSize;
+                while (data.hasRemaining()) {
+                    int read = transfer.channel.read(data, position + data.position());
+                    if (read < 0) break;
+                }
+                transfer.leafHashes[chunkIndex] = MerkleTree.leafHash(data.array(), 0, data.position());
+                return null;
+            }));
+        }
+    }
+
+    private byte[][] awaitLeafHashes(IncomingTransfer transfer) throws Exception {
+        for (Future<?> future : transfer.pendingHashes.values()) future.get();
+        transfer.pendingHashes.clear();
+        return transfer.leafHashes;
+    }
+
+    /** Сохраняет прогресс: сначала данные чанков, затем журнал, который на них ссылается. */
+    private void syncJournal(IncomingTransfer transfer) {
+        try {
+            transfer.channel.force(false);
+            transfer.journal.sync();
+        } catch (IOException e) {
+            appLog.log("RUDP WARN: [#" + transfer.id + "] Не удалось сохранить журнал докачки", e);
+        }
+    }
+
+    private void closeFile(IncomingTransfer transfer) {
+        try {
+            transfer.partRandomAccessFile.close();
+            if (transfer.basisRandomAccessFile != null) transfer.basisRandomAccessFile.close();
+        } catch (IOException e) {
+            appLog.log("RUDP WARN: Не удалось закрыть поток файла при сбросе состояния", e);
+        }
+        transfer.basisChannel = null;
+        if (transfer.swarm != null) swarmSessions.remove(transfer.swarmSession);
+    }
+
+    /** Закрывает прием без удаления: недокачанный файл и журнал остаются до повторного заголовка. */
+    private void closeReceive(IncomingTransfer transfer) {
+        synchronized (transfer) {
+            if (!transfer.finished) {
+                transfer.finished = true;
+                syncJournal(transfer);
+                closeFile(transfer);
+            }
+            activeReceives.remove(transfer.key);
+            TransferTelemetry.get().unregister(transfer.stats);
+        }
+    }
+
+    public void shutdown() {
+        cancelAllSends();
+        for (IncomingTransfer transfer : new ArrayList<>(activeReceives.values())) closeReceive(transfer);
+        fileExecutor.shutdownNow();
+        hashExecutor.shutdownNow();
+    }
+
+    // --- Дельта-передача ---
+
+    /**
+     * Если у получателя уже есть файл с тем же именем, чанки, которые целиком в нем находятся,
+     * отправляются инструкциями копирования вместо данных.
+     */
+    private void planDelta(OutgoingTransfer transfer) throws InterruptedException, IOException {
+        DeltaSignature basis = fetchBasisSignature(transfer);
+        if (basis == null) return;
+
+        DeltaSignature own;
+        try (InputStream inputStream = transfer.fileChunks.openStream()) {
+            own = DeltaSignature.compute(inputStream);
+        }
+        for (Map.Entry<Integer, long[]> copy : own.planCopies(basis, CHUNK_SIZE).entrySet()) {
+            transfer.copyPlan.put(copy.getKey() + 1, copy.getValue());
+        }
+        appLog.log("RUDP: [#" + transfer.id + "] Дельта: у получателя есть прошлая версия файла, "
+                + transfer.copyPlan.size() + " из " + transfer.fileChunks.count() + " чанков будут собраны из нее.");
+    }
+
+    /** Забирает у получателя сигнатуру его версии файла. null — версии нет или получатель не знает дельту. */
+    @Nullable
+    private DeltaSignature fetchBasisSignature(OutgoingTransfer transfer) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DELTA_SIGNATURE_TIMEOUT_MS;
+        long nextRequest = 0;
+        int probes = 0;
+        synchronized (transfer) {
+            while (transfer.active.get()) {
+                if (transfer.basisEntries == 0) return null;
+                DeltaSignature basis = transfer.basisSignature;
+                if (basis != null && transfer.basisPages.cardinality() == signaturePageCount(basis.size())) return basis;
+
+                long now = System.currentTimeMillis();
+                if (now >= deadline) break;
+                if (now >= nextRequest) {
+                    // Старый получатель молчит на запрос — после нескольких попыток шлем файл целиком
+                    if (transfer.basisEntries == BASIS_UNKNOWN && probes++ == DELTA_PROBE_ATTEMPTS) return null;
+                    requestSignaturePages(transfer);
+                    nextRequest = now + RUDP_TIMEOUT_MS;
+                }
+                transfer.wait(Math.max(1, nextRequest - now));
+            }
+        }
+        appLog.log("RUDP: [#" + transfer.id + "] Сигнатура не получена, файл отправляется целиком.");
+        return null;
+    }
+
+    /** Запрашивает недостающие страницы сигнатуры. Вызывается под synchronized (transfer). */
+    private void requestSignaturePages(OutgoingTransfer transfer) {
+        int pageCount = transfer.basisSignature != null ? signaturePageCount(transfer.basisSignature.size()) : 1;
+        for (int page = 0; page < pageCount; page++) {
+            if (transfer.basisPages.get(page)) continue;
+            ByteBuffer request = ByteBuffer.allocate(12).putInt(transfer.id).putInt(page * SIGNATURE_PAGE_SIZE).putInt(SIGNATURE_PAGE_SIZE);
+            transport.sendData(transfer.targetIp, MESSAGE_TYPE_FILE_SIGNATURE_REQUEST, request.array());
+        }
+    }
+
+    private static int signaturePageCount(int entries) {
+        return (entries + SIGNATURE_PAGE_SIZE - 1) / SIGNATURE_PAGE_SIZE;
+    }
+
+    /** Страница сигнатуры от получателя: [tid][размер базы][всего записей][с какой][сколько][записи]. */
+    private void handleSignature(byte[] payload) {
+        if (payload.length < 24) return;
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        OutgoingTransfer transfer = activeSends.get(buffer.getInt());
+        if (transfer == null) return;
+
+        long basisSize = buffer.getLong();
+        int total = buffer.getInt();
+        int from = buffer.getInt();
+        int count = buffer.getInt();
+        synchronized (transfer) {
+            if (total <= 0) { // Базы нет или она еще считается
+                if (transfer.basisSignature == null) transfer.basisEntries = total;
+                transfer.notifyAll();
+                return;
+            }
+            if (transfer.basisSignature == null) {
+                // Поддельное число записей не должно выделить под сигнатуру сколько угодно памяти
+                if (!DeltaSignature.isPlausible(basisSize, total)) return;
+                transfer.basisEntries = total;
+                transfer.basisSignature = DeltaSignature.forPages(basisSize, total);
+            }
+            if (total != transfer.basisSignature.size() || from < 0 || from >= total || from % SIGNATURE_PAGE_SIZE != 0
+                    || count != Math.min(SIGNATURE_PAGE_SIZE, total - from)
+                    || buffer.remaining() < count * DeltaSignature.ENTRY_SIZE) return;
+            int page = from / SIGNATURE_PAGE_SIZE;
+            if (!transfer.basisPages.get(page)) {
+                transfer.basisSignature.readEntries(buffer, from, count);
+                transfer.basisPages.set(page);
+            }
+            transfer.notifyAll();
+        }
+    }
+
+    /** Открывает версию файла, которая уже лежит у нас, и готовит ее сигнатуру (из кэша, если файл не менялся). */
+    private void prepareBasis(IncomingTransfer transfer) {
+        File basisFile = new File(context.getExternalFilesDir(null), transfer.fileName);
+        if (!basisFile.isFile() || basisFile.length() == 0) {
+            transfer.basisReady = true;
+            return;
+        }
+        fileExecutor.execute(() -> {
+            RandomAccessFile basis = null;
+            try {
+                basis = new RandomAccessFile(basisFile, "r");
+                DeltaSignature signature = DeltaSignature.loadOrCompute(basisFile, getSignatureCacheDir());
+                synchronized (transfer) {
+                    if (!transfer.finished) {
+                        transfer.basisRandomAccessFile = basis;
+                        transfer.basisChannel = basis.getChannel();
+                        transfer.basisSignature = signature;
+                        basis = null;
+                    }
+                }
+            } catch (IOException e) {
+                appLog.log("RUDP WARN: [#" + transfer.id + "] Не удалось подготовить сигнатуру '" + transfer.fileName + "'", e);
+            } finally {
+                transfer.basisReady = true;
+                if (basis != null) {
+                    try {
+                        basis.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        });
+    }
+
+    /** Отдает страницу сигнатуры нашей версии файла; пока она считается, отвечает SIGNATURE_PENDING. */
+    private void handleSignatureRequest(byte[] payload, String senderIp) {
+        if (payload.length < 12) return;
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int transferId = buffer.getInt();
+        IncomingTransfer transfer = activeReceives.get(receiveKey(senderIp, transferId));
+        if (transfer == null) return;
+
+        int from = buffer.getInt();
+        DeltaSignature signature = transfer.basisSignature;
+        int total = !transfer.basisReady ? SIGNATURE_PENDING : signature == null ? 0 : signature.size();
+        int count = total > 0 && from >= 0 && from < total ? Math.min(SIGNATURE_PAGE_SIZE, total - from) : 0;
+
+        ByteBuffer response = ByteBuffer.allocate(24 + count * DeltaSignature.ENTRY_SIZE);
+        response.putInt(transferId).putLong(signature != null ? signature.fileSize : 0).putInt(total).putInt(from).putInt(count);
+        if (count > 0) signature.writeEntries(response, from, count);
+        transport.sendData(senderIp, MESSAGE_TYPE_FILE_SIGNATURE, response.array());
+    }
+
+    /** Чанк, который получатель собирает из своей версии файла: [tid][seq][crc][число кусков][(смещение, длина)...]. */
+    private void handleFileCopy(byte[] payload, String senderIp) {
+        if (payload.length < 16) return;
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int transferId = buffer.getInt();
+        IncomingTransfer transfer = activeReceives.get(receiveKey(senderIp, transferId));
+        if (transfer == null) return;
+
+        synchronized (transfer) {
+            if (transfer.finished) return;
+            try {
+                transfer.lastActivity = System.currentTimeMillis();
+                int sequenceNumber = buffer.getInt();
+                int chunkIndex = sequenceNumber - 1;
+                if (chunkIndex < 0 || chunkIndex >= transfer.journal.totalChunks) return;
+
+                if (!transfer.journal.isReceived(chunkIndex)) {
+                    int expectedCrc = buffer.getInt();
+                    byte[] data = readFromBasis(transfer, buffer, buffer.getInt(), transfer.chunkLength(chunkIndex));
+                    if (data == null) {
+                        // Нашей версии файла уже нет или инструкция не подходит — просим данные
+                        sendNack(senderIp, transferId, new int[]{chunkIndex});
+                        return;
+                    }
+                    if (!storeChunk(transfer, chunkIndex, data, 0, data.length, expectedCrc)) return;
+                }
+                acknowledgeChunk(transfer, chunkIndex);
+            } catch (Exception e) {
+                appLog.log("RUDP ERROR: [#" + transferId + "] Не удалось собрать чанк из прошлой версии", e);
+            }
+        }
+    }
+
+    @Nullable
+    private static byte[] readFromBasis(IncomingTransfer transfer, ByteBuffer instructions, int segmentCount, int length) throws IOException {
+        FileChannel basis = transfer.basisChannel;
+        if (basis == null || segmentCount < 1 || instructions.remaining() < segmentCount * 12) return null;
+        byte[] data = new byte[length];
+        ByteBuffer target = ByteBuffer.wrap(data);
+        for (int s = 0; s < segmentCount; s++) {
+            long basisOffset = instructions.getLong();
+            int segmentLength = instructions.getInt();
+            if (basisOffset < 0 || segmentLength <= 0 || segmentLength > length - target.position()) return null;
+            int segmentStart = target.position();
+            target.limit(segmentStart + segmentLength);
+            while (target.hasRemaining()) {
+                if (basis.read(target, basisOffset + target.position() - segmentStart) < 0) return null;
+            }
+        }
+        return target.position() == length ? data : null;
+    }
+
+    private File getSignatureCacheDir() {
+        return new File(context.getCacheDir(), SIGNATURE_CACHE_DIR_NAME);
+    }
+
+    // --- Рой: загрузка одного файла сразу с нескольких узлов ---
+
+    /** Спрашивает всю сеть, у кого есть файл с корнем этого приема. Ответы придут в handleSwarmHave. */
+    private void startSwarm(IncomingTransfer transfer) {
+        transfer.swarmSession = nextTransferId.getAndIncrement();
+        transfer.swarm = new SwarmScheduler(transfer.journal, SWARM_SENDER_GUARD_CHUNKS);
+        swarmSessions.put(transfer.swarmSession, transfer);
+        querySwarm(transfer);
+    }
+
+    private void querySwarm(IncomingTransfer transfer) {
+        ByteBuffer query = ByteBuffer.allocate(4 + 8 + MerkleTree.HASH_SIZE);
+        query.putInt(transfer.swarmSession).putLong(transfer.fileSize).put(transfer.journal.fileHash);
+        transport.sendData(BROADCAST_ADDRESS, MESSAGE_TYPE_SWARM_QUERY, query.array());
+    }
+
+    /** Отвечает HAVE, если файл с этим корнем у нас есть целиком или мы его сейчас отправляем. */
+    private void handleSwarmQuery(byte[] payload, String senderIp) {
+        if (payload.length < 4 + 8 + MerkleTree.HASH_SIZE) return;
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int session = buffer.getInt();
+        long size = buffer.getLong();
+        byte[] root = new byte[MerkleTree.HASH_SIZE];
+        buffer.get(root);
+        if (findSendingTransfer(root) == null && contentIndex.lookup(root, size) == null) return;
+        transport.sendData(senderIp, MESSAGE_TYPE_SWARM_HAVE, ByteBuffer.allocate(4).putInt(session).array());
+    }
+
+    private void handleSwarmHave(byte[] payload, String senderIp) {
+        if (payload.length < 4) return;
+        IncomingTransfer transfer = swarmSessions.get(ByteBuffer.wrap(payload).getInt());
+        if (transfer == null || transfer.finished || senderIp.equals(transfer.senderIp)) return;
+        if (!transfer.swarm.addPeer(senderIp, System.currentTimeMillis())) return;
+        appLog.log("RUDP: [#" + transfer.id + "] Рой: у " + senderIp + " есть '" + transfer.fileName + "', качаем и с него.");
+        if (transfer.swarmRunning.compareAndSet(false, true)) fileExecutor.execute(() -> runSwarm(transfer));
+    }
+
+    /** Раздает пирам диапазоны, пока прием не закончится или не останется живых пиров. */
+    private void runSwarm(IncomingTransfer transfer) {
+        long lastQuery = System.currentTimeMillis();
+        try {
+            while (!transfer.finished && !transfer.journal.isComplete() && transfer.swarm.peerCount() > 0) {
+                long now = System.currentTimeMillis();
+                for (SwarmScheduler.Request request : transfer.swarm.plan(now)) {
+                    ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + MerkleTree.HASH_SIZE + 4 + 4);
+                    buffer.putInt(transfer.swarmSession).putLong(transfer.fileSize).put(transfer.journal.fileHash)
+                            .putInt(request.first).putInt(request.count);
+                    transport.sendData(request.peer.ip, MESSAGE_TYPE_SWARM_REQUEST, buffer.array());
+                }
+                // Новые узлы могли получить файл уже после начала приема
+                if (now - lastQuery >= SWARM_QUERY_INTERVAL_MS) {
+                    querySwarm(transfer);
+                    lastQuery = now;
+                }
+                Thread.sleep(SWARM_TICK_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            transfer.swarmRunning.set(false);
+        }
+    }
+
+    /** Отдает запрошенный диапазон чанков из отправляемого сейчас файла или из принятого ранее. */
+    private void handleSwarmRequest(byte[] payload, String senderIp) {
+        if (payload.length < 4 + 8 + MerkleTree.HASH_SIZE + 8) return;
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int session = buffer.getInt();
+        long size = buffer.getLong();
+        byte[] root = new byte[MerkleTree.HASH_SIZE];
+        buffer.get(root);
+        int first = buffer.getInt();
+        int count = Math.min(buffer.getInt(), SWARM_MAX_REQUEST_CHUNKS);
+        int totalChunks = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        if (first < 0 || count <= 0 || first + count > totalChunks) return;
+
+        OutgoingTransfer sending = findSendingTransfer(root);
+        File file = sending == null ? contentIndex.lookup(root, size) : null;
+        if (sending == null && file == null) return;
+        try (RandomAccessFile source = file != null ? new RandomAccessFile(file, "r") : null) {
+            CRC32C crc = new CRC32C();
+            byte[] data = new byte[CHUNK_SIZE];
+            for (int chunkIndex = first; chunkIndex < first + count; chunkIndex++) {
+                byte[] chunk;
+                int length;
+                if (source != null) {
+                    length = (int) Math.min(CHUNK_SIZE, size - (long) chunkIndex * CHUNK_SIZE);
+                    source.seek((long) chunkIndex * CHUNK_SIZE);
+                    source.readFully(data, 0, length);
+                    chunk = data;
+                } else {
+                    chunk = sending.fileChunks.chunk(chunkIndex);
+                    length = chunk.length;
+                }
+                crc.reset();
+                crc.update(chunk, 0, length);
+                ByteBuffer packet = ByteBuffer.allocate(4 + 4 + 4 + length);
+                packet.putInt(session).putInt(chunkIndex).putInt((int) crc.getValue()).put(chunk, 0, length);
+                transport.sendData(senderIp, MESSAGE_TYPE_SWARM_CHUNK, packet.array());
+            }
+        } catch (IOException e) {
+            appLog.log("RUDP WARN: Рой: не удалось отдать чанки " + first + ".." + (first + count - 1) + " для " + senderIp, e);
+        }
+    }
+
+    private void handleSwarmChunk(byte[] payload, String senderIp) {
+        if (payload.length < 12) return;
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        IncomingTransfer transfer = swarmSessions.get(buffer.getInt());
+        if (transfer == null) return;
+
+        synchronized (transfer) {
+            if (transfer.finished) return;
+            try {
+                transfer.lastActivity = System.currentTimeMillis();
+                int chunkIndex = buffer.getInt();
+                if (chunkIndex < 0 || chunkIndex >= transfer.journal.totalChunks) return;
+                if (!transfer.journal.isReceived(chunkIndex)) {
+                    int expectedCrc = buffer.getInt();
+                    if (!storeChunk(transfer, chunkIndex, payload, buffer.position(), buffer.remaining(), expectedCrc)) return;
+                    // Скорость и доверие пиру — только за новые данные, а не за повторы уже записанного
+                    transfer.swarm.onChunk(senderIp, chunkIndex, System.currentTimeMillis());
+                } else {
+                    transfer.stats.onPacket(true); // Дубликат
+                }
+                // ACK основному отправителю: этот чанк он может уже не слать
+                acknowledgeChunk(transfer, chunkIndex);
+            } catch (Exception e) {
+                appLog.log("RUDP ERROR: [#" + transfer.id + "] Рой: не удалось обработать чанк от " + senderIp, e);
+            }
+        }
+    }
+
+    @Nullable
+    private OutgoingTransfer findSendingTransfer(byte[] root) {
+        for (OutgoingTransfer transfer : activeSends.values()) {
+            FileChunks chunks = transfer.fileChunks;
+            if (transfer.batch == null && chunks != null && Arrays.equals(chunks.merkleRoot, root)) return transfer;
+        }
+        return null;
+    }
+
+    /** Список полученных файлов на экране читает этот индекс, а не папку. */
+    private void indexReceivedFile(IncomingTransfer transfer, File file, @Nullable byte[] hash) {
+        try {
+            receivedFilesIndex.add(file, hash);
+        } catch (IOException e) {
+            appLog.log("RUDP WARN: [#" + transfer.id + "] Не удалось добавить '" + file.getName() + "' в индекс полученных файлов", e);
+        }
+    }
+
+    /** Запоминает принятый файл по корню Меркла, чтобы раздавать его другим узлам. */
+    private void registerContent(IncomingTransfer transfer, File receivedFile) {
+        try {
+            contentIndex.register(transfer.journal.fileHash, receivedFile);
+        } catch (IOException e) {
+            appLog.log("RUDP WARN: [#" + transfer.id + "] Не удалось добавить файл в индекс содержимого", e);
+        }
+    }
+
+    private void logSwarmStats(IncomingTransfer transfer) {
+        List<SwarmScheduler.Peer> peers = transfer.swarm.peers();
+        if (peers.isEmpty()) return;
+        long fromPeers = 0;
+        StringBuilder details = new StringBuilder();
+        for (SwarmScheduler.Peer peer : peers) {
+            fromPeers += peer.received;
+            details.append(", ").append(peer.ip).append(": ").append(peer.received)
+                    .append(String.format(Locale.US, " (%.0f чанк/с)", peer.chunksPerSecond));
+        }
+        appLog.log("RUDP: [#" + transfer.id + "] Рой: от пиров " + fromPeers + " из "
+                + transfer.journal.totalChunks + " чанков" + details);
+    }
+
+    // --- Вспомогательные методы ---
+
+    private File getPartialDir() {
+        File dir = new File(context.getExternalFilesDir(null), PARTIAL_DIR_NAME);
+        if (!dir.exists()) dir.mkdirs();
+        return dir;
+    }
+
+    private FileChunks readFileIntoChunks(OutgoingTransfer transfer) throws IOException, InterruptedException {
+        MappedFile mapped = transfer.batch == null ? mapLocalFile(transfer) : null;
+        if (mapped != null) return hashMappedChunks(mapped);
+
+        List<byte[]> chunks = new ArrayList<>();
+        int[] crcs = new int[16];
+        CRC32C crc = new CRC32C();
+        List<Future<byte[]>> leafFutures = new ArrayList<>();
+        ContentResolver resolver = context.getContentResolver();
+        // Пакет читается одним потоком: записи идут подряд, чанки не выравниваются по границам файлов
+        try (InputStream inputStream = transfer.batch != null ? transfer.batch.open(resolver) : resolver.openInputStream(transfer.uri)) {
+            if (inputStream == null) throw new IOException("Не удалось открыть поток для URI: " + transfer.uri);
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int bytesRead;
+            // Каждый чанк, кроме последнего, ровно CHUNK_SIZE: получатель пишет по смещению (номер * CHUNK_SIZE)
+            while ((bytesRead = readFully(inputStream, buffer)) > 0) {
+                byte[] chunkData = new byte[bytesRead];
+                System.arraycopy(buffer, 0, chunkData, 0, bytesRead);
+                if (chunks.size() == crcs.length) crcs = Arrays.copyOf(crcs, crcs.length * 2);
+                crc.reset();
+                crc.update(chunkData, 0, bytesRead);
+                crcs[chunks.size()] = (int) crc.getValue();
+                chunks.add(chunkData);
+                // Листья считаются на всех ядрах, пока читается следующий чанк
+                leafFutures.add(hashExecutor.submit(() -> MerkleTree.leafHash(chunkData, 0, chunkData.length)));
+            }
+        }
+        byte[][] leaves = new byte[leafFutures.size()][];
+        try {
+            for (int i = 0; i < leaves.length; i++) leaves[i] = leafFutures.get(i).get();
+        } catch (ExecutionException e) {
+            throw new IOException("Не удалось посчитать хеш чанка", e.getCause());
+        }
+        return new FileChunks(chunks, null, leaves, crcs, MerkleTree.root(leaves));
+    }
+
+    /**
+     * Отображает в память файл, который лежит на локальном хранилище. null — у URI нет обычного
+     * файла (поток, сетевой провайдер) или он пуст; такой файл читается потоком, как раньше.
+     */
+    @Nullable
+    private MappedFile mapLocalFile(OutgoingTransfer transfer) {
+        try {
+            ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(transfer.uri, "r");
+            if (descriptor == null) return null;
+            try (FileInputStream input = new ParcelFileDescriptor.AutoCloseInputStream(descriptor)) {
+                if (descriptor.getStatSize() <= 0) return null;
+                return new MappedFile(input.getChannel(), CHUNK_SIZE);
+            }
+        } catch (IOException | RuntimeException e) {
+            appLog.log("RUDP: [#" + transfer.id + "] Файл не отображается в память, читаем потоком: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** Листья Меркла и CRC чанков отображенного файла считаются на всех ядрах прямо по страницам файла. */
+    private FileChunks hashMappedChunks(MappedFile mapped) throws IOException, InterruptedException {
+        int count = mapped.chunkCount;
+        byte[][] leaves = new byte[count][];
+        int[] crcs = new int[count];
+        List<Future<?>> futures = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            futures.add(hashExecutor.submit(() -> {
+                ByteBuffer slice = mapped.slice(index);
+                CRC32C crc = new CRC32C();
+                crc.update(slice.duplicate());
+                crcs[index] = (int) crc.getValue();
+                leaves[index] = MerkleTree.leafHash(slice);
+            }));
+        }
+        try {
+            for (Future<?> future : futures) future.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Не удалось посчитать хеш чанка", e.getCause());
+        }
+        return new FileChunks(null, mapped, leaves, crcs, MerkleTree.root(leaves));
+    }
+
+    private static int readFully(InputStream inputStream, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int read = inputStream.read(buffer, total, buffer.length - total);
+            if (read == -1) break;
+            total += read;
+        }
+        return total;
+    }
+
+    @Nullable
+    private FileDetails getFileDetailsFromUri(@NonNull Uri uri) {
+        ContentResolver resolver = context.getContentResolver();
+        String name = null;
+        long size = -1;
+
+        try (Cursor cursor = resolver.query(uri, null, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                int nameIndex = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
+                if (nameIndex != -1) {
+                    name = cursor.getString(nameIndex);
+                }
+
+                int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+                if (sizeIndex != -1 && !cursor.isNull(sizeIndex)) {
+                    size = cursor.getLong(sizeIndex);
+                }
+            }
+        }
+
+        if (name == null) {
+            name = uri.getLastPathSegment(); // Fallback for name
+        }
+
+        if (size <= 0) { // Fallback for size
+            try (InputStream inputStream = resolver.openInputStream(uri)) {
+                if (inputStream != null) {
+                    size = inputStream.available();
+                }
+            } catch (IOException e) {
+                appLog.log("WARN: Could not determine file size from input stream for " + name, e);
+                return null;
+            }
+        }
+
+        if (name != null && size > 0) {
+            return new FileDetails(name, size);
+        } else {
+            return null;
+        }
+    }
+}
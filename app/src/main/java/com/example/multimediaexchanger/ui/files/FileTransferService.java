@@ -0,0 +1,200 @@
+package com.example.multimediaexchanger.ui.files;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.content.pm.ServiceInfo;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.app.NotificationCompat;
+import androidx.core.content.ContextCompat;
+
+import com.example.multimediaexchanger.MainActivity;
+import com.example.multimediaexchanger.ui.AppLog;
+import com.example.multimediaexchanger.ui.UdpTransport;
+
+import java.io.File;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Хозяин {@link FileTransferManager}: движок передачи живет здесь, а не во фрагменте, поэтому
+ * смена вкладки, поворот экрана или закрытие Activity не обрывают передачу. Пакеты передачи
+ * файлов сервис забирает прямо из потока приема {@link UdpTransport}.
+ * <p>
+ * Пока есть активные передачи, сервис работает в foreground с уведомлением; в остальное время
+ * он живет только пока к нему привязаны экраны. Экраны подписываются на события через
+ * {@link #addListener}.
+ */
+public class FileTransferService extends Service implements FileTransferManager.Listener {
+
+    private static final String CHANNEL_ID = "file_transfers";
+    private static final int NOTIFICATION_ID = 1001;
+    // Как часто перепроверять передачи в foreground: зависший прием должен отпустить сервис
+    private static final long FOREGROUND_RECHECK_MS = 15_000;
+
+    public class LocalBinder extends Binder {
+        public FileTransferService getService() {
+            return FileTransferService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final CopyOnWriteArrayList<FileTransferManager.Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable foregroundRecheck = this::updateForegroundState;
+
+    private UdpTransport transport;
+    private AppLog appLog;
+    private FileTransferManager transferManager;
+    private boolean foreground = false;
+    // Объявлен после transferManager: лямбда читает поле при каждом пакете
+    private final UdpTransport.PacketHandler packetHandler = message -> transferManager.handleMessage(message);
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        appLog = AppLog.get(this);
+        transport = UdpTransport.get();
+        transport.acquire(appLog);
+        transferManager = new FileTransferManager(this, transport, appLog, this);
+        TransferSettings.applyTo(this, transferManager);
+        transport.addHandler(packetHandler);
+        createNotificationChannel();
+        appLog.log("RUDP: Сервис передачи файлов запущен.");
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Запускаемся сами из updateForegroundState; после убийства процесса передачу продолжит докачка
+        return START_NOT_STICKY;
+    }
+
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public void onDestroy() {
+        mainHandler.removeCallbacks(foregroundRecheck);
+        transport.removeHandler(packetHandler);
+        transferManager.shutdown();
+        transport.release();
+        appLog.log("RUDP: Сервис передачи файлов остановлен.");
+        super.onDestroy();
+    }
+
+    public FileTransferManager getTransferManager() {
+        return transferManager;
+    }
+
+    public void addListener(@NonNull FileTransferManager.Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(@NonNull FileTransferManager.Listener listener) {
+        listeners.remove(listener);
+    }
+
+    // --- События движка: раздаем подписчикам и обновляем foreground состояние ---
+
+    @Override
+    public void onSendStateChanged(boolean hasActiveSends) {
+        for (FileTransferManager.Listener listener : listeners) listener.onSendStateChanged(hasActiveSends);
+        postForegroundUpdate();
+    }
+
+    @Override
+    public void onFileSent(String fileName) {
+        for (FileTransferManager.Listener listener : listeners) listener.onFileSent(fileName);
+        postForegroundUpdate();
+    }
+
+    @Override
+    public void onReceiveStarted(String fileName, boolean resumed) {
+        for (FileTransferManager.Listener listener : listeners) listener.onReceiveStarted(fileName, resumed);
+        postForegroundUpdate();
+    }
+
+    @Override
+    public void onFileReceived(File file) {
+        for (FileTransferManager.Listener listener : listeners) listener.onFileReceived(file);
+        postForegroundUpdate();
+    }
+
+    @Override
+    public void onReceiveFailed(String fileName, String reason) {
+        for (FileTransferManager.Listener listener : listeners) listener.onReceiveFailed(fileName, reason);
+        postForegroundUpdate();
+    }
+
+    private void postForegroundUpdate() {
+        mainHandler.post(this::updateForegroundState);
+    }
+
+    /** Выполняется в главном потоке: переводит сервис в foreground и обратно по числу активных передач. */
+    private void updateForegroundState() {
+        mainHandler.removeCallbacks(foregroundRecheck);
+        int sends = transferManager.getActiveSendCount();
+        int receives = transferManager.getActiveReceiveCount();
+
+        if (sends + receives == 0) {
+            if (foreground) {
+                stopForeground(STOP_FOREGROUND_REMOVE);
+                stopSelf(); // Пока экраны привязаны, сервис продолжит жить без foreground
+                foreground = false;
+            }
+            return;
+        }
+
+        Notification notification = buildNotification(sends, receives);
+        if (!foreground) {
+            try {
+                ContextCompat.startForegroundService(this, new Intent(this, FileTransferService.class));
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                    startForeground(NOTIFICATION_ID, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC);
+                } else {
+                    startForeground(NOTIFICATION_ID, notification);
+                }
+                foreground = true;
+            } catch (RuntimeException e) {
+                // Из фона Android 12+ не дает стартовать foreground; передача идет, пока жив процесс
+                appLog.log("RUDP WARN: Не удалось перевести сервис передачи в foreground", e);
+            }
+        } else {
+            NotificationManager manager = getSystemService(NotificationManager.class);
+            if (manager != null) manager.notify(NOTIFICATION_ID, notification);
+        }
+        mainHandler.postDelayed(foregroundRecheck, FOREGROUND_RECHECK_MS);
+    }
+
+    private Notification buildNotification(int sends, int receives) {
+        Intent openApp = new Intent(this, MainActivity.class).setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, openApp, PendingIntent.FLAG_IMMUTABLE);
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(sends > 0 ? android.R.drawable.stat_sys_upload : android.R.drawable.stat_sys_download)
+                .setContentTitle("Передача файлов")
+                .setContentText("Отправка: " + sends + ", прием: " + receives)
+                .setContentIntent(contentIntent)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .build();
+    }
+
+    private void createNotificationChannel() {
+        NotificationChannel channel = new NotificationChannel(CHANNEL_ID, "Передача файлов", NotificationManager.IMPORTANCE_LOW);
+        NotificationManager manager = getSystemService(NotificationManager.class);
+        if (manager != null) manager.createNotificationChannel(channel);
+    }
+}
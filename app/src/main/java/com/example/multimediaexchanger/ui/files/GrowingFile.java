@@ -0,0 +1,107 @@
+package com.example.multimediaexchanger.ui.files;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Файл, который еще дописывается в другом потоке (например, перекодируемое видео), — чтобы
+ * отправку можно было начать, не дожидаясь конца записи.
+ * <p>
+ * Писатель сообщает, какие байты уже окончательные: все от {@link #stableFrom()} до
+ * {@link #length()}. Начало файла до {@code stableFrom} писатель может переписать, поэтому
+ * его читают только после {@link #isFinished()}. Слушатель зовется в потоке писателя после
+ * каждого изменения.
+ */
+public final class GrowingFile {
+
+    private final File file;
+    private long stableFrom = -1; // -1 — еще неизвестно, где кончается изменяемое начало
+    private long length = 0;
+    private boolean finished = false;
+    @Nullable private IOException failure;
+    @Nullable private Runnable listener;
+
+    public GrowingFile(File file) {
+        this.file = file;
+    }
+
+    public File file() {
+        return file;
+    }
+
+    /** С какого смещения байты уже не меняются; -1 — пока неизвестно. */
+    public synchronized long stableFrom() {
+        return stableFrom;
+    }
+
+    /** Сколько байт записано; после {@link #isFinished()} — окончательный размер. */
+    public synchronized long length() {
+        return length;
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /** Бросает ошибку писателя, если запись сорвалась. */
+    public synchronized void checkFailure() throws IOException {
+        if (failure != null) throw new IOException("Запись файла " + file.getName() + " сорвалась", failure);
+    }
+
+    /** Ждет конца записи; бросает ошибку писателя, если запись сорвалась. */
+    public synchronized void awaitFinished() throws IOException, InterruptedException {
+        while (!finished && failure == null) wait();
+        checkFailure();
+    }
+
+    public void setListener(@Nullable Runnable listener) {
+        synchronized (this) {
+            this.listener = listener;
+        }
+        notifyListener();
+    }
+
+    // --- Для писателя ---
+
+    public void setStableFrom(long offset) {
+        synchronized (this) {
+            stableFrom = offset;
+        }
+        notifyListener();
+    }
+
+    public void grew(long newLength) {
+        synchronized (this) {
+            if (newLength <= length) return;
+            length = newLength;
+        }
+        notifyListener();
+    }
+
+    public void finish(long finalLength) {
+        synchronized (this) {
+            length = finalLength;
+            finished = true;
+            notifyAll();
+        }
+        notifyListener();
+    }
+
+    public void fail(IOException e) {
+        synchronized (this) {
+            failure = e;
+            notifyAll();
+        }
+        notifyListener();
+    }
+
+    private void notifyListener() {
+        Runnable current;
+        synchronized (this) {
+            current = listener;
+        }
+        if (current != null) current.run();
+    }
+}
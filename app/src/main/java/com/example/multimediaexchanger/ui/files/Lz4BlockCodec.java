@@ -0,0 +1,158 @@
+package com.example.multimediaexchanger.ui.files;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Быстрое сжатие в формате LZ4 block на чистой Java: жадный поиск совпадений по хеш-таблице
+ * четырехбайтовых последовательностей, без энтропийного кодирования. Сжимает слабее Deflater,
+ * но в разы быстрее, поэтому не тормозит отправку на текстах, логах и JSON.
+ * <p>
+ * Последовательность: токен (длина литералов | длина совпадения - 4), литералы, смещение (2 байта, LE).
+ * Последние {@link #LAST_LITERALS} байт всегда идут литералами, как требует формат.
+ */
+final class Lz4BlockCodec {
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12; // Совпадение не может начинаться ближе к концу
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_LOG = 12;
+    private static final int SKIP_TRIGGER = 6; // Без совпадений шаг поиска растет каждые 64 байта
+
+    private final int[] table = new int[1 << HASH_LOG];
+
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /** Сжимает {@code src[srcOffset, srcOffset + length)} в {@code dst} с начала. Возвращает длину. */
+    int compress(byte[] src, int srcOffset, int length, byte[] dst) {
+        int end = srcOffset + length;
+        int matchLimit = end - LAST_LITERALS;
+        int mfLimit = end - MF_LIMIT;
+        int anchor = srcOffset;
+        int dp = 0;
+
+        if (length > MF_LIMIT) {
+            Arrays.fill(table, -1);
+            int ip = srcOffset;
+            table[hash(readInt(src, ip))] = ip;
+            ip++;
+            int searchCount = 1 << SKIP_TRIGGER;
+            while (ip < mfLimit) {
+                int sequence = readInt(src, ip);
+                int h = hash(sequence);
+                int ref = table[h];
+                table[h] = ip;
+                if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                    ip += searchCount++ >>> SKIP_TRIGGER;
+                    continue;
+                }
+                searchCount = 1 << SKIP_TRIGGER;
+
+                // Совпадение может начинаться раньше найденного
+                while (ip > anchor && ref > srcOffset && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) matchLength++;
+
+                dp = writeSequence(src, anchor, ip - anchor, dst, dp, ip - ref, matchLength - MIN_MATCH);
+                ip += matchLength;
+                anchor = ip;
+                if (ip < mfLimit) table[hash(readInt(src, ip - 2))] = ip - 2;
+            }
+        }
+
+        // Хвост — одними литералами
+        int literals = end - anchor;
+        int token = dp++;
+        dp = writeLength(dst, dp, literals);
+        dst[token] = (byte) (Math.min(literals, 15) << 4);
+        System.arraycopy(src, anchor, dst, dp, literals);
+        return dp + literals;
+    }
+
+    /** Распаковывает блок в {@code dst}; возвращает число байт. Испорченный блок — IOException. */
+    static int decompress(byte[] src, int srcOffset, int length, byte[] dst, int dstLength) throws IOException {
+        int ip = srcOffset;
+        int end = srcOffset + length;
+        int op = 0;
+        try {
+            while (ip < end) {
+                int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (ip + literals > end || op + literals > dstLength) throw new IOException("LZ4: литералы за границей блока");
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip >= end) break; // Последняя последовательность без совпадения
+
+                int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+                ip += 2;
+                int matchLength = token & 15;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                if (offset == 0 || offset > op || op + matchLength > dstLength) throw new IOException("LZ4: неверное совпадение");
+                int ref = op - offset;
+                if (offset >= matchLength) {
+                    System.arraycopy(dst, ref, dst, op, matchLength);
+                    op += matchLength;
+                } else {
+                    // Перекрытие: копия повторяет только что записанные байты
+                    for (int i = 0; i < matchLength; i++) dst[op++] = dst[ref++];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("LZ4: блок оборван", e);
+        }
+        return op;
+    }
+
+    private static int writeSequence(byte[] src, int anchor, int literals, byte[] dst, int dp, int offset, int matchExtra) {
+        int token = dp++;
+        dp = writeLength(dst, dp, literals);
+        System.arraycopy(src, anchor, dst, dp, literals);
+        dp += literals;
+        dst[dp++] = (byte) offset;
+        dst[dp++] = (byte) (offset >>> 8);
+        dp = writeLength(dst, dp, matchExtra);
+        dst[token] = (byte) (Math.min(literals, 15) << 4 | Math.min(matchExtra, 15));
+        return dp;
+    }
+
+    /** Дописывает продолжение длины, если она не влезла в 4 бита токена. */
+    private static int writeLength(byte[] dst, int dp, int length) {
+        if (length < 15) return dp;
+        length -= 15;
+        while (length >= 255) {
+            dst[dp++] = (byte) 255;
+            length -= 255;
+        }
+        dst[dp++] = (byte) length;
+        return dp;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8 | (data[offset + 2] & 0xFF) << 16 | data[offset + 3] << 24;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.multimediaexchanger.ui.files;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Локальный файл, отображенный в память и нарезанный на чанки. {@link #slice} отдает вид
+ * на страницы файла без копирования: такой буфер уходит в сокет прямо из page cache.
+ * <p>
+ * Один MappedByteBuffer ограничен 2 ГБ, поэтому большой файл отображается несколькими
+ * областями, размер которых кратен размеру чанка — чанк никогда не пересекает границу.
+ */
+final class MappedFile {
+
+    final long size;
+    final int chunkSize;
+    final int chunkCount;
+
+    private final long regionSize;
+    private final MappedByteBuffer[] regions;
+
+    /** Отображение живет и после закрытия канала. */
+    MappedFile(FileChannel channel, int chunkSize) throws IOException {
+        this.size = channel.size();
+        this.chunkSize = chunkSize;
+        this.chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+        this.regionSize = (long) (Integer.MAX_VALUE / chunkSize) * chunkSize;
+        int regionCount = (int) ((size + regionSize - 1) / regionSize);
+        this.regions = new MappedByteBuffer[regionCount];
+        for (int i = 0; i < regionCount; i++) {
+            long position = i * regionSize;
+            regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(regionSize, size - position));
+        }
+    }
+
+    int chunkLength(int index) {
+        return (int) Math.min(chunkSize, size - (long) index * chunkSize);
+    }
+
+    /** Вид на чанк без копирования, со своей позицией: можно отдавать разным потокам. */
+    ByteBuffer slice(int index) {
+        long offset = (long) index * chunkSize;
+        ByteBuffer region = regions[(int) (offset / regionSize)].duplicate();
+        int start = (int) (offset % regionSize);
+        region.position(start).limit(start + chunkLength(index));
+        return region.slice();
+    }
+
+    /** Копия чанка в куче — для кодеров, которым нужен byte[] (FEC, сжатие). */
+    byte[] copy(int index) {
+        byte[] data = new byte[chunkLength(index)];
+        slice(index).get(data);
+        return data;
+    }
+
+    /** Поток по всему файлу: нужен для расчета дельта-сигнатуры. */
+    InputStream openStream() {
+        return new InputStream() {
+            private int region = 0;
+            private ByteBuffer current = regions.length > 0 ? regions[0].duplicate() : null;
+
+            @Override
+            public int read() {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) {
+                if (length == 0) return 0;
+                while (current != null && !current.hasRemaining()) {
+                    current = ++region < regions.length ? regions[region].duplicate() : null;
+                }
+                if (current == null) return -1;
+                int count = Math.min(length, current.remaining());
+                current.get(buffer, offset, count);
+                return count;
+            }
+        };
+    }
+}
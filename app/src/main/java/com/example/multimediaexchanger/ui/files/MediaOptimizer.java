@@ -0,0 +1,135 @@
+package com.example.multimediaexchanger.ui.files;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.ImageDecoder;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Режим «оптимизировать для передачи»: фото уменьшаются и пережимаются в JPEG, видео
+ * перекодируется с меньшим битрейтом, прежде чем уйти в сеть. Включается пользователем,
+ * настройка общая для чата и вкладки файлов.
+ * <p>
+ * Оптимизированная копия лежит в кэше приложения, в своем каталоге на каждую отправку, и
+ * удаляется, когда отправка закончится; каталоги старше {@link #KEEP_MS}, брошенные, например,
+ * убитым процессом, удаляются при следующем обращении. Если копия не меньше оригинала,
+ * отправляется оригинал.
+ */
+public final class MediaOptimizer {
+
+    public static final int MAX_IMAGE_SIZE = 2048; // Длинная сторона фото, точек
+    public static final int TARGET_VIDEO_BITRATE = 2_000_000; // Около 15 МБ на минуту видео
+    private static final int IMAGE_QUALITY = 85;
+    private static final double MIN_VIDEO_SAVING = 1.5; // Во сколько раз хотя бы должен упасть битрейт
+    private static final String DIRECTORY = "optimized";
+    private static final long KEEP_MS = 24 * 60 * 60 * 1000L;
+    private static final String PREFERENCES = "media_optimizer";
+    private static final String KEY_ENABLED = "enabled";
+    // PNG и GIF не трогаем: прозрачность и анимация в JPEG не переживут пережатия
+    private static final String[] PHOTO_TYPES = {"image/jpeg", "image/heic", "image/heif"};
+
+    private MediaOptimizer() {
+    }
+
+    public static boolean isEnabled(Context context) {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).getBoolean(KEY_ENABLED, false);
+    }
+
+    public static void setEnabled(Context context, boolean enabled) {
+        context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).edit().putBoolean(KEY_ENABLED, enabled).apply();
+    }
+
+    public static boolean isPhoto(@Nullable String mimeType) {
+        if (mimeType == null) return false;
+        for (String type : PHOTO_TYPES) if (type.equals(mimeType)) return true;
+        return false;
+    }
+
+    public static boolean isVideo(@Nullable String mimeType) {
+        return mimeType != null && mimeType.startsWith("video/");
+    }
+
+    /** Имя оптимизированной копии: расширение меняется на формат, в котором она записана. */
+    public static String optimizedName(String fileName, String mimeType) {
+        int dot = fileName.lastIndexOf('.');
+        String base = dot > 0 ? fileName.substring(0, dot) : fileName;
+        return base + (isVideo(mimeType) ? ".mp4" : ".jpg");
+    }
+
+    /** Каталог копий в кэше; заодно удаляет брошенные копии прошлых отправок. */
+    public static File outputDirectory(File cacheDir) {
+        File directory = new File(cacheDir, DIRECTORY);
+        if (!directory.exists()) directory.mkdirs();
+        File[] old = directory.listFiles(file -> System.currentTimeMillis() - file.lastModified() > KEEP_MS);
+        if (old != null) for (File file : old) BatchUnpacker.deleteRecursively(file);
+        return directory;
+    }
+
+    /**
+     * Новый пустой каталог для копии одной отправки: имя копии видит получатель, поэтому
+     * уникальным делаем каталог, а не файл.
+     */
+    public static File newSendDirectory(File cacheDir) throws IOException {
+        return Files.createTempDirectory(outputDirectory(cacheDir).toPath(), "send").toFile();
+    }
+
+    /**
+     * Уменьшает фото до {@link #MAX_IMAGE_SIZE} по длинной стороне и пережимает в JPEG.
+     * Декодирует картинку, поэтому вызывается только в фоновом потоке.
+     *
+     * @return {@code target} или null, если копия вышла не меньше оригинала
+     */
+    @Nullable
+    public static File optimizePhoto(ContentResolver resolver, Uri source, long sourceSize, File target) throws IOException {
+        // ImageDecoder уменьшает уже при декодировании и учитывает поворот из EXIF
+        Bitmap bitmap = ImageDecoder.decodeBitmap(ImageDecoder.createSource(resolver, source), (decoder, info, decodedSource) -> {
+            int width = info.getSize().getWidth();
+            int height = info.getSize().getHeight();
+            float scale = Math.min(1f, (float) MAX_IMAGE_SIZE / Math.max(width, height));
+            decoder.setTargetSize(Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)));
+            decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE); // Аппаратный битмап не сжать в JPEG
+        });
+        try (FileOutputStream out = new FileOutputStream(target)) {
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, IMAGE_QUALITY, out)) throw new IOException("JPEG не записан");
+        } finally {
+            bitmap.recycle();
+        }
+        if (sourceSize > 0 && target.length() >= sourceSize) {
+            target.delete();
+            return null;
+        }
+        return target;
+    }
+
+    /**
+     * Запускает перекодирование видео в {@code target}; файл можно отправлять, пока он пишется.
+     *
+     * @return null — видео и так не тяжелее целевого битрейта или его не переложить в MP4
+     */
+    @Nullable
+    public static VideoTranscoder startVideo(Context context, Uri source, File target) throws IOException {
+        int rotation = 0;
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(context, source);
+            String bitrate = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE);
+            if (bitrate != null && Long.parseLong(bitrate) <= TARGET_VIDEO_BITRATE * MIN_VIDEO_SAVING) return null;
+            String degrees = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION);
+            if (degrees != null) rotation = Integer.parseInt(degrees);
+        } catch (RuntimeException e) {
+            throw new IOException("Не удалось прочитать метаданные видео", e);
+        } finally {
+            retriever.release();
+        }
+        return VideoTranscoder.start(context, source, target, TARGET_VIDEO_BITRATE, rotation);
+    }
+}
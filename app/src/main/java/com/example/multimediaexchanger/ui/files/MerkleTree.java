@@ -0,0 +1,73 @@
+package com.example.multimediaexchanger.ui.files;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Дерево Меркла над хешами чанков. Лист — SHA-256 от данных чанка, узел — SHA-256 от пары детей;
+ * нечетный последний узел уровня поднимается выше без изменений. Префиксы 0x00/0x01
+ * не дают выдать внутренний узел за лист.
+ * <p>
+ * Корень идет в заголовке передачи и служит идентификатором содержимого файла: по нему
+ * получатель проверяет собранный файл, не перечитывая его, а при несовпадении сравнивает
+ * листья с отправителем и перезапрашивает только испорченные чанки.
+ */
+final class MerkleTree {
+
+    static final int HASH_SIZE = 32;
+
+    private static final byte LEAF_PREFIX = 0x00;
+    private static final byte NODE_PREFIX = 0x01;
+
+    // MessageDigest не потокобезопасен, а листья считаются параллельно в пуле
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 недоступен", e);
+        }
+    });
+
+    private MerkleTree() {}
+
+    static byte[] leafHash(byte[] data, int offset, int length) {
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+        digest.update(LEAF_PREFIX);
+        digest.update(data, offset, length);
+        return digest.digest();
+    }
+
+    /** Лист по буферу, в том числе отображенному в память; позиция буфера сдвигается до конца. */
+    static byte[] leafHash(ByteBuffer data) {
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+        digest.update(LEAF_PREFIX);
+        digest.update(data);
+        return digest.digest();
+    }
+
+    static byte[] root(byte[][] leaves) {
+        if (leaves.length == 0) return leafHash(new byte[0], 0, 0);
+        MessageDigest digest = DIGEST.get();
+        byte[][] level = leaves.clone();
+        int count = level.length;
+        while (count > 1) {
+            int parents = 0;
+            for (int i = 0; i < count; i += 2) {
+                if (i + 1 == count) {
+                    level[parents++] = level[i];
+                } else {
+                    digest.reset();
+                    digest.update(NODE_PREFIX);
+                    digest.update(level[i]);
+                    digest.update(level[i + 1]);
+                    level[parents++] = digest.digest();
+                }
+            }
+            count = parents;
+        }
+        return level[0];
+    }
+}
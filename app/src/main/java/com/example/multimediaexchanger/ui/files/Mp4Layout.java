@@ -0,0 +1,55 @@
+package com.example.multimediaexchanger.ui.files;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Разбор верхнего уровня MP4, который пишет MediaMuxer. Он кладет в начало ftyp, место под
+ * moov (бокс free) и заголовок mdat, дальше только дописывает сэмплы, а при остановке
+ * возвращается в начало: вписывает размер mdat и moov. Значит, все после заголовка mdat
+ * окончательно сразу, как записано.
+ */
+public final class Mp4Layout {
+
+    private static final int BOX_HEADER = 8;
+    private static final int LARGE_BOX_HEADER = 16;
+    private static final int MAX_TOP_LEVEL_BOXES = 16; // До mdat у MediaMuxer их два-три
+
+    private Mp4Layout() {
+    }
+
+    /**
+     * Смещение первого байта данных mdat: с него файл дописывается только в конец.
+     * -1 — заголовок mdat еще не записан или файл не похож на MP4.
+     *
+     * @param length сколько байт файла уже записано
+     */
+    public static long mediaDataStart(FileChannel channel, long length) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LARGE_BOX_HEADER);
+        long offset = 0;
+        for (int box = 0; box < MAX_TOP_LEVEL_BOXES && offset + BOX_HEADER <= length; box++) {
+            header.clear().limit(BOX_HEADER);
+            readFully(channel, header, offset);
+            long size = header.getInt(0) & 0xFFFFFFFFL;
+            boolean mdat = header.get(4) == 'm' && header.get(5) == 'd' && header.get(6) == 'a' && header.get(7) == 't';
+            // Размер mdat до остановки — заглушка ("????" или 64-битный), его не читаем
+            if (mdat) return offset + (size == 1 ? LARGE_BOX_HEADER : BOX_HEADER);
+            if (size == 1) {
+                if (offset + LARGE_BOX_HEADER > length) return -1;
+                header.clear();
+                readFully(channel, header, offset);
+                size = header.getLong(BOX_HEADER);
+            }
+            if (size < BOX_HEADER) return -1; // Бокс до конца файла или мусор — это не начало MP4
+            offset += size;
+        }
+        return -1;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Конец файла внутри бокса");
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.multimediaexchanger.ui.files;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.load.engine.DiskCacheStrategy;
+import com.bumptech.glide.signature.ObjectKey;
+import com.example.multimediaexchanger.R;
+import com.example.multimediaexchanger.databinding.ItemReceivedFileBinding;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Список полученных файлов, который подгружается страницами из {@link ReceivedFilesIndex}
+ * по мере прокрутки.
+ * <p>
+ * Миниатюры фото и видео декодирует Glide в фоне, сразу уменьшенными до размера ячейки.
+ * Он же хранит их в своих LRU-кэшах, ограниченных по размеру: в памяти и на диске. На диск
+ * ложится уменьшенная копия, а не исходник (DiskCacheStrategy.RESOURCE).
+ */
+public class ReceivedFilesAdapter extends RecyclerView.Adapter<ReceivedFilesAdapter.ViewHolder> {
+
+    public interface OnFileClickListener {
+        void onFileClick(ReceivedFilesIndex.Entry entry);
+    }
+
+    static final int PAGE_SIZE = 50;
+    private static final int PREFETCH_DISTANCE = 15; // За сколько строк до конца грузим следующую страницу
+
+    private final Context context;
+    private final ReceivedFilesIndex index;
+    private final ExecutorService executor;
+    private final OnFileClickListener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final int thumbnailSize;
+
+    private final List<ReceivedFilesIndex.Entry> entries = new ArrayList<>();
+    private boolean loading = false;
+    private boolean endReached = false;
+    private int nextOffset = 0;
+
+    public ReceivedFilesAdapter(Context context, ReceivedFilesIndex index, ExecutorService executor, OnFileClickListener listener) {
+        this.context = context;
+        this.index = index;
+        this.executor = executor;
+        this.listener = listener;
+        this.thumbnailSize = context.getResources().getDimensionPixelSize(android.R.dimen.app_icon_size);
+    }
+
+    /** Догружает следующую страницу индекса в фоне. */
+    public void loadNextPage() {
+        if (loading || endReached) return;
+        loading = true;
+        int offset = nextOffset;
+        executor.execute(() -> {
+            List<ReceivedFilesIndex.Entry> page;
+            boolean last;
+            try {
+                page = index.page(offset, PAGE_SIZE);
+                last = offset + PAGE_SIZE >= index.size();
+            } catch (IOException e) {
+                page = Collections.emptyList();
+                last = true;
+            }
+            List<ReceivedFilesIndex.Entry> loaded = page;
+            boolean reachedEnd = last;
+            mainHandler.post(() -> {
+                loading = false;
+                endReached = reachedEnd;
+                nextOffset = offset + PAGE_SIZE; // Страница короче, если файлы пропали, но записи не сдвигаются
+                int start = entries.size();
+                entries.addAll(loaded);
+                notifyItemRangeInserted(start, loaded.size());
+                // Новых строк нет — прокрутка следующую страницу не запросит
+                if (loaded.isEmpty()) loadNextPage();
+            });
+        });
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        return new ViewHolder(ItemReceivedFileBinding.inflate(LayoutInflater.from(context), parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        if (position >= entries.size() - PREFETCH_DISTANCE) loadNextPage();
+        holder.bind(entries.get(position));
+    }
+
+    @Override
+    public void onViewRecycled(@NonNull ViewHolder holder) {
+        // Строка ушла с экрана — ее миниатюру больше не декодируем
+        Glide.with(context).clear(holder.binding.thumbnailView);
+    }
+
+    @Override
+    public int getItemCount() {
+        return entries.size();
+    }
+
+    class ViewHolder extends RecyclerView.ViewHolder {
+        final ItemReceivedFileBinding binding;
+
+        ViewHolder(ItemReceivedFileBinding binding) {
+            super(binding.getRoot());
+            this.binding = binding;
+        }
+
+        void bind(ReceivedFilesIndex.Entry entry) {
+            binding.fileNameView.setText(entry.name);
+            binding.fileDetailsView.setText(Formatter.formatShortFileSize(context, entry.size) + " · "
+                    + DateUtils.formatDateTime(context, entry.time, DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME));
+            binding.getRoot().setOnClickListener(v -> listener.onFileClick(entry));
+
+            String mimeType = entry.mimeType;
+            if (mimeType != null && (mimeType.startsWith("image/") || mimeType.startsWith("video/"))) {
+                binding.thumbnailView.setVisibility(View.VISIBLE);
+                Glide.with(context)
+                        .load(entry.file)
+                        .override(thumbnailSize)
+                        .centerCrop()
+                        .diskCacheStrategy(DiskCacheStrategy.RESOURCE)
+                        .signature(new ObjectKey(entry.time)) // Файл с тем же именем мог быть принят заново
+                        .placeholder(R.drawable.ic_broken_image)
+                        .into(binding.thumbnailView);
+            } else {
+                Glide.with(context).clear(binding.thumbnailView);
+                binding.thumbnailView.setVisibility(View.GONE);
+            }
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.example.multimediaexchanger.ui.files;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Индекс полученных файлов на диске: имя (путь в папке полученных), размер, время, MIME-тип
+ * и корень Меркла. Движок передачи дописывает в него каждый принятый файл, а список на экране
+ * читает его страницами — папку целиком больше никто не перечитывает и не сортирует.
+ * <p>
+ * Формат — журнал строк: {@code A} добавляет или заменяет запись, {@code D} удаляет. Журнал
+ * переписывается начисто, когда мусорных строк становится больше живых. Если индекса еще нет,
+ * он один раз строится обходом папки.
+ */
+public final class ReceivedFilesIndex {
+
+    private static final String INDEX_FILE_NAME = "received_files_index";
+    private static final int COMPACT_MIN_LINES = 256;
+
+    public static final class Entry {
+        public final String name;
+        public final long size;
+        public final long time;
+        @Nullable public final String mimeType;
+        @Nullable public final String hash; // hex корня Меркла; null — файл пришел в пакете или найден обходом
+        public final File file;
+
+        Entry(String name, long size, long time, @Nullable String mimeType, @Nullable String hash, File file) {
+            this.name = name;
+            this.size = size;
+            this.time = time;
+            this.mimeType = mimeType;
+            this.hash = hash;
+            this.file = file;
+        }
+    }
+
+    // Новые сверху; при равном времени — по имени, чтобы порядок страниц был устойчивым
+    private static final Comparator<Entry> NEWEST_FIRST = (a, b) ->
+            a.time != b.time ? Long.compare(b.time, a.time) : a.name.compareTo(b.name);
+
+    private static ReceivedFilesIndex instance;
+
+    private final File storageDir;
+    private final File indexFile;
+    private final List<Entry> sorted = new ArrayList<>();
+    private final Map<String, Entry> byName = new HashMap<>();
+    private boolean loaded = false;
+    private int journalLines = 0;
+
+    ReceivedFilesIndex(File storageDir, File indexFile) {
+        this.storageDir = storageDir;
+        this.indexFile = indexFile;
+    }
+
+    /** Индекс общий на процесс: в него пишет сервис передачи и его же читает экран. */
+    public static synchronized ReceivedFilesIndex get(Context context) {
+        if (instance == null) {
+            Context app = context.getApplicationContext();
+            instance = new ReceivedFilesIndex(app.getExternalFilesDir(null), new File(app.getFilesDir(), INDEX_FILE_NAME));
+        }
+        return instance;
+    }
+
+    /** Записывает принятый файл. {@code hash} — корень Меркла, если он известен. */
+    synchronized void add(File file, @Nullable byte[] hash) throws IOException {
+        load();
+        String name = relativeName(file);
+        if (name == null) return;
+        String hex = hash != null ? hex(hash) : null;
+        Entry entry = new Entry(name, file.length(), file.lastModified(), guessMimeType(name), hex, file);
+        put(entry);
+        append("A\t" + name + "\t" + entry.size + "\t" + entry.time + "\t" + orDash(entry.mimeType) + "\t" + orDash(hex));
+    }
+
+    public synchronized int size() throws IOException {
+        load();
+        return sorted.size();
+    }
+
+    /**
+     * Страница записей, новые сверху. Записи, чьих файлов больше нет (удалены вне приложения),
+     * в страницу не попадают, но из индекса здесь не убираются: следующая страница всегда
+     * начинается с {@code offset + limit}. Убирает их {@link #prune}.
+     */
+    public synchronized List<Entry> page(int offset, int limit) throws IOException {
+        load();
+        int end = Math.min(sorted.size(), offset + limit);
+        List<Entry> page = new ArrayList<>(Math.max(0, end - offset));
+        for (int i = offset; i < end; i++) {
+            Entry entry = sorted.get(i);
+            if (entry.file.isFile()) page.add(entry);
+        }
+        return page;
+    }
+
+    /**
+     * Выбрасывает записи, чьих файлов больше нет. Вызывается до показа списка: пока его листают,
+     * записи не сдвигаются. Возвращает число выброшенных.
+     */
+    public synchronized int prune() throws IOException {
+        load();
+        List<String> missing = new ArrayList<>();
+        for (Entry entry : sorted) {
+            if (!entry.file.isFile()) missing.add(entry.name);
+        }
+        for (String name : missing) {
+            removeEntry(name);
+            append("D\t" + name);
+        }
+        return missing.size();
+    }
+
+    /** Удаляет файлы всех записей. Возвращает число удаленных. */
+    public synchronized int deleteAll() throws IOException {
+        load();
+        int deleted = 0;
+        for (Entry entry : new ArrayList<>(sorted)) {
+            boolean existed = entry.file.exists();
+            if (existed && !entry.file.delete()) continue;
+            removeEntry(entry.name);
+            if (existed) deleted++;
+        }
+        compact(); // Одна перезапись вместо строки D на каждый файл
+        return deleted;
+    }
+
+    private void removeEntry(String name) {
+        Entry entry = byName.remove(name);
+        if (entry == null) return;
+        int position = Collections.binarySearch(sorted, entry, NEWEST_FIRST);
+        if (position >= 0) sorted.remove(position);
+    }
+
+    private void put(Entry entry) {
+        Entry old = byName.put(entry.name, entry);
+        if (old != null) {
+            int position = Collections.binarySearch(sorted, old, NEWEST_FIRST);
+            if (position >= 0) sorted.remove(position);
+        }
+        int position = Collections.binarySearch(sorted, entry, NEWEST_FIRST);
+        sorted.add(position < 0 ? -position - 1 : position, entry);
+    }
+
+    private void load() throws IOException {
+        if (loaded) return;
+        loaded = true;
+        if (!indexFile.exists()) {
+            // Первый запуск с индексом: один раз обходим папку, дальше только дописываем
+            if (storageDir != null) scan(storageDir);
+        } else {
+            readJournal();
+        }
+        sorted.addAll(byName.values());
+        sorted.sort(NEWEST_FIRST);
+        if (!indexFile.exists()) compact();
+    }
+
+    private void readJournal() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(indexFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                journalLines++;
+                String[] fields = line.split("\t", -1);
+                try {
+                    if (fields[0].equals("A") && fields.length == 6) {
+                        byName.put(fields[1], new Entry(fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+                                dashToNull(fields[4]), dashToNull(fields[5]), new File(storageDir, fields[1])));
+                    } else if (fields[0].equals("D") && fields.length == 2) {
+                        byName.remove(fields[1]);
+                    }
+                } catch (NumberFormatException ignored) {
+                    // Испорченную строку (например, оборванную при падении) пропускаем
+                }
+            }
+        }
+    }
+
+    private void scan(File dir) {
+        File[] children = dir.listFiles();
+        if (children == null) return;
+        for (File child : children) {
+            // Служебные каталоги (.partial с недокачанными файлами) не показываем
+            if (child.getName().startsWith(".")) continue;
+            if (child.isDirectory()) {
+                scan(child);
+            } else {
+                String name = relativeName(child);
+                if (name != null) byName.put(name, new Entry(name, child.length(), child.lastModified(), guessMimeType(name), null, child));
+            }
+        }
+    }
+
+    private void append(String line) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(indexFile, true))) {
+            writer.write(line);
+            writer.newLine();
+        }
+        if (++journalLines > Math.max(COMPACT_MIN_LINES, 2 * sorted.size())) compact();
+    }
+
+    private void compact() throws IOException {
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(tmp))) {
+            // Старые первыми: при чтении порядок строк не важен, но так журнал растет естественно
+            for (int i = sorted.size() - 1; i >= 0; i--) {
+                Entry entry = sorted.get(i);
+                writer.write("A\t" + entry.name + "\t" + entry.size + "\t" + entry.time + "\t"
+                        + orDash(entry.mimeType) + "\t" + orDash(entry.hash));
+                writer.newLine();
+            }
+        }
+        if (!tmp.renameTo(indexFile)) {
+            tmp.delete();
+            throw new IOException("Не удалось сохранить индекс полученных файлов");
+        }
+        journalLines = sorted.size();
+    }
+
+    @Nullable
+    private String relativeName(File file) {
+        if (storageDir == null) return null;
+        String root = storageDir.getAbsolutePath() + File.separator;
+        String path = file.getAbsolutePath();
+        if (!path.startsWith(root)) return null;
+        String name = path.substring(root.length());
+        // Табуляция и перевод строки (readLine режет и по '\r') сломали бы формат журнала
+        return name.indexOf('\t') >= 0 || name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0 ? null : name;
+    }
+
+    @Nullable
+    static String guessMimeType(String name) {
+        return URLConnection.guessContentTypeFromName(name.toLowerCase(Locale.ROOT));
+    }
+
+    private static String orDash(@Nullable String value) {
+        return value != null ? value : "-";
+    }
+
+    @Nullable
+    private static String dashToNull(String value) {
+        return value.equals("-") ? null : value;
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return builder.toString();
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.multimediaexchanger.ui.files;
+
+/**
+ * Сильный режим FEC: систематический код Рида–Соломона над GF(2^8) с матрицей Коши.
+ * Любые {@code parityCount} потерь в блоке восстанавливаются. Коэффициенты матрицы Коши
+ * 1 / (x_i + y_j) считаются по таблице обратных, поэтому матрицу кодирования хранить не нужно,
+ * а любая ее квадратная подматрица обратима.
+ */
+final class ReedSolomonCodec implements FecCodec {
+
+    static final int MAX_DATA_SHARDS = 32;
+    static final int MAX_PARITY_SHARDS = 8;
+
+    // GF(2^8) с порождающим многочленом x^8 + x^4 + x^3 + x^2 + 1
+    private static final int GF_POLYNOMIAL = 0x11D;
+    private static final int[] EXP = new int[512];
+    private static final int[] LOG = new int[256];
+    private static final byte[][] MUL = new byte[256][256];
+    private static final int[] INV = new int[256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if ((x & 0x100) != 0) x ^= GF_POLYNOMIAL;
+        }
+        for (int i = 255; i < EXP.length; i++) EXP[i] = EXP[i - 255];
+        for (int a = 1; a < 256; a++) {
+            INV[a] = EXP[255 - LOG[a]];
+            for (int b = 1; b < 256; b++) MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+        }
+    }
+
+    private final int shardSize;
+
+    // Рабочие буферы декодера: синдромы и матрица для обращения методом Гаусса–Жордана
+    private final byte[][] syndromes;
+    private final int[][] matrix = new int[MAX_PARITY_SHARDS][2 * MAX_PARITY_SHARDS];
+    private final int[] missingData = new int[MAX_PARITY_SHARDS];
+    private final int[] usedParity = new int[MAX_PARITY_SHARDS];
+
+    ReedSolomonCodec(int shardSize) {
+        this.shardSize = shardSize;
+        this.syndromes = new byte[MAX_PARITY_SHARDS][shardSize];
+    }
+
+    @Override
+    public int shardSize() {
+        return shardSize;
+    }
+
+    @Override
+    public int maxDataShards() {
+        return MAX_DATA_SHARDS;
+    }
+
+    @Override
+    public int maxParityShards() {
+        return MAX_PARITY_SHARDS;
+    }
+
+    /** Коэффициент матрицы Коши: x_i = MAX_DATA_SHARDS + i, y_j = j, значит x_i + y_j никогда не 0. */
+    private static int coefficient(int parityIndex, int dataIndex) {
+        return INV[(MAX_DATA_SHARDS + parityIndex) ^ dataIndex];
+    }
+
+    private static void mulAdd(int coefficient, byte[] in, byte[] out, int length) {
+        if (coefficient == 0) return;
+        byte[] table = MUL[coefficient];
+        for (int i = 0; i < length; i++) out[i] ^= table[in[i] & 0xFF];
+    }
+
+    @Override
+    public void encode(byte[][] data, int[] dataLengths, int dataCount, byte[][] parity, int parityCount) {
+        for (int p = 0; p < parityCount; p++) {
+            byte[] out = parity[p];
+            for (int i = 0; i < shardSize; i++) out[i] = 0;
+            for (int d = 0; d < dataCount; d++) mulAdd(coefficient(p, d), data[d], out, dataLengths[d]);
+        }
+    }
+
+    @Override
+    public boolean decode(byte[][] shards, boolean[] present, int dataCount, int parityCount) {
+        int lost = 0;
+        for (int d = 0; d < dataCount; d++) {
+            if (!present[d]) {
+                if (lost == MAX_PARITY_SHARDS) return false;
+                missingData[lost++] = d;
+            }
+        }
+        if (lost == 0) return true;
+
+        int used = 0;
+        for (int p = 0; p < parityCount && used < lost; p++) {
+            if (present[dataCount + p]) usedParity[used++] = p;
+        }
+        if (used < lost) return false;
+
+        // Синдромы: четность минус вклад полученных данных
+        for (int r = 0; r < lost; r++) {
+            int p = usedParity[r];
+            byte[] syndrome = syndromes[r];
+            System.arraycopy(shards[dataCount + p], 0, syndrome, 0, shardSize);
+            for (int d = 0; d < dataCount; d++) {
+                if (present[d]) mulAdd(coefficient(p, d), shards[d], syndrome, shardSize);
+            }
+        }
+
+        if (!invertSubmatrix(lost)) return false;
+
+        // Потерянные данные = обратная подматрица * синдромы
+        for (int a = 0; a < lost; a++) {
+            byte[] out = shards[missingData[a]];
+            for (int i = 0; i < shardSize; i++) out[i] = 0;
+            for (int b = 0; b < lost; b++) mulAdd(matrix[a][lost + b], syndromes[b], out, shardSize);
+            present[missingData[a]] = true;
+        }
+        return true;
+    }
+
+    /** Обращает подматрицу Коши [usedParity x missingData] размера n; результат в правой половине matrix. */
+    private boolean invertSubmatrix(int n) {
+        for (int r = 0; r < n; r++) {
+            for (int c = 0; c < n; c++) {
+                matrix[r][c] = coefficient(usedParity[r], missingData[c]);
+                matrix[r][n + c] = r == c ? 1 : 0;
+            }
+        }
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (pivot < n && matrix[pivot][col] == 0) pivot++;
+            if (pivot == n) return false;
+            if (pivot != col) {
+                int[] tmp = matrix[pivot];
+                matrix[pivot] = matrix[col];
+                matrix[col] = tmp;
+            }
+            int scale = INV[matrix[col][col]];
+            for (int c = 0; c < 2 * n; c++) matrix[col][c] = mul(matrix[col][c], scale);
+            for (int r = 0; r < n; r++) {
+                int factor = matrix[r][col];
+                if (r == col || factor == 0) continue;
+                for (int c = 0; c < 2 * n; c++) matrix[r][c] ^= mul(factor, matrix[col][c]);
+            }
+        }
+        return true;
+    }
+
+    private static int mul(int a, int b) {
+        return MUL[a][b] & 0xFF;
+    }
+}
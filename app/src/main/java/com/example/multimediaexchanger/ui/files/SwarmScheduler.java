@@ -0,0 +1,192 @@
+package com.example.multimediaexchanger.ui.files;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Раздача чанков одного приема между узлами роя. Основной отправитель сам шлет чанки с начала
+ * файла, поэтому пирам выдаются непересекающиеся диапазоны с конца, а нижние
+ * {@code senderGuardChunks} недостающих чанков оставляются ему.
+ * <p>
+ * У каждого пира в полете столько чанков, сколько он успевает отдать за {@link #PIPELINE_MS},
+ * так что быстрые пиры получают больше работы. Запрос без прогресса дольше
+ * {@link #REQUEST_TIMEOUT_MS} возвращает свои чанки в общий пул, а пир после
+ * {@link #MAX_STRIKES} таких срывов подряд исключается.
+ */
+final class SwarmScheduler {
+
+    static final int RANGE_CHUNKS = 8;
+    static final int MAX_IN_FLIGHT_CHUNKS = 64;
+    static final long REQUEST_TIMEOUT_MS = 1500;
+    static final long PIPELINE_MS = 250;
+    static final int MAX_STRIKES = 3;
+    private static final long RATE_WINDOW_MS = 500;
+    private static final double RATE_SMOOTHING = 0.3;
+
+    static final class Peer {
+        final String ip;
+        double chunksPerSecond = 0;
+        int inFlight = 0;
+        int strikes = 0;
+        long received = 0;
+        private int windowChunks = 0;
+        private long windowStart;
+
+        Peer(String ip, long now) {
+            this.ip = ip;
+            this.windowStart = now;
+        }
+
+        /** Сколько чанков держать в полете у этого пира. */
+        int allowance() {
+            int wanted = (int) Math.ceil(chunksPerSecond * PIPELINE_MS / 1000.0);
+            return Math.max(RANGE_CHUNKS, Math.min(MAX_IN_FLIGHT_CHUNKS, wanted));
+        }
+    }
+
+    /** Диапазон [first, first + count), запрошенный у одного пира. */
+    static final class Request {
+        final Peer peer;
+        final int first;
+        final int count;
+        final BitSet pending = new BitSet();
+        long lastProgress;
+
+        Request(Peer peer, int first, int count, long now) {
+            this.peer = peer; this.first = first; this.count = count; this.lastProgress = now;
+            pending.set(0, count);
+        }
+    }
+
+    private final TransferJournal journal;
+    private final int senderGuardChunks;
+    private final Map<String, Peer> peers = new LinkedHashMap<>();
+    private final Map<Integer, Request> assigned = new HashMap<>();
+    private final List<Request> requests = new ArrayList<>();
+    private int lowestMissing = 0;
+    private int searchFrom; // Выше этого номера свободных недостающих чанков нет
+
+    SwarmScheduler(TransferJournal journal, int senderGuardChunks) {
+        this.journal = journal;
+        this.senderGuardChunks = senderGuardChunks;
+        this.searchFrom = journal.totalChunks - 1;
+    }
+
+    /** false — пир уже известен. */
+    synchronized boolean addPeer(String ip, long now) {
+        if (peers.containsKey(ip)) return false;
+        peers.put(ip, new Peer(ip, now));
+        return true;
+    }
+
+    synchronized int peerCount() {
+        return peers.size();
+    }
+
+    synchronized List<Peer> peers() {
+        return new ArrayList<>(peers.values());
+    }
+
+    /** Снимает зависшие запросы, пересчитывает скорости и выдает новые диапазоны до лимита каждого пира. */
+    synchronized List<Request> plan(long now) {
+        expireStalled(now);
+        List<Request> issued = new ArrayList<>();
+        for (Peer peer : peers.values()) {
+            if (now - peer.windowStart >= RATE_WINDOW_MS) {
+                double rate = peer.windowChunks * 1000.0 / (now - peer.windowStart);
+                peer.chunksPerSecond += RATE_SMOOTHING * (rate - peer.chunksPerSecond);
+                peer.windowChunks = 0;
+                peer.windowStart = now;
+            }
+            while (peer.inFlight + RANGE_CHUNKS <= peer.allowance()) {
+                Request request = takeRange(peer, now);
+                if (request == null) break;
+                issued.add(request);
+            }
+        }
+        return issued;
+    }
+
+    /** Чанк записан (от пира или от основного отправителя). {@code ip} — откуда он пришел. */
+    synchronized void onChunk(String ip, int chunkIndex, long now) {
+        Request request = assigned.remove(chunkIndex);
+        if (request != null) {
+            request.pending.clear(chunkIndex - request.first);
+            request.lastProgress = now;
+            request.peer.inFlight--;
+            if (request.pending.isEmpty()) requests.remove(request);
+        }
+        Peer peer = peers.get(ip);
+        if (peer != null) {
+            peer.windowChunks++;
+            peer.received++;
+            peer.strikes = 0;
+        }
+    }
+
+    /** Проверка Меркла сняла чанк: он снова может уйти пиру. */
+    synchronized void onChunkLost(int chunkIndex) {
+        lowestMissing = Math.min(lowestMissing, chunkIndex);
+        searchFrom = Math.max(searchFrom, chunkIndex);
+    }
+
+    private void expireStalled(long now) {
+        for (Iterator<Request> iterator = requests.iterator(); iterator.hasNext(); ) {
+            Request request = iterator.next();
+            if (now - request.lastProgress <= REQUEST_TIMEOUT_MS) continue;
+            iterator.remove();
+            release(request);
+            Peer peer = request.peer;
+            peer.chunksPerSecond /= 2;
+            if (++peer.strikes >= MAX_STRIKES) removePeer(peer);
+        }
+    }
+
+    private void removePeer(Peer peer) {
+        peers.remove(peer.ip);
+        for (Iterator<Request> iterator = requests.iterator(); iterator.hasNext(); ) {
+            Request request = iterator.next();
+            if (request.peer != peer) continue;
+            iterator.remove();
+            release(request);
+        }
+    }
+
+    private void release(Request request) {
+        for (int i = request.pending.nextSetBit(0); i >= 0; i = request.pending.nextSetBit(i + 1)) {
+            assigned.remove(request.first + i);
+            request.peer.inFlight--;
+        }
+        request.pending.clear();
+        searchFrom = Math.max(searchFrom, request.first + request.count - 1);
+    }
+
+    /** Самый верхний непрерывный отрезок свободных недостающих чанков, не длиннее RANGE_CHUNKS. */
+    private Request takeRange(Peer peer, long now) {
+        while (lowestMissing < journal.totalChunks && journal.isReceived(lowestMissing)) lowestMissing++;
+        int floor = lowestMissing + senderGuardChunks;
+
+        int top = searchFrom;
+        while (top >= floor && !isFree(top)) top--;
+        searchFrom = top;
+        if (top < floor) return null;
+
+        int first = top;
+        while (first - 1 >= floor && top - first + 1 < RANGE_CHUNKS && isFree(first - 1)) first--;
+        Request request = new Request(peer, first, top - first + 1, now);
+        for (int chunk = first; chunk <= top; chunk++) assigned.put(chunk, request);
+        peer.inFlight += request.count;
+        requests.add(request);
+        searchFrom = first - 1;
+        return request;
+    }
+
+    private boolean isFree(int chunkIndex) {
+        return !assigned.containsKey(chunkIndex) && !journal.isReceived(chunkIndex);
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.multimediaexchanger.ui.files;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Журнал частично принятого файла: идентичность файла (размер + корень Меркла), размер чанка
+ * и битовая карта уже записанных чанков. Хранится рядом с .part файлом и периодически
+ * сбрасывается на диск, чтобы после обрыва кабеля или убийства процесса передачу можно
+ * было продолжить, а не начинать с первого чанка.
+ */
+class TransferJournal {
+
+    private static final int MAGIC = 0x524A4E4C; // "RJNL"
+    private static final int VERSION = 1;
+
+    // Как часто сбрасывать журнал на диск
+    private static final int SYNC_EVERY_CHUNKS = 64;
+    private static final long SYNC_INTERVAL_MS = 2000;
+
+    final long fileSize;
+    final byte[] fileHash;
+    final int chunkSize;
+    final int totalChunks;
+
+    private final File journalFile;
+    private final BitSet received;
+    private final boolean resumed;
+    private int unsyncedChunks = 0;
+    private long lastSyncTime = System.currentTimeMillis();
+
+    private TransferJournal(File journalFile, long fileSize, byte[] fileHash, int chunkSize, int totalChunks,
+                            BitSet received, boolean resumed) {
+        this.journalFile = journalFile;
+        this.fileSize = fileSize;
+        this.fileHash = fileHash;
+        this.chunkSize = chunkSize;
+        this.totalChunks = totalChunks;
+        this.received = received;
+        this.resumed = resumed;
+    }
+
+    /**
+     * Открывает существующий журнал, если он описывает тот же самый файл, иначе создает новый.
+     * Поврежденный или чужой журнал молча заменяется пустым.
+     */
+    static TransferJournal openOrCreate(File journalFile, long fileSize, byte[] fileHash, int chunkSize, int totalChunks) {
+        if (journalFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(journalFile))) {
+                // Длины читаются с диска: проверяем их до выделения памяти, чтобы битый журнал не уронил прием
+                if (in.readInt() == MAGIC && in.readInt() == VERSION
+                        && in.readLong() == fileSize && in.readInt() == fileHash.length) {
+                    byte[] hash = new byte[fileHash.length];
+                    in.readFully(hash);
+                    int storedChunkSize = in.readInt();
+                    int storedTotalChunks = in.readInt();
+                    int bitmapLength = in.readInt();
+
+                    if (storedChunkSize == chunkSize && storedTotalChunks == totalChunks && Arrays.equals(hash, fileHash)
+                            && bitmapLength >= 0 && bitmapLength <= (totalChunks + 7) / 8) {
+                        byte[] bitmap = new byte[bitmapLength];
+                        in.readFully(bitmap);
+                        BitSet received = BitSet.valueOf(bitmap);
+                        received.clear(totalChunks, Math.max(totalChunks, received.length())); // Хвост последнего байта
+                        return new TransferJournal(journalFile, fileSize, fileHash, chunkSize, totalChunks, received, true);
+                    }
+                }
+            } catch (IOException ignored) {
+                // Журнал поврежден — начинаем заново
+            }
+        }
+        return new TransferJournal(journalFile, fileSize, fileHash, chunkSize, totalChunks, new BitSet(totalChunks), false);
+    }
+
+    boolean isResumed() {
+        return resumed;
+    }
+
+    boolean matches(long size, byte[] hash) {
+        return fileSize == size && Arrays.equals(fileHash, hash);
+    }
+
+    synchronized boolean isReceived(int chunkIndex) {
+        return received.get(chunkIndex);
+    }
+
+    /** @return true, если чанк отмечен впервые */
+    synchronized boolean markReceived(int chunkIndex) {
+        if (received.get(chunkIndex)) return false;
+        received.set(chunkIndex);
+        unsyncedChunks++;
+        return true;
+    }
+
+    /** Снимает отметку с чанка, не прошедшего проверку целостности, чтобы запросить его снова. */
+    synchronized void markMissing(int chunkIndex) {
+        if (received.get(chunkIndex)) {
+            received.clear(chunkIndex);
+            unsyncedChunks++;
+        }
+    }
+
+    /** Номера (с нуля) первых {@code limit} недостающих чанков. */
+    synchronized int[] missingChunks(int limit) {
+        int count = Math.min(limit, totalChunks - received.cardinality());
+        int[] missing = new int[Math.max(0, count)];
+        int index = received.nextClearBit(0);
+        for (int i = 0; i < missing.length && index < totalChunks; i++) {
+            missing[i] = index;
+            index = received.nextClearBit(index + 1);
+        }
+        return missing;
+    }
+
+    synchronized int receivedCount() {
+        return received.cardinality();
+    }
+
+    synchronized boolean isComplete() {
+        return received.cardinality() == totalChunks;
+    }
+
+    /** Битовая карта принятых чанков (бит i — чанк с порядковым номером i + 1). */
+    synchronized byte[] bitmap() {
+        return received.toByteArray();
+    }
+
+    synchronized boolean shouldSync() {
+        return unsyncedChunks >= SYNC_EVERY_CHUNKS
+                || (unsyncedChunks > 0 && System.currentTimeMillis() - lastSyncTime >= SYNC_INTERVAL_MS);
+    }
+
+    /**
+     * Атомарно переписывает журнал: сначала во временный файл, затем rename.
+     * Вызывающий обязан предварительно сбросить на диск сами данные чанков.
+     */
+    synchronized void sync() throws IOException {
+        File tmp = new File(journalFile.getPath() + ".tmp");
+        byte[] bitmap = received.toByteArray();
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(fos)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fileSize);
+            out.writeInt(fileHash.length);
+            out.write(fileHash);
+            out.writeInt(chunkSize);
+            out.writeInt(totalChunks);
+            out.writeInt(bitmap.length);
+            out.write(bitmap);
+            out.flush();
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(journalFile)) {
+            throw new IOException("Не удалось заменить журнал " + journalFile);
+        }
+        unsyncedChunks = 0;
+        lastSyncTime = System.currentTimeMillis();
+    }
+
+    void delete() {
+        journalFile.delete();
+        new File(journalFile.getPath() + ".tmp").delete();
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.multimediaexchanger.ui.files;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Настройки движка передачи, которые пользователь выбирает на вкладке файлов. Хранятся в
+ * SharedPreferences: сервис передачи применяет их при запуске ({@link #applyTo}), экран — сразу
+ * при изменении.
+ */
+public final class TransferSettings {
+
+    private static final String PREFERENCES = "transfer_settings";
+    private static final String KEY_FEC_MODE = "fec_mode";
+    private static final String KEY_COMPRESSION = "compression";
+    private static final String COMPRESSION_OFF = "OFF";
+    private static final String KEY_DELTA = "delta";
+    private static final String KEY_SWARM = "swarm";
+
+    private TransferSettings() {
+    }
+
+    public static FileTransferManager.FecMode getFecMode(Context context) {
+        String name = preferences(context).getString(KEY_FEC_MODE, null);
+        if (name != null) {
+            try {
+                return FileTransferManager.FecMode.valueOf(name);
+            } catch (IllegalArgumentException ignored) {
+                // Режим из другой версии приложения — берем умолчание
+            }
+        }
+        return FileTransferManager.FecMode.XOR;
+    }
+
+    public static void setFecMode(Context context, FileTransferManager.FecMode mode) {
+        preferences(context).edit().putString(KEY_FEC_MODE, mode.name()).apply();
+    }
+
+    /** null — чанки уходят без сжатия. */
+    @Nullable
+    public static ChunkCompressor.Codec getCompressionCodec(Context context) {
+        String name = preferences(context).getString(KEY_COMPRESSION, null);
+        if (COMPRESSION_OFF.equals(name)) return null;
+        if (name != null) {
+            try {
+                return ChunkCompressor.Codec.valueOf(name);
+            } catch (IllegalArgumentException ignored) {
+                // Кодек из другой версии приложения — берем умолчание
+            }
+        }
+        return ChunkCompressor.Codec.LZ4;
+    }
+
+    public static void setCompressionCodec(Context context, @Nullable ChunkCompressor.Codec codec) {
+        preferences(context).edit().putString(KEY_COMPRESSION, codec != null ? codec.name() : COMPRESSION_OFF).apply();
+    }
+
+    public static boolean isDeltaEnabled(Context context) {
+        return preferences(context).getBoolean(KEY_DELTA, true);
+    }
+
+    public static void setDeltaEnabled(Context context, boolean enabled) {
+        preferences(context).edit().putBoolean(KEY_DELTA, enabled).apply();
+    }
+
+    public static boolean isSwarmEnabled(Context context) {
+        return preferences(context).getBoolean(KEY_SWARM, true);
+    }
+
+    public static void setSwarmEnabled(Context context, boolean enabled) {
+        preferences(context).edit().putBoolean(KEY_SWARM, enabled).apply();
+    }
+
+    public static void applyTo(Context context, FileTransferManager manager) {
+        manager.setFecMode(getFecMode(context));
+        manager.setCompressionCodec(getCompressionCodec(context));
+        manager.setDeltaEnabled(isDeltaEnabled(context));
+        manager.setSwarmEnabled(isSwarmEnabled(context));
+    }
+
+    private static SharedPreferences preferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,158 @@
+package com.example.multimediaexchanger.ui.files;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Счетчики одной передачи для экрана: движок только прибавляет к ним, а экран раз в
+ * {@link TransferTelemetry#SAMPLE_INTERVAL_MS} снимает {@link Snapshot} — без вызова на каждый
+ * пакет.
+ * <p>
+ * Писать можно из любых потоков. Снимки ({@link #sample}) берет один поток — главный: он же
+ * держит историю для мгновенной скорости.
+ * <p>
+ * «Повторы» у отправителя — повторно отправленные чанки, у получателя — пришедшие дубликаты.
+ */
+public final class TransferStats {
+
+    public enum Scope { CHAT, FILES }
+
+    static final long RATE_WINDOW_MS = 1000; // Мгновенная скорость — за последнюю секунду
+    private static final int HISTORY = 16; // Снимков за RATE_WINDOW_MS при 10 Гц хватает с запасом
+
+    public static final class Snapshot {
+        public final String name;
+        public final boolean sending;
+        public final long done;          // Байт передано и подтверждено (у получателя — записано)
+        public final long total;         // -1 — размер еще неизвестен
+        public final long instantRate;   // Байт/с за последнюю секунду
+        public final long averageRate;   // Байт/с с начала передачи
+        public final long etaMs;         // -1 — оценить нельзя
+        public final double retransmitRatio;
+        public final int window;         // Чанков в полете можно держать; 0 — у получателя
+
+        Snapshot(String name, boolean sending, long done, long total, long instantRate, long averageRate,
+                 long etaMs, double retransmitRatio, int window) {
+            this.name = name;
+            this.sending = sending;
+            this.done = done;
+            this.total = total;
+            this.instantRate = instantRate;
+            this.averageRate = averageRate;
+            this.etaMs = etaMs;
+            this.retransmitRatio = retransmitRatio;
+            this.window = window;
+        }
+
+        /** Доля готового в промилле; -1 — размер неизвестен. */
+        public int permille() {
+            if (total < 0) return -1;
+            return total == 0 ? 1000 : (int) Math.min(1000, done * 1000 / total);
+        }
+
+        public String summary() {
+            StringBuilder text = new StringBuilder();
+            text.append(sending ? "↑ " : "↓ ").append(name).append(": ").append(megabytes(done));
+            if (total >= 0) text.append(" / ").append(megabytes(total));
+            text.append(String.format(Locale.US, " МБ, %d КБ/с (ср. %d)", instantRate / 1024, averageRate / 1024));
+            if (etaMs >= 0) text.append(", осталось ").append((etaMs + 999) / 1000).append(" с");
+            text.append(String.format(Locale.US, ", повторов %.1f%%", retransmitRatio * 100));
+            if (window > 0) text.append(", окно ").append(window);
+            return text.toString();
+        }
+
+        private static String megabytes(long bytes) {
+            return String.format(Locale.US, "%.1f", bytes / (1024.0 * 1024.0));
+        }
+    }
+
+    private final Scope scope;
+    private final String name;
+    private final boolean sending;
+    private final long startedAt;
+    private volatile long total;
+    private volatile int window;
+    private final AtomicLong done = new AtomicLong();
+    private final AtomicLong packets = new AtomicLong();
+    private final AtomicLong repeated = new AtomicLong();
+
+    // История для мгновенной скорости; трогает только тот, кто снимает
+    private final long[] sampleTimes = new long[HISTORY];
+    private final long[] sampleDone = new long[HISTORY];
+    private int sampleCount = 0;
+    private int sampleHead = 0; // Куда ляжет следующий снимок
+
+    public TransferStats(Scope scope, String name, boolean sending, long total, long startedAtMs) {
+        this.scope = scope;
+        this.name = name;
+        this.sending = sending;
+        this.total = total;
+        this.startedAt = startedAtMs;
+    }
+
+    public Scope scope() {
+        return scope;
+    }
+
+    public void setTotal(long total) {
+        this.total = total;
+    }
+
+    /** Отрицательное значение — подтверждение отозвано (NACK). */
+    public void addDone(long bytes) {
+        done.addAndGet(bytes);
+    }
+
+    /** Для докачки: сколько байт уже было до начала. */
+    public void setDone(long bytes) {
+        done.set(bytes);
+    }
+
+    /** Пакет данных ушел (у получателя — пришел); {@code repeat} — повтор или дубликат. */
+    public void onPacket(boolean repeat) {
+        packets.incrementAndGet();
+        if (repeat) repeated.incrementAndGet();
+    }
+
+    public void setWindow(int window) {
+        this.window = window;
+    }
+
+    public synchronized Snapshot sample(long nowMs) {
+        long currentDone = Math.max(0, done.get());
+        long currentTotal = total;
+
+        // Самый старый снимок не дальше RATE_WINDOW_MS назад; если таких нет — последний
+        int oldest = sampleCount > 0 ? Math.floorMod(sampleHead - 1, HISTORY) : -1;
+        for (int i = sampleCount; i >= 1; i--) {
+            int index = Math.floorMod(sampleHead - i, HISTORY);
+            if (nowMs - sampleTimes[index] <= RATE_WINDOW_MS) {
+                oldest = index;
+                break;
+            }
+        }
+        sampleTimes[sampleHead] = nowMs;
+        sampleDone[sampleHead] = currentDone;
+        sampleHead = (sampleHead + 1) % HISTORY;
+        sampleCount = Math.min(HISTORY, sampleCount + 1);
+
+        long elapsed = nowMs - startedAt;
+        long averageRate = elapsed > 0 ? currentDone * 1000 / elapsed : 0;
+        long instantRate = averageRate; // Пока нет истории, мгновенная — средняя
+        if (oldest >= 0 && nowMs > sampleTimes[oldest]) {
+            instantRate = Math.max(0, (currentDone - sampleDone[oldest]) * 1000 / (nowMs - sampleTimes[oldest]));
+        }
+
+        long etaMs = -1;
+        if (currentTotal >= 0) {
+            long remaining = Math.max(0, currentTotal - currentDone);
+            long rate = instantRate > 0 ? instantRate : averageRate;
+            if (remaining == 0) etaMs = 0;
+            else if (rate > 0) etaMs = remaining * 1000 / rate;
+        }
+
+        long packetCount = packets.get();
+        double ratio = packetCount > 0 ? (double) repeated.get() / packetCount : 0;
+        return new Snapshot(name, sending, currentDone, currentTotal, instantRate, averageRate, etaMs, ratio, window);
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.multimediaexchanger.ui.files;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Поток телеметрии активных передач для экрана. Движки (чат и вкладка файлов) регистрируют
+ * {@link TransferStats} и только считают в них байты и пакеты; слушатели получают снимки всех
+ * передач своей области {@link TransferStats.Scope} в главном потоке раз в
+ * {@link #SAMPLE_INTERVAL_MS}, сколько бы пакетов ни пришло.
+ * <p>
+ * Таймер тикает, пока есть слушатели и передачи. Когда последняя передача области закончилась,
+ * ее слушатели получают пустой список — по нему прячут прогресс.
+ */
+public final class TransferTelemetry {
+
+    public static final long SAMPLE_INTERVAL_MS = 100; // 10 Гц
+
+    public interface Listener {
+        /** Главный поток; пустой список — активных передач больше нет. */
+        void onSample(List<TransferStats.Snapshot> transfers);
+    }
+
+    private static TransferTelemetry instance;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<TransferStats> active = new CopyOnWriteArrayList<>();
+    // Слушатели и флаги ниже — только в главном потоке
+    private final Map<Listener, TransferStats.Scope> listeners = new HashMap<>();
+    private final Map<Listener, Boolean> reportedEmpty = new HashMap<>();
+    private boolean ticking = false;
+    private final Runnable tick = this::tick;
+
+    private TransferTelemetry() {
+    }
+
+    public static synchronized TransferTelemetry get() {
+        if (instance == null) instance = new TransferTelemetry();
+        return instance;
+    }
+
+    /** Из любого потока; {@code total} -1 — размер еще неизвестен. */
+    public TransferStats register(TransferStats.Scope scope, String name, boolean sending, long total) {
+        TransferStats stats = new TransferStats(scope, name, sending, total, SystemClock.elapsedRealtime());
+        active.add(stats);
+        mainHandler.post(this::startTicking);
+        return stats;
+    }
+
+    /** Из любого потока; повторный вызов и null ничего не делают. */
+    public void unregister(@Nullable TransferStats stats) {
+        if (stats != null) active.remove(stats);
+    }
+
+    public void addListener(TransferStats.Scope scope, Listener listener) {
+        listeners.put(listener, scope);
+        reportedEmpty.put(listener, false);
+        startTicking();
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+        reportedEmpty.remove(listener);
+    }
+
+    private void startTicking() {
+        if (ticking || listeners.isEmpty()) return;
+        ticking = true;
+        mainHandler.post(tick);
+    }
+
+    private void tick() {
+        long now = SystemClock.elapsedRealtime();
+        // Каждую передачу снимаем раз за тик, даже если ее область слушают несколько экранов
+        Map<TransferStats.Scope, List<TransferStats.Snapshot>> byScope = new HashMap<>();
+        for (TransferStats.Scope scope : TransferStats.Scope.values()) byScope.put(scope, new ArrayList<>());
+        for (TransferStats stats : active) byScope.get(stats.scope()).add(stats.sample(now));
+
+        boolean pending = false;
+        for (Map.Entry<Listener, TransferStats.Scope> entry : new ArrayList<>(listeners.entrySet())) {
+            List<TransferStats.Snapshot> snapshots = byScope.get(entry.getValue());
+            boolean empty = snapshots.isEmpty();
+            if (empty && Boolean.TRUE.equals(reportedEmpty.get(entry.getKey()))) continue;
+            reportedEmpty.put(entry.getKey(), empty);
+            entry.getKey().onSample(snapshots);
+            if (!empty) pending = true;
+        }
+        // Тикаем дальше, пока есть что показывать; новая передача запустит таймер снова
+        ticking = pending && !listeners.isEmpty();
+        if (ticking) mainHandler.postDelayed(tick, SAMPLE_INTERVAL_MS);
+    }
+}
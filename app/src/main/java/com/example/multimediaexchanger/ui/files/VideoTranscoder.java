@@ -0,0 +1,282 @@
+package com.example.multimediaexchanger.ui.files;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.net.Uri;
+import android.view.Surface;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Перекодирует видео в H.264 с заданным битрейтом: декодер рисует кадры прямо во входную
+ * поверхность кодера, без копирования через память приложения. Разрешение и поворот
+ * сохраняются, звук копируется как есть, вперемешку с кадрами по времени.
+ * <p>
+ * Результат пишется в {@link GrowingFile}: по мере записи он сообщает, какая часть MP4 уже
+ * окончательная (см. {@link Mp4Layout}), и отправку можно начать до конца перекодирования.
+ * Перекодирование идет в своем потоке; ошибка уходит в {@link GrowingFile#fail}.
+ */
+public final class VideoTranscoder {
+
+    private static final String OUTPUT_MIME = MediaFormat.MIMETYPE_VIDEO_AVC;
+    private static final int DEFAULT_FRAME_RATE = 30;
+    private static final int I_FRAME_INTERVAL_S = 2;
+    private static final long TIMEOUT_US = 10_000;
+    private static final long STALL_TIMEOUT_MS = 10_000; // Столько без единого кадра — кодек завис
+    private static final int DEFAULT_AUDIO_BUFFER_SIZE = 256 * 1024;
+    // Звук копируется без перекодирования, а MP4 принимает не любой
+    private static final String[] MP4_AUDIO_TYPES = {
+            MediaFormat.MIMETYPE_AUDIO_AAC, MediaFormat.MIMETYPE_AUDIO_AMR_NB, MediaFormat.MIMETYPE_AUDIO_AMR_WB};
+
+    private final MediaExtractor videoExtractor;
+    @Nullable private final MediaExtractor audioExtractor;
+    @Nullable private final MediaFormat audioFormat;
+    private final MediaCodec decoder;
+    private final MediaCodec encoder;
+    private final Surface inputSurface;
+    private final MediaMuxer muxer;
+    private final FileChannel outputChannel;
+    private final GrowingFile output;
+    private volatile boolean cancelled = false;
+
+    private VideoTranscoder(MediaExtractor videoExtractor, @Nullable MediaExtractor audioExtractor,
+                            @Nullable MediaFormat audioFormat, MediaCodec decoder, MediaCodec encoder, Surface inputSurface,
+                            MediaMuxer muxer, FileChannel outputChannel, GrowingFile output) {
+        this.videoExtractor = videoExtractor;
+        this.audioExtractor = audioExtractor;
+        this.audioFormat = audioFormat;
+        this.decoder = decoder;
+        this.encoder = encoder;
+        this.inputSurface = inputSurface;
+        this.muxer = muxer;
+        this.outputChannel = outputChannel;
+        this.output = output;
+    }
+
+    /**
+     * Готовит кодеки и запускает перекодирование в фоне.
+     *
+     * @return null — в файле нет видеодорожки или звук нельзя переложить в MP4 без перекодирования
+     * @throws IOException не удалось открыть источник или создать кодек
+     */
+    @Nullable
+    public static VideoTranscoder start(Context context, Uri source, File target, int bitrate, int rotationDegrees) throws IOException {
+        MediaExtractor videoExtractor = new MediaExtractor();
+        MediaExtractor audioExtractor = null;
+        MediaCodec decoder = null;
+        MediaCodec encoder = null;
+        Surface inputSurface = null;
+        MediaMuxer muxer = null;
+        FileChannel outputChannel = null;
+        try {
+            videoExtractor.setDataSource(context, source, null);
+            int videoTrack = findTrack(videoExtractor, "video/");
+            if (videoTrack < 0) {
+                videoExtractor.release();
+                return null;
+            }
+            MediaFormat videoFormat = videoExtractor.getTrackFormat(videoTrack);
+            videoExtractor.selectTrack(videoTrack);
+
+            MediaFormat audioFormat = null;
+            int audioTrack = findTrack(videoExtractor, "audio/");
+            if (audioTrack >= 0) {
+                audioFormat = videoExtractor.getTrackFormat(audioTrack);
+                if (!isMp4Audio(audioFormat.getString(MediaFormat.KEY_MIME))) {
+                    videoExtractor.release();
+                    return null;
+                }
+                audioExtractor = new MediaExtractor();
+                audioExtractor.setDataSource(context, source, null);
+                audioExtractor.selectTrack(audioTrack);
+            }
+
+            MediaFormat encoderFormat = MediaFormat.createVideoFormat(OUTPUT_MIME,
+                    videoFormat.getInteger(MediaFormat.KEY_WIDTH), videoFormat.getInteger(MediaFormat.KEY_HEIGHT));
+            encoderFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+            encoderFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+            encoderFormat.setInteger(MediaFormat.KEY_FRAME_RATE, videoFormat.containsKey(MediaFormat.KEY_FRAME_RATE)
+                    ? videoFormat.getInteger(MediaFormat.KEY_FRAME_RATE) : DEFAULT_FRAME_RATE);
+            encoderFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL_S);
+            encoder = MediaCodec.createEncoderByType(OUTPUT_MIME);
+            encoder.configure(encoderFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            inputSurface = encoder.createInputSurface();
+
+            decoder = MediaCodec.createDecoderByType(videoFormat.getString(MediaFormat.KEY_MIME));
+            decoder.configure(videoFormat, inputSurface, null, 0);
+
+            muxer = new MediaMuxer(target.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            muxer.setOrientationHint(rotationDegrees);
+            outputChannel = FileChannel.open(target.toPath(), StandardOpenOption.READ);
+
+            encoder.start();
+            decoder.start();
+            VideoTranscoder transcoder = new VideoTranscoder(videoExtractor, audioExtractor, audioFormat,
+                    decoder, encoder, inputSurface, muxer, outputChannel, new GrowingFile(target));
+            new Thread(transcoder::run, "video-transcoder").start();
+            return transcoder;
+        } catch (IOException | RuntimeException e) {
+            // MediaCodec и MediaMuxer сообщают о неподдерживаемом формате непроверяемыми исключениями
+            if (decoder != null) decoder.release();
+            if (encoder != null) encoder.release();
+            if (inputSurface != null) inputSurface.release();
+            if (muxer != null) muxer.release();
+            if (outputChannel != null) outputChannel.close();
+            if (audioExtractor != null) audioExtractor.release();
+            videoExtractor.release();
+            throw e instanceof IOException ? (IOException) e : new IOException("Видео не перекодируется", e);
+        }
+    }
+
+    /** Перекодированный файл; пишется, пока идет перекодирование. */
+    public GrowingFile output() {
+        return output;
+    }
+
+    private void run() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        ByteBuffer audioBuffer = null;
+        MediaCodec.BufferInfo audioInfo = new MediaCodec.BufferInfo();
+        int videoTrack = -1;
+        int audioTrack = -1;
+        boolean inputDone = false;
+        boolean decoderDone = false;
+        boolean muxerStarted = false;
+        long lastOutputAt = System.currentTimeMillis();
+        try {
+            while (!cancelled) {
+                if (!inputDone) {
+                    int index = decoder.dequeueInputBuffer(TIMEOUT_US);
+                    if (index >= 0) {
+                        int size = videoExtractor.readSampleData(decoder.getInputBuffer(index), 0);
+                        if (size < 0) {
+                            decoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            decoder.queueInputBuffer(index, 0, size, videoExtractor.getSampleTime(), 0);
+                            videoExtractor.advance();
+                        }
+                    }
+                }
+
+                if (!decoderDone) {
+                    int index = decoder.dequeueOutputBuffer(info, TIMEOUT_US);
+                    if (index >= 0) {
+                        // Кадр уходит во входную поверхность кодера вместе со своим временем
+                        decoder.releaseOutputBuffer(index, info.size > 0);
+                        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                            encoder.signalEndOfInputStream();
+                            decoderDone = true;
+                        }
+                    }
+                }
+
+                int index = encoder.dequeueOutputBuffer(info, TIMEOUT_US);
+                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    // Дорожки добавляются до старта мультиплексора, а формат кодера известен только сейчас
+                    videoTrack = muxer.addTrack(encoder.getOutputFormat());
+                    if (audioFormat != null) {
+                        audioTrack = muxer.addTrack(audioFormat);
+                        audioBuffer = ByteBuffer.allocateDirect(audioFormat.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                                ? audioFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : DEFAULT_AUDIO_BUFFER_SIZE);
+                    }
+                    muxer.start();
+                    muxerStarted = true;
+                } else if (index >= 0) {
+                    lastOutputAt = System.currentTimeMillis();
+                    boolean end = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+                        if (!muxerStarted) throw new IOException("Кодер выдал кадр до своего формата");
+                        muxer.writeSampleData(videoTrack, encoder.getOutputBuffer(index), info);
+                        // Звук до времени этого кадра: MP4 пишется вперемешку, а не дорожка за дорожкой
+                        if (audioTrack >= 0) copyAudio(audioTrack, audioBuffer, audioInfo, info.presentationTimeUs);
+                        reportGrowth();
+                    }
+                    encoder.releaseOutputBuffer(index, false);
+                    if (end) break;
+                } else if (System.currentTimeMillis() - lastOutputAt > STALL_TIMEOUT_MS) {
+                    throw new IOException("Кодер не выдает кадров " + STALL_TIMEOUT_MS + " мс");
+                }
+            }
+            if (cancelled) throw new IOException("Перекодирование отменено");
+            if (audioTrack >= 0) copyAudio(audioTrack, audioBuffer, audioInfo, Long.MAX_VALUE);
+            muxer.stop(); // Дописывает moov и размер mdat в начало файла
+            muxerStarted = false;
+            output.finish(outputChannel.size());
+        } catch (IOException | RuntimeException e) {
+            output.fail(e instanceof IOException ? (IOException) e : new IOException(e));
+        } finally {
+            release(muxerStarted);
+        }
+    }
+
+    /** Останавливает перекодирование; файл остается недописанным. */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    private void copyAudio(int track, ByteBuffer buffer, MediaCodec.BufferInfo audioInfo, long untilUs) {
+        while (true) {
+            long sampleTime = audioExtractor.getSampleTime();
+            if (sampleTime < 0 || sampleTime > untilUs) return;
+            buffer.clear();
+            int size = audioExtractor.readSampleData(buffer, 0);
+            if (size < 0) return;
+            audioInfo.set(0, size, sampleTime,
+                    (audioExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+            muxer.writeSampleData(track, buffer, audioInfo);
+            audioExtractor.advance();
+        }
+    }
+
+    private void reportGrowth() throws IOException {
+        long length = outputChannel.size();
+        if (output.stableFrom() < 0) {
+            long stableFrom = Mp4Layout.mediaDataStart(outputChannel, length);
+            if (stableFrom >= 0) output.setStableFrom(stableFrom);
+        }
+        output.grew(length);
+    }
+
+    private void release(boolean muxerStarted) {
+        try {
+            if (muxerStarted) muxer.stop();
+        } catch (RuntimeException ignored) {
+            // Файл все равно брошен
+        }
+        muxer.release();
+        decoder.release();
+        encoder.release();
+        inputSurface.release();
+        videoExtractor.release();
+        if (audioExtractor != null) audioExtractor.release();
+        try {
+            outputChannel.close();
+        } catch (IOException ignored) {
+            // Канал только для чтения
+        }
+    }
+
+    private static int findTrack(MediaExtractor extractor, String mimePrefix) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith(mimePrefix)) return i;
+        }
+        return -1;
+    }
+
+    private static boolean isMp4Audio(@Nullable String mime) {
+        for (String type : MP4_AUDIO_TYPES) if (type.equals(mime)) return true;
+        return false;
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.multimediaexchanger.ui.files;
+
+/**
+ * Дешевый режим FEC: один чанк четности — XOR всех чанков блока. Восстанавливает ровно одну
+ * потерю на блок, зато стоит одну операцию XOR на байт.
+ */
+final class XorParityCodec implements FecCodec {
+
+    static final int MAX_DATA_SHARDS = 32;
+
+    private final int shardSize;
+
+    XorParityCodec(int shardSize) {
+        this.shardSize = shardSize;
+    }
+
+    @Override
+    public int shardSize() {
+        return shardSize;
+    }
+
+    @Override
+    public int maxDataShards() {
+        return MAX_DATA_SHARDS;
+    }
+
+    @Override
+    public int maxParityShards() {
+        return 1;
+    }
+
+    @Override
+    public void encode(byte[][] data, int[] dataLengths, int dataCount, byte[][] parity, int parityCount) {
+        byte[] out = parity[0];
+        int firstLength = dataLengths[0];
+        System.arraycopy(data[0], 0, out, 0, firstLength);
+        for (int i = firstLength; i < shardSize; i++) out[i] = 0;
+        for (int s = 1; s < dataCount; s++) {
+            byte[] in = data[s];
+            int length = dataLengths[s];
+            for (int i = 0; i < length; i++) out[i] ^= in[i];
+        }
+    }
+
+    @Override
+    public boolean decode(byte[][] shards, boolean[] present, int dataCount, int parityCount) {
+        int missing = -1;
+        for (int s = 0; s < dataCount; s++) {
+            if (present[s]) continue;
+            if (missing != -1) return false; // XOR чинит только одну потерю
+            missing = s;
+        }
+        if (missing == -1) return true;
+        if (parityCount < 1 || !present[dataCount]) return false;
+
+        byte[] out = shards[missing];
+        System.arraycopy(shards[dataCount], 0, out, 0, shardSize);
+        for (int s = 0; s < dataCount; s++) {
+            if (s == missing) continue;
+            byte[] in = shards[s];
+            for (int i = 0; i < shardSize; i++) out[i] ^= in[i];
+        }
+        present[missing] = true;
+        return true;
+    }
+}
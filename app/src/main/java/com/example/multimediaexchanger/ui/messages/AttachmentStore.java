@@ -0,0 +1,140 @@
+package com.example.multimediaexchanger.ui.messages;
+
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Локальные копии отправленных вложений, адресованные содержимым: файл называется SHA-256
+ * своих байт, поэтому одна и та же картинка хранится один раз, сколько ее ни отправляй.
+ * <p>
+ * Копия пишется тем же проходом, что и отправка ({@link Writer} — это
+ * {@link ChatFileSender.ContentSink}), и получает имя, когда хэш известен. Для источников,
+ * уже сохраненных в этом процессе, хэш запоминается по ключу источника — повторная отправка
+ * идет прямо из хранилища, без второй копии.
+ */
+final class AttachmentStore {
+
+    private static final String DIRECTORY = "attachments";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int MAX_KNOWN_SOURCES = 256;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private static AttachmentStore instance;
+
+    private final File directory;
+    // Ключ источника -> хэш содержимого; самые давние вытесняются
+    private final Map<String, String> knownSources = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_KNOWN_SOURCES;
+        }
+    };
+
+    AttachmentStore(File directory) {
+        this.directory = directory;
+        if (!directory.exists()) directory.mkdirs();
+        // Недописанные копии от прошлого запуска
+        File[] leftovers = directory.listFiles((dir, name) -> name.endsWith(TMP_SUFFIX));
+        if (leftovers != null) for (File leftover : leftovers) leftover.delete();
+    }
+
+    static synchronized AttachmentStore get(File filesDir) {
+        if (instance == null) instance = new AttachmentStore(new File(filesDir, DIRECTORY));
+        return instance;
+    }
+
+    /** Уже сохраненная копия источника; null — источник здесь еще не сохраняли. */
+    @Nullable
+    synchronized File lookup(String sourceKey) {
+        String hash = knownSources.get(sourceKey);
+        if (hash == null) return null;
+        File file = new File(directory, hash);
+        if (file.exists()) return file;
+        knownSources.remove(sourceKey);
+        return null;
+    }
+
+    /** Копия для следующей отправки; {@link Writer#commit} дает ей имя по содержимому. */
+    Writer newWriter() throws IOException {
+        return new Writer(File.createTempFile("attachment", TMP_SUFFIX, directory));
+    }
+
+    /** Сохраняет поток целиком — для источников, из которых нельзя читать по смещению. */
+    File store(InputStream in, String sourceKey) throws IOException {
+        try (Writer writer = newWriter()) {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) writer.accept(buffer, read);
+            return writer.commit(sourceKey);
+        }
+    }
+
+    private synchronized File publish(File tmp, String hash, String sourceKey) throws IOException {
+        File target = new File(directory, hash);
+        if (target.exists()) {
+            tmp.delete(); // Такое содержимое уже есть — вторая копия не нужна
+        } else if (!tmp.renameTo(target)) {
+            tmp.delete();
+            throw new IOException("Не удалось сохранить вложение " + hash);
+        }
+        knownSources.put(sourceKey, hash);
+        return target;
+    }
+
+    final class Writer implements ChatFileSender.ContentSink, Closeable {
+        private final File tmp;
+        private final FileOutputStream out;
+        private final MessageDigest digest;
+        private boolean committed = false;
+
+        private Writer(File tmp) throws IOException {
+            this.tmp = tmp;
+            this.out = new FileOutputStream(tmp);
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                out.close();
+                tmp.delete();
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void accept(byte[] data, int length) throws IOException {
+            digest.update(data, 0, length);
+            out.write(data, 0, length);
+        }
+
+        /** Закрывает копию и кладет ее под именем-хэшем; если такая уже есть, возвращает ее. */
+        File commit(String sourceKey) throws IOException {
+            out.close();
+            committed = true;
+            return publish(tmp, toHex(digest.digest()), sourceKey);
+        }
+
+        /** Без {@link #commit} копия выбрасывается — например, если отправка сорвалась. */
+        @Override
+        public void close() throws IOException {
+            if (committed) return;
+            out.close();
+            tmp.delete();
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
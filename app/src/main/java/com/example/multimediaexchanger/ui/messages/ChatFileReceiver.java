@@ -0,0 +1,400 @@
+package com.example.multimediaexchanger.ui.messages;
+
+import com.example.multimediaexchanger.ui.UdpViewModel;
+import com.example.multimediaexchanger.ui.UsbLogViewModel;
+import com.example.multimediaexchanger.ui.files.ChunkCompressor;
+import com.example.multimediaexchanger.ui.files.TransferStats;
+import com.example.multimediaexchanger.ui.files.TransferTelemetry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Прием вложений чата в отдельном потоке-писателе. Поток приема только кладет пакет в
+ * ограниченную очередь; писатель забирает их пачками, пишет подряд идущие чанки одной
+ * сборкой и отвечает ACK после записи. Если очередь полна, пакет отбрасывается без ACK —
+ * отправитель повторит его по таймауту.
+ * <p>
+ * Экрану уходят только события превью и завершения, все методы {@link Listener} вызываются в
+ * потоке-писателе. Прогресс экран снимает сам из {@link TransferTelemetry}: писатель только
+ * считает записанные байты и дубликаты.
+ * <p>
+ * Файл, который отправитель еще дописывает, приходит с размером
+ * {@link ChatFileSender#UNKNOWN_SIZE}: чанки идут не по порядку, а итоговый размер — отдельным
+ * пакетом в конце. Размер в {@link TransferStats} тогда -1, пока он не известен.
+ */
+final class ChatFileReceiver {
+
+    interface Listener {
+        void onPreviewReceived(int transferId, File preview);
+        /** {@code transferId} 0 — отправитель старой версии, превью у такой передачи не бывает. */
+        void onReceiveFinished(int transferId, File file, boolean complete);
+    }
+
+    private static final int CHUNK_SIZE = ChatFileSender.CHUNK_SIZE;
+    private static final int QUEUE_CAPACITY = 2 * ChatFileSender.WINDOW_SIZE;
+    private static final int MAX_BATCH = ChatFileSender.WINDOW_SIZE;
+    private static final int MAX_PENDING_CHUNKS = ChatFileSender.WINDOW_SIZE; // Не больше окна (1 МБ) до заголовка
+
+    private static final class ChunkWrite {
+        final int seq;
+        final ByteBuffer data;
+
+        ChunkWrite(int seq, ByteBuffer data) {
+            this.seq = seq;
+            this.data = data;
+        }
+    }
+
+    private final UdpViewModel udpViewModel;
+    private final UsbLogViewModel log;
+    private final File directory;
+    private final Listener listener;
+    private final BlockingQueue<UdpViewModel.UdpMessage> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    // Состояние ниже трогает только поток-писатель
+    private File currentReceivingFile;
+    private RandomAccessFile receivingFile;
+    private FileChannel receivingChannel;
+    private boolean legacyMode = false;
+    private int receivingTransferId;
+    private int completedTransferId; // Последний принятый: на повторы его чанков только отвечаем ACK
+    private int previewTransferId; // Превью этой передачи уже показано; повторы с заголовком пропускаем
+    private String senderIp;
+    private long expectedFileSize = 0;
+    private TransferStats stats; // Есть, пока открыт файл приема
+    private int totalChunksExpected;
+    private final BitSet receivedChunks = new BitSet();
+    private final ArrayDeque<UdpViewModel.UdpMessage> pendingChunks = new ArrayDeque<>();
+
+    private final List<UdpViewModel.UdpMessage> batch = new ArrayList<>(MAX_BATCH);
+    private final List<ChunkWrite> writes = new ArrayList<>(MAX_BATCH);
+    private final BitSet batched = new BitSet();
+
+    ChatFileReceiver(UdpViewModel udpViewModel, UsbLogViewModel log, File directory, Listener listener) {
+        this.udpViewModel = udpViewModel;
+        this.log = log;
+        this.directory = directory;
+        this.listener = listener;
+        this.writerThread = new Thread(this::writerLoop, "chat-file-writer");
+    }
+
+    void start() {
+        writerThread.start();
+    }
+
+    /** Вызывается в потоке приема. */
+    void offer(UdpViewModel.UdpMessage message) {
+        queue.offer(message);
+    }
+
+    void close() {
+        running = false;
+        writerThread.interrupt();
+    }
+
+    private void writerLoop() {
+        try {
+            while (running) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                for (UdpViewModel.UdpMessage message : batch) handle(message);
+                batch.clear();
+                flushWrites();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeReceivingFile();
+        }
+    }
+
+    private void handle(UdpViewModel.UdpMessage message) {
+        switch (message.type) {
+            case UdpViewModel.MESSAGE_TYPE_FILE_PREVIEW:
+                handlePreview(message.payload);
+                break;
+            case UdpViewModel.MESSAGE_TYPE_FILE_HEADER:
+                flushWrites();
+                handleFileHeader(message.payload, message.senderIp);
+                break;
+            case UdpViewModel.MESSAGE_TYPE_FILE_CHUNK:
+            case UdpViewModel.MESSAGE_TYPE_FILE_CHUNK_COMPRESSED:
+                handleFileChunk(message);
+                break;
+            case UdpViewModel.MESSAGE_TYPE_FILE_LENGTH:
+                flushWrites();
+                handleFileLength(message.payload, message.senderIp);
+                break;
+            case UdpViewModel.MESSAGE_TYPE_FILE_END:
+                flushWrites();
+                handleFileEnd(message.payload);
+                break;
+        }
+    }
+
+    private void handlePreview(byte[] payload) {
+        if (payload.length <= 4) return;
+        int transferId = ByteBuffer.wrap(payload).getInt();
+        // Опоздавшее превью уже принятого файла заменило бы сам файл
+        if (transferId == 0 || transferId == previewTransferId || transferId == completedTransferId) return;
+        previewTransferId = transferId;
+        File preview = new File(directory, "preview_" + transferId + ".jpg");
+        try (RandomAccessFile out = new RandomAccessFile(preview, "rw")) {
+            out.setLength(0);
+            out.write(payload, 4, payload.length - 4);
+        } catch (IOException e) {
+            log.log("ERROR: Failed to save image preview", e);
+            return;
+        }
+        listener.onPreviewReceived(transferId, preview);
+    }
+
+    private void handleFileHeader(byte[] payload, String fromIp) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            int nameLen = buffer.getInt();
+            String name;
+            long size;
+            int transferId = 0;
+
+            if (nameLen < 0 || nameLen > 512) {
+                buffer = ByteBuffer.wrap(payload);
+                size = buffer.getLong();
+                name = new String(buffer.array(), buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+            } else {
+                byte[] nameBytes = new byte[nameLen];
+                buffer.get(nameBytes);
+                name = new String(nameBytes, StandardCharsets.UTF_8);
+                size = buffer.getLong();
+                if (buffer.remaining() < 4) {
+                    log.log("File Transfer: Заголовок без номера передачи — отправитель на старой версии");
+                    return;
+                }
+                transferId = buffer.getInt();
+
+                // Повтор заголовка: наш ACK потерялся
+                if ((receivingFile != null && transferId == receivingTransferId) || transferId == completedTransferId) {
+                    sendAck(fromIp, transferId, 0);
+                    return;
+                }
+            }
+
+            if (receivingFile != null) {
+                log.log("File Transfer: Прием '" + currentReceivingFile.getName() + "' прерван новым файлом");
+                closeReceivingFile();
+                currentReceivingFile.delete();
+                listener.onReceiveFinished(receivingTransferId, currentReceivingFile, false);
+            }
+
+            legacyMode = transferId == 0;
+            receivingTransferId = transferId;
+            senderIp = fromIp;
+            expectedFileSize = size;
+            // Размер неизвестен — число чанков тоже; границу поставит пакет с размером
+            totalChunksExpected = size == ChatFileSender.UNKNOWN_SIZE
+                    ? Integer.MAX_VALUE : (int) ((expectedFileSize + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            receivedChunks.clear();
+
+            currentReceivingFile = new File(directory, name);
+            File parent = currentReceivingFile.getParentFile();
+            if (!parent.exists()) parent.mkdirs();
+            receivingFile = new RandomAccessFile(currentReceivingFile, "rw");
+            receivingFile.setLength(legacyMode ? 0 : Math.max(0, expectedFileSize));
+            receivingChannel = receivingFile.getChannel();
+            stats = TransferTelemetry.get().register(TransferStats.Scope.CHAT, name, false, size);
+
+            log.log("Receiving file '" + name + "' ("
+                    + (expectedFileSize >= 0 ? expectedFileSize + " bytes" : "размер пока неизвестен") + ")");
+            if (!legacyMode) sendAck(fromIp, transferId, 0);
+
+            List<UdpViewModel.UdpMessage> early = new ArrayList<>(pendingChunks);
+            pendingChunks.clear();
+            for (UdpViewModel.UdpMessage chunk : early) handleFileChunk(chunk);
+            flushWrites();
+            if (!legacyMode && totalChunksExpected == 0) completeReceive();
+
+        } catch (Exception e) {
+            log.log("ERROR: Failed to parse file header", e);
+        }
+    }
+
+    private void handleFileChunk(UdpViewModel.UdpMessage message) {
+        byte[] payload = message.payload;
+        if (receivingFile == null) {
+            if (payload.length >= 8 && ByteBuffer.wrap(payload).getInt() == completedTransferId) {
+                // Повтор чанка уже принятого файла: отправитель не получил ACK
+                sendAck(message.senderIp, completedTransferId, ByteBuffer.wrap(payload).getInt(4));
+                return;
+            }
+            // Чанк обогнал заголовок; лишние не копим — без ACK отправитель их повторит
+            if (pendingChunks.size() >= MAX_PENDING_CHUNKS) pendingChunks.pollFirst();
+            pendingChunks.addLast(message);
+            return;
+        }
+        if (legacyMode) {
+            writeLegacyChunk(payload);
+            return;
+        }
+
+        if (payload.length < 8) return;
+        ByteBuffer chunkBuf = ByteBuffer.wrap(payload);
+        int transferId = chunkBuf.getInt();
+        int seq = chunkBuf.getInt();
+        if (transferId != receivingTransferId) {
+            if (transferId == completedTransferId) sendAck(message.senderIp, transferId, seq);
+            return;
+        }
+        if (seq < 1 || seq > totalChunksExpected) return;
+        if (batched.get(seq)) {
+            stats.onPacket(true);
+            return;
+        }
+        if (receivedChunks.get(seq)) {
+            stats.onPacket(true);
+            sendAck(message.senderIp, transferId, seq); // Дубликат: прошлый ACK потерялся
+            return;
+        }
+        stats.onPacket(false);
+
+        ByteBuffer data;
+        if (message.type == UdpViewModel.MESSAGE_TYPE_FILE_CHUNK_COMPRESSED) {
+            if (payload.length < 9) return;
+            try {
+                // Свой буфер на чанк: запись отложена до конца пачки
+                byte[] restored = new byte[CHUNK_SIZE];
+                int length = ChunkCompressor.decompress(payload[8], payload, 9, payload.length - 9, restored, CHUNK_SIZE);
+                data = ByteBuffer.wrap(restored, 0, length);
+            } catch (IOException e) {
+                log.log("ERROR: Failed to decompress chunk", e);
+                return; // ACK не отправлен — отправитель повторит чанк
+            }
+        } else {
+            data = ByteBuffer.wrap(payload, 8, payload.length - 8).slice();
+        }
+        batched.set(seq);
+        writes.add(new ChunkWrite(seq, data));
+    }
+
+    /** Пишет накопленные чанки: подряд идущие — одной сборкой со своего смещения. */
+    private void flushWrites() {
+        if (writes.isEmpty()) return;
+        writes.sort((a, b) -> Integer.compare(a.seq, b.seq));
+        try {
+            int runStart = 0;
+            for (int i = 1; i <= writes.size(); i++) {
+                if (i < writes.size() && writes.get(i).seq == writes.get(i - 1).seq + 1) continue;
+                writeRun(runStart, i);
+                runStart = i;
+            }
+        } catch (IOException e) {
+            log.log("ERROR: Writing chunk failed", e);
+        } finally {
+            writes.clear();
+            batched.clear();
+        }
+        if (receivingFile != null && receivedChunks.cardinality() == totalChunksExpected) completeReceive();
+    }
+
+    private void writeRun(int from, int to) throws IOException {
+        ByteBuffer[] run = new ByteBuffer[to - from];
+        long remaining = 0;
+        for (int i = from; i < to; i++) {
+            run[i - from] = writes.get(i).data;
+            remaining += run[i - from].remaining();
+        }
+        receivingChannel.position((long) (writes.get(from).seq - 1) * CHUNK_SIZE);
+        while (remaining > 0) remaining -= receivingChannel.write(run);
+
+        // ACK только за то, что уже лежит в файле
+        for (int i = from; i < to; i++) {
+            int seq = writes.get(i).seq;
+            receivedChunks.set(seq);
+            stats.addDone(writes.get(i).data.limit());
+            sendAck(senderIp, receivingTransferId, seq);
+        }
+    }
+
+    private void writeLegacyChunk(byte[] payload) {
+        try {
+            receivingFile.write(payload);
+            stats.onPacket(false);
+            stats.addDone(payload.length);
+        } catch (IOException e) {
+            log.log("ERROR: Writing chunk failed", e);
+        }
+    }
+
+    /** Итоговый размер файла, который отправитель слал, пока дописывал; ACK — номером за последним чанком. */
+    private void handleFileLength(byte[] payload, String fromIp) {
+        if (payload.length < 12) return;
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int transferId = buffer.getInt();
+        long size = buffer.getLong();
+        if (size < 0) return;
+        int chunks = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        boolean current = receivingFile != null && !legacyMode && transferId == receivingTransferId;
+        if (current && expectedFileSize < 0) {
+            expectedFileSize = size;
+            totalChunksExpected = chunks;
+            stats.setTotal(size);
+            try {
+                receivingFile.setLength(size);
+            } catch (IOException e) {
+                log.log("ERROR: Failed to set file length", e);
+                return; // Без ACK отправитель повторит размер
+            }
+            log.log("File Transfer: Размер '" + currentReceivingFile.getName() + "' — " + size + " bytes");
+        } else if (!current && transferId != completedTransferId) {
+            return;
+        }
+        sendAck(fromIp, transferId, chunks + 1); // И на повтор: прошлый ACK мог потеряться
+        if (current && receivedChunks.cardinality() == totalChunksExpected) completeReceive();
+    }
+
+    private void handleFileEnd(byte[] payload) {
+        // Новый формат завершается сам, когда пришли все чанки; END ждет только старый
+        if (legacyMode && receivingFile != null && payload.length == 0) completeReceive();
+    }
+
+    private void sendAck(String ip, int transferId, int seq) {
+        ByteBuffer ack = ByteBuffer.allocate(8);
+        ack.putInt(transferId).putInt(seq);
+        udpViewModel.sendData(ip, UdpViewModel.MESSAGE_TYPE_FILE_ACK, ack.array());
+    }
+
+    private void completeReceive() {
+        closeReceivingFile();
+        log.log("File Transfer: Received " + currentReceivingFile.getName());
+        if (!legacyMode) completedTransferId = receivingTransferId;
+        listener.onReceiveFinished(legacyMode ? 0 : receivingTransferId, currentReceivingFile, true);
+
+        currentReceivingFile = null;
+        expectedFileSize = 0;
+        receivedChunks.clear();
+    }
+
+    private void closeReceivingFile() {
+        try {
+            if (receivingFile != null) receivingFile.close();
+        } catch (IOException e) {
+            log.log("ERROR: Closing file failed", e);
+        }
+        receivingFile = null;
+        receivingChannel = null;
+        TransferTelemetry.get().unregister(stats);
+        stats = null;
+    }
+}
@@ -0,0 +1,387 @@
+package com.example.multimediaexchanger.ui.messages;
+
+import androidx.annotation.Nullable;
+
+import com.example.multimediaexchanger.ui.UdpViewModel;
+import com.example.multimediaexchanger.ui.files.ChunkCompressor;
+import com.example.multimediaexchanger.ui.files.GrowingFile;
+import com.example.multimediaexchanger.ui.files.TransferStats;
+import com.example.multimediaexchanger.ui.files.TransferTelemetry;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Отправка вложения чата окном: в полете до {@link #WINDOW_SIZE} чанков, получатель
+ * подтверждает каждый. ACK адресованы номеру передачи, поэтому подтверждения прошлой
+ * отправки не засчитываются новой.
+ * <p>
+ * Номера как у RUDP: 0 — заголовок, чанки с 1. Таймаут повтора считается по измеренному RTT
+ * (RFC 6298), повторно отправленные чанки в замер не идут.
+ * <p>
+ * Превью картинки, если есть, идет перед каждой попыткой заголовка: получатель покажет его,
+ * не дожидаясь файла. Отдельно превью не подтверждается — потерянное заменит полный файл.
+ * <p>
+ * Чанки читаются по смещению прямо из канала источника — копировать вложение заранее не нужно.
+ * Каждый чанк читается с диска один раз: повтор берется из слота окна.
+ * <p>
+ * Источник может еще дописываться ({@link GrowingFile}, например перекодируемое видео). Тогда
+ * в заголовке размер {@link #UNKNOWN_SIZE}, сначала уходят чанки окончательной части файла по
+ * мере записи, а изменяемое начало — после конца записи. Окно считается в порядке отправки, а не
+ * по номерам чанков. Итоговый размер уходит пакетом {@link UdpViewModel#MESSAGE_TYPE_FILE_LENGTH},
+ * получатель подтверждает его номером «чанк за последним».
+ * <p>
+ * Прогресс не сообщается с каждым чанком: на время {@link #send()} передача регистрируется в
+ * {@link TransferTelemetry}, экран снимает счетчики сам.
+ */
+final class ChatFileSender implements UdpViewModel.AckListener {
+
+    /** Получает содержимое файла по порядку, по разу каждый чанк, пока он уходит в сеть. */
+    interface ContentSink {
+        void accept(byte[] data, int length) throws IOException;
+    }
+
+    static final int CHUNK_SIZE = 16384; // 16KB
+    static final int WINDOW_SIZE = 64;
+    static final long UNKNOWN_SIZE = -1; // Размер в заголовке, пока источник дописывается
+
+    private static final long INITIAL_RTO_MS = 300;
+    private static final long MIN_RTO_MS = 40;
+    private static final long MAX_RTO_MS = 3000;
+    private static final int MAX_HEADER_ATTEMPTS = 10;
+    private static final long STALL_TIMEOUT_MS = 30_000; // Столько без единого ACK — получатель пропал
+    private static final long POLL_INTERVAL_MS = 100; // Растущий источник проверяем и без уведомления
+
+    private final UdpViewModel udpViewModel;
+    private final String targetIp;
+    private final int transferId;
+    private final FileChannel input;
+    private final String fileName;
+    @Nullable private final GrowingFile growing;
+    private long fileSize;  // UNKNOWN_SIZE, пока растущий источник не дописан
+    private int chunkCount; // Для растущего источника известно тоже только в конце
+    private int headChunks = -1; // Изменяемое начало растущего источника, в чанках; -1 — еще неизвестно
+    @Nullable private byte[] lengthPacket;
+    private boolean lengthAcked = false;
+    private long lengthSentAt = 0;
+    @Nullable private final ChunkCompressor compressor;
+    @Nullable private final byte[] compressBuffer;
+    @Nullable private final byte[] previewPacket;
+    @Nullable private ContentSink contentSink;
+    @Nullable private TransferStats stats; // Есть, пока идет send()
+
+    // Состояние окна; ACK меняет его из потока приема. Индексы — порядок отправки (с 1), он же
+    // номер чанка, если источник не растет (см. seqOf)
+    private final BitSet acked = new BitSet();
+    private final BitSet retransmitted = new BitSet();
+    private long[] sentAt;
+    private final byte[][] payloads = new byte[WINDOW_SIZE][]; // Чанки в полете, по индексу % WINDOW_SIZE
+    private final byte[] types = new byte[WINDOW_SIZE];
+    private int base = 1;    // Наименьший неподтвержденный
+    private int nextSeq = 1; // Следующий еще не отправленный
+    private int ackedCount = 0;
+    private long lastAckAt;
+    private double srtt = -1;
+    private double rttVar;
+    private long rto = INITIAL_RTO_MS;
+
+    private int retransmissions = 0;
+
+    /** Канал остается за вызывающим: отправитель только читает из него по смещению. */
+    ChatFileSender(UdpViewModel udpViewModel, String targetIp, FileChannel input, String fileName, long fileSize,
+                   @Nullable ChunkCompressor compressor, @Nullable byte[] preview) {
+        this(udpViewModel, targetIp, input, null, fileName, fileSize, compressor, preview);
+    }
+
+    /** Отправка файла, который еще пишется: {@code input} открыт на {@link GrowingFile#file()}. */
+    ChatFileSender(UdpViewModel udpViewModel, String targetIp, FileChannel input, GrowingFile growing, String fileName,
+                   @Nullable ChunkCompressor compressor) {
+        this(udpViewModel, targetIp, input, growing, fileName, UNKNOWN_SIZE, compressor, null);
+    }
+
+    private ChatFileSender(UdpViewModel udpViewModel, String targetIp, FileChannel input, @Nullable GrowingFile growing,
+                           String fileName, long fileSize, @Nullable ChunkCompressor compressor, @Nullable byte[] preview) {
+        this.udpViewModel = udpViewModel;
+        this.targetIp = targetIp;
+        this.transferId = udpViewModel.nextTransferId();
+        this.input = input;
+        this.growing = growing;
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.chunkCount = growing == null ? (int) ((fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE) : 0;
+        this.compressor = compressor;
+        this.compressBuffer = compressor != null ? new byte[ChunkCompressor.maxCompressedLength(CHUNK_SIZE)] : null;
+        this.previewPacket = preview != null
+                ? ByteBuffer.allocate(4 + preview.length).putInt(transferId).put(preview).array() : null;
+        this.sentAt = new long[growing == null ? chunkCount + 1 : 2 * WINDOW_SIZE];
+    }
+
+    int retransmissions() {
+        return retransmissions;
+    }
+
+    /** Только для обычного источника: растущий читается не по порядку. */
+    void setContentSink(@Nullable ContentSink contentSink) {
+        if (growing != null && contentSink != null) throw new IllegalStateException("Растущий источник читается не по порядку");
+        this.contentSink = contentSink;
+    }
+
+    /** Размер отправленного файла; для растущего источника известен после {@link #send()}. */
+    synchronized long fileSize() {
+        return fileSize;
+    }
+
+    /** Отправляет файл и возвращается, когда получатель подтвердил все чанки. */
+    void send() throws IOException, InterruptedException {
+        TransferStats transferStats = TransferTelemetry.get().register(TransferStats.Scope.CHAT, fileName, true, fileSize);
+        transferStats.setWindow(WINDOW_SIZE);
+        synchronized (this) {
+            stats = transferStats;
+        }
+        udpViewModel.registerAckListener(transferId, this);
+        if (growing != null) growing.setListener(this::onSourceChanged);
+        try {
+            sendHeader();
+            sendChunks();
+            ByteBuffer end = ByteBuffer.allocate(4).putInt(transferId);
+            udpViewModel.sendData(targetIp, UdpViewModel.MESSAGE_TYPE_FILE_END, end.array());
+        } finally {
+            if (growing != null) growing.setListener(null);
+            udpViewModel.unregisterAckListener(transferId);
+            TransferTelemetry.get().unregister(transferStats);
+        }
+    }
+
+    private synchronized void onSourceChanged() {
+        notifyAll(); // Дописаны новые чанки — можно слать дальше
+    }
+
+    private void sendHeader() throws IOException, InterruptedException {
+        byte[] nameBytes = fileName.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(4 + nameBytes.length + 8 + 4);
+        header.putInt(nameBytes.length).put(nameBytes).putLong(fileSize).putInt(transferId);
+
+        for (int attempt = 0; attempt < MAX_HEADER_ATTEMPTS; attempt++) {
+            if (previewPacket != null) udpViewModel.sendData(targetIp, UdpViewModel.MESSAGE_TYPE_FILE_PREVIEW, previewPacket);
+            long sent = System.currentTimeMillis();
+            udpViewModel.sendData(targetIp, UdpViewModel.MESSAGE_TYPE_FILE_HEADER, header.array());
+            synchronized (this) {
+                long deadline = sent + rto;
+                long now;
+                while (!acked.get(0) && (now = System.currentTimeMillis()) < deadline) wait(deadline - now);
+                if (acked.get(0)) {
+                    if (attempt == 0) sampleRtt(System.currentTimeMillis() - sent);
+                    lastAckAt = System.currentTimeMillis();
+                    return;
+                }
+                rto = Math.min(MAX_RTO_MS, rto * 2);
+            }
+        }
+        throw new IOException("Получатель не ответил на заголовок");
+    }
+
+    private void sendChunks() throws IOException, InterruptedException {
+        List<Integer> toSend = new ArrayList<>(WINDOW_SIZE);
+        while (true) {
+            int fillFrom;
+            int fillTo;
+            boolean sendLength;
+            synchronized (this) {
+                updateSource();
+                if (allAcked()) break;
+                long now = System.currentTimeMillis();
+                // Пока все подтверждено и ждем источник, тишина от получателя — не обрыв: отсчет с нуля
+                boolean awaitingAcks = nextSeq > base || (lengthPacket != null && !lengthAcked);
+                if (!awaitingAcks) {
+                    lastAckAt = now;
+                } else if (now - lastAckAt > STALL_TIMEOUT_MS) {
+                    throw new IOException("Нет подтверждений " + STALL_TIMEOUT_MS + " мс");
+                }
+
+                // Чанки, чей таймаут истек; окно в этот момент стоит
+                toSend.clear();
+                boolean expired = false;
+                for (int seq = acked.nextClearBit(base); seq < nextSeq; seq = acked.nextClearBit(seq + 1)) {
+                    if (now - sentAt[seq] >= rto) {
+                        toSend.add(seq);
+                        sentAt[seq] = now;
+                        retransmitted.set(seq);
+                        expired = true;
+                    }
+                }
+                if (expired) rto = Math.min(MAX_RTO_MS, rto * 2);
+                retransmissions += toSend.size();
+
+                fillFrom = nextSeq;
+                fillTo = Math.min(readyCount(), base + WINDOW_SIZE - 1);
+                nextSeq = Math.max(nextSeq, fillTo + 1);
+                ensureCapacity(nextSeq);
+                sendLength = lengthPacket != null && !lengthAcked && now - lengthSentAt >= rto;
+                if (sendLength) lengthSentAt = now;
+            }
+
+            if (sendLength) udpViewModel.sendData(targetIp, UdpViewModel.MESSAGE_TYPE_FILE_LENGTH, lengthPacket);
+
+            for (int seq : toSend) {
+                int slot = seq % WINDOW_SIZE;
+                udpViewModel.sendData(targetIp, types[slot], payloads[slot]);
+                stats.onPacket(true);
+            }
+            for (int seq = fillFrom; seq <= fillTo; seq++) {
+                buildChunk(seq);
+                int slot = seq % WINDOW_SIZE;
+                synchronized (this) {
+                    sentAt[seq] = System.currentTimeMillis();
+                }
+                udpViewModel.sendData(targetIp, types[slot], payloads[slot]);
+                stats.onPacket(false);
+            }
+
+            long now = System.currentTimeMillis();
+
+            synchronized (this) {
+                if (allAcked()) break;
+                // Спим до ближайшего таймаута, до ACK, который сдвинет окно, или до новых данных источника
+                long wake = Long.MAX_VALUE;
+                for (int seq = acked.nextClearBit(base); seq < nextSeq; seq = acked.nextClearBit(seq + 1)) {
+                    wake = Math.min(wake, sentAt[seq] + rto);
+                }
+                if (lengthPacket != null && !lengthAcked) wake = Math.min(wake, lengthSentAt + rto);
+                long delay = Math.min(wake, now + POLL_INTERVAL_MS) - System.currentTimeMillis();
+                boolean sourceChanged = growing != null && (growing.isFinished() != (lengthPacket != null)
+                        || (headChunks < 0 && growing.stableFrom() >= 0));
+                boolean nothingToSend = nextSeq >= base + WINDOW_SIZE || nextSeq > readyCount();
+                if (delay > 0 && nothingToSend && !sourceChanged) wait(delay);
+            }
+        }
+    }
+
+    private boolean allAcked() {
+        if (growing == null) return ackedCount == chunkCount;
+        return lengthPacket != null && lengthAcked && ackedCount == chunkCount;
+    }
+
+    /** Сколько чанков (в порядке отправки) уже можно читать. */
+    private int readyCount() {
+        if (growing == null || lengthPacket != null) return chunkCount;
+        if (headChunks < 0) return 0;
+        return (int) Math.max(0, growing.length() / CHUNK_SIZE - headChunks);
+    }
+
+    /** Следит за растущим источником: где кончается изменяемое начало и не дописан ли он. */
+    private void updateSource() throws IOException {
+        if (growing == null || lengthPacket != null) return;
+        growing.checkFailure();
+        if (headChunks < 0 && growing.stableFrom() >= 0) {
+            headChunks = (int) ((growing.stableFrom() + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        }
+        if (!growing.isFinished()) return;
+        fileSize = growing.length();
+        chunkCount = (int) ((fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        // Отправленные чанки лежат за началом, значит начало не длиннее файла
+        headChunks = headChunks < 0 ? 0 : Math.min(headChunks, chunkCount);
+        ensureCapacity(chunkCount + 1);
+        lengthPacket = ByteBuffer.allocate(12).putInt(transferId).putLong(fileSize).array();
+        if (stats != null) stats.setTotal(fileSize);
+    }
+
+    private void ensureCapacity(int index) {
+        if (index >= sentAt.length) sentAt = Arrays.copyOf(sentAt, Math.max(index + 1, sentAt.length * 2));
+    }
+
+    /**
+     * Номер чанка по индексу отправки. У растущего источника сначала идут чанки за изменяемым
+     * началом, по порядку, а чанки начала — последними.
+     */
+    private int seqOf(int index) {
+        if (growing == null || headChunks <= 0) return index;
+        if (lengthPacket == null || index <= chunkCount - headChunks) return index + headChunks;
+        return index - (chunkCount - headChunks);
+    }
+
+    /** Обратное к {@link #seqOf}; -1 — такой чанк еще не мог быть отправлен. */
+    private int indexOf(int seq) {
+        if (growing == null || headChunks <= 0) return seq;
+        if (seq > headChunks) return seq - headChunks;
+        return lengthPacket != null ? seq + (chunkCount - headChunks) : -1;
+    }
+
+    private int chunkLength(int seq) {
+        if (fileSize < 0) return CHUNK_SIZE; // Растущий источник: до конца записи шлем только полные чанки
+        return (int) Math.min(CHUNK_SIZE, fileSize - (long) (seq - 1) * CHUNK_SIZE);
+    }
+
+    /** Читает и при необходимости сжимает чанк; payload лежит в слоте до подтверждения. */
+    private void buildChunk(int index) throws IOException {
+        int seq;
+        int length;
+        synchronized (this) {
+            seq = seqOf(index);
+            length = chunkLength(seq);
+        }
+        byte[] data = new byte[length];
+        ByteBuffer target = ByteBuffer.wrap(data);
+        long position = (long) (seq - 1) * CHUNK_SIZE;
+        while (target.hasRemaining()) {
+            if (input.read(target, position + target.position()) < 0) throw new EOFException("Файл короче заявленного");
+        }
+        if (contentSink != null) contentSink.accept(data, length);
+
+        int slot = index % WINDOW_SIZE;
+        int compressedLength = compressor != null ? compressor.compress(data, 0, length, compressBuffer) : -1;
+        if (compressedLength >= 0) {
+            types[slot] = UdpViewModel.MESSAGE_TYPE_FILE_CHUNK_COMPRESSED;
+            payloads[slot] = ByteBuffer.allocate(8 + 1 + compressedLength).putInt(transferId).putInt(seq)
+                    .put(compressor.codecId()).put(compressBuffer, 0, compressedLength).array();
+        } else {
+            types[slot] = UdpViewModel.MESSAGE_TYPE_FILE_CHUNK;
+            payloads[slot] = ByteBuffer.allocate(8 + length).putInt(transferId).putInt(seq).put(data).array();
+        }
+    }
+
+    @Override
+    public synchronized void onAck(int seq) {
+        long now = System.currentTimeMillis();
+        if (lengthPacket != null && seq == chunkCount + 1) {
+            // Получатель узнал итоговый размер растущего файла
+            lastAckAt = now;
+            lengthAcked = true;
+            notifyAll();
+            return;
+        }
+        int index = seq == 0 ? 0 : indexOf(seq);
+        if (index < 0 || index >= nextSeq || acked.get(index)) return;
+        acked.set(index);
+        lastAckAt = now;
+        if (index == 0) {
+            notifyAll();
+            return;
+        }
+        ackedCount++;
+        if (stats != null) stats.addDone(chunkLength(seq));
+        if (!retransmitted.get(index) && sentAt[index] > 0) sampleRtt(now - sentAt[index]);
+        if (index == base) {
+            base = acked.nextClearBit(base);
+            notifyAll(); // Окно сдвинулось — можно слать дальше
+        }
+    }
+
+    /** RFC 6298: сглаженный RTT и его разброс. */
+    private void sampleRtt(long rttMs) {
+        if (srtt < 0) {
+            srtt = rttMs;
+            rttVar = rttMs / 2.0;
+        } else {
+            rttVar = 0.75 * rttVar + 0.25 * Math.abs(srtt - rttMs);
+            srtt = 0.875 * srtt + 0.125 * rttMs;
+        }
+        rto = Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, (long) (srtt + 4 * rttVar)));
+    }
+}
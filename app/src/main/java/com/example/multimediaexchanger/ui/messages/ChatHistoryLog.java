@@ -0,0 +1,289 @@
+package com.example.multimediaexchanger.ui.messages;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Журнал истории чата: записи только дописываются в конец, поэтому новое сообщение стоит
+ * одной записи, а не перезаписи всей истории.
+ * <p>
+ * Запись — {@code [длина][CRC32][id][тело]}, длина и CRC считаются по {@code id + тело}.
+ * Запись с уже известным id заменяет прежнюю, оставаясь на ее месте в порядке сообщений.
+ * Если приложение упало посреди записи, при открытии отрезается только оборванный хвост.
+ * Журнал переписывается начисто, когда замененных записей становится больше живых.
+ * <p>
+ * Рядом лежит индекс {@code .idx}: заголовок {@code [проверенная длина журнала][число записей]}
+ * и по 16 байт {@code [id][смещение]} на каждую позицию. Поэтому открытие не читает историю
+ * целиком — проверяется только хвост журнала, дописанный после заголовка индекса, — а страница
+ * читается прямо по позициям. id растут вместе с позицией, позиция по id ищется двоичным поиском.
+ */
+final class ChatHistoryLog implements Closeable {
+
+    static final class Record {
+        final long id;
+        final byte[] body;
+
+        Record(long id, byte[] body) {
+            this.id = id;
+            this.body = body;
+        }
+    }
+
+    private static final int HEADER_SIZE = 4 + 4;
+    private static final int MAX_RECORD_SIZE = 1024 * 1024; // Больше — значит длина испорчена
+    private static final int COMPACT_MIN_RECORDS = 256;
+    private static final int INDEX_HEADER_SIZE = 8 + 8;
+    private static final int INDEX_ENTRY_SIZE = 8 + 8;
+
+    private final File file;
+    private final File indexFile;
+    private RandomAccessFile raf;
+    private RandomAccessFile index;
+
+    private int size = 0;
+    private long recordCount = 0;
+    private long lastId = 0;
+    private long droppedTailBytes = 0;
+
+    ChatHistoryLog(File file) throws IOException {
+        this.file = file;
+        this.indexFile = new File(file.getPath() + ".idx");
+        this.raf = new RandomAccessFile(file, "rw");
+        this.index = new RandomAccessFile(indexFile, "rw");
+        open();
+    }
+
+    /** Сколько байт оборванного хвоста отрезано при открытии. */
+    long droppedTailBytes() {
+        return droppedTailBytes;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /** Наибольший id в журнале; 0 — журнал пуст. */
+    synchronized long lastId() {
+        return lastId;
+    }
+
+    /** Дописывает запись. Запись с уже известным id заменяет прежнюю. */
+    synchronized void append(long id, byte[] body) throws IOException {
+        if (8 + body.length > MAX_RECORD_SIZE) throw new IOException("Слишком большая запись: " + body.length + " байт");
+        long offset = raf.length();
+        raf.seek(offset);
+        raf.write(encode(id, body));
+        recordCount++;
+        indexRecord(id, offset);
+        writeIndexHeader(raf.length());
+        if (recordCount > Math.max(COMPACT_MIN_RECORDS, 2L * size)) compact();
+    }
+
+    /** Записи с позициями [from, to) в порядке сообщений. */
+    synchronized List<Record> read(int from, int to) throws IOException {
+        from = Math.max(0, from);
+        to = Math.min(size, to);
+        List<Record> records = new ArrayList<>(Math.max(0, to - from));
+        if (from >= to) return records;
+        // Элементы индекса страницы лежат подряд — читаем их одним куском
+        byte[] entries = new byte[(to - from) * INDEX_ENTRY_SIZE];
+        index.seek(entryOffset(from));
+        index.readFully(entries);
+        ByteBuffer buffer = ByteBuffer.wrap(entries);
+        for (int i = from; i < to; i++) {
+            buffer.getLong(); // id
+            records.add(readAt(buffer.getLong()));
+        }
+        return records;
+    }
+
+    /** Позиция записи с данным id; -1 — такой нет. */
+    synchronized int positionOf(long id) throws IOException {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midId = idAt(mid);
+            if (midId < id) low = mid + 1;
+            else if (midId > id) high = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    /** Позиция первой записи с id больше данного; {@link #size()} — таких нет. */
+    synchronized int positionAfter(long id) throws IOException {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (idAt(mid) <= id) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /** Переписывает журнал одними живыми записями. */
+    synchronized void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        File indexTmp = new File(indexFile.getPath() + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+             RandomAccessFile indexOut = new RandomAccessFile(indexTmp, "rw")) {
+            out.setLength(0);
+            indexOut.setLength(0);
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+            indexOut.seek(INDEX_HEADER_SIZE);
+            for (int i = 0; i < size; i++) {
+                Record record = read(i, i + 1).get(0);
+                entry.clear();
+                entry.putLong(record.id).putLong(out.getFilePointer());
+                indexOut.write(entry.array());
+                out.write(encode(record.id, record.body));
+            }
+            indexOut.seek(0);
+            indexOut.writeLong(out.length());
+            indexOut.writeLong(size);
+            out.getFD().sync();
+            indexOut.getFD().sync();
+        }
+        raf.close();
+        index.close();
+        // Без индекса журнал все равно откроется — полным проходом, поэтому индекс убираем первым
+        boolean replaced = indexFile.delete() && tmp.renameTo(file) && indexTmp.renameTo(indexFile);
+        raf = new RandomAccessFile(file, "rw");
+        index = new RandomAccessFile(indexFile, "rw");
+        if (!replaced) {
+            tmp.delete();
+            indexTmp.delete();
+            rebuildIndex();
+            throw new IOException("Не удалось переписать журнал истории");
+        }
+        recordCount = size;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        raf.close();
+        index.close();
+    }
+
+    private void open() throws IOException {
+        long logLength = raf.length();
+        long indexLength = index.length();
+        if (indexLength < INDEX_HEADER_SIZE) {
+            rebuildIndex();
+            return;
+        }
+        index.seek(0);
+        long checkedLength = index.readLong();
+        recordCount = index.readLong();
+        size = (int) ((indexLength - INDEX_HEADER_SIZE) / INDEX_ENTRY_SIZE);
+        // Журнал короче проверенной длины — индекс от другого журнала, доверять нечему
+        if (checkedLength > logLength) {
+            rebuildIndex();
+            return;
+        }
+        // Элементы, дописанные после заголовка, и недописанный элемент отбрасываем — их восстановит хвост
+        while (size > 0 && offsetAt(size - 1) >= checkedLength) size--;
+        index.setLength(entryOffset(size));
+        recordCount = Math.max(recordCount, size);
+        lastId = size > 0 ? idAt(size - 1) : 0;
+        replay(checkedLength);
+        writeIndexHeader(raf.length());
+    }
+
+    private void rebuildIndex() throws IOException {
+        index.setLength(0);
+        size = 0;
+        recordCount = 0;
+        lastId = 0;
+        replay(0);
+        writeIndexHeader(raf.length());
+    }
+
+    /** Проверяет записи журнала от {@code offset} и вносит их в индекс; оборванный хвост отрезает. */
+    private void replay(long offset) throws IOException {
+        long length = raf.length();
+        byte[] header = new byte[HEADER_SIZE];
+        CRC32 crc = new CRC32();
+        while (offset + HEADER_SIZE <= length) {
+            raf.seek(offset);
+            raf.readFully(header);
+            ByteBuffer buffer = ByteBuffer.wrap(header);
+            int recordLength = buffer.getInt();
+            int expectedCrc = buffer.getInt();
+            if (recordLength < 8 || recordLength > MAX_RECORD_SIZE || offset + HEADER_SIZE + recordLength > length) break;
+            byte[] data = new byte[recordLength];
+            raf.readFully(data);
+            crc.reset();
+            crc.update(data);
+            if ((int) crc.getValue() != expectedCrc) break;
+
+            recordCount++;
+            indexRecord(ByteBuffer.wrap(data).getLong(), offset);
+            offset += HEADER_SIZE + recordLength;
+        }
+        if (offset < length) {
+            // Оборванная при падении запись: все до нее цело, хвост отрезаем
+            droppedTailBytes = length - offset;
+            raf.setLength(offset);
+        }
+    }
+
+    private void indexRecord(long id, long offset) throws IOException {
+        int position = id > lastId ? -1 : positionOf(id);
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        entry.putLong(id).putLong(offset);
+        if (position < 0) {
+            position = size++;
+            lastId = Math.max(lastId, id);
+        }
+        index.seek(entryOffset(position));
+        index.write(entry.array());
+    }
+
+    private void writeIndexHeader(long checkedLength) throws IOException {
+        index.seek(0);
+        index.writeLong(checkedLength);
+        index.writeLong(recordCount);
+    }
+
+    private long idAt(int position) throws IOException {
+        index.seek(entryOffset(position));
+        return index.readLong();
+    }
+
+    private long offsetAt(int position) throws IOException {
+        index.seek(entryOffset(position) + 8);
+        return index.readLong();
+    }
+
+    private static long entryOffset(int position) {
+        return INDEX_HEADER_SIZE + (long) position * INDEX_ENTRY_SIZE;
+    }
+
+    private Record readAt(long offset) throws IOException {
+        raf.seek(offset);
+        int recordLength = raf.readInt();
+        raf.readInt(); // CRC проверен, когда запись попала в индекс
+        long id = raf.readLong();
+        byte[] body = new byte[recordLength - 8];
+        raf.readFully(body);
+        return new Record(id, body);
+    }
+
+    private static byte[] encode(long id, byte[] body) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 8 + body.length);
+        buffer.putInt(8 + body.length).putInt(0).putLong(id).put(body);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_SIZE, 8 + body.length);
+        buffer.putInt(4, (int) crc.getValue());
+        return buffer.array();
+    }
+}
@@ -0,0 +1,459 @@
+package com.example.multimediaexchanger.ui.messages;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Полнотекстовый индекс истории чата: слово -> id сообщений, в которых оно есть.
+ * <p>
+ * Новые сообщения попадают в таблицу в памяти; когда в ней набирается
+ * {@link #FLUSH_POSTINGS} вхождений, она пишется на диск неизменяемым сегментом. Сегмент —
+ * отсортированные слова и списки id (разности, varint); в памяти от него держится только
+ * словарь, сами списки читаются с диска по запросу. Больше {@link #MAX_SEGMENTS} сегментов
+ * сливаются в один.
+ * <p>
+ * Манифест рядом с журналом называет живые сегменты и id, до которого они покрывают историю.
+ * Таблица в памяти не сохраняется: после перезапуска ее восстанавливают из журнала истории,
+ * дочитав сообщения новее {@link #indexedUpTo()}.
+ * <p>
+ * Каждое слово запроса ищется как префикс, сообщения должны содержать все слова.
+ */
+final class ChatSearchIndex implements Closeable {
+
+    static final int FLUSH_POSTINGS = 50_000;
+    static final int MAX_SEGMENTS = 8;
+    private static final int MAX_TOKEN_LENGTH = 64;
+    private static final int MANIFEST_MAGIC = 0x46545331; // "FTS1"
+    private static final int SEGMENT_MAGIC = 0x46545353; // "FTSS"
+
+    /** Список id по возрастанию. */
+    private static final class Postings {
+        long[] ids = new long[4];
+        int size = 0;
+
+        void add(long id) {
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+    }
+
+    /** Сегмент на диске: словарь в памяти, списки id — в файле. */
+    private static final class Segment implements Closeable {
+        final File file;
+        final String[] terms;
+        final long[] offsets; // Начало списка слова; конец — начало следующего или словаря
+        final long dictionaryOffset;
+        final RandomAccessFile raf;
+
+        Segment(File file) throws IOException {
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "r");
+            try {
+                if (raf.length() < 4 + 4 + 8 || raf.readInt() != SEGMENT_MAGIC) throw new IOException("Не сегмент индекса: " + file);
+                raf.seek(raf.length() - 8);
+                dictionaryOffset = raf.readLong();
+                try (FileInputStream fileIn = new FileInputStream(file)) {
+                    fileIn.getChannel().position(dictionaryOffset);
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn));
+                    int count = in.readInt();
+                    terms = new String[count];
+                    offsets = new long[count];
+                    for (int i = 0; i < count; i++) {
+                        terms[i] = in.readUTF();
+                        offsets[i] = in.readLong();
+                    }
+                }
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        long end(int index) {
+            return index + 1 < terms.length ? offsets[index + 1] : dictionaryOffset;
+        }
+
+        long[] read(int index) throws IOException {
+            byte[] bytes = new byte[(int) (end(index) - offsets[index])];
+            raf.seek(offsets[index]);
+            raf.readFully(bytes);
+            return decode(bytes);
+        }
+
+        /** Первое слово не меньше {@code term}. */
+        int lowerBound(String term) {
+            int low = 0;
+            int high = terms.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (terms[mid].compareTo(term) < 0) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
+
+        @Override
+        public void close() throws IOException {
+            raf.close();
+        }
+    }
+
+    private final File manifestFile;
+    private final List<Segment> segments = new ArrayList<>();
+    private final TreeMap<String, Postings> memtable = new TreeMap<>();
+    private int memtablePostings = 0;
+    private long indexedUpTo = 0; // Покрыто сегментами на диске
+    private long lastId = 0;      // Покрыто вместе с таблицей в памяти
+    private long nextGeneration = 1;
+
+    ChatSearchIndex(File manifestFile) throws IOException {
+        this.manifestFile = manifestFile;
+        open();
+    }
+
+    /** id, до которого история уже на диске в индексе; более новые нужно добавить заново. */
+    synchronized long indexedUpTo() {
+        return indexedUpTo;
+    }
+
+    /**
+     * Добавляет текст сообщения; {@code text} может быть null. id растут; повтор уже
+     * добавленного id пропускается.
+     */
+    synchronized void add(long id, String text) throws IOException {
+        if (id <= lastId) return;
+        lastId = id;
+        for (String token : tokenize(text)) {
+            Postings postings = memtable.get(token);
+            if (postings == null) {
+                postings = new Postings();
+                memtable.put(token, postings);
+            }
+            postings.add(id);
+            memtablePostings++;
+        }
+        if (memtablePostings >= FLUSH_POSTINGS) flush();
+    }
+
+    /**
+     * id сообщений, в которых есть слова, начинающиеся с каждого слова запроса; новые первыми,
+     * не больше {@code limit}.
+     */
+    synchronized long[] search(String query, int limit) throws IOException {
+        long[] result = null;
+        for (String prefix : tokenize(query)) {
+            long[] matches = matchPrefix(prefix);
+            result = result == null ? matches : intersect(result, matches);
+            if (result.length == 0) break;
+        }
+        if (result == null) return new long[0];
+        int count = Math.min(limit, result.length);
+        long[] newest = new long[count];
+        for (int i = 0; i < count; i++) newest[i] = result[result.length - 1 - i];
+        return newest;
+    }
+
+    /** Пишет таблицу из памяти сегментом на диск. */
+    synchronized void flush() throws IOException {
+        if (memtable.isEmpty()) {
+            // Без слов (картинки) — сдвигаем только отметку, чтобы не перечитывать их при открытии
+            if (lastId > indexedUpTo) {
+                indexedUpTo = lastId;
+                writeManifest();
+            }
+            return;
+        }
+        File file = segmentFile(nextGeneration++);
+        try (SegmentWriter writer = new SegmentWriter(file)) {
+            for (Map.Entry<String, Postings> entry : memtable.entrySet()) {
+                writer.startTerm(entry.getKey());
+                writer.append(entry.getValue().ids, entry.getValue().size);
+            }
+            writer.finish();
+        }
+        segments.add(new Segment(file));
+        memtable.clear();
+        memtablePostings = 0;
+        indexedUpTo = lastId;
+        if (segments.size() > MAX_SEGMENTS) merge();
+        else writeManifest();
+    }
+
+    /** Удаляет индекс целиком — например, если история оказалась короче него. */
+    synchronized void reset() throws IOException {
+        for (Segment segment : segments) {
+            segment.close();
+            segment.file.delete();
+        }
+        segments.clear();
+        memtable.clear();
+        memtablePostings = 0;
+        indexedUpTo = 0;
+        lastId = 0;
+        writeManifest();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        for (Segment segment : segments) segment.close();
+        segments.clear();
+    }
+
+    /** Слова текста в нижнем регистре, без повторов: буквы и цифры подряд. */
+    static List<String> tokenize(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        if (text == null) return new ArrayList<>();
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean letter = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (letter && start < 0) start = i;
+            if (!letter && start >= 0) {
+                tokens.add(lower.substring(start, Math.min(i, start + MAX_TOKEN_LENGTH)));
+                start = -1;
+            }
+        }
+        return new ArrayList<>(tokens);
+    }
+
+    private long[] matchPrefix(String prefix) throws IOException {
+        // Сегменты старше таблицы в памяти, а внутри источника id возрастают — списки только объединяем
+        List<long[]> lists = new ArrayList<>();
+        for (Segment segment : segments) {
+            for (int i = segment.lowerBound(prefix); i < segment.terms.length && segment.terms[i].startsWith(prefix); i++) {
+                lists.add(segment.read(i));
+            }
+        }
+        SortedMap<String, Postings> tail = memtable.tailMap(prefix);
+        for (Map.Entry<String, Postings> entry : tail.entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) break;
+            lists.add(Arrays.copyOf(entry.getValue().ids, entry.getValue().size));
+        }
+        return union(lists);
+    }
+
+    private void merge() throws IOException {
+        // Слияние на лету: слова всех сегментов по порядку, списки одного слова — от старых сегментов к новым
+        File file = segmentFile(nextGeneration++);
+        int[] cursors = new int[segments.size()];
+        try (SegmentWriter writer = new SegmentWriter(file)) {
+            while (true) {
+                String smallest = null;
+                for (int s = 0; s < segments.size(); s++) {
+                    String[] terms = segments.get(s).terms;
+                    if (cursors[s] < terms.length && (smallest == null || terms[cursors[s]].compareTo(smallest) < 0)) {
+                        smallest = terms[cursors[s]];
+                    }
+                }
+                if (smallest == null) break;
+                writer.startTerm(smallest);
+                for (int s = 0; s < segments.size(); s++) {
+                    Segment segment = segments.get(s);
+                    if (cursors[s] < segment.terms.length && segment.terms[cursors[s]].equals(smallest)) {
+                        long[] ids = segment.read(cursors[s]++);
+                        writer.append(ids, ids.length);
+                    }
+                }
+            }
+            writer.finish();
+        }
+
+        List<Segment> old = new ArrayList<>(segments);
+        segments.clear();
+        segments.add(new Segment(file));
+        writeManifest(); // Сначала манифест: старые файлы удаляем, когда на них уже никто не ссылается
+        for (Segment segment : old) {
+            segment.close();
+            segment.file.delete();
+        }
+    }
+
+    private void open() throws IOException {
+        if (!manifestFile.exists()) {
+            deleteUnlistedSegments(new ArrayList<>());
+            return;
+        }
+        List<String> names = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifestFile)))) {
+            if (in.readInt() != MANIFEST_MAGIC) throw new IOException("Поврежден манифест индекса");
+            indexedUpTo = in.readLong();
+            nextGeneration = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) names.add(in.readUTF());
+            for (String name : names) segments.add(new Segment(new File(manifestFile.getParentFile(), name)));
+        } catch (IOException e) {
+            // Индекс производный: проще построить заново по журналу, чем чинить
+            for (Segment segment : segments) segment.close();
+            segments.clear();
+            names.clear();
+            indexedUpTo = 0;
+            manifestFile.delete();
+        }
+        lastId = indexedUpTo;
+        deleteUnlistedSegments(names);
+    }
+
+    /** Сегменты, не попавшие в манифест (упали между записью сегмента и манифеста), удаляем. */
+    private void deleteUnlistedSegments(List<String> listed) {
+        String prefix = manifestFile.getName() + ".";
+        File[] files = manifestFile.getParentFile().listFiles((dir, name) -> name.startsWith(prefix));
+        if (files == null) return;
+        for (File file : files) {
+            if (!listed.contains(file.getName())) file.delete();
+        }
+    }
+
+    private void writeManifest() throws IOException {
+        File tmp = new File(manifestFile.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeLong(indexedUpTo);
+            out.writeLong(nextGeneration);
+            out.writeInt(segments.size());
+            for (Segment segment : segments) out.writeUTF(segment.file.getName());
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        if (!tmp.renameTo(manifestFile)) throw new IOException("Не удалось записать манифест индекса");
+    }
+
+    private File segmentFile(long generation) {
+        return new File(manifestFile.getPath() + ".seg" + generation);
+    }
+
+    /**
+     * Пишет сегмент: {@code [магия][списки id][словарь: число, (слово, смещение списка)...][смещение словаря]}.
+     * Слова подаются по возрастанию, id каждого слова — по возрастанию.
+     */
+    private static final class SegmentWriter implements Closeable {
+        private final FileOutputStream fileOut;
+        private final DataOutputStream out;
+        private final List<String> terms = new ArrayList<>();
+        private long[] offsets = new long[256];
+        private long previousId;
+
+        SegmentWriter(File file) throws IOException {
+            fileOut = new FileOutputStream(file);
+            out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(SEGMENT_MAGIC);
+        }
+
+        void startTerm(String term) {
+            if (terms.size() == offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            offsets[terms.size()] = out.size();
+            terms.add(term);
+            previousId = 0;
+        }
+
+        /** id по возрастанию: разность с предыдущим, varint. */
+        void append(long[] ids, int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                long delta = ids[i] - previousId;
+                previousId = ids[i];
+                while ((delta & ~0x7FL) != 0) {
+                    out.writeByte((int) ((delta & 0x7F) | 0x80));
+                    delta >>>= 7;
+                }
+                out.writeByte((int) delta);
+            }
+        }
+
+        void finish() throws IOException {
+            long dictionaryOffset = out.size();
+            out.writeInt(terms.size());
+            for (int i = 0; i < terms.size(); i++) {
+                out.writeUTF(terms.get(i));
+                out.writeLong(offsets[i]);
+            }
+            out.writeLong(dictionaryOffset);
+            out.flush();
+            fileOut.getFD().sync();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static long[] decode(byte[] bytes) {
+        long[] ids = new long[bytes.length]; // Не больше одного id на байт
+        int count = 0;
+        long previous = 0;
+        int i = 0;
+        while (i < bytes.length) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[i++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            previous += delta;
+            ids[count++] = previous;
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    private static long[] concat(List<long[]> lists) {
+        int total = 0;
+        for (long[] list : lists) total += list.length;
+        long[] result = new long[total];
+        int position = 0;
+        for (long[] list : lists) {
+            System.arraycopy(list, 0, result, position, list.length);
+            position += list.length;
+        }
+        return result;
+    }
+
+    /** Объединение отсортированных списков без повторов. */
+    private static long[] union(List<long[]> lists) {
+        if (lists.isEmpty()) return new long[0];
+        if (lists.size() == 1) return lists.get(0);
+        long[] all = concat(lists);
+        Arrays.sort(all);
+        int count = 0;
+        for (int i = 0; i < all.length; i++) {
+            if (i == 0 || all[i] != all[i - 1]) all[count++] = all[i];
+        }
+        return Arrays.copyOf(all, count);
+    }
+
+    private static long[] intersect(long[] a, long[] b) {
+        long[] result = new long[Math.min(a.length, b.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) i++;
+            else if (a[i] > b[j]) j++;
+            else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.multimediaexchanger.ui.messages;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Длительности кадров за одну прокрутку ленты: перцентили и число кадров дольше
+ * {@link #FRAME_BUDGET_NANOS}. По ним видно, помогло ли изменение в ленте, — сравниваем
+ * сводки до и после.
+ * <p>
+ * Не потокобезопасен: кадры приходят в главный поток, туда же уходит сводка.
+ */
+final class FrameTimeStats {
+
+    static final long FRAME_BUDGET_NANOS = 16_666_667L; // 60 Гц
+
+    private long[] durations = new long[256];
+    private int count = 0;
+    private int janky = 0;
+
+    void record(long durationNanos) {
+        if (count == durations.length) durations = Arrays.copyOf(durations, count * 2);
+        durations[count++] = durationNanos;
+        if (durationNanos > FRAME_BUDGET_NANOS) janky++;
+    }
+
+    int count() {
+        return count;
+    }
+
+    int jankyFrames() {
+        return janky;
+    }
+
+    /** Перцентиль длительности кадра, нс; {@code fraction} от 0 до 1. */
+    long percentile(double fraction) {
+        if (count == 0) return 0;
+        long[] sorted = Arrays.copyOf(durations, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(fraction * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    String summary() {
+        return String.format(Locale.US, "кадров %d, p50 %.1f мс, p95 %.1f мс, p99 %.1f мс, дольше %.1f мс: %d",
+                count, millis(percentile(0.5)), millis(percentile(0.95)), millis(percentile(0.99)),
+                millis(FRAME_BUDGET_NANOS), janky);
+    }
+
+    void reset() {
+        count = 0;
+        janky = 0;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
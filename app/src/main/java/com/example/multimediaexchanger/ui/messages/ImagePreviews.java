@@ -0,0 +1,82 @@
+package com.example.multimediaexchanger.ui.messages;
+
+import android.graphics.Bitmap;
+import android.graphics.ImageDecoder;
+import android.util.LruCache;
+
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Маленькие превью картинок-вложений: получатель показывает превью сразу, а полный файл
+ * подменяет его по завершении передачи.
+ * <p>
+ * Превью — JPEG не больше {@link #PREVIEW_SIZE} точек по длинной стороне и не больше
+ * {@link #MAX_PREVIEW_BYTES}, чтобы уйти одним пакетом. Готовые превью лежат в LRU-кэше,
+ * поэтому повторная отправка той же картинки его не пересчитывает. Кэш общий на процесс,
+ * как и транспорт: экран чата пересоздается, а кэш нет.
+ */
+final class ImagePreviews {
+
+    static final int PREVIEW_SIZE = 160;
+    static final int MAX_PREVIEW_BYTES = ChatFileSender.CHUNK_SIZE;
+    private static final int[] QUALITIES = {40, 20}; // Вторая попытка — если первая не влезла в пакет
+    private static final int CACHE_BYTES = 512 * 1024;
+
+    private static ImagePreviews instance;
+
+    private final LruCache<String, byte[]> cache = new LruCache<String, byte[]>(CACHE_BYTES) {
+        @Override
+        protected int sizeOf(String key, byte[] value) {
+            return value.length;
+        }
+    };
+
+    private ImagePreviews() {
+    }
+
+    static synchronized ImagePreviews get() {
+        if (instance == null) instance = new ImagePreviews();
+        return instance;
+    }
+
+    /**
+     * Превью картинки; null — файл не картинка или превью не влезло в пакет.
+     * Декодирует картинку, поэтому вызывается только в фоновом потоке.
+     *
+     * @param key ключ кэша: один и тот же для одного и того же содержимого
+     */
+    @Nullable
+    byte[] preview(String key, ImageDecoder.Source source) {
+        byte[] cached = cache.get(key);
+        if (cached != null) return cached;
+        try {
+            // ImageDecoder сразу уменьшает картинку при декодировании и учитывает поворот из EXIF
+            Bitmap bitmap = ImageDecoder.decodeBitmap(source, (decoder, info, decodedSource) -> {
+                int width = info.getSize().getWidth();
+                int height = info.getSize().getHeight();
+                float scale = Math.min(1f, (float) PREVIEW_SIZE / Math.max(width, height));
+                decoder.setTargetSize(Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)));
+                decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE); // Аппаратный битмап не сжать в JPEG
+            });
+            try {
+                for (int quality : QUALITIES) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out);
+                    if (out.size() <= MAX_PREVIEW_BYTES) {
+                        byte[] preview = out.toByteArray();
+                        cache.put(key, preview);
+                        return preview;
+                    }
+                }
+                return null;
+            } finally {
+                bitmap.recycle();
+            }
+        } catch (IOException e) {
+            return null; // Не картинка или формат без декодера — отправим без превью
+        }
+    }
+}
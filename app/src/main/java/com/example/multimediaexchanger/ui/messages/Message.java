@@ -13,6 +13,7 @@ public class Message {
     private transient Uri imageUri;
     private String imageUriString;
     private long timestamp;
+    private transient long id; // Номер записи в журнале истории, назначается при добавлении
 
     // FIXED: Added a no-argument constructor for Gson
     public Message() {}
@@ -29,6 +30,14 @@ public class Message {
         this.timestamp = System.currentTimeMillis();
     }
 
+    /** Копия с другой картинкой: тот же id, тип и время. */
+    Message withImageUri(Uri imageUri) {
+        Message copy = new Message(type, imageUri);
+        copy.timestamp = timestamp;
+        copy.id = id;
+        return copy;
+    }
+
     public MessageType getType() {
         return type;
     }
@@ -41,6 +50,14 @@ public class Message {
         return imageUri;
     }
 
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
     public long getTimestamp() {
         return timestamp;
     }
@@ -1,46 +1,139 @@
 package com.example.multimediaexchanger.ui.messages;
 
 import android.content.Context;
+import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.view.LayoutInflater;
 import android.view.ViewGroup;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.bumptech.glide.Glide;
+import com.bumptech.glide.ListPreloader;
+import com.bumptech.glide.RequestBuilder;
+import com.bumptech.glide.load.DecodeFormat;
+import com.bumptech.glide.load.engine.DiskCacheStrategy;
 import com.example.multimediaexchanger.R;
 import com.example.multimediaexchanger.databinding.ItemImageReceivedBinding;
 import com.example.multimediaexchanger.databinding.ItemImageSentBinding;
 import com.example.multimediaexchanger.databinding.ItemMessageReceivedBinding;
 import com.example.multimediaexchanger.databinding.ItemMessageSentBinding;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
+
+/**
+ * Лента чата на {@link ListAdapter}: новый снимок окна истории сравнивается со старым в фоне,
+ * и перепривязываются только вставленные и изменившиеся строки. Снимки неизменяемые —
+ * главный поток никогда не видит список, который кто-то дописывает.
+ * <p>
+ * Картинки декодируются сразу под размер строки, а не в полном разрешении фото, и заранее
+ * подгружаются для строк сразу за краем экрана — см. {@link ListPreloader.PreloadModelProvider}.
+ */
+public class MessagesAdapter extends ListAdapter<Message, RecyclerView.ViewHolder>
+        implements ListPreloader.PreloadModelProvider<Message> {
+
+    private static final Object IMAGE_CHANGED = new Object();
+
+    private static final DiffUtil.ItemCallback<Message> DIFF_CALLBACK = new DiffUtil.ItemCallback<Message>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull Message oldItem, @NonNull Message newItem) {
+            return oldItem.getId() == newItem.getId();
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull Message oldItem, @NonNull Message newItem) {
+            return oldItem.getType() == newItem.getType()
+                    && oldItem.getTimestamp() == newItem.getTimestamp()
+                    && Objects.equals(oldItem.getText(), newItem.getText())
+                    && Objects.equals(oldItem.getImageUri(), newItem.getImageUri());
+        }
 
-public class MessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
+        @Override
+        public Object getChangePayload(@NonNull Message oldItem, @NonNull Message newItem) {
+            // Сменилась только картинка (превью -> файл): перепривязываем тот же холдер, без перекрестной анимации
+            return oldItem.getType() == newItem.getType() && Objects.equals(oldItem.getText(), newItem.getText())
+                    ? IMAGE_CHANGED : null;
+        }
+    };
 
     private static final int VIEW_TYPE_TEXT_SENT = 1;
     private static final int VIEW_TYPE_TEXT_RECEIVED = 2;
     private static final int VIEW_TYPE_IMAGE_SENT = 3;
     private static final int VIEW_TYPE_IMAGE_RECEIVED = 4;
 
+    private static final int MAX_RECYCLED_TEXT_VIEWS = 15;
+    private static final int MAX_RECYCLED_IMAGE_VIEWS = 8; // Строка с картинкой дороже, держим больше обычных 5
+
     private final Context context;
-    private List<Message> messageList;
+    private final int imageSize;
 
-    public MessagesAdapter(Context context, List<Message> messageList) {
+    public MessagesAdapter(Context context) {
+        super(DIFF_CALLBACK);
         this.context = context;
-        this.messageList = messageList;
+        this.imageSize = context.getResources().getDimensionPixelSize(R.dimen.chat_image_size);
+        setHasStableIds(true);
+    }
+
+    /** Один пул холдеров на все типы строк, с запасом под каждый тип. */
+    static RecyclerView.RecycledViewPool createViewPool() {
+        RecyclerView.RecycledViewPool pool = new RecyclerView.RecycledViewPool();
+        pool.setMaxRecycledViews(VIEW_TYPE_TEXT_SENT, MAX_RECYCLED_TEXT_VIEWS);
+        pool.setMaxRecycledViews(VIEW_TYPE_TEXT_RECEIVED, MAX_RECYCLED_TEXT_VIEWS);
+        pool.setMaxRecycledViews(VIEW_TYPE_IMAGE_SENT, MAX_RECYCLED_IMAGE_VIEWS);
+        pool.setMaxRecycledViews(VIEW_TYPE_IMAGE_RECEIVED, MAX_RECYCLED_IMAGE_VIEWS);
+        return pool;
+    }
+
+    /** Сторона картинки в строке, px. */
+    int imageSize() {
+        return imageSize;
+    }
+
+    /**
+     * Запрос картинки для строки: декодируется под размер строки, в кэш на диске ложится
+     * уже уменьшенная. Один и тот же для показа и предзагрузки, иначе не совпадут ключи кэша.
+     */
+    private RequestBuilder<Drawable> imageRequest(Uri uri) {
+        return Glide.with(context)
+                .load(uri)
+                .override(imageSize)
+                .centerCrop()
+                .format(DecodeFormat.PREFER_RGB_565) // Картинки без прозрачности — вдвое меньше памяти
+                .diskCacheStrategy(DiskCacheStrategy.RESOURCE);
+    }
+
+    @NonNull
+    @Override
+    public List<Message> getPreloadItems(int position) {
+        if (position < 0 || position >= getItemCount()) return Collections.emptyList();
+        Message message = getItem(position);
+        return message.getImageUri() != null ? Collections.singletonList(message) : Collections.emptyList();
     }
 
-    public void updateMessages(List<Message> newMessages) {
-        if (newMessages == null) return;
-        this.messageList = newMessages;
-        notifyDataSetChanged();
+    @Nullable
+    @Override
+    public RequestBuilder<?> getPreloadRequestBuilder(@NonNull Message message) {
+        return imageRequest(message.getImageUri());
+    }
+
+    public Message getMessage(int position) {
+        return getItem(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return getItem(position).getId();
     }
 
     @Override
     public int getItemViewType(int position) {
-        Message message = messageList.get(position);
+        Message message = getItem(position);
         switch (message.getType()) {
             case TEXT_SENT: return VIEW_TYPE_TEXT_SENT;
             case TEXT_RECEIVED: return VIEW_TYPE_TEXT_RECEIVED;
@@ -69,7 +162,7 @@ public class MessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
 
     @Override
     public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
-        Message message = messageList.get(position);
+        Message message = getItem(position);
         switch (holder.getItemViewType()) {
             case VIEW_TYPE_TEXT_SENT:
                 ((TextSentViewHolder) holder).bind(message);
@@ -86,11 +179,6 @@ public class MessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
         }
     }
 
-    @Override
-    public int getItemCount() {
-        return messageList.size();
-    }
-
     private static class TextSentViewHolder extends RecyclerView.ViewHolder {
         private final ItemMessageSentBinding binding;
         TextSentViewHolder(ItemMessageSentBinding binding) {
@@ -121,8 +209,7 @@ public class MessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
         }
         void bind(Message message) {
             // Новый безопасный bind без error(), чтобы видеть реально файл
-            Glide.with(context)
-                    .load(message.getImageUri())
+            imageRequest(message.getImageUri())
                     .placeholder(R.drawable.ic_broken_image)
                     .into(binding.imageView);
         }
@@ -130,15 +217,22 @@ public class MessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
 
     private class ImageReceivedViewHolder extends RecyclerView.ViewHolder {
         private final ItemImageReceivedBinding binding;
+        private long boundId = -1;
+        private Uri boundUri;
         ImageReceivedViewHolder(ItemImageReceivedBinding binding) {
             super(binding.getRoot());
             this.binding = binding;
         }
         void bind(Message message) {
-            Glide.with(context)
-                    .load(message.getImageUri())
-                    .placeholder(R.drawable.ic_broken_image)
-                    .into(binding.imageView);
+            RequestBuilder<Drawable> request = imageRequest(message.getImageUri())
+                    .placeholder(R.drawable.ic_broken_image);
+            // Превью сменилось полным файлом: пока он грузится, превью из кэша Glide остается на месте
+            if (boundId == message.getId() && boundUri != null && !boundUri.equals(message.getImageUri())) {
+                request = request.thumbnail(imageRequest(boundUri));
+            }
+            boundId = message.getId();
+            boundUri = message.getImageUri();
+            request.into(binding.imageView);
         }
     }
 }
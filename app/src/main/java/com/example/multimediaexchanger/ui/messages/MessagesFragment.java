@@ -5,12 +5,20 @@ import android.app.Activity;
 import android.content.ContentResolver;
 import android.content.Intent;
 import android.database.Cursor;
+import android.graphics.ImageDecoder;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
 import android.provider.OpenableColumns;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.FrameMetrics;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.Window;
 import android.widget.Toast;
 
 import androidx.activity.result.ActivityResultLauncher;
@@ -20,22 +28,30 @@ import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
 import androidx.lifecycle.ViewModelProvider;
 import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.integration.recyclerview.RecyclerViewPreloader;
+import com.bumptech.glide.util.FixedPreloadSizeProvider;
 import com.example.multimediaexchanger.databinding.FragmentMessagesBinding;
 import com.example.multimediaexchanger.ui.UdpViewModel;
 import com.example.multimediaexchanger.ui.UsbLogViewModel;
+import com.example.multimediaexchanger.ui.files.ChunkCompressor;
+import com.example.multimediaexchanger.ui.files.GrowingFile;
+import com.example.multimediaexchanger.ui.files.MediaOptimizer;
+import com.example.multimediaexchanger.ui.files.TransferStats;
+import com.example.multimediaexchanger.ui.files.TransferTelemetry;
+import com.example.multimediaexchanger.ui.files.VideoTranscoder;
 import com.example.multimediaexchanger.ui.network.NetworkViewModel;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -49,19 +65,28 @@ public class MessagesFragment extends Fragment {
     private MessagesAdapter messagesAdapter;
 
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
-    private static final int CHUNK_SIZE = 16384; // 16KB
-
-    private File currentReceivingFile;
-    private long expectedFileSize = 0;
-    private long receivedBytes = 0;
-    private boolean legacyMode = false;
-    private FileOutputStream fos;
-
-    private final ArrayList<byte[]> pendingChunks = new ArrayList<>();
-
-    // NEW: для надёжной передачи через ACK
-    private Set<Integer> receivedChunks = new HashSet<>();
-    private int totalChunksExpected;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private ChatFileReceiver fileReceiver;
+    private final Map<Integer, Message> previewMessages = new HashMap<>(); // Превью по номеру передачи; только в главном потоке
+    private static final int PREFETCH_DISTANCE = 10; // За сколько строк до края окна грузим страницу
+    private static final int IMAGE_PRELOAD_ROWS = 6; // Картинки скольких строк за краем экрана декодируем заранее
+    private static final long SEARCH_DEBOUNCE_MS = 150; // Ищем, когда пользователь перестал печатать
+
+    // Пока в поле поиска есть текст, лента показывает найденное, а не окно истории
+    private boolean searching = false;
+    private final Runnable searchRunnable = () -> {
+        if (binding != null) messagesViewModel.search(binding.searchInput.getText().toString());
+    };
+
+    // Длительности кадров, пока лента прокручивается; сводка уходит в лог по остановке
+    private final FrameTimeStats scrollFrames = new FrameTimeStats();
+    private boolean scrolling = false;
+    private final Window.OnFrameMetricsAvailableListener frameMetricsListener = (window, frameMetrics, dropCount) -> {
+        if (scrolling) scrollFrames.record(frameMetrics.getMetric(FrameMetrics.TOTAL_DURATION));
+    };
+
+    // Прогресс вложений: снимки телеметрии раз в TransferTelemetry.SAMPLE_INTERVAL_MS, а не на каждый чанк
+    private final TransferTelemetry.Listener telemetryListener = this::showTransfers;
 
     private final ActivityResultLauncher<Intent> filePickerLauncher = registerForActivityResult(
             new ActivityResultContracts.StartActivityForResult(),
@@ -92,42 +117,138 @@ public class MessagesFragment extends Fragment {
         setupClickListeners();
         observeUdpMessages();
         observeChatHistory();
+        observeSearch();
+        TransferTelemetry.get().addListener(TransferStats.Scope.CHAT, telemetryListener);
+        requireActivity().getWindow().addOnFrameMetricsAvailableListener(frameMetricsListener, mainHandler);
     }
 
     private void setupRecyclerView() {
-        messagesAdapter = new MessagesAdapter(getContext(), new ArrayList<>());
-        binding.messagesRecyclerView.setLayoutManager(new LinearLayoutManager(getContext()));
+        messagesAdapter = new MessagesAdapter(getContext());
+        LinearLayoutManager layoutManager = new LinearLayoutManager(getContext());
+        binding.messagesRecyclerView.setLayoutManager(layoutManager);
+        binding.messagesRecyclerView.setRecycledViewPool(MessagesAdapter.createViewPool());
         binding.messagesRecyclerView.setAdapter(messagesAdapter);
+        int imageSize = messagesAdapter.imageSize();
+        binding.messagesRecyclerView.addOnScrollListener(new RecyclerViewPreloader<>(Glide.with(this), messagesAdapter,
+                new FixedPreloadSizeProvider<>(imageSize, imageSize), IMAGE_PRELOAD_ROWS));
+        // Кадры считаем только на время прокрутки — сводка до и после изменений ленты
+        binding.messagesRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(@NonNull RecyclerView recyclerView, int newState) {
+                scrolling = newState != RecyclerView.SCROLL_STATE_IDLE;
+                if (!scrolling && scrollFrames.count() > 0) {
+                    usbLogViewModel.log("Chat: Прокрутка — " + scrollFrames.summary());
+                    scrollFrames.reset();
+                }
+            }
+        });
+        // История подгружается страницами: у края окна просим следующую
+        binding.messagesRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                int first = layoutManager.findFirstVisibleItemPosition();
+                int last = layoutManager.findLastVisibleItemPosition();
+                if (searching || first == RecyclerView.NO_POSITION) return;
+                if (dy < 0 && first < PREFETCH_DISTANCE) messagesViewModel.loadOlder();
+                if (dy > 0 && last >= messagesAdapter.getItemCount() - PREFETCH_DISTANCE) messagesViewModel.loadNewer();
+            }
+        });
     }
 
     private void setupClickListeners() {
         binding.sendButton.setOnClickListener(v -> sendMessage());
         binding.attachButton.setOnClickListener(v -> openFilePicker());
+        // Долгое нажатие переключает сжатие фото и видео перед отправкой
+        binding.attachButton.setOnLongClickListener(v -> {
+            boolean enabled = !MediaOptimizer.isEnabled(requireContext());
+            MediaOptimizer.setEnabled(requireContext(), enabled);
+            Toast.makeText(getContext(), enabled ? "Фото и видео будут сжиматься перед отправкой"
+                    : "Фото и видео уходят без сжатия", Toast.LENGTH_SHORT).show();
+            return true;
+        });
     }
 
     private void observeChatHistory() {
-        messagesViewModel.getMessages().observe(getViewLifecycleOwner(), messages -> {
-            messagesAdapter.updateMessages(messages);
-            if (messages != null && !messages.isEmpty()) {
-                binding.messagesRecyclerView.post(() ->
-                        binding.messagesRecyclerView.scrollToPosition(messages.size() - 1));
+        messagesViewModel.getHistory().observe(getViewLifecycleOwner(), window -> {
+            if (searching) return; // Окно покажем, когда поиск закроют
+            LinearLayoutManager layoutManager = (LinearLayoutManager) binding.messagesRecyclerView.getLayoutManager();
+            List<Message> messages = window.messages;
+
+            // Запоминаем верхнее видимое сообщение, чтобы подгрузка страницы не сдвигала экран
+            int first = layoutManager.findFirstVisibleItemPosition();
+            long anchorId = first != RecyclerView.NO_POSITION && first < messagesAdapter.getItemCount()
+                    ? messagesAdapter.getMessage(first).getId() : -1;
+            View anchorView = layoutManager.findViewByPosition(first);
+            int anchorOffset = anchorView != null ? anchorView.getTop() : 0;
+
+            // Разница считается в фоне; прокручиваем, когда она применена
+            messagesAdapter.submitList(messages, () -> {
+                if (binding == null || messages.isEmpty()) return;
+                if (window.change == MessagesViewModel.HistoryWindow.Change.UPDATED) return; // Подмена на месте — не прокручиваем
+                boolean paged = window.change == MessagesViewModel.HistoryWindow.Change.OLDER
+                        || window.change == MessagesViewModel.HistoryWindow.Change.NEWER;
+                if (paged && anchorId >= 0) {
+                    for (int i = 0; i < messages.size(); i++) {
+                        if (messages.get(i).getId() == anchorId) {
+                            layoutManager.scrollToPositionWithOffset(i, anchorOffset);
+                            return;
+                        }
+                    }
+                }
+                binding.messagesRecyclerView.scrollToPosition(messages.size() - 1);
+            });
+        });
+    }
+
+    private void observeSearch() {
+        binding.searchInput.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                mainHandler.removeCallbacks(searchRunnable);
+                boolean wasSearching = searching;
+                searching = s.toString().trim().length() > 0;
+                if (searching) {
+                    mainHandler.postDelayed(searchRunnable, SEARCH_DEBOUNCE_MS);
+                } else if (wasSearching) {
+                    // Поиск закрыт — возвращаем окно истории
+                    List<Message> messages = messagesViewModel.getHistory().getValue().messages;
+                    messagesAdapter.submitList(messages, () -> {
+                        if (binding != null && !messages.isEmpty()) binding.messagesRecyclerView.scrollToPosition(messages.size() - 1);
+                    });
+                }
             }
         });
+        messagesViewModel.getSearchResults().observe(getViewLifecycleOwner(), results -> {
+            if (!searching) return;
+            messagesAdapter.submitList(results, () -> {
+                if (binding != null && !results.isEmpty()) binding.messagesRecyclerView.scrollToPosition(results.size() - 1);
+            });
+        });
     }
 
     private void sendMessage() {
         String text = binding.messageInput.getText().toString().trim();
         if (text.isEmpty()) return;
-
-        messagesViewModel.addMessage(new Message(Message.MessageType.TEXT_SENT, text));
         binding.messageInput.setText("");
 
+        // Длинная вставка не влезает в одну датаграмму: уходит несколькими сообщениями подряд
         String targetIp = networkViewModel.getTargetIpAddress().getValue();
-        if (targetIp != null && !targetIp.isEmpty()) {
-            usbLogViewModel.log("Sending message to " + targetIp);
-            udpViewModel.sendData(targetIp, UdpViewModel.MESSAGE_TYPE_TEXT, text.getBytes(StandardCharsets.UTF_8));
-        } else {
-            usbLogViewModel.log("Message saved locally (no target IP).");
+        for (String part : UdpViewModel.splitText(text)) {
+            messagesViewModel.addMessage(new Message(Message.MessageType.TEXT_SENT, part));
+            if (targetIp != null && !targetIp.isEmpty()) {
+                usbLogViewModel.log("Sending message to " + targetIp);
+                udpViewModel.sendText(targetIp, part);
+            } else {
+                usbLogViewModel.log("Message saved locally (no target IP).");
+            }
         }
     }
 
@@ -151,92 +272,144 @@ public class MessagesFragment extends Fragment {
 
         executor.execute(() -> {
             try {
-                Uri stableUri = copyFileToInternalCache(uri);
-                if (stableUri == null) {
-                    requireActivity().runOnUiThread(() ->
-                            Toast.makeText(getContext(), "Не удалось обработать файл", Toast.LENGTH_SHORT).show());
-                    return;
-                }
-
-                File localFile = new File(stableUri.getPath());
-                long fileSize = localFile.length();
-                String fileName = localFile.getName();
-
-                usbLogViewModel.log("File Transfer: Sending '" + fileName + "' (" + fileSize + " bytes) to " + targetIp);
-                requireActivity().runOnUiThread(() ->
-                        messagesViewModel.addMessage(new Message(Message.MessageType.IMAGE_SENT, stableUri)));
-
-                byte[] nameBytes = fileName.getBytes(StandardCharsets.UTF_8);
-                ByteBuffer headerBuffer = ByteBuffer.allocate(4 + nameBytes.length + 8);
-                headerBuffer.putInt(nameBytes.length);
-                headerBuffer.put(nameBytes);
-                headerBuffer.putLong(fileSize);
-                udpViewModel.sendData(targetIp, UdpViewModel.MESSAGE_TYPE_FILE_HEADER, headerBuffer.array());
-
-                // NEW: Надёжная отправка с повтором пока не придёт ACK
-                try (InputStream inputStream = new FileInputStream(localFile)) {
-                    byte[] buffer = new byte[CHUNK_SIZE];
-                    int bytesRead;
-                    int chunkIndex = 0;
-                    long totalBytesSent = 0;
-
-                    while ((bytesRead = inputStream.read(buffer)) != -1) {
-                        final int currentIndex = chunkIndex;
-                        byte[] chunkData = new byte[4 + bytesRead];
-                        ByteBuffer chunkBuffer = ByteBuffer.wrap(chunkData);
-                        chunkBuffer.putInt(currentIndex);
-                        chunkBuffer.put(buffer, 0, bytesRead);
-
-                        boolean ackReceived = false;
-                        while (!ackReceived) {
-                            udpViewModel.sendData(targetIp, UdpViewModel.MESSAGE_TYPE_FILE_CHUNK, chunkBuffer.array());
-
-                            // Ждём ACK 300 мс
-                            Thread.sleep(100);
-                            ackReceived = udpViewModel.isAckReceived(currentIndex);
+                ContentResolver resolver = requireContext().getContentResolver();
+                String mimeType = resolver.getType(uri);
+                String name = getFileName(resolver, uri);
+                String fileName = name != null ? name : "file";
+                AttachmentStore store = AttachmentStore.get(requireContext().getFilesDir());
+
+                ParcelFileDescriptor descriptor = resolver.openFileDescriptor(uri, "r");
+                if (descriptor == null) throw new IOException("Could not open " + uri);
+                long statSize = descriptor.getStatSize();
+                try (FileInputStream input = new ParcelFileDescriptor.AutoCloseInputStream(descriptor)) {
+                    String sourceKey = uri + "#" + statSize;
+                    boolean optimize = MediaOptimizer.isEnabled(requireContext())
+                            && (MediaOptimizer.isPhoto(mimeType) || MediaOptimizer.isVideo(mimeType));
+                    if (optimize && sendOptimized(targetIp, resolver, uri, mimeType, fileName, statSize, store)) return;
+
+                    File stored = store.lookup(sourceKey);
+                    // Поток без размера (pipe) по смещению не читается — такой сначала сохраняем целиком
+                    if (stored == null && statSize < 0) stored = store.store(input, sourceKey);
+
+                    if (stored != null) {
+                        // Это содержимое уже лежит в хранилище: шлем оттуда, новой копии не будет
+                        sendStored(targetIp, stored, fileName, mimeType, sourceKey);
+                    } else {
+                        // Шлем прямо из источника; копия в хранилище пишется тем же проходом
+                        Message message = new Message(Message.MessageType.IMAGE_SENT, uri);
+                        messagesViewModel.addMessage(message);
+                        try (AttachmentStore.Writer writer = store.newWriter()) {
+                            transferFile(targetIp, input.getChannel(), fileName, statSize, mimeType,
+                                    sourceKey, ImageDecoder.createSource(resolver, uri), writer);
+                            messagesViewModel.replaceImage(message, Uri.fromFile(writer.commit(sourceKey)));
                         }
-
-                        chunkIndex++;
-                        totalBytesSent += bytesRead;
-                        updateProgress(totalBytesSent, fileSize);
                     }
                 }
-
-                udpViewModel.sendData(targetIp, UdpViewModel.MESSAGE_TYPE_FILE_END, new byte[0]);
-                usbLogViewModel.log("File Transfer: Sent " + fileName + " successfully");
-
             } catch (Exception e) {
                 usbLogViewModel.log("ERROR: Failed to send file", e);
                 requireActivity().runOnUiThread(() ->
                         Toast.makeText(getContext(), "Ошибка отправки файла", Toast.LENGTH_SHORT).show());
-            } finally {
-                requireActivity().runOnUiThread(() -> binding.fileProgressBar.setVisibility(View.GONE));
             }
         });
     }
 
-    private Uri copyFileToInternalCache(Uri uri) {
-        try {
-            ContentResolver resolver = requireContext().getContentResolver();
-            String sourceFileName = getFileName(resolver, uri);
-            String uniqueFileName = System.currentTimeMillis() + "_" + (sourceFileName != null ? sourceFileName : "file");
-            File destinationFile = new File(requireContext().getFilesDir(), uniqueFileName);
-
-            try (InputStream inputStream = resolver.openInputStream(uri);
-                 FileOutputStream outputStream = new FileOutputStream(destinationFile)) {
-                if (inputStream == null) throw new IOException("Could not open input stream for " + uri);
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = inputStream.read(buffer)) != -1) {
-                    outputStream.write(buffer, 0, bytesRead);
-                }
+    /**
+     * Отправка в режиме сжатия: фото пережимается целиком до отправки, видео уходит, пока
+     * перекодируется. Сжатая копия сохраняется под своим ключом источника, поэтому повторная
+     * отправка того же файла не сжимает его заново.
+     *
+     * @return false — сжатие ничего не дает, шлем оригинал
+     */
+    private boolean sendOptimized(String targetIp, ContentResolver resolver, Uri uri, String mimeType, String fileName,
+                                  long sourceSize, AttachmentStore store) throws IOException, InterruptedException {
+        String optimizedKey = uri + "#" + sourceSize + "#optimized";
+        String optimizedName = MediaOptimizer.optimizedName(fileName, mimeType);
+        String optimizedType = MediaOptimizer.isVideo(mimeType) ? "video/mp4" : "image/jpeg";
+        File directory = MediaOptimizer.outputDirectory(requireContext().getCacheDir());
+
+        File stored = store.lookup(optimizedKey);
+        if (stored == null && MediaOptimizer.isPhoto(mimeType)) {
+            File photo = MediaOptimizer.optimizePhoto(resolver, uri, sourceSize, File.createTempFile("photo", ".jpg", directory));
+            if (photo == null) return false;
+            try (FileInputStream photoInput = new FileInputStream(photo)) {
+                stored = store.store(photoInput, optimizedKey);
+            } finally {
+                photo.delete();
             }
+            usbLogViewModel.log("File Transfer: Фото '" + fileName + "' сжато: " + sourceSize + " -> " + stored.length() + " bytes");
+        }
+        if (stored != null) {
+            sendStored(targetIp, stored, optimizedName, optimizedType, optimizedKey);
+            return true;
+        }
 
-            usbLogViewModel.log("File copied to internal cache: " + destinationFile.getAbsolutePath());
-            return Uri.fromFile(destinationFile);
-        } catch (Exception e) {
-            usbLogViewModel.log("ERROR: Failed to copy file", e);
-            return null;
+        File video = File.createTempFile("video", ".mp4", directory);
+        VideoTranscoder transcoder = MediaOptimizer.startVideo(requireContext(), uri, video);
+        if (transcoder == null) {
+            video.delete();
+            return false;
+        }
+        Message message = new Message(Message.MessageType.IMAGE_SENT, uri);
+        messagesViewModel.addMessage(message);
+        try (FileInputStream videoInput = new FileInputStream(video)) {
+            long size = transferGrowing(targetIp, videoInput.getChannel(), transcoder.output(), optimizedName);
+            usbLogViewModel.log("File Transfer: Видео '" + fileName + "' перекодировано: " + sourceSize + " -> " + size + " bytes");
+            try (FileInputStream finished = new FileInputStream(video)) {
+                stored = store.store(finished, optimizedKey);
+            }
+            messagesViewModel.replaceImage(message, Uri.fromFile(stored));
+        } finally {
+            transcoder.cancel(); // Отправка сорвалась — перекодировать дальше незачем
+            video.delete();
+        }
+        return true;
+    }
+
+    private void sendStored(String targetIp, File stored, String fileName, String mimeType, String sourceKey)
+            throws IOException, InterruptedException {
+        messagesViewModel.addMessage(new Message(Message.MessageType.IMAGE_SENT, Uri.fromFile(stored)));
+        try (FileInputStream storedInput = new FileInputStream(stored)) {
+            transferFile(targetIp, storedInput.getChannel(), fileName, stored.length(), mimeType,
+                    sourceKey, ImageDecoder.createSource(stored), null);
+        }
+    }
+
+    /** Шлет файл, который еще пишется; возвращает итоговый размер. */
+    private long transferGrowing(String targetIp, FileChannel input, GrowingFile source, String fileName)
+            throws IOException, InterruptedException {
+        usbLogViewModel.log("File Transfer: Sending '" + fileName + "' to " + targetIp + " while it is being written");
+        // Видео уже сжато кодеком — чанки шлем как есть
+        ChatFileSender sender = new ChatFileSender(udpViewModel, targetIp, input, source, fileName, null);
+        long startedAt = System.currentTimeMillis();
+        sender.send();
+        long elapsed = Math.max(1, System.currentTimeMillis() - startedAt);
+        usbLogViewModel.log("File Transfer: Sent " + fileName + " successfully in " + elapsed + " ms ("
+                + sender.fileSize() + " bytes, повторов " + sender.retransmissions() + ")");
+        return sender.fileSize();
+    }
+
+    private void transferFile(String targetIp, FileChannel input, String fileName, long fileSize, String mimeType,
+                              String sourceKey, ImageDecoder.Source previewSource,
+                              @Nullable ChatFileSender.ContentSink contentSink) throws IOException, InterruptedException {
+        usbLogViewModel.log("File Transfer: Sending '" + fileName + "' (" + fileSize + " bytes) to " + targetIp);
+
+        // Сжимаемые вложения (логи, CSV, JSON) шлем сжатыми чанками; фото и видео — как есть
+        ChunkCompressor compressor = ChunkCompressor.forContent(ChunkCompressor.Codec.LZ4, mimeType, fileName);
+        // Картинку получатель сразу увидит по превью, полный файл подменит его в конце
+        byte[] preview = mimeType != null && mimeType.startsWith("image/")
+                ? ImagePreviews.get().preview(sourceKey, previewSource) : null;
+        ChatFileSender sender = new ChatFileSender(udpViewModel, targetIp, input, fileName, fileSize,
+                compressor, preview);
+        sender.setContentSink(contentSink);
+        long startedAt = System.currentTimeMillis();
+        try {
+            sender.send();
+            long elapsed = Math.max(1, System.currentTimeMillis() - startedAt);
+            usbLogViewModel.log("File Transfer: Sent " + fileName + " successfully in " + elapsed + " ms ("
+                    + fileSize / elapsed + " KB/s, повторов " + sender.retransmissions() + ")");
+            if (compressor != null) usbLogViewModel.log("File Transfer: Сжатие " + compressor.stats());
+        } finally {
+            if (compressor != null) compressor.release();
         }
     }
 
@@ -252,144 +425,91 @@ public class MessagesFragment extends Fragment {
     }
 
     private void observeUdpMessages() {
+        // Вложения идут мимо главного потока: прием -> очередь -> поток-писатель
+        fileReceiver = new ChatFileReceiver(udpViewModel, usbLogViewModel, requireContext().getCacheDir(), new ChatFileReceiver.Listener() {
+            @Override
+            public void onPreviewReceived(int transferId, File preview) {
+                mainHandler.post(() -> {
+                    Message message = new Message(Message.MessageType.IMAGE_RECEIVED, Uri.fromFile(preview));
+                    previewMessages.put(transferId, message);
+                    messagesViewModel.addMessage(message);
+                });
+            }
+
+            @Override
+            public void onReceiveFinished(int transferId, File file, boolean complete) {
+                mainHandler.post(() -> {
+                    // Недошедший файл оставляет превью как есть
+                    Message preview = previewMessages.remove(transferId);
+                    if (complete && preview != null) {
+                        messagesViewModel.replaceImage(preview, Uri.fromFile(file));
+                    } else if (complete) {
+                        messagesViewModel.addMessage(new Message(Message.MessageType.IMAGE_RECEIVED, Uri.fromFile(file)));
+                    }
+                });
+            }
+        });
+        fileReceiver.start();
+
         udpViewModel.getReceivedMessage().observe(getViewLifecycleOwner(), message -> {
             if (message == null) return;
 
             switch (message.type) {
-                case UdpViewModel.MESSAGE_TYPE_TEXT:
+                case UdpViewModel.MESSAGE_TYPE_TEXT: // Собеседник без надежного канала
                     String text = new String(message.payload, StandardCharsets.UTF_8);
                     messagesViewModel.addMessage(new Message(Message.MessageType.TEXT_RECEIVED, text));
                     break;
+                case UdpViewModel.MESSAGE_TYPE_FILE_PREVIEW:
                 case UdpViewModel.MESSAGE_TYPE_FILE_HEADER:
-                    handleFileHeader(message.payload);
-                    break;
                 case UdpViewModel.MESSAGE_TYPE_FILE_CHUNK:
-                    handleFileChunk(message.payload);
-                    break;
+                case UdpViewModel.MESSAGE_TYPE_FILE_CHUNK_COMPRESSED:
+                case UdpViewModel.MESSAGE_TYPE_FILE_LENGTH:
                 case UdpViewModel.MESSAGE_TYPE_FILE_END:
-                    handleFileEnd();
-                    break;
-                case UdpViewModel.MESSAGE_TYPE_FILE_ACK: // NEW
-                    udpViewModel.receiveAck(message.payload);
+                    fileReceiver.offer(message);
                     break;
             }
         });
+        udpViewModel.setAttachmentListener(fileReceiver::offer);
+        udpViewModel.setTextListener((senderIp, text) ->
+                messagesViewModel.addMessage(new Message(Message.MessageType.TEXT_RECEIVED, text)));
+        udpViewModel.getUndeliveredText().observe(getViewLifecycleOwner(), text -> {
+            if (text == null) return;
+            usbLogViewModel.log("Chat: message not delivered: " + text.length() + " chars");
+            String preview = text.length() > 40 ? text.substring(0, 40) + "…" : text;
+            Toast.makeText(getContext(), "Сообщение не доставлено: " + preview, Toast.LENGTH_LONG).show();
+        });
     }
 
-    private void handleFileHeader(byte[] payload) {
-        try {
-            ByteBuffer buffer = ByteBuffer.wrap(payload);
-            int nameLen = buffer.getInt();
-            String name;
-            long size;
-
-            if (nameLen < 0 || nameLen > 512) {
-                legacyMode = true;
-                buffer = ByteBuffer.wrap(payload);
-                size = buffer.getLong();
-                name = new String(buffer.array(), buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
-            } else {
-                legacyMode = false;
-                byte[] nameBytes = new byte[nameLen];
-                buffer.get(nameBytes);
-                name = new String(nameBytes, StandardCharsets.UTF_8);
-                size = buffer.getLong();
-            }
-
-            expectedFileSize = size;
-            receivedBytes = 0;
-            totalChunksExpected = (int) Math.ceil((double) expectedFileSize / CHUNK_SIZE);
-            receivedChunks.clear();
-
-            currentReceivingFile = new File(requireContext().getCacheDir(), name);
-            File parent = currentReceivingFile.getParentFile();
-            if (!parent.exists()) parent.mkdirs();
-            fos = new FileOutputStream(currentReceivingFile);
-
-            usbLogViewModel.log("Receiving file '" + name + "' (" + expectedFileSize + " bytes)");
-            requireActivity().runOnUiThread(() -> binding.fileProgressBar.setVisibility(View.VISIBLE));
-
-            for (byte[] chunk : pendingChunks) writeChunkToFile(chunk);
-            pendingChunks.clear();
-
-        } catch (Exception e) {
-            usbLogViewModel.log("ERROR: Failed to parse file header", e);
-        }
-    }
-
-    private void handleFileChunk(byte[] payload) {
-        if (fos == null) {
-            pendingChunks.add(payload);
-            return;
-        }
-        writeChunkToFile(payload);
-    }
-
-    private void writeChunkToFile(byte[] payload) {
-        try {
-            if (legacyMode) {
-                fos.write(payload);
-                receivedBytes += payload.length;
-            } else {
-                ByteBuffer chunkBuf = ByteBuffer.wrap(payload);
-                int index = chunkBuf.getInt();
-                byte[] data = new byte[chunkBuf.remaining()];
-                chunkBuf.get(data);
-
-                if (!receivedChunks.contains(index)) {
-                    receivedChunks.add(index);
-                    fos.write(data);
-                    receivedBytes += data.length;
-
-                    // NEW: Отправка ACK
-                    String senderIp = networkViewModel.getTargetIpAddress().getValue();
-                    if (senderIp != null) {
-                        ByteBuffer ack = ByteBuffer.allocate(4);
-                        ack.putInt(index);
-                        udpViewModel.sendData(senderIp, UdpViewModel.MESSAGE_TYPE_FILE_ACK, ack.array());
-                    }
-                }
-            }
-            updateProgress(receivedBytes, expectedFileSize);
-        } catch (Exception e) {
-            usbLogViewModel.log("ERROR: Writing chunk failed", e);
-        }
-    }
-
-    private void handleFileEnd() {
-        try {
-            if (fos != null) {
-                fos.close();
-                fos = null;
-            }
-
-            if (currentReceivingFile != null) {
-                usbLogViewModel.log("File Transfer: Received " + currentReceivingFile.getName());
-                messagesViewModel.addMessage(new Message(Message.MessageType.IMAGE_RECEIVED, Uri.fromFile(currentReceivingFile)));
-            }
-
-            currentReceivingFile = null;
-            receivedBytes = 0;
-            expectedFileSize = 0;
-            receivedChunks.clear();
-
-        } catch (Exception e) {
-            usbLogViewModel.log("ERROR: Closing file failed", e);
-        } finally {
-            requireActivity().runOnUiThread(() -> binding.fileProgressBar.setVisibility(View.GONE));
+    /** Главный поток; полоса — по первой передаче, текст — по всем (отправка и прием могут идти разом). */
+    private void showTransfers(List<TransferStats.Snapshot> transfers) {
+        if (binding == null) return;
+        boolean active = !transfers.isEmpty();
+        binding.fileProgressBar.setVisibility(active ? View.VISIBLE : View.GONE);
+        binding.fileStatsText.setVisibility(active ? View.VISIBLE : View.GONE);
+        if (!active) return;
+
+        // В промилле: int у ProgressBar не вмещает размер файла больше 2 ГБ
+        int permille = transfers.get(0).permille();
+        binding.fileProgressBar.setIndeterminate(permille < 0); // Файл еще перекодируется у отправителя
+        binding.fileProgressBar.setMax(1000);
+        if (permille >= 0) binding.fileProgressBar.setProgress(permille);
+        StringBuilder text = new StringBuilder();
+        for (TransferStats.Snapshot transfer : transfers) {
+            if (text.length() > 0) text.append('\n');
+            text.append(transfer.summary());
         }
-    }
-
-    private void updateProgress(long sent, long total) {
-        requireActivity().runOnUiThread(() -> {
-            binding.fileProgressBar.setMax((int) total);
-            binding.fileProgressBar.setProgress((int) sent);
-        });
+        binding.fileStatsText.setText(text);
     }
 
     @Override
     public void onDestroyView() {
         super.onDestroyView();
+        requireActivity().getWindow().removeOnFrameMetricsAvailableListener(frameMetricsListener);
+        TransferTelemetry.get().removeListener(telemetryListener);
+        udpViewModel.setAttachmentListener(null);
+        udpViewModel.setTextListener(null);
+        fileReceiver.close();
+        mainHandler.removeCallbacksAndMessages(null);
         executor.shutdown();
         binding = null;
     }
@@ -2,97 +2,357 @@ package com.example.multimediaexchanger.ui.messages;
 
 import android.app.Application;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import com.google.gson.reflect.TypeToken;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MessagesViewModel extends AndroidViewModel {
 
-    private final MutableLiveData<List<Message>> messages = new MutableLiveData<>(new ArrayList<>());
+    /**
+     * Окно истории, которое сейчас в памяти: несколько страниц вокруг видимой части.
+     * {@code startPosition} — позиция первого сообщения окна во всей истории.
+     */
+    public static final class HistoryWindow {
+        public enum Change { LOADED, OLDER, NEWER, APPENDED, UPDATED }
+
+        public final List<Message> messages;
+        public final int startPosition;
+        public final int totalCount;
+        public final Change change;
+
+        HistoryWindow(List<Message> messages, int startPosition, int totalCount, Change change) {
+            this.messages = messages;
+            this.startPosition = startPosition;
+            this.totalCount = totalCount;
+            this.change = change;
+        }
+
+        public boolean hasOlder() {
+            return startPosition > 0;
+        }
+
+        public boolean hasNewer() {
+            return startPosition + messages.size() < totalCount;
+        }
+    }
+
+    static final int PAGE_SIZE = 50;
+    static final int SEARCH_LIMIT = 100;
+    private static final int CATCH_UP_BATCH = 500;
+    private static final int MAX_WINDOW_PAGES = 4; // Больше не держим: дальние страницы выгружаются
+
+    private final MutableLiveData<List<Message>> searchResults = new MutableLiveData<>(Collections.emptyList());
+    private final AtomicInteger searchGeneration = new AtomicInteger(); // Ответ на устаревший запрос не публикуем
+    private final MutableLiveData<HistoryWindow> history =
+            new MutableLiveData<>(new HistoryWindow(Collections.emptyList(), 0, 0, HistoryWindow.Change.LOADED));
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private boolean pageLoading = false; // Только в главном потоке
     private final File historyFile;
+    private final File legacyHistoryFile;
     private final Gson gson = new Gson();
     private final ExecutorService fileExecutor = Executors.newSingleThreadExecutor();
-    private static final String HISTORY_FILE_NAME = "chat_history.json";
+    private static final String HISTORY_FILE_NAME = "chat_history.log";
+    private static final String SEARCH_INDEX_SUFFIX = ".fts";
+    private static final String LEGACY_HISTORY_FILE_NAME = "chat_history.json";
     private static final String TAG = "MessagesViewModel";
 
+    // Трогаются только в fileExecutor
+    private ChatHistoryLog historyLog;
+    private ChatSearchIndex searchIndex;
+    private final List<Message> window = new ArrayList<>();
+    private int windowStart = 0;
+    private int totalCount = 0;
+    private long lastId = 0;
+
     public MessagesViewModel(@NonNull Application application) {
         super(application);
         historyFile = new File(application.getFilesDir(), HISTORY_FILE_NAME);
+        legacyHistoryFile = new File(application.getFilesDir(), LEGACY_HISTORY_FILE_NAME);
         loadHistory();
     }
 
-    public LiveData<List<Message>> getMessages() {
-        return messages;
+    public LiveData<HistoryWindow> getHistory() {
+        return history;
     }
 
-    public void addMessage(Message message) {
-        List<Message> currentMessages = messages.getValue();
-        if (currentMessages != null) {
-            currentMessages.add(message);
-            messages.postValue(currentMessages);
-            saveHistory(new ArrayList<>(currentMessages)); // Pass a copy to the background thread
-        }
+    /** Найденные сообщения последнего запроса, по времени. */
+    public LiveData<List<Message>> getSearchResults() {
+        return searchResults;
     }
 
-    private void loadHistory() {
+    /** Ищет сообщения, где есть слова, начинающиеся с каждого слова запроса. */
+    public void search(String query) {
+        int generation = searchGeneration.incrementAndGet();
         fileExecutor.execute(() -> {
-            if (historyFile.exists()) {
-                try (BufferedReader reader = new BufferedReader(new FileReader(historyFile))) {
-                    Type listType = new TypeToken<ArrayList<Message>>() {}.getType();
-                    List<Message> history = gson.fromJson(reader, listType);
-                    if (history != null) {
-                        for (Message msg : history) {
-                            if (msg.getImageUriString() != null) {
-                                msg.setImageUri(Uri.parse(msg.getImageUriString()));
-                            }
-                        }
-                        messages.postValue(history);
-                        Log.d(TAG, "Chat history loaded.");
+            List<Message> found = new ArrayList<>();
+            if (searchIndex != null && historyLog != null) {
+                try {
+                    long[] ids = searchIndex.search(query, SEARCH_LIMIT);
+                    // Индекс отдает новые первыми, лента показывает по времени
+                    for (int i = ids.length - 1; i >= 0; i--) {
+                        int position = historyLog.positionOf(ids[i]);
+                        if (position < 0) continue;
+                        Message message = decode(historyLog.read(position, position + 1).get(0));
+                        if (message != null) found.add(message);
                     }
-                } catch (Exception e) { // Catch all exceptions, including JSON parsing errors
-                    Log.e(TAG, "Error loading chat history, file might be corrupt. Deleting it.", e);
-                    historyFile.delete(); // Delete corrupt file
-                    messages.postValue(new ArrayList<>()); // Start with a fresh list
+                } catch (IOException e) {
+                    Log.e(TAG, "Error searching chat history", e);
                 }
             }
+            List<Message> snapshot = Collections.unmodifiableList(found);
+            mainHandler.post(() -> {
+                if (generation == searchGeneration.get()) searchResults.setValue(snapshot);
+            });
         });
     }
 
-    private void saveHistory(List<Message> messagesToSave) {
+    /** Дописывает в журнал одну запись; id назначается в порядке добавления. */
+    public void addMessage(Message message) {
         fileExecutor.execute(() -> {
-            try (FileWriter writer = new FileWriter(historyFile)) {
-                for (Message msg : messagesToSave) {
-                    if (msg.getImageUri() != null) {
-                        msg.setImageUriString(msg.getImageUri().toString());
-                    }
+            message.setId(++lastId);
+            if (historyLog != null) {
+                try {
+                    historyLog.append(message.getId(), encode(message));
+                } catch (IOException e) {
+                    Log.e(TAG, "Error saving chat history", e);
+                }
+            }
+            if (searchIndex != null) {
+                try {
+                    searchIndex.add(message.getId(), message.getText());
+                } catch (IOException e) {
+                    Log.e(TAG, "Error updating chat search index", e);
                 }
-                gson.toJson(messagesToSave, writer);
+            }
+            boolean windowAtEnd = windowStart + window.size() == totalCount;
+            totalCount++;
+            if (windowAtEnd) {
+                window.add(message);
+                trimOldest();
+            } else {
+                // Пользователь листал далеко назад: новое сообщение показываем вместе с последней страницей
+                loadLastPage();
+            }
+            publish(HistoryWindow.Change.APPENDED);
+        });
+    }
+
+    /**
+     * Подменяет картинку уже добавленного сообщения, например превью на полный файл.
+     * Запись с тем же id замещает прежнюю в журнале; сообщение остается на своем месте.
+     * Прежний файл удаляется — на него больше ничто не ссылается.
+     */
+    public void replaceImage(Message message, Uri imageUri) {
+        fileExecutor.execute(() -> {
+            // Снимки окна неизменяемые — вместо правки сообщения кладем новое с тем же id
+            Message updated = message.withImageUri(imageUri);
+            if (historyLog != null) {
+                try {
+                    historyLog.append(updated.getId(), encode(updated));
+                } catch (IOException e) {
+                    Log.e(TAG, "Error saving chat history", e);
+                }
+            }
+            Uri previous = message.getImageUri();
+            if (previous != null && "file".equals(previous.getScheme())) new File(previous.getPath()).delete();
+            for (int i = 0; i < window.size(); i++) {
+                if (window.get(i).getId() == updated.getId()) {
+                    window.set(i, updated);
+                    publish(HistoryWindow.Change.UPDATED);
+                    return;
+                }
+            }
+        });
+    }
+
+    /** Догружает страницу старше окна. Вызывается из главного потока при прокрутке вверх. */
+    public void loadOlder() {
+        HistoryWindow current = history.getValue();
+        if (pageLoading || current == null || !current.hasOlder()) return;
+        pageLoading = true;
+        fileExecutor.execute(() -> {
+            int from = Math.max(0, windowStart - PAGE_SIZE);
+            window.addAll(0, readPage(from, windowStart));
+            windowStart = from;
+            int limit = MAX_WINDOW_PAGES * PAGE_SIZE;
+            if (window.size() > limit) window.subList(limit, window.size()).clear();
+            publish(HistoryWindow.Change.OLDER);
+        });
+    }
+
+    /** Догружает страницу новее окна, если она была выгружена. Вызывается из главного потока. */
+    public void loadNewer() {
+        HistoryWindow current = history.getValue();
+        if (pageLoading || current == null || !current.hasNewer()) return;
+        pageLoading = true;
+        fileExecutor.execute(() -> {
+            int from = windowStart + window.size();
+            window.addAll(readPage(from, Math.min(totalCount, from + PAGE_SIZE)));
+            trimOldest();
+            publish(HistoryWindow.Change.NEWER);
+        });
+    }
+
+    private void loadLastPage() {
+        window.clear();
+        windowStart = Math.max(0, totalCount - PAGE_SIZE);
+        window.addAll(readPage(windowStart, totalCount));
+    }
+
+    private void trimOldest() {
+        int excess = window.size() - MAX_WINDOW_PAGES * PAGE_SIZE;
+        if (excess <= 0) return;
+        window.subList(0, excess).clear();
+        windowStart += excess;
+    }
+
+    private List<Message> readPage(int from, int to) {
+        List<Message> page = new ArrayList<>(Math.max(0, to - from));
+        if (historyLog == null) return page;
+        try {
+            for (ChatHistoryLog.Record record : historyLog.read(from, to)) {
+                Message message = decode(record);
+                // Нечитаемую запись заменяем пустым текстом, чтобы позиции окна не съехали
+                page.add(message != null ? message : placeholder(record.id));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading chat history page", e);
+        }
+        return page;
+    }
+
+    private Message placeholder(long id) {
+        Message message = new Message(Message.MessageType.TEXT_RECEIVED, "");
+        message.setId(id);
+        return message;
+    }
+
+    private void publish(HistoryWindow.Change change) {
+        // Неизменяемый снимок: адаптер сравнивает его со старым в фоне
+        HistoryWindow snapshot = new HistoryWindow(Collections.unmodifiableList(new ArrayList<>(window)),
+                windowStart, totalCount, change);
+        // pageLoading сбрасывается в главном потоке вместе с новым окном
+        mainHandler.post(() -> {
+            pageLoading = false;
+            history.setValue(snapshot);
+        });
+    }
+
+    private void loadHistory() {
+        fileExecutor.execute(() -> {
+            try {
+                historyLog = new ChatHistoryLog(historyFile);
+                if (historyLog.droppedTailBytes() > 0) {
+                    Log.w(TAG, "Chat history: dropped torn tail of " + historyLog.droppedTailBytes() + " bytes");
+                }
+                if (historyLog.size() == 0 && legacyHistoryFile.exists()) migrateLegacyHistory();
+
+                lastId = historyLog.lastId();
+                totalCount = historyLog.size();
+                loadLastPage();
+                publish(HistoryWindow.Change.LOADED);
+                Log.d(TAG, "Chat history opened: " + totalCount + " messages, last page loaded.");
             } catch (IOException e) {
-                Log.e(TAG, "Error saving chat history", e);
+                Log.e(TAG, "Error opening chat history", e);
+                return;
             }
+            // Индекс — уже после показа последней страницы: экран его не ждет
+            openSearchIndex();
         });
     }
-    
+
+    /** Открывает индекс поиска и дочитывает в него сообщения, которых на диске в индексе еще нет. */
+    private void openSearchIndex() {
+        try {
+            ChatSearchIndex index = new ChatSearchIndex(new File(historyFile.getPath() + SEARCH_INDEX_SUFFIX));
+            // Журнал короче индекса (отрезан хвост или заменен файл) — id в индексе уже не те
+            if (index.indexedUpTo() > historyLog.lastId()) index.reset();
+            int from = historyLog.positionAfter(index.indexedUpTo());
+            for (int position = from; position < historyLog.size(); position += CATCH_UP_BATCH) {
+                for (ChatHistoryLog.Record record : historyLog.read(position, position + CATCH_UP_BATCH)) {
+                    Message message = decode(record);
+                    index.add(record.id, message != null ? message.getText() : null);
+                }
+            }
+            searchIndex = index;
+            if (from < historyLog.size()) Log.d(TAG, "Chat search index caught up: " + (historyLog.size() - from) + " messages");
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening chat search index", e);
+        }
+    }
+
+    /** Переносит историю из прежнего chat_history.json в журнал, один раз. */
+    private void migrateLegacyHistory() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(legacyHistoryFile))) {
+            Type listType = new TypeToken<ArrayList<Message>>() {}.getType();
+            List<Message> legacy = gson.fromJson(reader, listType);
+            if (legacy != null) {
+                long id = 0;
+                for (Message message : legacy) historyLog.append(++id, gson.toJson(message).getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (JsonParseException e) {
+            Log.e(TAG, "Legacy chat history is corrupt, skipping it", e);
+        }
+        legacyHistoryFile.delete();
+    }
+
+    private byte[] encode(Message message) {
+        if (message.getImageUri() != null) message.setImageUriString(message.getImageUri().toString());
+        return gson.toJson(message).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Nullable
+    private Message decode(ChatHistoryLog.Record record) {
+        try {
+            Message message = gson.fromJson(new String(record.body, StandardCharsets.UTF_8), Message.class);
+            if (message == null) return null;
+            message.setId(record.id);
+            if (message.getImageUriString() != null) message.setImageUri(Uri.parse(message.getImageUriString()));
+            return message;
+        } catch (JsonParseException e) {
+            Log.e(TAG, "Skipping unreadable chat history record " + record.id, e);
+            return null;
+        }
+    }
+
     @Override
     protected void onCleared() {
         super.onCleared();
+        fileExecutor.execute(() -> {
+            try {
+                if (historyLog != null) historyLog.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing chat history", e);
+            }
+            try {
+                if (searchIndex != null) searchIndex.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing chat search index", e);
+            }
+        });
         fileExecutor.shutdown();
     }
 }
@@ -0,0 +1,315 @@
+package com.example.multimediaexchanger.ui;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Надежный текстовый канал: через теряющую и переставляющую пакеты связь сообщения доходят
+ * все, по порядку и по одному разу; отправленные подряд уходят общими пакетами.
+ * <p>
+ * Каналы и связь работают на виртуальных часах {@link Clock}: время двигает тест, все задачи
+ * выполняются в его потоке, поэтому результат не зависит от загрузки машины.
+ */
+public class ReliableTextChannelTest {
+
+    private static final ReliableTextChannel.FailureListener IGNORE_FAILURES = (ip, text) -> { };
+    // Дольше любой проверки: с боевыми таймаутами отказ наступает за ~20 с
+    private static final long TIME_LIMIT_MS = 60_000;
+
+    /** Виртуальное время и общая очередь задач для всех каналов теста. */
+    private static final class Clock {
+        private final PriorityQueue<Task> tasks = new PriorityQueue<>(
+                Comparator.comparingLong((Task task) -> task.at).thenComparingLong(task -> task.order));
+        private long now = 0;
+        private long order = 0;
+
+        private static final class Task {
+            final long at;
+            final long order;
+            final Runnable body;
+            final Scheduler owner;
+            boolean cancelled;
+
+            Task(long at, long order, Runnable body, Scheduler owner) {
+                this.at = at;
+                this.order = order;
+                this.body = body;
+                this.owner = owner;
+            }
+        }
+
+        /** Планировщик одного канала; после shutdown его задачи не выполняются. */
+        final class Scheduler implements ReliableTextChannel.Scheduler {
+            boolean shutdown;
+
+            @Override
+            public long now() {
+                return now;
+            }
+
+            @Override
+            public void execute(Runnable task) {
+                schedule(task, 0);
+            }
+
+            @Override
+            public ReliableTextChannel.Cancellable schedule(Runnable body, long delayMs) {
+                Task task = new Task(now + delayMs, order++, body, this);
+                if (!shutdown) tasks.add(task);
+                return () -> task.cancelled = true;
+            }
+
+            @Override
+            public void shutdown() {
+                shutdown = true;
+            }
+        }
+
+        Scheduler scheduler() {
+            return new Scheduler();
+        }
+
+        /** Выполняет все задачи ближайших {@code durationMs} и переводит часы на их конец. */
+        void runFor(long durationMs) {
+            long end = now + durationMs;
+            while (!tasks.isEmpty() && tasks.peek().at <= end) runNext();
+            now = end;
+        }
+
+        /** Выполняет задачи по порядку, пока условие не выполнится или не кончатся задачи и время. */
+        void runUntil(Condition condition) {
+            long end = now + TIME_LIMIT_MS;
+            while (!condition.met() && !tasks.isEmpty() && tasks.peek().at <= end) runNext();
+        }
+
+        boolean isIdle() {
+            for (Task task : tasks) {
+                if (!task.cancelled && !task.owner.shutdown) return false;
+            }
+            return true;
+        }
+
+        private void runNext() {
+            Task task = tasks.poll();
+            now = Math.max(now, task.at);
+            if (!task.cancelled && !task.owner.shutdown) task.body.run();
+        }
+    }
+
+    /** Связь между двумя каналами: теряет долю пакетов и задерживает остальные на случайное время. */
+    private static final class Link {
+        final Clock clock = new Clock();
+        final Clock.Scheduler wire = clock.scheduler();
+        final Random random = new Random(42);
+        double loss;
+        int datagrams;
+        ReliableTextChannel a;
+        ReliableTextChannel b;
+
+        Link(double loss) {
+            this.loss = loss;
+        }
+
+        ReliableTextChannel channel(String ip, ReliableTextChannel.Listener listener,
+                                    ReliableTextChannel.FailureListener failureListener) {
+            return channel(ip, listener, failureListener, ReliableTextChannel.RETRANSMIT_TIMEOUT_MS,
+                    ReliableTextChannel.MAX_RETRANSMIT_TIMEOUT_MS);
+        }
+
+        ReliableTextChannel channel(String ip, ReliableTextChannel.Listener listener,
+                                    ReliableTextChannel.FailureListener failureListener,
+                                    long retransmitTimeoutMs, long maxRetransmitTimeoutMs) {
+            return new ReliableTextChannel(from(ip), listener, failureListener, retransmitTimeoutMs,
+                    maxRetransmitTimeoutMs, clock.scheduler());
+        }
+
+        private ReliableTextChannel.Sender from(String ip) {
+            return (to, frame) -> {
+                datagrams++;
+                if (random.nextDouble() < loss) return;
+                long delay = random.nextInt(15);
+                ReliableTextChannel target = ip.equals("a") ? b : a;
+                wire.schedule(() -> target.receive(ip, frame), delay);
+            };
+        }
+
+        void shutdown() {
+            a.shutdown();
+            b.shutdown();
+            wire.shutdown();
+        }
+    }
+
+    @Test
+    public void lossyLinkDeliversInOrderWithoutDuplicates() {
+        Link link = new Link(0.2);
+        List<String> receivedByB = new ArrayList<>();
+        List<String> receivedByA = new ArrayList<>();
+        link.a = link.channel("a", (ip, text) -> receivedByA.add(text), IGNORE_FAILURES);
+        link.b = link.channel("b", (ip, text) -> receivedByB.add(text), IGNORE_FAILURES);
+        try {
+            for (int i = 0; i < 200; i++) {
+                link.a.send("b", "a" + i);
+                if (i % 3 == 0) link.b.send("a", "b" + i);
+                if (i % 20 == 0) link.clock.runFor(10);
+            }
+            link.clock.runUntil(() -> receivedByB.size() >= 200 && receivedByA.size() >= 67);
+
+            assertEquals(200, receivedByB.size());
+            for (int i = 0; i < 200; i++) assertEquals("a" + i, receivedByB.get(i));
+            assertEquals(67, receivedByA.size());
+            for (int i = 0; i < 67; i++) assertEquals("b" + (i * 3), receivedByA.get(i));
+        } finally {
+            link.shutdown();
+        }
+    }
+
+    @Test
+    public void burstIsCoalescedIntoFewDatagrams() {
+        Link link = new Link(0);
+        List<String> received = new ArrayList<>();
+        link.a = link.channel("a", (ip, text) -> { }, IGNORE_FAILURES);
+        link.b = link.channel("b", (ip, text) -> received.add(text), IGNORE_FAILURES);
+        try {
+            for (int i = 0; i < 100; i++) link.a.send("b", "message " + i);
+            link.clock.runUntil(() -> received.size() >= 100);
+            link.clock.runFor(ReliableTextChannel.ACK_DELAY_MS * 3);
+
+            assertEquals(100, received.size());
+            // 100 коротких сообщений — пара пакетов данных и немного ACK, а не сотня пакетов
+            assertTrue("datagrams: " + link.datagrams, link.datagrams <= 10);
+        } finally {
+            link.shutdown();
+        }
+    }
+
+    @Test
+    public void restartedPeerIsRecognizedBySession() {
+        Link link = new Link(0);
+        List<String> received = new ArrayList<>();
+        link.a = link.channel("a", (ip, text) -> { }, IGNORE_FAILURES);
+        link.b = link.channel("b", (ip, text) -> received.add(text), IGNORE_FAILURES);
+        try {
+            for (int i = 0; i < 5; i++) link.a.send("b", "before " + i);
+            link.clock.runUntil(() -> received.size() >= 5);
+
+            // Собеседник перезапустился: номера у него снова с единицы
+            link.a.shutdown();
+            link.a = link.channel("a", (ip, text) -> { }, IGNORE_FAILURES);
+            link.a.send("b", "after restart");
+            link.clock.runUntil(() -> received.size() >= 6);
+
+            assertEquals(6, received.size());
+            assertEquals("after restart", received.get(5));
+        } finally {
+            link.shutdown();
+        }
+    }
+
+    @Test
+    public void unreachablePeerIsGivenUpWithBackoff() {
+        Link link = new Link(1); // Собеседник пропал: не доходит ничего
+        List<String> undelivered = new ArrayList<>();
+        List<Long> givenUpAt = new ArrayList<>();
+        link.a = link.channel("a", (ip, text) -> { }, (ip, text) -> {
+            undelivered.add(text);
+            givenUpAt.add(link.clock.now);
+        }, 5, 40);
+        link.b = link.channel("b", (ip, text) -> { }, IGNORE_FAILURES);
+        try {
+            for (int i = 0; i < 3; i++) link.a.send("b", "lost " + i);
+            link.clock.runUntil(() -> undelivered.size() >= 3);
+            assertEquals(Arrays.asList("lost 0", "lost 1", "lost 2"), undelivered);
+
+            // Все три ехали общими пакетами, по одному на попытку; потом таймер замолкает
+            assertEquals(ReliableTextChannel.MAX_ATTEMPTS, link.datagrams);
+            // Таймауты 5, 10, 20, 40, 40... после отправки через COALESCE_DELAY_MS
+            long expected = ReliableTextChannel.COALESCE_DELAY_MS + 5 + 10 + 20 + 40 * (ReliableTextChannel.MAX_ATTEMPTS - 3);
+            assertEquals(Arrays.asList(expected, expected, expected), givenUpAt);
+            assertTrue(link.clock.isIdle());
+        } finally {
+            link.shutdown();
+        }
+    }
+
+    @Test
+    public void givenUpMessageDoesNotStallLaterOnes() {
+        Link link = new Link(0);
+        List<String> received = new ArrayList<>();
+        List<String> undelivered = new ArrayList<>();
+        link.a = link.channel("a", (ip, text) -> { }, (ip, text) -> undelivered.add(text), 5, 20);
+        link.b = link.channel("b", (ip, text) -> received.add(text), IGNORE_FAILURES);
+        try {
+            link.a.send("b", "first");
+            link.clock.runUntil(() -> received.size() >= 1);
+            link.clock.runFor(ReliableTextChannel.ACK_DELAY_MS * 3); // ACK первого дошел
+
+            link.loss = 1;
+            link.a.send("b", "lost");
+            link.clock.runUntil(() -> undelivered.size() >= 1);
+
+            // Связь вернулась: получатель по базе в заголовке понимает, что «lost» ждать не нужно
+            link.loss = 0;
+            link.a.send("b", "next");
+            link.clock.runUntil(() -> received.size() >= 2);
+            assertEquals(Arrays.asList("first", "next"), received);
+        } finally {
+            link.shutdown();
+        }
+    }
+
+    @Test
+    public void longTextIsSplitToFitOneDatagram() {
+        String emoji = new String(Character.toChars(0x1F600)); // 4 байта в UTF-8, два char
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < ReliableTextChannel.MAX_TEXT_BYTES - 1; i++) text.append('a');
+        text.append(emoji).append("b");
+
+        List<String> parts = ReliableTextChannel.split(text.toString());
+        assertEquals(2, parts.size());
+        assertEquals(ReliableTextChannel.MAX_TEXT_BYTES - 1, parts.get(0).length()); // Пара не разорвана
+        assertEquals(emoji + "b", parts.get(1));
+        assertEquals(Collections.singletonList("short"), ReliableTextChannel.split("short"));
+
+        StringBuilder cyrillic = new StringBuilder();
+        for (int i = 0; i < 70_000; i++) cyrillic.append('я');
+        StringBuilder joined = new StringBuilder();
+        for (String part : ReliableTextChannel.split(cyrillic.toString())) {
+            assertTrue(part.getBytes(StandardCharsets.UTF_8).length <= ReliableTextChannel.MAX_TEXT_BYTES);
+            joined.append(part);
+        }
+        assertEquals(cyrillic.toString(), joined.toString());
+    }
+
+    @Test
+    public void longestTextFitsUdpPayload() {
+        Clock clock = new Clock();
+        List<byte[]> frames = new ArrayList<>();
+        ReliableTextChannel channel = new ReliableTextChannel((ip, frame) -> frames.add(frame), (ip, text) -> { },
+                IGNORE_FAILURES, ReliableTextChannel.RETRANSMIT_TIMEOUT_MS, ReliableTextChannel.MAX_RETRANSMIT_TIMEOUT_MS,
+                clock.scheduler());
+        try {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < ReliableTextChannel.MAX_TEXT_BYTES; i++) text.append('x');
+            channel.send("b", text.toString());
+            clock.runUntil(() -> !frames.isEmpty());
+            assertEquals(65507, frames.get(0).length + 1); // С байтом типа — ровно предел UDP
+        } finally {
+            channel.shutdown();
+        }
+    }
+
+    private interface Condition {
+        boolean met();
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.multimediaexchanger.ui.calls;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Джиттер-буфер на модельном времени: порядок по номерам, опоздавшие и потерянные пакеты,
+ * глубина по джиттеру и рассасывание задержки после пачки пакетов.
+ */
+public class JitterBufferTest {
+
+    private static final int RATE = 16000;
+    private static final int FRAME = 320; // 20 мс
+
+    @Test
+    public void playsInSequenceOrderAndDropsLatePackets() throws InterruptedException {
+        JitterBuffer buffer = new JitterBuffer(RATE, FRAME);
+        for (int sequence : new int[]{0, 2, 1, 3}) put(buffer, sequence, sequence * 20L);
+
+        for (int expected = 0; expected < 4; expected++) {
+            assertEquals(expected, buffer.take(0).payload[0]);
+        }
+        put(buffer, 1, 100); // Его кадр уже сыгран
+        put(buffer, 4, 100);
+        put(buffer, 4, 100); // Дубликат
+        assertEquals(1, buffer.stats().late);
+        assertEquals(1, buffer.stats().depth);
+    }
+
+    @Test
+    public void missingPacketBecomesGapWithoutStall() throws InterruptedException {
+        JitterBuffer buffer = new JitterBuffer(RATE, FRAME);
+        for (int sequence : new int[]{0, 1, 3, 4}) put(buffer, sequence, sequence * 20L);
+
+        assertEquals(0, buffer.take(0).payload[0]);
+        assertEquals(1, buffer.take(0).payload[0]);
+        assertNull(buffer.take(0).payload); // Второй не пришел — тишина, а не ожидание
+        assertEquals(3, buffer.take(0).payload[0]);
+        assertEquals(4, buffer.take(0).payload[0]);
+        assertEquals(1, buffer.stats().lost);
+
+        // Буфер пуст: провал и снова накопление до цели
+        assertNull(buffer.take(0));
+        assertEquals(1, buffer.stats().underruns);
+        assertNull(buffer.take(0));
+    }
+
+    @Test
+    public void sequenceNumbersWrapAround() throws InterruptedException {
+        JitterBuffer buffer = new JitterBuffer(RATE, FRAME);
+        int[] sequences = {65534, 65535, 0, 1};
+        for (int i = 0; i < sequences.length; i++) {
+            buffer.putFramed(JitterBuffer.frame(sequences[i], (long) i * FRAME, new byte[]{(byte) i}), i * 20L);
+        }
+        for (int i = 0; i < sequences.length; i++) assertEquals(i, buffer.take(0).payload[0]);
+        assertEquals(0, buffer.stats().late);
+    }
+
+    @Test
+    public void targetDepthFollowsMeasuredJitter() {
+        JitterBuffer steady = new JitterBuffer(RATE, FRAME);
+        for (int i = 0; i < 200; i++) put(steady, i, i * 20L);
+        assertEquals(0, steady.stats().jitterMs, 1e-9);
+        assertEquals(JitterBuffer.MIN_DEPTH, steady.stats().target);
+
+        // Пакеты приходят то вовремя, то на 30 мс позже
+        JitterBuffer jittery = new JitterBuffer(RATE, FRAME);
+        for (int i = 0; i < 200; i++) put(jittery, i, i * 20L + (i % 2) * 30);
+        assertEquals(30, jittery.stats().jitterMs, 1);
+        assertEquals(7, jittery.stats().target); // 4 × 30 мс / 20 мс + 1
+    }
+
+    @Test
+    public void burstDelayIsWorkedOffByShorterFrames() throws InterruptedException {
+        JitterBuffer buffer = new JitterBuffer(RATE, FRAME);
+        // Сеть на 200 мс замерла и выдала десять пакетов разом
+        int sequence = 0;
+        for (; sequence < 10; sequence++) put(buffer, sequence, 200);
+        assertEquals(200, buffer.stats().delayMs);
+
+        // Дальше пакеты идут ровно раз в 20 мс, а буфер играет в темпе, который сам советует
+        double playClock = 200;
+        long arrivalClock = 200;
+        boolean shrunk = false;
+        while (arrivalClock < 10_000) {
+            if (playClock <= arrivalClock) {
+                JitterBuffer.Playout playout = buffer.take(0);
+                assertNotNull(playout);
+                assertTrue(playout.stretch != JitterBuffer.STRETCH); // Лишнее только убираем
+                shrunk |= playout.stretch == JitterBuffer.SHRINK;
+                playClock += 20 * playout.stretch;
+            } else {
+                arrivalClock += 20;
+                put(buffer, sequence++, arrivalClock);
+            }
+        }
+        JitterBuffer.Stats stats = buffer.stats();
+        assertTrue(shrunk);
+        assertTrue(stats.delayMs + " мс", stats.delayMs <= 20 * (stats.target + 1));
+        assertEquals(0, stats.underruns);
+        assertEquals(0, stats.lost);
+        assertTrue(stats.adjusted > 0);
+    }
+
+    @Test
+    public void stretchKeepsEdgesAndChannels() {
+        short[] stereo = new short[2 * 100];
+        for (int i = 0; i < 100; i++) {
+            stereo[2 * i] = (short) (i * 100);
+            stereo[2 * i + 1] = (short) (-i * 100);
+        }
+        short[] out = new short[2 * 110];
+
+        assertEquals(2 * 95, JitterBuffer.stretch(stereo, stereo.length, 2, JitterBuffer.SHRINK, out));
+        assertEquals(0, out[0]);
+        assertEquals(9900, out[2 * 94]);
+        assertEquals(-9900, out[2 * 94 + 1]);
+        for (int i = 1; i < 95; i++) {
+            assertTrue(out[2 * i] > out[2 * (i - 1)]); // Рампа осталась рампой
+            assertEquals(-out[2 * i], out[2 * i + 1]);
+        }
+
+        assertEquals(2 * 105, JitterBuffer.stretch(stereo, stereo.length, 2, JitterBuffer.STRETCH, out));
+        assertEquals(9900, out[2 * 104]);
+    }
+
+    private static void put(JitterBuffer buffer, int sequence, long arrivalMs) {
+        buffer.put(sequence, (long) sequence * FRAME, new byte[]{(byte) sequence}, arrivalMs);
+    }
+}
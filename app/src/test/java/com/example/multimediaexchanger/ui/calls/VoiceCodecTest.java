@@ -0,0 +1,146 @@
+package com.example.multimediaexchanger.ui.calls;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Кодеки голоса без MediaCodec: точность на речевом сигнале, независимость пакетов,
+ * согласование и выигрыш по битрейту у PCM.
+ */
+public class VoiceCodecTest {
+
+    @Test
+    public void g711_matchesReferenceValues() {
+        assertEquals((byte) 0xFF, G711VoiceCodec.compress((short) 0));
+        assertEquals(0, G711VoiceCodec.expand((byte) 0xFF));
+        assertEquals((byte) 0x80, G711VoiceCodec.compress(Short.MAX_VALUE));
+        assertEquals(32124, G711VoiceCodec.expand((byte) 0x80));
+        assertEquals(-32124, G711VoiceCodec.expand((byte) 0x00));
+        // Логарифмическая шкала: ошибка растет с амплитудой, но не больше половины шага сегмента
+        for (int sample = -32000; sample <= 32000; sample += 7) {
+            int restored = G711VoiceCodec.expand(G711VoiceCodec.compress((short) sample));
+            assertTrue(sample + " -> " + restored, Math.abs(restored - sample) <= Math.max(8, Math.abs(sample) / 16));
+        }
+    }
+
+    @Test
+    public void g711_keepsSpeechQuality() throws IOException {
+        VoiceCodec codec = new G711VoiceCodec();
+        short[] signal = speech(codec.sampleRate(), codec.frameSamples() * 50);
+        short[] restored = roundTrip(codec, signal);
+        assertTrue(snr(signal, restored) > 30);
+    }
+
+    @Test
+    public void imaAdpcm_keepsSpeechQuality() throws IOException {
+        VoiceCodec codec = new ImaAdpcmVoiceCodec();
+        short[] signal = speech(codec.sampleRate(), codec.frameSamples() * 50);
+        short[] restored = roundTrip(codec, signal);
+        assertTrue(snr(signal, restored) > 20);
+    }
+
+    @Test
+    public void imaAdpcm_packetsDecodeIndependently() throws IOException {
+        VoiceCodec codec = new ImaAdpcmVoiceCodec();
+        int frame = codec.frameSamples();
+        short[] signal = speech(codec.sampleRate(), frame * 3);
+        List<byte[]> packets = encodeAll(codec, signal);
+        assertEquals(3, packets.size());
+
+        // Третий пакет после потери второго декодируется так же, как в полном потоке
+        short[] direct = new short[frame];
+        short[] afterLoss = new short[frame];
+        VoiceCodec decoder = new ImaAdpcmVoiceCodec();
+        decoder.decode(packets.get(0), 0, packets.get(0).length, new short[frame]);
+        decoder.decode(packets.get(1), 0, packets.get(1).length, new short[frame]);
+        decoder.decode(packets.get(2), 0, packets.get(2).length, direct);
+        VoiceCodec lossy = new ImaAdpcmVoiceCodec();
+        lossy.decode(packets.get(0), 0, packets.get(0).length, new short[frame]);
+        assertEquals(frame, lossy.decode(packets.get(2), 0, packets.get(2).length, afterLoss));
+        assertArrayEquals(direct, afterLoss);
+    }
+
+    @Test
+    public void pcm_isLosslessAndLegacyCompatible() throws IOException {
+        VoiceCodec codec = new PcmVoiceCodec();
+        short[] signal = speech(codec.sampleRate() * codec.channels(), codec.frameSamples() * 5);
+        assertArrayEquals(signal, roundTrip(codec, signal));
+        // Старая версия шлет little-endian блоками произвольной длины
+        short[] out = new short[codec.maxDecodedSamples()];
+        assertEquals(2, codec.decode(new byte[]{0x34, 0x12, (byte) 0xFF, (byte) 0xFF}, 0, 4, out));
+        assertEquals(0x1234, out[0]);
+        assertEquals(-1, out[1]);
+    }
+
+    @Test
+    public void negotiation_picksFirstCommonCodec() {
+        byte[] ours = {VoiceCodec.OPUS, VoiceCodec.IMA_ADPCM, VoiceCodec.G711_ULAW, VoiceCodec.PCM};
+        assertEquals(VoiceCodec.IMA_ADPCM, VoiceCodecs.choose(ours,
+                new byte[]{VoiceCodec.G711_ULAW, VoiceCodec.IMA_ADPCM, VoiceCodec.PCM}));
+        assertEquals(VoiceCodec.PCM, VoiceCodecs.choose(ours, new byte[0])); // Звонящий старой версии
+        assertEquals(VoiceCodec.PCM, VoiceCodecs.accepted(new byte[0]));  // Ответивший старой версии
+        assertEquals(VoiceCodec.G711_ULAW, VoiceCodecs.accepted(new byte[]{VoiceCodec.G711_ULAW}));
+    }
+
+    @Test
+    public void compressedCodecsSaveBandwidth() throws IOException {
+        int pcmBitrate = new PcmVoiceCodec().bitrate();
+        for (VoiceCodec codec : new VoiceCodec[]{new G711VoiceCodec(), new ImaAdpcmVoiceCodec()}) {
+            short[] signal = speech(codec.sampleRate(), codec.sampleRate() * 10); // 10 с
+            short[] restored = roundTrip(codec, signal);
+            assertTrue(codec.name(), (double) pcmBitrate / codec.bitrate() >= 10);
+            assertTrue(codec.name(), snr(signal, restored) > 20); // Экономия не ценой разборчивости
+        }
+    }
+
+    private static List<byte[]> encodeAll(VoiceCodec codec, short[] signal) throws IOException {
+        List<byte[]> packets = new ArrayList<>();
+        short[] frame = new short[codec.frameSamples()];
+        for (int position = 0; position + frame.length <= signal.length; position += frame.length) {
+            System.arraycopy(signal, position, frame, 0, frame.length);
+            codec.encode(frame, packets::add);
+        }
+        return packets;
+    }
+
+    private static short[] roundTrip(VoiceCodec codec, short[] signal) throws IOException {
+        short[] restored = new short[signal.length];
+        short[] out = new short[codec.maxDecodedSamples()];
+        int position = 0;
+        for (byte[] packet : encodeAll(codec, signal)) {
+            int samples = codec.decode(packet, 0, packet.length, out);
+            System.arraycopy(out, 0, restored, position, samples);
+            position += samples;
+        }
+        return restored;
+    }
+
+    /** Похожий на голос сигнал: основной тон с гармониками и медленно меняющейся громкостью. */
+    private static short[] speech(int sampleRate, int samples) {
+        short[] signal = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            double t = (double) i / sampleRate;
+            double envelope = 0.55 + 0.45 * Math.sin(2 * Math.PI * 3 * t);
+            double value = Math.sin(2 * Math.PI * 180 * t) + 0.5 * Math.sin(2 * Math.PI * 360 * t)
+                    + 0.25 * Math.sin(2 * Math.PI * 720 * t) + 0.1 * Math.sin(2 * Math.PI * 1500 * t);
+            signal[i] = (short) (envelope * value * 9000);
+        }
+        return signal;
+    }
+
+    private static double snr(short[] signal, short[] restored) {
+        double power = 0;
+        double noise = 0;
+        for (int i = 0; i < signal.length; i++) {
+            power += (double) signal[i] * signal[i];
+            double error = signal[i] - restored[i];
+            noise += error * error;
+        }
+        return 10 * Math.log10(power / Math.max(1, noise));
+    }
+}
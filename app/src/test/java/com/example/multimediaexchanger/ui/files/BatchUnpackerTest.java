@@ -0,0 +1,118 @@
+package com.example.multimediaexchanger.ui.files;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Распаковка пакета: записи появляются в staging по мере прихода начала пакета, а пути, которые
+ * могут вывести за staging ("..", абсолютные, с обратной косой чертой), отклоняются.
+ */
+public class BatchUnpackerTest {
+
+    @Test
+    public void resolveKeepsPathsInsideRoot() throws IOException {
+        File root = new File("staging");
+        assertEquals(new File(new File(new File(root, "photos"), "2024"), "a.jpg"),
+                BatchUnpacker.resolve(root, "photos/2024/a.jpg"));
+
+        String[] rejected = {
+                "..", "../evil", "photos/../../evil", "photos/..",
+                "/etc/passwd", "photos//a.jpg", "",
+                "..\\evil", "photos\\..\\..\\evil", "C:\\evil", "./a.jpg",
+        };
+        for (String path : rejected) {
+            try {
+                BatchUnpacker.resolve(root, path);
+                throw new AssertionError("Путь принят: " + path);
+            } catch (IOException expected) {
+                // Отклонен
+            }
+        }
+    }
+
+    @Test
+    public void entriesAreUnpackedAsPrefixArrives() throws IOException {
+        File directory = Files.createTempDirectory("batch").toFile();
+        try {
+            byte[] first = "первый файл".getBytes(StandardCharsets.UTF_8);
+            byte[] second = new byte[5000];
+            Arrays.fill(second, (byte) 7);
+            byte[] container = container(new String[]{"dir/a.txt", "dir/sub/b.bin"}, new byte[][]{first, second});
+            File staging = new File(directory, "staging");
+            try (RandomAccessFile source = open(directory, container)) {
+                BatchUnpacker unpacker = new BatchUnpacker(source.getChannel(), container.length, staging);
+
+                int firstEnd = BatchContainer.STREAM_HEADER_SIZE + BatchContainer.entryHeaderSize("dir/a.txt") + first.length;
+                assertEquals(0, unpacker.advance(firstEnd - 1)); // Первая запись еще не целиком
+                assertEquals(1, unpacker.advance(firstEnd));
+                assertArrayEquals(first, Files.readAllBytes(new File(staging, "dir/a.txt").toPath()));
+                assertFalse(unpacker.isDone());
+
+                assertEquals(1, unpacker.advance(container.length));
+                assertTrue(unpacker.isDone());
+                assertArrayEquals(second, Files.readAllBytes(new File(staging, "dir/sub/b.bin").toPath()));
+                assertEquals(Arrays.asList("dir/a.txt", "dir/sub/b.bin"), unpacker.entries());
+            }
+        } finally {
+            BatchUnpacker.deleteRecursively(directory);
+        }
+    }
+
+    @Test
+    public void entryEscapingStagingIsRejected() throws IOException {
+        File directory = Files.createTempDirectory("batch").toFile();
+        try {
+            String[] paths = {"../escaped.txt", "/escaped.txt", "..\\escaped.txt"};
+            for (String path : paths) {
+                byte[] container = container(new String[]{"ok.txt", path}, new byte[][]{{1}, {2}});
+                File staging = new File(directory, "staging");
+                try (RandomAccessFile source = open(directory, container)) {
+                    BatchUnpacker unpacker = new BatchUnpacker(source.getChannel(), container.length, staging);
+                    try {
+                        unpacker.advance(container.length);
+                        throw new AssertionError("Путь принят: " + path);
+                    } catch (IOException expected) {
+                        // Отклонен
+                    }
+                    assertEquals(Arrays.asList("ok.txt"), unpacker.entries());
+                }
+                assertFalse(new File(directory, "escaped.txt").exists());
+                assertFalse(new File("/escaped.txt").exists());
+                BatchUnpacker.deleteRecursively(staging);
+            }
+        } finally {
+            BatchUnpacker.deleteRecursively(directory);
+        }
+    }
+
+    private static byte[] container(String[] paths, byte[][] contents) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        BatchContainer.writeStreamHeader(out);
+        for (int i = 0; i < paths.length; i++) {
+            BatchContainer.writeEntryHeader(out, paths[i], contents[i].length, 0);
+            out.write(contents[i]);
+        }
+        out.writeByte(BatchContainer.ENTRY_END);
+        return bytes.toByteArray();
+    }
+
+    private static RandomAccessFile open(File directory, byte[] container) throws IOException {
+        File file = new File(directory, "batch" + BatchContainer.FILE_SUFFIX + ".part");
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(container);
+        }
+        return new RandomAccessFile(file, "r");
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.multimediaexchanger.ui.files;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Проверка сжатия чанков: обратимость обоих кодеков, отказ от сжатия для несжимаемых данных
+ * и уже сжатых форматов.
+ */
+public class ChunkCompressorTest {
+
+    private static final int CHUNK_SIZE = FileTransferManager.CHUNK_SIZE;
+
+    @Test
+    public void lz4_roundTripsEdgeSizes() throws IOException {
+        Random random = new Random(1);
+        Lz4BlockCodec codec = new Lz4BlockCodec();
+        int[] sizes = {0, 1, 5, 12, 13, 16, 100, 4096, CHUNK_SIZE - 1, CHUNK_SIZE};
+        for (int size : sizes) {
+            assertLz4RoundTrip(codec, randomData(random, size));
+            assertLz4RoundTrip(codec, textData(random, size));
+            byte[] run = new byte[size];
+            Arrays.fill(run, (byte) 'a');
+            assertLz4RoundTrip(codec, run);
+        }
+    }
+
+    @Test
+    public void lz4_roundTripsMixedData() throws IOException {
+        Random random = new Random(2);
+        Lz4BlockCodec codec = new Lz4BlockCodec();
+        for (int trial = 0; trial < 200; trial++) {
+            byte[] data = textData(random, 1 + random.nextInt(CHUNK_SIZE));
+            // Вставки случайных байт и длинные повторы проверяют длины литералов и совпадений > 15
+            int from = random.nextInt(data.length);
+            int to = Math.min(data.length, from + random.nextInt(600));
+            if (random.nextBoolean()) {
+                for (int i = from; i < to; i++) data[i] = (byte) random.nextInt();
+            } else {
+                Arrays.fill(data, from, to, (byte) random.nextInt());
+            }
+            assertLz4RoundTrip(codec, data);
+        }
+    }
+
+    @Test
+    public void lz4_rejectsTruncatedBlock() {
+        byte[] data = textData(new Random(3), CHUNK_SIZE);
+        byte[] compressed = new byte[Lz4BlockCodec.maxCompressedLength(data.length)];
+        int length = new Lz4BlockCodec().compress(data, 0, data.length, compressed);
+        try {
+            int restored = Lz4BlockCodec.decompress(compressed, 0, length / 2, new byte[CHUNK_SIZE], CHUNK_SIZE);
+            assertNotEquals(data.length, restored);
+        } catch (IOException expected) {
+            // Оборванный блок может и не дочитаться до конца литералов
+        }
+    }
+
+    @Test
+    public void compressor_roundTripsBothCodecs() throws IOException {
+        byte[] data = textData(new Random(4), CHUNK_SIZE);
+        for (ChunkCompressor.Codec codec : ChunkCompressor.Codec.values()) {
+            ChunkCompressor compressor = ChunkCompressor.forContent(codec, "text/csv", "export.csv");
+            assertNotNull(compressor);
+            byte[] compressed = new byte[ChunkCompressor.maxCompressedLength(CHUNK_SIZE)];
+            int length = compressor.compress(data, 0, data.length, compressed);
+            assertTrue(codec + " должен сжимать текст", length > 0 && length < data.length / 2);
+
+            byte[] restored = new byte[CHUNK_SIZE];
+            assertEquals(data.length, ChunkCompressor.decompress(compressor.codecId(), compressed, 0, length, restored, CHUNK_SIZE));
+            assertArrayEquals(data, restored);
+            assertTrue(compressor.bytesSaved() > 0);
+            compressor.release();
+        }
+    }
+
+    @Test
+    public void compressor_disablesItselfOnIncompressibleData() {
+        Random random = new Random(5);
+        ChunkCompressor compressor = ChunkCompressor.forContent(ChunkCompressor.Codec.LZ4, null, "data.bin");
+        assertNotNull(compressor);
+        byte[] compressed = new byte[ChunkCompressor.maxCompressedLength(CHUNK_SIZE)];
+        for (int i = 0; i < ChunkCompressor.PROBE_CHUNKS; i++) {
+            assertEquals(-1, compressor.compress(randomData(random, CHUNK_SIZE), 0, CHUNK_SIZE, compressed));
+        }
+        // После пробы даже сжимаемый чанк уходит как есть
+        assertEquals(-1, compressor.compress(textData(random, CHUNK_SIZE), 0, CHUNK_SIZE, compressed));
+        assertEquals(0, compressor.bytesSaved());
+    }
+
+    @Test
+    public void compressor_skipsPrecompressedFormats() {
+        assertNull(ChunkCompressor.forContent(ChunkCompressor.Codec.LZ4, "image/jpeg", "photo.jpg"));
+        assertNull(ChunkCompressor.forContent(ChunkCompressor.Codec.LZ4, "video/mp4", "clip"));
+        assertNull(ChunkCompressor.forContent(ChunkCompressor.Codec.LZ4, null, "archive.ZIP"));
+        assertNull(ChunkCompressor.forContent(ChunkCompressor.Codec.LZ4,
+                "application/vnd.openxmlformats-officedocument.wordprocessingml.document", "report.docx"));
+        assertNull(ChunkCompressor.forContent(null, "text/plain", "log.txt"));
+        assertNotNull(ChunkCompressor.forContent(ChunkCompressor.Codec.LZ4, "image/bmp", "scan.bmp"));
+        assertNotNull(ChunkCompressor.forContent(ChunkCompressor.Codec.LZ4, "application/json", "dump.json"));
+    }
+
+    private static void assertLz4RoundTrip(Lz4BlockCodec codec, byte[] data) throws IOException {
+        byte[] compressed = new byte[Lz4BlockCodec.maxCompressedLength(data.length)];
+        int length = codec.compress(data, 0, data.length, compressed);
+        byte[] restored = new byte[data.length];
+        assertEquals(data.length, Lz4BlockCodec.decompress(compressed, 0, length, restored, data.length));
+        assertArrayEquals(data, restored);
+    }
+
+    private static byte[] randomData(Random random, int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    /** Похоже на лог: повторяющиеся поля и случайные числа. */
+    private static byte[] textData(Random random, int size) {
+        StringBuilder text = new StringBuilder(size + 64);
+        while (text.length() < size) {
+            text.append("2024-05-").append(10 + random.nextInt(20)).append(" INFO RUDP: chunk #")
+                    .append(random.nextInt(100000)).append(" acked, rtt=").append(random.nextInt(500)).append("ms\n");
+        }
+        return Arrays.copyOf(text.toString().getBytes(StandardCharsets.US_ASCII), size);
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.multimediaexchanger.ui.files;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Индекс принятых файлов по корню Меркла: находит файл после переоткрытия и забывает его, если
+ * файл изменили или удалили.
+ */
+public class ContentIndexTest {
+
+    private static final byte[] ROOT = {0x0A, (byte) 0xF0, 0x33};
+    private static final byte[] OTHER_ROOT = {0x0A, (byte) 0xF0, 0x34};
+
+    @Test
+    public void registeredFileIsFoundAfterReopen() throws IOException {
+        File directory = Files.createTempDirectory("content").toFile();
+        File indexFile = new File(directory, "content.idx");
+        File file = write(new File(directory, "photo.jpg"), 1000);
+        try {
+            new ContentIndex(indexFile).register(ROOT, file);
+
+            ContentIndex reopened = new ContentIndex(indexFile);
+            assertEquals(file.getAbsoluteFile(), reopened.lookup(ROOT, 1000));
+            assertNull(reopened.lookup(ROOT, 999)); // Тот же корень с другим размером — не тот файл
+            assertNull(reopened.lookup(OTHER_ROOT, 1000));
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    @Test
+    public void changedOrDeletedFileIsForgotten() throws IOException {
+        File directory = Files.createTempDirectory("content").toFile();
+        File indexFile = new File(directory, "content.idx");
+        File changed = write(new File(directory, "a.bin"), 500);
+        File deleted = write(new File(directory, "b.bin"), 500);
+        try {
+            ContentIndex index = new ContentIndex(indexFile);
+            index.register(ROOT, changed);
+            index.register(OTHER_ROOT, deleted);
+
+            assertTrue(changed.setLastModified(changed.lastModified() + 2000));
+            assertTrue(deleted.delete());
+            assertNull(index.lookup(ROOT, 500));
+            assertNull(index.lookup(OTHER_ROOT, 500));
+
+            // Повторная регистрация после правки снова делает файл источником
+            index.register(ROOT, changed);
+            assertEquals(changed, index.lookup(ROOT, 500));
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    private static File write(File file, int size) throws IOException {
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(new byte[size]);
+        }
+        return file;
+    }
+
+    private static void deleteRecursively(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        directory.delete();
+    }
+}
@@ -0,0 +1,178 @@
+package com.example.multimediaexchanger.ui.files;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Дельта-передача: после вставки в середину файла куски за правкой находятся у получателя со
+ * сдвигом, инструкции копирования собирают ровно байты нового файла, а кэш сигнатуры
+ * пересчитывается, если файл поменялся или испорчен. Число записей из сети и кэша проверяется
+ * до выделения памяти.
+ */
+public class DeltaSignatureTest {
+
+    private static final int CHUNK_SIZE = FileTransferManager.CHUNK_SIZE;
+    private static final int MAX_CHUNK = 64 * 1024;
+
+    @Test
+    public void shiftedContentIsCopiedFromBasis() throws IOException {
+        byte[] basis = randomData(new Random(1), 1024 * 1024);
+        int editAt = 300_000;
+        byte[] inserted = randomData(new Random(2), 100);
+        byte[] modified = new byte[basis.length + inserted.length];
+        System.arraycopy(basis, 0, modified, 0, editAt);
+        System.arraycopy(inserted, 0, modified, editAt, inserted.length);
+        System.arraycopy(basis, editAt, modified, editAt + inserted.length, basis.length - editAt);
+
+        DeltaSignature basisSignature = DeltaSignature.compute(new ByteArrayInputStream(basis));
+        DeltaSignature modifiedSignature = DeltaSignature.compute(new ByteArrayInputStream(modified));
+        assertEquals(modified.length, modifiedSignature.fileSize);
+        Map<Integer, long[]> plan = modifiedSignature.planCopies(basisSignature, CHUNK_SIZE);
+
+        int totalChunks = (modified.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        for (int chunk = 0; chunk < totalChunks; chunk++) {
+            long start = (long) chunk * CHUNK_SIZE;
+            long end = Math.min(start + CHUNK_SIZE, modified.length);
+            // Правка задевает только кусок по содержимому, в который попала, и границу за ним
+            boolean farFromEdit = end <= editAt - MAX_CHUNK || start >= editAt + inserted.length + 2 * MAX_CHUNK;
+            if (farFromEdit) assertTrue("Чанк #" + chunk, plan.containsKey(chunk));
+        }
+        assertTrue(plan.size() < totalChunks); // Вставку пришлось бы передать данными
+
+        for (Map.Entry<Integer, long[]> entry : plan.entrySet()) {
+            int start = entry.getKey() * CHUNK_SIZE;
+            int end = Math.min(start + CHUNK_SIZE, modified.length);
+            assertArrayEquals("Чанк #" + entry.getKey(), Arrays.copyOfRange(modified, start, end), assemble(basis, entry.getValue()));
+        }
+    }
+
+    @Test
+    public void unrelatedFileHasNothingToCopy() throws IOException {
+        DeltaSignature basis = DeltaSignature.compute(new ByteArrayInputStream(randomData(new Random(3), 200_000)));
+        DeltaSignature other = DeltaSignature.compute(new ByteArrayInputStream(randomData(new Random(4), 200_000)));
+        assertTrue(other.planCopies(basis, CHUNK_SIZE).isEmpty());
+    }
+
+    @Test
+    public void entriesRoundTripThroughPages() throws IOException {
+        DeltaSignature signature = DeltaSignature.compute(new ByteArrayInputStream(randomData(new Random(5), 300_000)));
+        ByteBuffer page = ByteBuffer.allocate(signature.size() * DeltaSignature.ENTRY_SIZE);
+        signature.writeEntries(page, 0, signature.size());
+        page.flip();
+        DeltaSignature received = DeltaSignature.forPages(signature.fileSize, signature.size());
+        received.readEntries(page, 0, received.size());
+
+        // Одинаковые сигнатуры: каждый чанк копируется с того же места
+        Map<Integer, long[]> plan = signature.planCopies(received, CHUNK_SIZE);
+        int totalChunks = (int) ((signature.fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        assertEquals(totalChunks, plan.size());
+        assertArrayEquals(new long[]{CHUNK_SIZE, CHUNK_SIZE}, plan.get(1));
+    }
+
+    @Test
+    public void cachedSignatureIsRecomputedAfterChange() throws IOException {
+        File directory = Files.createTempDirectory("delta").toFile();
+        File file = new File(directory, "data.bin");
+        File cacheDir = new File(directory, "signatures");
+        try {
+            write(file, randomData(new Random(6), 100_000));
+            DeltaSignature first = DeltaSignature.loadOrCompute(file, cacheDir);
+            assertTrue(new File(cacheDir, "data.bin.sig").isFile());
+            DeltaSignature cached = DeltaSignature.loadOrCompute(file, cacheDir);
+            assertEquals(first.size(), cached.size());
+            assertEquals(4, cached.planCopies(first, CHUNK_SIZE).size());
+
+            write(file, randomData(new Random(7), 120_000));
+            file.setLastModified(file.lastModified() + 2000);
+            DeltaSignature changed = DeltaSignature.loadOrCompute(file, cacheDir);
+            assertEquals(120_000, changed.fileSize);
+            assertTrue(changed.planCopies(first, CHUNK_SIZE).isEmpty());
+        } finally {
+            File[] signatures = cacheDir.listFiles();
+            if (signatures != null) for (File signature : signatures) signature.delete();
+            cacheDir.delete();
+            file.delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void hostileEntryCountsAreRejected() throws IOException {
+        DeltaSignature signature = DeltaSignature.compute(new ByteArrayInputStream(randomData(new Random(8), 300_000)));
+        assertTrue(DeltaSignature.isPlausible(signature.fileSize, signature.size()));
+        assertTrue(DeltaSignature.isPlausible(0, 0));
+        assertFalse(DeltaSignature.isPlausible(300_000, Integer.MAX_VALUE));
+        assertTrue(DeltaSignature.isPlausible(300_000, 147)); // 146 кусков по 2 КБ и хвост
+        assertFalse(DeltaSignature.isPlausible(300_000, 148)); // Кусков короче минимального не бывает
+        assertFalse(DeltaSignature.isPlausible(300_000, -1));
+        assertFalse(DeltaSignature.isPlausible(-1, 1));
+        assertFalse(DeltaSignature.isPlausible(Long.MAX_VALUE, DeltaSignature.MAX_ENTRIES + 1));
+    }
+
+    @Test
+    public void corruptCacheCountIsRecomputed() throws IOException {
+        File directory = Files.createTempDirectory("delta").toFile();
+        File file = new File(directory, "data.bin");
+        File cacheDir = new File(directory, "signatures");
+        try {
+            write(file, randomData(new Random(9), 100_000));
+            DeltaSignature expected = DeltaSignature.loadOrCompute(file, cacheDir);
+
+            // Кэш с заголовком от этого файла, но с огромным числом записей
+            File cacheFile = new File(cacheDir, "data.bin.sig");
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(cacheFile))) {
+                out.writeInt(0x52534947);
+                out.writeInt(1);
+                out.writeLong(file.length());
+                out.writeLong(file.lastModified());
+                out.writeInt(Integer.MAX_VALUE);
+            }
+            DeltaSignature recomputed = DeltaSignature.loadOrCompute(file, cacheDir);
+            assertEquals(expected.size(), recomputed.size());
+            assertEquals(4, recomputed.planCopies(expected, CHUNK_SIZE).size());
+        } finally {
+            File[] signatures = cacheDir.listFiles();
+            if (signatures != null) for (File signature : signatures) signature.delete();
+            cacheDir.delete();
+            file.delete();
+            directory.delete();
+        }
+    }
+
+    /** Собирает чанк по инструкциям копирования, как получатель из своей версии файла. */
+    private static byte[] assemble(byte[] basis, long[] copies) {
+        int length = 0;
+        for (int i = 1; i < copies.length; i += 2) length += (int) copies[i];
+        byte[] chunk = new byte[length];
+        int position = 0;
+        for (int i = 0; i < copies.length; i += 2) {
+            System.arraycopy(basis, (int) copies[i], chunk, position, (int) copies[i + 1]);
+            position += (int) copies[i + 1];
+        }
+        return chunk;
+    }
+
+    private static byte[] randomData(Random random, int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(data);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.multimediaexchanger.ui.files;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Проверка кодеров FEC: восстановление в пределах числа четностей и отказ сверх него.
+ */
+public class FecCodecTest {
+
+    private static final int SHARD_SIZE = FileTransferManager.CHUNK_SIZE;
+
+    @Test
+    public void xor_recoversSingleLoss() {
+        Random random = new Random(1);
+        for (int trial = 0; trial < 50; trial++) {
+            int dataCount = 1 + random.nextInt(XorParityCodec.MAX_DATA_SHARDS);
+            assertRecovers(new XorParityCodec(SHARD_SIZE), random, dataCount, 1, random.nextInt(2));
+        }
+    }
+
+    @Test
+    public void xor_failsOnTwoLosses() {
+        Random random = new Random(2);
+        byte[][] data = randomBlock(random, 8, SHARD_SIZE);
+        byte[][] shards = encodeToShards(new XorParityCodec(SHARD_SIZE), data, lengths(8, SHARD_SIZE), 1);
+        boolean[] present = allPresent(9);
+        present[1] = false;
+        present[5] = false;
+        assertFalse(new XorParityCodec(SHARD_SIZE).decode(shards, present, 8, 1));
+    }
+
+    @Test
+    public void reedSolomon_recoversUpToParityCountLosses() {
+        Random random = new Random(3);
+        for (int trial = 0; trial < 50; trial++) {
+            int dataCount = 1 + random.nextInt(ReedSolomonCodec.MAX_DATA_SHARDS);
+            int parityCount = 1 + random.nextInt(ReedSolomonCodec.MAX_PARITY_SHARDS);
+            assertRecovers(new ReedSolomonCodec(SHARD_SIZE), random, dataCount, parityCount, parityCount);
+        }
+    }
+
+    @Test
+    public void reedSolomon_failsWhenLossesExceedParity() {
+        Random random = new Random(4);
+        byte[][] data = randomBlock(random, 16, SHARD_SIZE);
+        byte[][] shards = encodeToShards(new ReedSolomonCodec(SHARD_SIZE), data, lengths(16, SHARD_SIZE), 2);
+        boolean[] present = allPresent(18);
+        present[0] = false;
+        present[7] = false;
+        present[16] = false;
+        assertFalse(new ReedSolomonCodec(SHARD_SIZE).decode(shards, present, 16, 2));
+    }
+
+    private static void assertRecovers(FecCodec codec, Random random, int dataCount, int parityCount, int losses) {
+        int[] dataLengths = lengths(dataCount, SHARD_SIZE);
+        dataLengths[dataCount - 1] = 1 + random.nextInt(SHARD_SIZE); // Последний чанк файла короче
+        byte[][] data = randomBlock(random, dataCount, SHARD_SIZE);
+        Arrays.fill(data[dataCount - 1], dataLengths[dataCount - 1], SHARD_SIZE, (byte) 0);
+
+        byte[][] shards = encodeToShards(codec, data, dataLengths, parityCount);
+        boolean[] present = allPresent(dataCount + parityCount);
+        for (int lost = 0; lost < losses; lost++) {
+            int shard = random.nextInt(dataCount + parityCount);
+            present[shard] = false;
+            if (shard < dataCount) Arrays.fill(shards[shard], (byte) 0x5A);
+        }
+
+        assertTrue(codec.decode(shards, present, dataCount, parityCount));
+        for (int i = 0; i < dataCount; i++) assertArrayEquals(data[i], shards[i]);
+    }
+
+    private static byte[][] encodeToShards(FecCodec codec, byte[][] data, int[] dataLengths, int parityCount) {
+        int dataCount = data.length;
+        byte[][] parity = new byte[parityCount][SHARD_SIZE];
+        codec.encode(data, dataLengths, dataCount, parity, parityCount);
+        byte[][] shards = new byte[dataCount + parityCount][];
+        for (int i = 0; i < dataCount; i++) shards[i] = data[i].clone();
+        System.arraycopy(parity, 0, shards, dataCount, parityCount);
+        return shards;
+    }
+
+    private static byte[][] randomBlock(Random random, int count, int size) {
+        byte[][] block = new byte[count][size];
+        for (byte[] shard : block) random.nextBytes(shard);
+        return block;
+    }
+
+    private static int[] lengths(int count, int length) {
+        int[] lengths = new int[count];
+        Arrays.fill(lengths, length);
+        return lengths;
+    }
+
+    private static boolean[] allPresent(int count) {
+        boolean[] present = new boolean[count];
+        Arrays.fill(present, true);
+        return present;
+    }
+}
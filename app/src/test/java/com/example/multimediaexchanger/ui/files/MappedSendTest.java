@@ -0,0 +1,152 @@
+package com.example.multimediaexchanger.ui.files;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Отображение файла в память и отправка через loopback: сборка заголовка и страниц файла дает
+ * ровно те же пакеты, что и прежний путь с копиями чанка в куче. Замер процессорного времени —
+ * в инструментальном {@code MappedSendBenchmark}.
+ */
+public class MappedSendTest {
+
+    private static final int CHUNK_SIZE = FileTransferManager.CHUNK_SIZE;
+    private static final int HEADER_SIZE = 1 + 4 + 4 + 4;
+
+    @Test
+    public void mappedFile_slicesMatchFileContents() throws IOException {
+        File file = createFile(5 * CHUNK_SIZE + 123, 1);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            MappedFile mapped = new MappedFile(raf.getChannel(), CHUNK_SIZE);
+            assertEquals(6, mapped.chunkCount);
+            assertEquals(123, mapped.chunkLength(5));
+            byte[] expected = new byte[CHUNK_SIZE];
+            for (int i = 0; i < mapped.chunkCount; i++) {
+                raf.seek((long) i * CHUNK_SIZE);
+                int length = mapped.chunkLength(i);
+                raf.readFully(expected, 0, length);
+                ByteBuffer slice = mapped.slice(i);
+                assertEquals(length, slice.remaining());
+                byte[] actual = new byte[length];
+                slice.get(actual);
+                assertArrayEquals(Arrays.copyOf(expected, length), actual);
+                assertArrayEquals(actual, mapped.copy(i));
+            }
+
+            InputStream stream = mapped.openStream();
+            byte[] all = new byte[(int) file.length()];
+            int total = 0;
+            int read;
+            while ((read = stream.read(all, total, all.length - total)) > 0) total += read;
+            assertEquals(file.length(), total);
+            assertEquals(-1, stream.read());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void mappedAndCopyingSendProduceSameDatagrams() throws IOException {
+        File file = createFile(5 * CHUNK_SIZE + 123, 2);
+        try (DatagramChannel sink = DatagramChannel.open()) {
+            sink.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            InetSocketAddress target = (InetSocketAddress) sink.getLocalAddress();
+
+            List<byte[]> copying = sendCopying(file, target, sink);
+            List<byte[]> mapped = sendMapped(file, target, sink);
+
+            assertEquals(6, copying.size());
+            assertEquals(copying.size(), mapped.size());
+            for (int i = 0; i < copying.size(); i++) {
+                assertArrayEquals("Пакет #" + (i + 1), copying.get(i), mapped.get(i));
+            }
+            assertEquals(HEADER_SIZE + 123, mapped.get(5).length);
+        } finally {
+            file.delete();
+        }
+    }
+
+    /** Прежний путь: поток -> буфер -> byte[] чанка -> пакет RUDP -> сообщение с типом. */
+    private static List<byte[]> sendCopying(File file, InetSocketAddress target, DatagramChannel sink) throws IOException {
+        List<byte[]> received = new ArrayList<>();
+        try (InputStream input = new FileInputStream(file); DatagramSocket socket = new DatagramSocket()) {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int bytesRead;
+            int sequence = 1;
+            while ((bytesRead = input.read(buffer)) > 0) {
+                byte[] chunkData = new byte[bytesRead];
+                System.arraycopy(buffer, 0, chunkData, 0, bytesRead);
+                ByteBuffer chunkBuffer = ByteBuffer.allocate(4 + 4 + 4 + chunkData.length);
+                chunkBuffer.putInt(1).putInt(sequence).putInt(sequence).put(chunkData);
+                sequence++;
+                byte[] data = chunkBuffer.array();
+                byte[] message = new byte[data.length + 1];
+                message[0] = FileTransferManager.MESSAGE_TYPE_FILE_CHUNK_RUDP;
+                System.arraycopy(data, 0, message, 1, data.length);
+                socket.send(new DatagramPacket(message, message.length, target));
+                received.add(receive(sink)); // Сразу забираем, чтобы буфер сокета не терял пакеты
+            }
+        }
+        return received;
+    }
+
+    /** Новый путь: вид на страницы файла и заголовок уходят одной сборкой. */
+    private static List<byte[]> sendMapped(File file, InetSocketAddress target, DatagramChannel sink) throws IOException {
+        List<byte[]> received = new ArrayList<>();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); DatagramChannel channel = DatagramChannel.open()) {
+            channel.connect(target);
+            MappedFile mapped = new MappedFile(raf.getChannel(), CHUNK_SIZE);
+            ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+            ByteBuffer[] gather = new ByteBuffer[2];
+            for (int i = 0; i < mapped.chunkCount; i++) {
+                header.clear();
+                header.put(FileTransferManager.MESSAGE_TYPE_FILE_CHUNK_RUDP).putInt(1).putInt(i + 1).putInt(i + 1).flip();
+                gather[0] = header;
+                gather[1] = mapped.slice(i);
+                channel.write(gather);
+                received.add(receive(sink));
+            }
+        }
+        return received;
+    }
+
+    private static byte[] receive(DatagramChannel sink) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + CHUNK_SIZE + 1);
+        sink.receive(buffer);
+        buffer.flip();
+        byte[] datagram = new byte[buffer.remaining()];
+        buffer.get(datagram);
+        return datagram;
+    }
+
+    private static File createFile(long size, long seed) throws IOException {
+        File file = File.createTempFile("mapped", ".bin");
+        Random random = new Random(seed);
+        byte[] block = new byte[1024 * 1024];
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                output.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+        return file;
+    }
+}
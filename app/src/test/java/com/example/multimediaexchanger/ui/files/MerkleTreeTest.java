@@ -0,0 +1,110 @@
+package com.example.multimediaexchanger.ui.files;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Дерево Меркла: корень совпадает с построенным вручную, нечетный узел поднимается без
+ * изменений, а порча, перестановка или подмена листа внутренним узлом меняют корень.
+ */
+public class MerkleTreeTest {
+
+    @Test
+    public void rootMatchesHandBuiltTree() throws NoSuchAlgorithmException {
+        byte[][] chunks = randomChunks(new Random(1), 5);
+        byte[][] leaves = leaves(chunks);
+        for (int i = 0; i < chunks.length; i++) {
+            assertArrayEquals(sha256(new byte[]{0x00}, chunks[i]), leaves[i]);
+        }
+
+        // ((0 1) (2 3)) 4: пятый лист поднимается до самого верха
+        byte[] left = node(node(leaves[0], leaves[1]), node(leaves[2], leaves[3]));
+        assertArrayEquals(node(left, leaves[4]), MerkleTree.root(leaves));
+
+        assertArrayEquals(leaves[0], MerkleTree.root(new byte[][]{leaves[0]}));
+        assertArrayEquals(MerkleTree.leafHash(new byte[0], 0, 0), MerkleTree.root(new byte[0][]));
+        assertEquals(MerkleTree.HASH_SIZE, MerkleTree.root(leaves).length);
+    }
+
+    @Test
+    public void mappedLeafMatchesArrayLeaf() {
+        byte[] data = randomChunks(new Random(2), 1)[0];
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        assertArrayEquals(MerkleTree.leafHash(data, 0, data.length), MerkleTree.leafHash(direct));
+        assertFalse(direct.hasRemaining());
+
+        byte[] padded = new byte[data.length + 10];
+        System.arraycopy(data, 0, padded, 7, data.length);
+        assertArrayEquals(MerkleTree.leafHash(data, 0, data.length), MerkleTree.leafHash(padded, 7, data.length));
+    }
+
+    @Test
+    public void anyChangedLeafChangesRoot() {
+        byte[][] chunks = randomChunks(new Random(3), 9);
+        byte[] root = MerkleTree.root(leaves(chunks));
+        for (int i = 0; i < chunks.length; i++) {
+            byte[][] corrupted = chunks.clone();
+            corrupted[i] = chunks[i].clone();
+            corrupted[i][chunks[i].length / 2] ^= 1;
+            assertFalse("Чанк #" + i, Arrays.equals(root, MerkleTree.root(leaves(corrupted))));
+        }
+
+        byte[][] swapped = chunks.clone();
+        swapped[0] = chunks[1];
+        swapped[1] = chunks[0];
+        assertFalse(Arrays.equals(root, MerkleTree.root(leaves(swapped))));
+        // Хвост без последнего чанка — другой файл
+        assertFalse(Arrays.equals(root, MerkleTree.root(leaves(Arrays.copyOf(chunks, 8)))));
+        // Повторный расчет не зависит от состояния потока
+        assertArrayEquals(root, MerkleTree.root(leaves(chunks)));
+    }
+
+    @Test
+    public void innerNodeCannotPassAsLeaf() throws NoSuchAlgorithmException {
+        byte[][] leaves = leaves(randomChunks(new Random(4), 2));
+        byte[] root = MerkleTree.root(leaves);
+        // Данные «чанка», равные склейке детей, дают другой хеш: префиксы листа и узла различаются
+        byte[] concatenated = new byte[2 * MerkleTree.HASH_SIZE];
+        System.arraycopy(leaves[0], 0, concatenated, 0, MerkleTree.HASH_SIZE);
+        System.arraycopy(leaves[1], 0, concatenated, MerkleTree.HASH_SIZE, MerkleTree.HASH_SIZE);
+        assertFalse(Arrays.equals(root, MerkleTree.leafHash(concatenated, 0, concatenated.length)));
+        assertArrayEquals(sha256(new byte[]{0x01}, concatenated), root);
+    }
+
+    private static byte[][] leaves(byte[][] chunks) {
+        byte[][] leaves = new byte[chunks.length][];
+        for (int i = 0; i < chunks.length; i++) leaves[i] = MerkleTree.leafHash(chunks[i], 0, chunks[i].length);
+        return leaves;
+    }
+
+    private static byte[] node(byte[] left, byte[] right) throws NoSuchAlgorithmException {
+        byte[] children = new byte[left.length + right.length];
+        System.arraycopy(left, 0, children, 0, left.length);
+        System.arraycopy(right, 0, children, left.length, right.length);
+        return sha256(new byte[]{0x01}, children);
+    }
+
+    private static byte[] sha256(byte[] prefix, byte[] data) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(prefix);
+        digest.update(data);
+        return digest.digest();
+    }
+
+    private static byte[][] randomChunks(Random random, int count) {
+        byte[][] chunks = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            chunks[i] = new byte[1 + random.nextInt(FileTransferManager.CHUNK_SIZE)];
+            random.nextBytes(chunks[i]);
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.multimediaexchanger.ui.files;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Поиск начала данных mdat в MP4, который еще пишет MediaMuxer: размер mdat в этот момент —
+ * заглушка, а начало файла может быть не дописано.
+ */
+public class Mp4LayoutTest {
+
+    @Test
+    public void findsMediaDataAfterReservedMoovSpace() throws IOException {
+        ByteBuffer file = ByteBuffer.allocate(4096);
+        box(file, 24, "ftyp");
+        file.position(24);
+        box(file, 1000, "free"); // Место под moov
+        file.position(1024);
+        file.put("????mdat".getBytes(StandardCharsets.US_ASCII)); // Размер впишется при остановке
+        file.position(4096);
+
+        assertEquals(1032, mediaDataStart(file, 4096));
+        assertEquals(1032, mediaDataStart(file, 1032));
+        // Заголовок mdat еще не записан
+        assertEquals(-1, mediaDataStart(file, 1030));
+        assertEquals(-1, mediaDataStart(file, 0));
+    }
+
+    @Test
+    public void handlesLargeBoxes() throws IOException {
+        ByteBuffer file = ByteBuffer.allocate(256);
+        box(file, 1, "free");
+        file.putLong(40); // 64-битный размер
+        file.position(40);
+        box(file, 1, "mdat");
+        file.putLong(0); // Заглушка 64-битного размера mdat
+
+        assertEquals(56, mediaDataStart(file, 256));
+        assertEquals(-1, mediaDataStart(file, 12)); // Оборван 64-битный размер
+    }
+
+    @Test
+    public void rejectsNonMp4() throws IOException {
+        ByteBuffer file = ByteBuffer.allocate(64);
+        box(file, 0, "free"); // Бокс «до конца файла» — до mdat так не бывает
+        assertEquals(-1, mediaDataStart(file, 64));
+    }
+
+    private static void box(ByteBuffer file, int size, String type) {
+        file.putInt(size).put(type.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static long mediaDataStart(ByteBuffer content, int length) throws IOException {
+        File file = Files.createTempFile("layout", ".mp4").toFile();
+        try {
+            Files.write(file.toPath(), Arrays.copyOf(content.array(), length));
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                return Mp4Layout.mediaDataStart(channel, length);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
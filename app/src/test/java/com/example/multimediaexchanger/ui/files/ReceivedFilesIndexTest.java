@@ -0,0 +1,108 @@
+package com.example.multimediaexchanger.ui.files;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Индекс полученных файлов: страницы идут новыми сверху и не теряют записи, даже если часть
+ * файлов удалили вне приложения; пропавшие записи убирает отдельный проход.
+ */
+public class ReceivedFilesIndexTest {
+
+    @Test
+    public void pagesSkipNothingWhenFilesDisappear() throws IOException {
+        File directory = Files.createTempDirectory("received").toFile();
+        File storage = new File(directory, "files");
+        try {
+            File[] files = createFiles(storage, 7);
+            ReceivedFilesIndex index = new ReceivedFilesIndex(storage, new File(directory, "index"));
+            assertEquals(7, index.size());
+            // Новые сверху: f6, f5, f4... Пропали файлы первой и второй страниц
+            assertTrue(files[5].delete());
+            assertTrue(files[3].delete());
+
+            List<String> names = new ArrayList<>();
+            for (int offset = 0; offset < index.size(); offset += 2) {
+                for (ReceivedFilesIndex.Entry entry : index.page(offset, 2)) names.add(entry.name);
+            }
+            assertEquals(Arrays.asList("f6", "f4", "f2", "f1", "f0"), names);
+        } finally {
+            BatchUnpacker.deleteRecursively(directory);
+        }
+    }
+
+    @Test
+    public void pruneDropsMissingEntriesDurably() throws IOException {
+        File directory = Files.createTempDirectory("received").toFile();
+        File storage = new File(directory, "files");
+        File indexFile = new File(directory, "index");
+        try {
+            File[] files = createFiles(storage, 4);
+            ReceivedFilesIndex index = new ReceivedFilesIndex(storage, indexFile);
+            assertEquals(4, index.size());
+            assertTrue(files[1].delete());
+
+            assertEquals(1, index.prune());
+            assertEquals(0, index.prune());
+            assertEquals(3, index.size());
+
+            ReceivedFilesIndex reopened = new ReceivedFilesIndex(storage, indexFile);
+            assertEquals(3, reopened.size());
+            assertEquals("f3", reopened.page(0, 10).get(0).name);
+        } finally {
+            BatchUnpacker.deleteRecursively(directory);
+        }
+    }
+
+    @Test
+    public void namesThatBreakJournalLinesAreNotIndexed() throws IOException {
+        File directory = Files.createTempDirectory("received").toFile();
+        File storage = new File(directory, "files");
+        File indexFile = new File(directory, "index");
+        try {
+            createFiles(storage, 2);
+            ReceivedFilesIndex index = new ReceivedFilesIndex(storage, indexFile);
+            assertEquals(2, index.size());
+            for (String name : new String[]{"a\rb", "a\nb", "a\tb"}) {
+                File file = new File(storage, name);
+                try (FileOutputStream output = new FileOutputStream(file)) {
+                    output.write(1);
+                }
+                index.add(file, null);
+            }
+            assertEquals(2, index.size());
+
+            // Журнал не разрезан на лишние строки: после переоткрытия те же записи
+            List<String> names = new ArrayList<>();
+            for (ReceivedFilesIndex.Entry entry : new ReceivedFilesIndex(storage, indexFile).page(0, 10)) {
+                names.add(entry.name);
+            }
+            assertEquals(Arrays.asList("f1", "f0"), names);
+        } finally {
+            BatchUnpacker.deleteRecursively(directory);
+        }
+    }
+
+    /** Файлы f0..f(n-1), каждый следующий новее. */
+    private static File[] createFiles(File storage, int count) throws IOException {
+        assertTrue(storage.mkdirs());
+        File[] files = new File[count];
+        for (int i = 0; i < count; i++) {
+            files[i] = new File(storage, "f" + i);
+            try (FileOutputStream output = new FileOutputStream(files[i])) {
+                output.write(i);
+            }
+            assertTrue(files[i].setLastModified(1_000_000_000_000L + i * 60_000L));
+        }
+        return files;
+    }
+}
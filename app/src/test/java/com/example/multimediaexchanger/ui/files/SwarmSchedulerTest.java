@@ -0,0 +1,163 @@
+package com.example.multimediaexchanger.ui.files;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Раздача чанков роя: пиры получают непересекающиеся диапазоны с конца файла, начало остается
+ * основному отправителю, а чанки зависшего пира уходят другим.
+ */
+public class SwarmSchedulerTest {
+
+    private static final int CHUNKS = 100;
+    private static final int GUARD = 10;
+
+    @Test
+    public void peersGetDisjointRangesFromTheEnd() throws IOException {
+        File file = journalFile();
+        try {
+            TransferJournal journal = journal(file, CHUNKS);
+            SwarmScheduler scheduler = new SwarmScheduler(journal, GUARD);
+            assertTrue(scheduler.addPeer("a", 0));
+            assertTrue(scheduler.addPeer("b", 0));
+            assertFalse(scheduler.addPeer("a", 0));
+
+            List<SwarmScheduler.Request> requests = scheduler.plan(0);
+            assertEquals(2, requests.size());
+            assertRange(requests.get(0), "a", CHUNKS - SwarmScheduler.RANGE_CHUNKS, SwarmScheduler.RANGE_CHUNKS);
+            assertRange(requests.get(1), "b", CHUNKS - 2 * SwarmScheduler.RANGE_CHUNKS, SwarmScheduler.RANGE_CHUNKS);
+            // В полете у каждого уже весь лимит
+            assertTrue(scheduler.plan(0).isEmpty());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void lowestChunksAreLeftToSender() throws IOException {
+        File file = journalFile();
+        try {
+            TransferJournal journal = journal(file, 20);
+            journal.markReceived(5); // Дыра у начала не сдвигает охрану
+            SwarmScheduler scheduler = new SwarmScheduler(journal, GUARD);
+            scheduler.addPeer("a", 0);
+            scheduler.addPeer("b", 0);
+
+            List<SwarmScheduler.Request> requests = scheduler.plan(0);
+            assertEquals(2, requests.size());
+            assertRange(requests.get(0), "a", 12, 8);
+            assertRange(requests.get(1), "b", GUARD, 2);
+
+            // Отправитель принял начало файла: охрана поднялась, а все выше нее уже роздано
+            for (int chunk = 0; chunk < 5; chunk++) {
+                journal.markReceived(chunk);
+                scheduler.onChunk("sender", chunk, 100);
+            }
+            assertTrue(scheduler.plan(100).isEmpty());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void stalledPeerIsDroppedAndItsChunksReassigned() throws IOException {
+        File file = journalFile();
+        try {
+            TransferJournal journal = journal(file, CHUNKS);
+            SwarmScheduler scheduler = new SwarmScheduler(journal, GUARD);
+            scheduler.addPeer("stalled", 0);
+            scheduler.addPeer("fast", 0);
+
+            BitSet givenToStalled = new BitSet();
+            int stalledRequests = 0;
+            for (long now = 0; now <= 20_000 && !allAboveGuardReceived(journal); now += 100) {
+                for (SwarmScheduler.Request request : scheduler.plan(now)) {
+                    if (request.peer.ip.equals("stalled")) {
+                        stalledRequests++;
+                        givenToStalled.set(request.first, request.first + request.count);
+                        continue; // Молчит
+                    }
+                    for (int chunk = request.first; chunk < request.first + request.count; chunk++) {
+                        assertFalse(journal.isReceived(chunk));
+                        journal.markReceived(chunk);
+                        scheduler.onChunk("fast", chunk, now);
+                    }
+                }
+            }
+
+            assertTrue(allAboveGuardReceived(journal));
+            assertEquals(SwarmScheduler.MAX_STRIKES, stalledRequests);
+            assertEquals(1, scheduler.peerCount());
+            assertEquals("fast", scheduler.peers().get(0).ip);
+            assertEquals(CHUNKS - GUARD, scheduler.peers().get(0).received);
+            // Все, что раздавалось молчащему пиру, в итоге принято от быстрого
+            for (int chunk = givenToStalled.nextSetBit(0); chunk >= 0; chunk = givenToStalled.nextSetBit(chunk + 1)) {
+                assertTrue(journal.isReceived(chunk));
+            }
+            assertFalse(givenToStalled.isEmpty());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void chunkRejectedByMerkleIsRequestedAgain() throws IOException {
+        File file = journalFile();
+        try {
+            TransferJournal journal = journal(file, 20);
+            SwarmScheduler scheduler = new SwarmScheduler(journal, GUARD);
+            scheduler.addPeer("a", 0);
+            SwarmScheduler.Request first = scheduler.plan(0).get(0);
+            for (int chunk = first.first; chunk < first.first + first.count; chunk++) {
+                journal.markReceived(chunk);
+                scheduler.onChunk("a", chunk, 10);
+            }
+            List<SwarmScheduler.Request> rest = scheduler.plan(10);
+            assertEquals(1, rest.size());
+            assertRange(rest.get(0), "a", GUARD, 2);
+            for (int chunk = GUARD; chunk < 12; chunk++) {
+                journal.markReceived(chunk);
+                scheduler.onChunk("a", chunk, 20);
+            }
+            assertTrue(scheduler.plan(20).isEmpty());
+
+            journal.markMissing(15);
+            scheduler.onChunkLost(15);
+            List<SwarmScheduler.Request> retry = scheduler.plan(30);
+            assertEquals(1, retry.size());
+            assertRange(retry.get(0), "a", 15, 1);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void assertRange(SwarmScheduler.Request request, String ip, int first, int count) {
+        assertEquals(ip, request.peer.ip);
+        assertEquals(first, request.first);
+        assertEquals(count, request.count);
+    }
+
+    private static boolean allAboveGuardReceived(TransferJournal journal) {
+        for (int chunk = GUARD; chunk < journal.totalChunks; chunk++) {
+            if (!journal.isReceived(chunk)) return false;
+        }
+        return true;
+    }
+
+    private static TransferJournal journal(File file, int chunks) {
+        return TransferJournal.openOrCreate(file, 1024L * chunks, new byte[32], 1024, chunks);
+    }
+
+    private static File journalFile() throws IOException {
+        File file = Files.createTempFile("swarm", ".journal").toFile();
+        file.delete();
+        return file;
+    }
+}
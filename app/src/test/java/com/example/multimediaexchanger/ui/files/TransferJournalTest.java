@@ -0,0 +1,123 @@
+package com.example.multimediaexchanger.ui.files;
+
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Журнал докачки: переживает перезапуск, а битый или чужой журнал заменяется пустым, даже если
+ * длины в нем испорчены.
+ */
+public class TransferJournalTest {
+
+    private static final byte[] HASH = new byte[32];
+    private static final int CHUNK = 1024;
+    private static final int CHUNKS = 20;
+
+    static {
+        for (int i = 0; i < HASH.length; i++) HASH[i] = (byte) i;
+    }
+
+    @Test
+    public void resumesFromSyncedJournal() throws IOException {
+        File file = Files.createTempFile("transfer", ".journal").toFile();
+        try {
+            file.delete();
+            TransferJournal journal = TransferJournal.openOrCreate(file, CHUNK * CHUNKS, HASH, CHUNK, CHUNKS);
+            assertFalse(journal.isResumed());
+            journal.markReceived(0);
+            journal.markReceived(19);
+            journal.sync();
+
+            TransferJournal reopened = TransferJournal.openOrCreate(file, CHUNK * CHUNKS, HASH, CHUNK, CHUNKS);
+            assertTrue(reopened.isResumed());
+            assertEquals(2, reopened.receivedCount());
+            assertArrayEquals(new int[]{1, 2}, reopened.missingChunks(2));
+
+            // Другой файл под тем же именем — начинаем заново
+            byte[] otherHash = HASH.clone();
+            otherHash[0] ^= 1;
+            assertFalse(TransferJournal.openOrCreate(file, CHUNK * CHUNKS, otherHash, CHUNK, CHUNKS).isResumed());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void corruptLengthsStartFreshJournal() throws IOException {
+        int[][] lengths = {
+                {-1, 1},                     // Отрицательная длина хеша
+                {Integer.MAX_VALUE, 1},      // Огромная длина хеша
+                {HASH.length, -5},           // Отрицательная длина карты
+                {HASH.length, Integer.MAX_VALUE},
+                {HASH.length, (CHUNKS + 7) / 8 + 1}, // Карта длиннее, чем чанков в файле
+        };
+        for (int[] length : lengths) {
+            File file = writeJournal(length[0], length[1]);
+            try {
+                TransferJournal journal = TransferJournal.openOrCreate(file, CHUNK * CHUNKS, HASH, CHUNK, CHUNKS);
+                assertFalse(journal.isResumed());
+                assertEquals(0, journal.receivedCount());
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void truncatedJournalStartsFresh() throws IOException {
+        File file = Files.createTempFile("transfer", ".journal").toFile();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(0x524A4E4C);
+            out.writeInt(1);
+            out.writeLong(CHUNK * CHUNKS);
+            out.writeInt(HASH.length);
+            out.write(HASH, 0, 10); // Оборван на середине хеша
+        }
+        try {
+            assertFalse(TransferJournal.openOrCreate(file, CHUNK * CHUNKS, HASH, CHUNK, CHUNKS).isResumed());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void bitsBeyondLastChunkAreIgnored() throws IOException {
+        // 20 чанков — 3 байта карты; в последнем байте выставлены и лишние 4 бита
+        File file = writeJournal(HASH.length, 3, new byte[]{1, 0, (byte) 0xFF});
+        try {
+            TransferJournal journal = TransferJournal.openOrCreate(file, CHUNK * CHUNKS, HASH, CHUNK, CHUNKS);
+            assertTrue(journal.isResumed());
+            assertEquals(5, journal.receivedCount());
+            assertFalse(journal.isComplete());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static File writeJournal(int hashLength, int bitmapLength) throws IOException {
+        return writeJournal(hashLength, bitmapLength, new byte[4]);
+    }
+
+    private static File writeJournal(int hashLength, int bitmapLength, byte[] bitmap) throws IOException {
+        File file = Files.createTempFile("transfer", ".journal").toFile();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(0x524A4E4C);
+            out.writeInt(1);
+            out.writeLong(CHUNK * CHUNKS);
+            out.writeInt(hashLength);
+            out.write(HASH);
+            out.writeInt(CHUNK);
+            out.writeInt(CHUNKS);
+            out.writeInt(bitmapLength);
+            out.write(bitmap);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.multimediaexchanger.ui.files;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Снимки телеметрии: мгновенная скорость за последнюю секунду, средняя с начала, оценка
+ * остатка и доля повторов.
+ */
+public class TransferStatsTest {
+
+    @Test
+    public void instantRateFollowsLastSecond() {
+        TransferStats stats = new TransferStats(TransferStats.Scope.FILES, "a.bin", true, 10_000_000, 0);
+        // Первые 2 с по 1 МБ/с, дальше 4 МБ/с
+        for (long t = 100; t <= 2000; t += 100) {
+            stats.addDone(100_000);
+            stats.sample(t);
+        }
+        for (long t = 2100; t <= 3000; t += 100) {
+            stats.addDone(400_000);
+            stats.sample(t);
+        }
+        TransferStats.Snapshot snapshot = stats.sample(3000);
+        assertEquals(4_000_000, snapshot.instantRate);
+        assertEquals(2_000_000, snapshot.averageRate);
+        assertEquals(6_000_000, snapshot.done);
+        assertEquals(1000, snapshot.etaMs); // Остаток 4 МБ при 4 МБ/с
+        assertEquals(600, snapshot.permille());
+    }
+
+    @Test
+    public void stalledTransferFallsBackToAverageForEta() {
+        TransferStats stats = new TransferStats(TransferStats.Scope.CHAT, "b.bin", false, 2_000_000, 0);
+        stats.addDone(1_000_000);
+        stats.sample(1000);
+        // Две секунды ничего не приходит: мгновенная скорость 0, оценка — по средней
+        TransferStats.Snapshot snapshot = stats.sample(3000);
+        assertEquals(0, snapshot.instantRate);
+        assertEquals(333_333, snapshot.averageRate);
+        assertEquals(3000, snapshot.etaMs);
+    }
+
+    @Test
+    public void unknownSizeHasNoEta() {
+        TransferStats stats = new TransferStats(TransferStats.Scope.CHAT, "c.mp4", true, -1, 0);
+        stats.addDone(500_000);
+        TransferStats.Snapshot snapshot = stats.sample(500);
+        assertEquals(-1, snapshot.etaMs);
+        assertEquals(-1, snapshot.permille());
+
+        stats.setTotal(1_000_000);
+        assertEquals(500, stats.sample(1000).permille());
+    }
+
+    @Test
+    public void countsRetransmissionsAndRevokedAcks() {
+        TransferStats stats = new TransferStats(TransferStats.Scope.FILES, "d.bin", true, 100, 0);
+        for (int i = 0; i < 8; i++) stats.onPacket(false);
+        stats.onPacket(true);
+        stats.onPacket(true);
+        stats.addDone(50);
+        stats.addDone(-20); // NACK: чанк оказался испорчен
+        stats.setWindow(16);
+
+        TransferStats.Snapshot snapshot = stats.sample(1000);
+        assertEquals(0.2, snapshot.retransmitRatio, 1e-9);
+        assertEquals(30, snapshot.done);
+        assertEquals(16, snapshot.window);
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.multimediaexchanger.ui.messages;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Хранилище вложений: одинаковое содержимое лежит одним файлом с именем-хэшем, источник
+ * находится повторно без новой копии, сорванная отправка не оставляет временных файлов.
+ */
+public class AttachmentStoreTest {
+
+    @Test
+    public void sameContentIsStoredOnce() throws IOException {
+        File directory = Files.createTempDirectory("attachments").toFile();
+        try {
+            AttachmentStore store = new AttachmentStore(directory);
+            File first = write(store, "content://picker/1#5", "hello");
+            File second = write(store, "content://picker/2#5", "hello");
+            File other = write(store, "content://picker/3#5", "world");
+
+            assertEquals(first, second);
+            assertNotEquals(first, other);
+            // SHA-256 от "hello"
+            assertEquals("2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824", first.getName());
+            assertEquals("hello", new String(Files.readAllBytes(first.toPath()), StandardCharsets.UTF_8));
+            assertEquals(2, directory.listFiles().length);
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    @Test
+    public void knownSourceIsFoundWithoutCopy() throws IOException {
+        File directory = Files.createTempDirectory("attachments").toFile();
+        try {
+            AttachmentStore store = new AttachmentStore(directory);
+            assertNull(store.lookup("content://picker/1#5"));
+            File stored = store.store(new ByteArrayInputStream("hello".getBytes(StandardCharsets.UTF_8)), "content://picker/1#5");
+
+            assertEquals(stored, store.lookup("content://picker/1#5"));
+            assertNull(store.lookup("content://picker/1#6"));
+            // Файл удалили — источник снова неизвестен
+            assertTrue(stored.delete());
+            assertNull(store.lookup("content://picker/1#5"));
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    @Test
+    public void abandonedWriterLeavesNothing() throws IOException {
+        File directory = Files.createTempDirectory("attachments").toFile();
+        try {
+            AttachmentStore store = new AttachmentStore(directory);
+            try (AttachmentStore.Writer writer = store.newWriter()) {
+                byte[] data = "partial".getBytes(StandardCharsets.UTF_8);
+                writer.accept(data, data.length);
+                // Отправка сорвалась — commit не вызван
+            }
+            assertEquals(0, directory.listFiles().length);
+
+            // Остатки от упавшего процесса убираются при открытии
+            assertTrue(new File(directory, "attachment123.tmp").createNewFile());
+            new AttachmentStore(directory);
+            assertEquals(0, directory.listFiles().length);
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    private static File write(AttachmentStore store, String sourceKey, String content) throws IOException {
+        byte[] data = content.getBytes(StandardCharsets.UTF_8);
+        try (AttachmentStore.Writer writer = store.newWriter()) {
+            // Порциями, как чанки отправки
+            writer.accept(data, 2);
+            byte[] rest = new byte[data.length - 2];
+            System.arraycopy(data, 2, rest, 0, rest.length);
+            writer.accept(rest, rest.length);
+            return writer.commit(sourceKey);
+        }
+    }
+
+    private static void deleteRecursively(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        directory.delete();
+    }
+}
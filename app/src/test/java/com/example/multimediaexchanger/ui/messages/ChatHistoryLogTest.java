@@ -0,0 +1,211 @@
+package com.example.multimediaexchanger.ui.messages;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Журнал истории чата: записи переживают переоткрытие, замена по id сохраняет порядок,
+ * после падения теряется только оборванная запись, сжатие не меняет содержимое,
+ * индекс восстанавливается по хвосту журнала или целиком.
+ */
+public class ChatHistoryLogTest {
+
+    @Test
+    public void appendedRecordsSurviveReopen() throws IOException {
+        File file = File.createTempFile("history", ".log");
+        try {
+            try (ChatHistoryLog log = new ChatHistoryLog(file)) {
+                for (int i = 1; i <= 100; i++) log.append(i, body("message " + i));
+            }
+            try (ChatHistoryLog log = new ChatHistoryLog(file)) {
+                assertEquals(100, log.size());
+                assertEquals(100, log.lastId());
+                assertEquals(0, log.droppedTailBytes());
+                List<ChatHistoryLog.Record> records = log.read(0, log.size());
+                for (int i = 0; i < 100; i++) {
+                    assertEquals(i + 1, records.get(i).id);
+                    assertEquals("message " + (i + 1), text(records.get(i)));
+                }
+                assertEquals("message 51", text(log.read(50, 51).get(0)));
+                assertEquals(0, log.positionAfter(0));
+                assertEquals(50, log.positionAfter(50));
+                assertEquals(100, log.positionAfter(100));
+            }
+        } finally {
+            file.delete();
+            new File(file.getPath() + ".idx").delete();
+        }
+    }
+
+    @Test
+    public void recordWithKnownIdReplacesInPlace() throws IOException {
+        File file = File.createTempFile("history", ".log");
+        try {
+            try (ChatHistoryLog log = new ChatHistoryLog(file)) {
+                log.append(1, body("first"));
+                log.append(2, body("second"));
+                log.append(1, body("first, edited"));
+            }
+            try (ChatHistoryLog log = new ChatHistoryLog(file)) {
+                List<ChatHistoryLog.Record> records = log.read(0, log.size());
+                assertEquals(2, records.size());
+                assertEquals("first, edited", text(records.get(0)));
+                assertEquals("second", text(records.get(1)));
+            }
+        } finally {
+            file.delete();
+            new File(file.getPath() + ".idx").delete();
+        }
+    }
+
+    @Test
+    public void tornTailIsDroppedAndLogStaysWritable() throws IOException {
+        File file = File.createTempFile("history", ".log");
+        try {
+            try (ChatHistoryLog log = new ChatHistoryLog(file)) {
+                for (int i = 1; i <= 10; i++) log.append(i, body("message " + i));
+            }
+            // Падение посреди записи: последняя запись обрезана на середине
+            long intact = file.length();
+            try (ChatHistoryLog log = new ChatHistoryLog(file)) {
+                log.append(11, body("torn message"));
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(intact + 10);
+            }
+
+            try (ChatHistoryLog log = new ChatHistoryLog(file)) {
+                assertEquals(10, log.size());
+                assertEquals(10, log.droppedTailBytes());
+                assertEquals(intact, file.length());
+                log.append(11, body("after crash"));
+            }
+            try (ChatHistoryLog log = new ChatHistoryLog(file)) {
+                assertEquals(11, log.size());
+                assertEquals("after crash", text(log.read(10, 11).get(0)));
+            }
+        } finally {
+            file.delete();
+            new File(file.getPath() + ".idx").delete();
+        }
+    }
+
+    @Test
+    public void corruptedRecordCutsOnlyFromThere() throws IOException {
+        File file = File.createTempFile("history", ".log");
+        try {
+            try (ChatHistoryLog log = new ChatHistoryLog(file)) {
+                for (int i = 1; i <= 4; i++) log.append(i, body("message " + i));
+            }
+            // Пятая запись легла в журнал испорченной, и индекс до нее не дошел
+            byte[] indexBeforeCrash = Files.readAllBytes(new File(file.getPath() + ".idx").toPath());
+            try (ChatHistoryLog log = new ChatHistoryLog(file)) {
+                log.append(5, body("message 5"));
+            }
+            Files.write(new File(file.getPath() + ".idx").toPath(), indexBeforeCrash);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(raf.length() - 1);
+                raf.write('X'); // CRC не сойдется
+            }
+            try (ChatHistoryLog log = new ChatHistoryLog(file)) {
+                assertEquals(4, log.size());
+                assertEquals("message 4", text(log.read(3, 4).get(0)));
+            }
+        } finally {
+            file.delete();
+            new File(file.getPath() + ".idx").delete();
+        }
+    }
+
+    @Test
+    public void compactionKeepsLiveRecordsInOrder() throws IOException {
+        File file = File.createTempFile("history", ".log");
+        try {
+            try (ChatHistoryLog log = new ChatHistoryLog(file)) {
+                for (int i = 1; i <= 10; i++) log.append(i, body("message " + i));
+                for (int round = 0; round < 100; round++) log.append(3, body("edit " + round));
+                long before = file.length();
+                log.compact();
+                assertTrue(file.length() < before / 5);
+                log.append(11, body("message 11"));
+            }
+            try (ChatHistoryLog log = new ChatHistoryLog(file)) {
+                List<ChatHistoryLog.Record> records = log.read(0, log.size());
+                assertEquals(11, records.size());
+                assertEquals("edit 99", text(records.get(2)));
+                for (int i = 0; i < 11; i++) assertEquals(i + 1, records.get(i).id);
+            }
+        } finally {
+            file.delete();
+            new File(file.getPath() + ".idx").delete();
+        }
+    }
+
+    @Test
+    public void missingIndexIsRebuiltFromLog() throws IOException {
+        File file = File.createTempFile("history", ".log");
+        File indexFile = new File(file.getPath() + ".idx");
+        try {
+            try (ChatHistoryLog log = new ChatHistoryLog(file)) {
+                for (int i = 1; i <= 20; i++) log.append(i, body("message " + i));
+                log.append(7, body("edited"));
+            }
+            assertTrue(indexFile.delete());
+            try (ChatHistoryLog log = new ChatHistoryLog(file)) {
+                assertEquals(20, log.size());
+                assertEquals(20, log.lastId());
+                assertEquals(6, log.positionOf(7));
+                assertEquals("edited", text(log.read(6, 7).get(0)));
+            }
+        } finally {
+            file.delete();
+            indexFile.delete();
+        }
+    }
+
+    @Test
+    public void recordsAfterIndexCheckpointAreReplayed() throws IOException {
+        File file = File.createTempFile("history", ".log");
+        File indexFile = new File(file.getPath() + ".idx");
+        try {
+            try (ChatHistoryLog log = new ChatHistoryLog(file)) {
+                for (int i = 1; i <= 5; i++) log.append(i, body("message " + i));
+            }
+            // Падение после записи в журнал, но до записи в индекс: возвращаем индекс на пять записей
+            byte[] staleIndex = Files.readAllBytes(indexFile.toPath());
+            try (ChatHistoryLog log = new ChatHistoryLog(file)) {
+                for (int i = 6; i <= 8; i++) log.append(i, body("message " + i));
+                log.append(2, body("edited"));
+            }
+            Files.write(indexFile.toPath(), staleIndex);
+
+            try (ChatHistoryLog log = new ChatHistoryLog(file)) {
+                assertEquals(8, log.size());
+                assertEquals(8, log.lastId());
+                List<ChatHistoryLog.Record> records = log.read(0, log.size());
+                assertEquals("edited", text(records.get(1)));
+                assertEquals("message 8", text(records.get(7)));
+                assertEquals(-1, log.positionOf(9));
+            }
+        } finally {
+            file.delete();
+            indexFile.delete();
+        }
+    }
+
+    private static byte[] body(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(ChatHistoryLog.Record record) {
+        return new String(record.body, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.multimediaexchanger.ui.messages;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Полнотекстовый индекс: поиск по префиксам всех слов запроса, новые сообщения первыми;
+ * индекс переживает переоткрытие и слияние сегментов, после падения знает, с какого id
+ * дочитать историю. Запрос объединяет сегменты на диске с таблицей в памяти.
+ */
+public class ChatSearchIndexTest {
+
+    @Test
+    public void prefixQueryMatchesAllWordsNewestFirst() throws IOException {
+        File directory = Files.createTempDirectory("search").toFile();
+        try (ChatSearchIndex index = new ChatSearchIndex(new File(directory, "history.fts"))) {
+            index.add(1, "Привет, как дела?");
+            index.add(2, "Отправил файл с логами");
+            index.add(3, "привет ещё раз, файл дошёл?");
+            index.add(4, null); // Картинка без текста
+            index.add(5, "ПРИВЕТСТВУЮ всех");
+
+            assertArrayEquals(new long[]{5, 3, 1}, index.search("прив", 10));
+            assertArrayEquals(new long[]{3}, index.search("Привет фай", 10));
+            assertArrayEquals(new long[]{5, 3}, index.search("прив", 2));
+            assertArrayEquals(new long[0], index.search("отсутствует", 10));
+            assertArrayEquals(new long[0], index.search("  ,. ", 10));
+            assertEquals(Arrays.asList("файл", "дошёл", "42"), ChatSearchIndex.tokenize("Файл дошёл: 42 файл"));
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    @Test
+    public void segmentsSurviveReopenAndMerge() throws IOException {
+        File directory = Files.createTempDirectory("search").toFile();
+        File manifest = new File(directory, "history.fts");
+        try {
+            long id = 0;
+            try (ChatSearchIndex index = new ChatSearchIndex(manifest)) {
+                // Больше MAX_SEGMENTS сбросов — сегменты сливаются
+                for (int segment = 0; segment <= ChatSearchIndex.MAX_SEGMENTS + 1; segment++) {
+                    index.add(++id, "сегмент номер " + segment);
+                    index.add(++id, "общее слово");
+                    index.flush();
+                }
+                index.add(++id, "общее слово в памяти");
+            }
+            assertTrue(directory.listFiles().length <= ChatSearchIndex.MAX_SEGMENTS + 1);
+
+            try (ChatSearchIndex index = new ChatSearchIndex(manifest)) {
+                assertEquals(id, index.indexedUpTo());
+                long[] common = index.search("общ", 100);
+                assertEquals(ChatSearchIndex.MAX_SEGMENTS + 3, common.length);
+                assertEquals(id, common[0]);
+                for (int i = 1; i < common.length; i++) assertTrue(common[i - 1] > common[i]);
+                assertArrayEquals(new long[]{5}, index.search("сегмент 2", 10));
+            }
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    @Test
+    public void afterCrashIndexReportsWhereToCatchUp() throws IOException {
+        File directory = Files.createTempDirectory("search").toFile();
+        File manifest = new File(directory, "history.fts");
+        try {
+            ChatSearchIndex crashed = new ChatSearchIndex(manifest);
+            crashed.add(1, "до сброса");
+            crashed.flush();
+            crashed.add(2, "после сброса");
+            // Процесс упал: таблица в памяти потеряна, close не вызван
+
+            try (ChatSearchIndex index = new ChatSearchIndex(manifest)) {
+                assertEquals(1, index.indexedUpTo());
+                assertArrayEquals(new long[]{1}, index.search("сброса", 10));
+                index.add(2, "после сброса"); // Дочитано из журнала истории
+                assertArrayEquals(new long[]{2, 1}, index.search("сброса", 10));
+
+                index.reset();
+                assertEquals(0, index.indexedUpTo());
+                assertArrayEquals(new long[0], index.search("сброса", 10));
+            }
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    @Test
+    public void prefixQueryMergesFlushedSegmentWithMemtable() throws IOException {
+        File directory = Files.createTempDirectory("search").toFile();
+        // По два слова на сообщение: посередине таблица в памяти сама сбрасывается сегментом
+        int messages = ChatSearchIndex.FLUSH_POSTINGS * 3 / 5;
+        try (ChatSearchIndex index = new ChatSearchIndex(new File(directory, "history.fts"))) {
+            for (int id = 1; id <= messages; id++) index.add(id, "слово" + id % 10 + " общее");
+            assertEquals(ChatSearchIndex.FLUSH_POSTINGS / 2, index.indexedUpTo());
+
+            long[] threes = index.search("слово3", messages);
+            assertEquals(messages / 10, threes.length);
+            for (int i = 0; i < threes.length; i++) assertEquals(messages - 7 - 10L * i, threes[i]);
+
+            // Префикс задевает все десять слов в обоих источниках
+            long[] all = index.search("сло об", messages);
+            assertEquals(messages, all.length);
+            for (int i = 0; i < all.length; i++) assertEquals(messages - i, all[i]);
+            assertArrayEquals(new long[]{messages, messages - 1}, index.search("слово", 2));
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    private static void deleteRecursively(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        directory.delete();
+    }
+}
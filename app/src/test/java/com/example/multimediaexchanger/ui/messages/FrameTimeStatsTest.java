@@ -0,0 +1,44 @@
+package com.example.multimediaexchanger.ui.messages;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Сводка кадров прокрутки: перцентили по всем кадрам, медленные считаются отдельно,
+ * после сброса счет начинается заново.
+ */
+public class FrameTimeStatsTest {
+
+    private static final long MS = 1_000_000L;
+
+    @Test
+    public void percentilesAndJankyFrames() {
+        FrameTimeStats stats = new FrameTimeStats();
+        // 0.1..100 мс с шагом 0.1: кадров больше начального буфера, проверяем и рост
+        for (int i = 1; i <= 1000; i++) stats.record(i * MS / 10);
+
+        assertEquals(1000, stats.count());
+        assertEquals(50 * MS, stats.percentile(0.5));
+        assertEquals(95 * MS, stats.percentile(0.95));
+        assertEquals(100 * MS, stats.percentile(1));
+        assertEquals(MS / 10, stats.percentile(0));
+        // Дольше 16.67 мс — все начиная с 16.7
+        assertEquals(1000 - 166, stats.jankyFrames());
+    }
+
+    @Test
+    public void resetStartsOver() {
+        FrameTimeStats stats = new FrameTimeStats();
+        stats.record(40 * MS);
+        stats.reset();
+        assertEquals(0, stats.count());
+        assertEquals(0, stats.jankyFrames());
+        assertEquals(0, stats.percentile(0.5));
+
+        stats.record(5 * MS);
+        assertEquals(5 * MS, stats.percentile(0.99));
+        assertEquals(0, stats.jankyFrames());
+        assertTrue(stats.summary().startsWith("кадров 1, p50 5.0 мс"));
+    }
+}